@@ -0,0 +1,53 @@
+/**
+ * Copyright 2010 Tristan Slominski
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mindash.datastore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Transforms Blob bytes before they are sharded, typically to compress them.
+ * The name of the codec is recorded in the 0th shard of every entity it
+ * encoded, so the codec has to stay registered with
+ * {@link MindashDatastoreConfig} for as long as such entities are read.
+ * 
+ * @author Tristan Slominski
+ *
+ */
+public interface BlobCodec {
+
+  /**
+   * @return the name recorded in the 0th shard, unique among codecs
+   */
+  public String getName();
+
+  /**
+   * @param out the stream to write the encoded bytes to
+   * @return a stream that encodes what is written to it; closing it closes
+   * <code>out</code>
+   * @throws IOException
+   */
+  public OutputStream encode(OutputStream out) throws IOException;
+
+  /**
+   * @param in the stream of encoded bytes
+   * @return a stream of the decoded bytes; closing it closes <code>in</code>
+   * @throws IOException
+   */
+  public InputStream decode(InputStream in) throws IOException;
+
+}
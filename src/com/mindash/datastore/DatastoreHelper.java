@@ -24,11 +24,19 @@ import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.Transaction;
 
 /**
+ * Splits large batch operations into chunks the datastore accepts. Chunks
+ * are sent one after another, or concurrently when
+ * {@link MindashDatastoreConfig#getChunkExecutor()} is set.
+ * 
  * @author Tristan Slominski
  *
  */
 public interface DatastoreHelper {
 
+  public static int GetChunkSize = 1000;
+  public static int PutChunkSize = 500;
+  public static int DeleteChunkSize = 500;
+
   public Map<Key,Entity> get(DatastoreService datastore, List<Key> keys);
   public Map<Key,Entity> get(Transaction txn, DatastoreService datastore,
       List<Key> keys);
@@ -39,4 +47,18 @@ public interface DatastoreHelper {
   public void delete(Transaction txn, DatastoreService datastore, 
       List<Key> keys);
   
+  /**
+   * Runs a keys and values ancestor query for each of the given ancestors,
+   * one query per chunk, and collects every entity of the ancestor's kind
+   * found below them. Descendants further down than children are included,
+   * so callers filter the result.
+   * 
+   * @param txn the transaction, can be <code>null</code>
+   * @param datastore the datastore
+   * @param ancestors the keys of the ancestors
+   * @return the entities found, by key
+   */
+  public Map<Key,Entity> getDescendants(Transaction txn,
+      DatastoreService datastore, List<Key> ancestors);
+  
 }
@@ -17,14 +17,18 @@ package com.mindash.datastore;
 
 /**
  * Thrown when all of the shards of an entity are not available from
- * the datastore. Partial data may be retrieved, but the entity integrity
- * is lost.
+ * the datastore, or a shard does not match its checksum. Partial data may be
+ * retrieved, but the entity integrity is lost. When the problem is with a
+ * single shard, {@link #getShardIndex()} tells which one, so that only that
+ * shard needs to be read again.
  * 
  * @author Tristan Slominski
  */
 @SuppressWarnings("serial")
 public class EntityCorruptException extends Exception {
   
+  private int shardIndex = -1;
+  
   public EntityCorruptException(){
     super();
   }
@@ -40,5 +44,18 @@ public class EntityCorruptException extends Exception {
   public EntityCorruptException(String message, Throwable cause){
     super(message, cause);
   }
+  
+  public EntityCorruptException(String message, int shardIndex){
+    super(message);
+    this.shardIndex = shardIndex;
+  }
+  
+  /**
+   * @return the index of the shard that is missing or corrupt, or -1 if the
+   * problem is not with a single shard
+   */
+  public int getShardIndex(){
+    return shardIndex;
+  }
 
 }
@@ -0,0 +1,49 @@
+/**
+ * Copyright 2010 Tristan Slominski
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mindash.datastore;
+
+import com.google.appengine.api.datastore.Entity;
+
+/**
+ * Receives the entities of a scan over a kind, see
+ * {@link MindashDatastoreService#forEachParallel}.
+ * The key ranges of a scan are walked by several threads, so
+ * {@link #visit(Entity)} must be safe to call concurrently.
+ * 
+ * @author Tristan Slominski
+ */
+public interface EntityVisitor {
+
+  /**
+   * Called once for every entity of the scan, from the thread walking the
+   * key range the entity is in.
+   * 
+   * @param entity the assembled entity
+   */
+  public void visit(Entity entity);
+
+  /**
+   * Called on the thread that started the scan each time a key range has
+   * been walked.
+   * 
+   * @param rangesScanned the number of key ranges walked so far
+   * @param rangeCount the number of key ranges of the scan
+   * @param entitiesVisited the number of entities visited so far
+   */
+  public void rangeScanned(int rangesScanned, int rangeCount,
+      long entitiesVisited);
+
+}
@@ -0,0 +1,434 @@
+/**
+ * Copyright 2010 Tristan Slominski
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mindash.datastore;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+import com.mindash.datastore.impl.DeflateBlobCodec;
+
+/**
+ * <p>
+ * Tunable settings for the Mindash Datastore. An instance is bound by
+ * {@link MindashDatastoreModule}; pass a customized instance to
+ * {@link MindashDatastoreModule#MindashDatastoreModule(MindashDatastoreConfig)}
+ * to change the defaults.
+ * </p>
+ * <p>
+ * By default everything is done sequentially on the calling thread, and
+ * shards are checked against their checksums as they are read.
+ * </p>
+ *
+ * @author Tristan Slominski
+ */
+public class MindashDatastoreConfig {
+
+  public static int DefaultMaximumChunksInFlight = 4;
+  public static int DefaultBlobReadAheadShards = 4;
+  public static int DefaultBlobWriterBatchShards = 8;
+  public static int DefaultSizeEstimateMarginPercent = 10;
+  public static long DefaultEntityCacheMaximumBytes = 16 * 1024 * 1024;
+  public static int DefaultKeyIdBlockSize = 100;
+
+  private ExecutorService chunkExecutor;
+  private int maximumChunksInFlight = DefaultMaximumChunksInFlight;
+  private int blobReadAheadShards = DefaultBlobReadAheadShards;
+  private int blobWriterBatchShards = DefaultBlobWriterBatchShards;
+  private int sizeEstimateMarginPercent = DefaultSizeEstimateMarginPercent;
+  private boolean shardChecksumVerification = true;
+  private long entityCacheMaximumBytes = DefaultEntityCacheMaximumBytes;
+  private ShardMetadataCache shardMetadataCache;
+  private int keyIdBlockSize = DefaultKeyIdBlockSize;
+  private int shardPrefetchPercentile;
+  private ThreadFactory scanThreadFactory;
+  /** codecs used to store blobs, by kind */
+  private Map<String, BlobCodec> kindBlobCodecs =
+      new HashMap<String, BlobCodec>();
+  /** codecs that can be read, by name */
+  private Map<String, BlobCodec> blobCodecs = new HashMap<String, BlobCodec>();
+  /** kinds whose blobs are stored once by content */
+  private Set<String> deduplicatedKinds = new HashSet<String>();
+  /** kinds read with an ancestor query per entity */
+  private Set<String> ancestorQueryKinds = new HashSet<String>();
+
+  public MindashDatastoreConfig() {
+    registerBlobCodec(new DeflateBlobCodec());
+  }
+
+  /**
+   * @return the executor used to dispatch datastore chunks concurrently, or
+   * <code>null</code> if chunks are dispatched sequentially
+   */
+  public ExecutorService getChunkExecutor() {
+    return chunkExecutor;
+  }
+
+  /**
+   * Sets the executor used by {@link DatastoreHelper} to send the 1000/500
+   * item chunks of a large get, put or delete at the same time instead of
+   * one after another. Transactional operations are always sequential.
+   * The same executor prefetches blob shards, stores blob writer batches,
+   * refills id pools and stores import batches. Each task runs with the API
+   * environment of the thread that handed it over, so plain pool threads
+   * can be used.
+   *
+   * @param chunkExecutor the executor, or <code>null</code> for sequential
+   * dispatch
+   */
+  public void setChunkExecutor(ExecutorService chunkExecutor) {
+    this.chunkExecutor = chunkExecutor;
+  }
+
+  /**
+   * @return the maximum number of chunks a single operation keeps in flight
+   */
+  public int getMaximumChunksInFlight() {
+    return maximumChunksInFlight;
+  }
+
+  /**
+   * @param maximumChunksInFlight the maximum number of chunks a single
+   * operation keeps in flight; must be at least 1
+   */
+  public void setMaximumChunksInFlight(int maximumChunksInFlight) {
+    if (maximumChunksInFlight < 1) {
+      throw new IllegalArgumentException(
+          "maximumChunksInFlight must be at least 1");
+    }
+    this.maximumChunksInFlight = maximumChunksInFlight;
+  }
+
+  /**
+   * @return the number of shards a blob stream fetches in one batch
+   */
+  public int getBlobReadAheadShards() {
+    return blobReadAheadShards;
+  }
+
+  /**
+   * Sets the read-ahead window of streams returned by
+   * {@link MindashDatastoreService#openBlobStream(com.google.appengine.api.datastore.Key, String)}.
+   * A stream holds at most this many shards in memory, twice that if a chunk
+   * executor is set and the next window is fetched in the background.
+   *
+   * @param blobReadAheadShards the number of shards to fetch in one batch;
+   * must be at least 1
+   */
+  public void setBlobReadAheadShards(int blobReadAheadShards) {
+    if (blobReadAheadShards < 1) {
+      throw new IllegalArgumentException(
+          "blobReadAheadShards must be at least 1");
+    }
+    this.blobReadAheadShards = blobReadAheadShards;
+  }
+
+  /**
+   * @return the number of shards a blob writer stores in one batch
+   */
+  public int getBlobWriterBatchShards() {
+    return blobWriterBatchShards;
+  }
+
+  /**
+   * Sets the batch size of streams returned by
+   * {@link MindashDatastoreService#createBlobWriter(com.google.appengine.api.datastore.Key, String)}.
+   * A writer holds one batch in memory, two if a chunk executor is set and
+   * the previous batch is stored in the background.
+   *
+   * @param blobWriterBatchShards the number of shards to store in one batch;
+   * must be at least 1
+   */
+  public void setBlobWriterBatchShards(int blobWriterBatchShards) {
+    if (blobWriterBatchShards < 1) {
+      throw new IllegalArgumentException(
+          "blobWriterBatchShards must be at least 1");
+    }
+    this.blobWriterBatchShards = blobWriterBatchShards;
+  }
+
+  /**
+   * @return the number of ids allocated at a time to complete incomplete
+   * keys
+   */
+  public int getKeyIdBlockSize() {
+    return keyIdBlockSize;
+  }
+
+  /**
+   * Sets how many ids of a kind are allocated at a time to complete the
+   * incomplete keys of root entities being put. The next block is allocated
+   * in the background on the chunk executor, if one is set, once half of the
+   * current block is used up. Ids left unused when the application stops
+   * are skipped, never reused.
+   *
+   * @param keyIdBlockSize the number of ids to allocate at a time; must be
+   * at least 1
+   */
+  public void setKeyIdBlockSize(int keyIdBlockSize) {
+    if (keyIdBlockSize < 1) {
+      throw new IllegalArgumentException("keyIdBlockSize must be at least 1");
+    }
+    this.keyIdBlockSize = keyIdBlockSize;
+  }
+
+  /**
+   * @return the percentage of entities whose shards a batch get fetches
+   * along with their 0th shard, 0 if it never does
+   */
+  public int getShardPrefetchPercentile() {
+    return shardPrefetchPercentile;
+  }
+
+  /**
+   * Makes batch gets of whole entities fetch, along with every 0th shard,
+   * as many other shards as this percentage of the entities of the kind
+   * read so far have had, so that only entities with more shards need a
+   * second round trip. Shards fetched for entities with fewer shards are
+   * wasted reads; the outcomes are counted by
+   * {@link com.mindash.datastore.impl.ShardCountPredictor}. Off by default.
+   *
+   * @param shardPrefetchPercentile the percentage of entities to cover, from
+   * 0 (off) to 100
+   */
+  public void setShardPrefetchPercentile(int shardPrefetchPercentile) {
+    if (shardPrefetchPercentile < 0 || shardPrefetchPercentile > 100) {
+      throw new IllegalArgumentException(
+          "shardPrefetchPercentile must be between 0 and 100");
+    }
+    this.shardPrefetchPercentile = shardPrefetchPercentile;
+  }
+
+  /**
+   * @return the percentage added to every size estimate
+   */
+  public int getSizeEstimateMarginPercent() {
+    return sizeEstimateMarginPercent;
+  }
+
+  /**
+   * Sets the safety margin of the default {@link SizeEstimator}, which sizes
+   * properties close to their encoded size. A larger margin packs fewer
+   * properties into each shard.
+   *
+   * @param sizeEstimateMarginPercent the percentage added to every size
+   * estimate; must not be negative
+   */
+  public void setSizeEstimateMarginPercent(int sizeEstimateMarginPercent) {
+    if (sizeEstimateMarginPercent < 0) {
+      throw new IllegalArgumentException(
+          "sizeEstimateMarginPercent cannot be negative");
+    }
+    this.sizeEstimateMarginPercent = sizeEstimateMarginPercent;
+  }
+
+  /**
+   * @return <code>true</code> if retrieved shards are checked against their
+   * checksums
+   */
+  public boolean isShardChecksumVerification() {
+    return shardChecksumVerification;
+  }
+
+  /**
+   * Turns checking retrieved shards against the checksum recorded when they
+   * were stored on or off. Checksums are always recorded; turning the check
+   * off saves hashing every retrieved byte on read-heavy paths that can
+   * tolerate a corrupt shard going unnoticed. On by default.
+   *
+   * @param shardChecksumVerification <code>false</code> to skip the check
+   */
+  public void setShardChecksumVerification(boolean shardChecksumVerification) {
+    this.shardChecksumVerification = shardChecksumVerification;
+  }
+
+  /**
+   * @return the largest total weight of the entities held by
+   * {@link com.mindash.datastore.impl.CachingMindashDatastoreService}
+   */
+  public long getEntityCacheMaximumBytes() {
+    return entityCacheMaximumBytes;
+  }
+
+  /**
+   * Sets how much memory the entity cache may use, if it is bound. Entities
+   * are weighed mostly by the length of their Blobs and strings.
+   *
+   * @param entityCacheMaximumBytes the largest total weight, in bytes
+   */
+  public void setEntityCacheMaximumBytes(long entityCacheMaximumBytes) {
+    if (entityCacheMaximumBytes < 0) {
+      throw new IllegalArgumentException(
+          "entityCacheMaximumBytes cannot be negative");
+    }
+    this.entityCacheMaximumBytes = entityCacheMaximumBytes;
+  }
+
+  /**
+   * @return the cache of 0th shard manifests, or <code>null</code> if the
+   * 0th shard is always read from the datastore
+   */
+  public ShardMetadataCache getShardMetadataCache() {
+    return shardMetadataCache;
+  }
+
+  /**
+   * Sets a cache of the manifests recorded in 0th shards, for example a
+   * {@link com.mindash.datastore.impl.MemcacheShardMetadataCache}, that saves
+   * a datastore round trip on most gets, puts and deletes outside of
+   * transactions. The cache is updated by every put and delete.
+   *
+   * @param shardMetadataCache the cache, or <code>null</code> to always read
+   * the 0th shard first
+   */
+  public void setShardMetadataCache(ShardMetadataCache shardMetadataCache) {
+    this.shardMetadataCache = shardMetadataCache;
+  }
+
+  /**
+   * @param kind the kind of an entity
+   * @return the codec Blob properties of the kind are stored with, or
+   * <code>null</code> if they are stored as they are
+   */
+  public BlobCodec getBlobCodec(String kind) {
+    return kindBlobCodecs.get(kind);
+  }
+
+  /**
+   * Makes Blob properties of entities of the given kind be encoded, for
+   * example compressed with {@link DeflateBlobCodec}, before they are
+   * sharded. A Blob the codec does not make smaller is stored as it is. The
+   * codec is also registered for reading.
+   *
+   * @param kind the kind of entities
+   * @param codec the codec, or <code>null</code> to store Blobs of the kind
+   * as they are
+   */
+  public void setBlobCodec(String kind, BlobCodec codec) {
+    if (codec == null) {
+      kindBlobCodecs.remove(kind);
+      return;
+    }
+    registerBlobCodec(codec);
+    kindBlobCodecs.put(kind, codec);
+  }
+
+  /**
+   * Registers a codec for reading Blobs stored with it, without using it to
+   * store anything. {@link DeflateBlobCodec} is always registered.
+   *
+   * @param codec the codec
+   */
+  public void registerBlobCodec(BlobCodec codec) {
+    blobCodecs.put(codec.getName(), codec);
+  }
+
+  /**
+   * @param name the name recorded in the 0th shard
+   * @return the registered codec, or <code>null</code> if there is none
+   */
+  public BlobCodec findBlobCodec(String name) {
+    return blobCodecs.get(name);
+  }
+
+  /**
+   * @param kind the kind of an entity
+   * @return <code>true</code> if Blob properties of the kind are deduplicated
+   */
+  public boolean isBlobDeduplication(String kind) {
+    return deduplicatedKinds.contains(kind);
+  }
+
+  /**
+   * Makes Blob properties of entities of the given kind be stored once by
+   * content: their pieces are kept under a content hash, shared by every
+   * entity holding the same bytes, instead of in the entity's own shards.
+   * Storing a duplicate then writes only the 0th shard listing the hashes.
+   * Reading a deduplicated Blob takes an extra round trip to fetch its
+   * pieces. Writes and deletes in a transaction never free the pieces the
+   * replaced Blobs held, since the transaction may still be rolled back, so
+   * those pieces stay stored. Off by default.
+   *
+   * @param kind the kind of entities
+   * @param blobDeduplication <code>true</code> to deduplicate
+   */
+  public void setBlobDeduplication(String kind, boolean blobDeduplication) {
+    if (blobDeduplication) {
+      deduplicatedKinds.add(kind);
+    } else {
+      deduplicatedKinds.remove(kind);
+    }
+  }
+
+  /**
+   * @param kind the kind of an entity
+   * @return <code>true</code> if entities of the kind are read with an
+   * ancestor query
+   */
+  public boolean isAncestorQueryReads(String kind) {
+    return ancestorQueryKinds.contains(kind);
+  }
+
+  /**
+   * Makes whole entities of the given kind be read with one ancestor query
+   * per entity, returning all of its shards at once, instead of reading the
+   * 0th shards first and the other shards after. The queries of a batch run
+   * concurrently if a chunk executor is set. The query also returns the
+   * shards of the entity's descendants of the same kind, so this suits
+   * kinds whose entities have no children of their own kind. Reads of some
+   * properties only still read the 0th shard first. Off by default.
+   *
+   * @param kind the kind of entities
+   * @param ancestorQueryReads <code>true</code> to read with ancestor
+   * queries
+   */
+  public void setAncestorQueryReads(String kind, boolean ancestorQueryReads) {
+    if (ancestorQueryReads) {
+      ancestorQueryKinds.add(kind);
+    } else {
+      ancestorQueryKinds.remove(kind);
+    }
+  }
+
+  /**
+   * @return the factory of the threads that walk the key ranges of a
+   * parallel scan, or <code>null</code> if the ranges are walked on the
+   * calling thread
+   */
+  public ThreadFactory getScanThreadFactory() {
+    return scanThreadFactory;
+  }
+
+  /**
+   * Sets the factory of the threads that walk the key ranges of
+   * {@link MindashDatastoreService#forEachParallel}, for example the request
+   * thread factory of the application server. A scan starts its own threads
+   * rather than using the chunk executor, so that the ranges cannot take up
+   * the threads their own chunks are waiting for. App Engine only allows
+   * threads from its own factory, so there is no default: without a factory
+   * the ranges are walked one after another on the calling thread.
+   *
+   * @param scanThreadFactory the thread factory, or <code>null</code> to
+   * walk the ranges on the calling thread
+   */
+  public void setScanThreadFactory(ThreadFactory scanThreadFactory) {
+    this.scanThreadFactory = scanThreadFactory;
+  }
+
+}
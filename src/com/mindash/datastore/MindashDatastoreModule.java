@@ -18,20 +18,49 @@ package com.mindash.datastore;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.inject.AbstractModule;
+import com.mindash.datastore.impl.BinPackingShardPlanner;
 import com.mindash.datastore.impl.DatastoreHelperImpl;
+import com.mindash.datastore.impl.EncodedSizeEstimator;
 import com.mindash.datastore.impl.MindashDatastoreServiceImpl;
 import com.mindash.datastore.impl.MindashPreparedQueryImpl;
 
 /**
  * Google Guice Mindash Datastore Module for dependency injection.
+ * <p>
+ * To keep the original shard layout, override the {@link ShardPlanner}
+ * binding with {@link com.mindash.datastore.impl.GreedyShardPlanner} and the
+ * {@link SizeEstimator} binding with
+ * {@link com.mindash.datastore.impl.ConservativeSizeEstimator}, for example
+ * with <code>Modules.override(new MindashDatastoreModule())</code>.
+ * </p>
+ * <p>
+ * To cache hot entities in memory, override the
+ * {@link MindashDatastoreService} binding with
+ * {@link com.mindash.datastore.impl.CachingMindashDatastoreService} the same
+ * way; its size is set by
+ * {@link MindashDatastoreConfig#setEntityCacheMaximumBytes(long)}.
+ * </p>
  * 
  * @author Tristan Slominski
  */
 public class MindashDatastoreModule extends AbstractModule {
 
+  private MindashDatastoreConfig config;
+
+  public MindashDatastoreModule() {
+    this(new MindashDatastoreConfig());
+  }
+
+  public MindashDatastoreModule(MindashDatastoreConfig config) {
+    this.config = config;
+  }
+
   @Override
   protected void configure() {
+    bind(MindashDatastoreConfig.class).toInstance(config);
     bind(DatastoreHelper.class).to(DatastoreHelperImpl.class);
+    bind(SizeEstimator.class).to(EncodedSizeEstimator.class);
+    bind(ShardPlanner.class).to(BinPackingShardPlanner.class);
     bind(DatastoreService.class).toInstance(
         DatastoreServiceFactory.getDatastoreService());
     bind(MindashDatastoreService.class).to(MindashDatastoreServiceImpl.class);
@@ -15,9 +15,12 @@
  */
 package com.mindash.datastore;
 
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
@@ -36,6 +39,11 @@ public interface MindashDatastoreService {
   
   public static String MindashNamePrefixLabel = "mdd";
   public static String MindashShardCountLabel = "mddx";
+  public static String MindashBlobLengthLabelPrefix = "mddl.";
+  public static String MindashManifestLabel = "mddm";
+  public static String MindashChunkKind = "mddc";
+  public static String MindashChecksumLabel = "mdds";
+  public static String MindashWriterLabel = "mddw";
   public static int MindashInitialEntityOverheadSize = 1024;
   public static int MindashEntityMaximumSize = 1024 * 1024;
   public static int MindashAssumedPropertyOverhead = 128;
@@ -46,6 +54,26 @@ public interface MindashDatastoreService {
   
 	public Transaction beginTransaction();
 	
+	/**
+	 * Visits every entity a query over a kind matches, splitting the key space
+	 * of the kind into ranges that are walked by <code>workers</code> threads
+	 * at once, each assembling its entities a page at a time. Entities are
+	 * visited once each, in no particular order, outside of any transaction.
+	 * A query with an ancestor, filters or sort orders is walked as a single
+	 * range. Returns once every entity has been visited.
+	 * <p>
+	 * The threads come from the factory set with
+	 * {@link MindashDatastoreConfig#setScanThreadFactory}; if none is set the ranges are walked one after another on the calling
+	 * thread.
+	 * </p>
+	 * 
+	 * @param query the query over a kind
+	 * @param workers the number of key ranges to walk at once
+	 * @param visitor the visitor of the entities and of the progress
+	 * @return the number of entities visited
+	 */
+	public long forEachParallel(Query query, int workers, EntityVisitor visitor);
+	
 	public void delete(Key... keys);
 	
 	public void delete(Transaction txn, Key... keys);
@@ -65,6 +93,78 @@ public interface MindashDatastoreService {
 	
 	public Map<Key, Entity> get(Iterable<Key> keys) throws EntityCorruptException;
 	
+	/**
+	 * Retrieves only the given properties of an entity. The 0th shard is read
+	 * first and its manifest decides which other shards hold the properties,
+	 * so reading a small property of an entity with a large Blob does not
+	 * fetch the Blob. Entities stored before shards had a manifest are
+	 * fetched whole and then trimmed.
+	 * 
+	 * @param key the key of the entity
+	 * @param propertyNames the names of the properties to retrieve
+	 * @return the entity with only the requested properties it has
+	 * @throws EntityNotFoundException if the entity does not exist
+	 * @throws EntityCorruptException if a shard holding a requested property
+	 * is missing or corrupt
+	 */
+	public Entity get(Key key, Set<String> propertyNames)
+	    throws EntityNotFoundException, EntityCorruptException;
+	
+	public Entity get(Transaction txn, Key key, Set<String> propertyNames)
+	    throws EntityNotFoundException, EntityCorruptException;
+	
+	/**
+	 * Batch variant of {@link #get(Key, Set)}: all 0th shards are read in one
+	 * batch, then all the shards holding the requested properties in another.
+	 * 
+	 * @param keys the keys of the entities
+	 * @param propertyNames the names of the properties to retrieve
+	 * @return the entities that exist, with only the requested properties
+	 * @throws EntityCorruptException if a shard holding a requested property
+	 * is missing or corrupt
+	 */
+	public Map<Key, Entity> get(Iterable<Key> keys, Set<String> propertyNames)
+	    throws EntityCorruptException;
+	
+	public Map<Key, Entity> get(Transaction txn, Iterable<Key> keys,
+	    Set<String> propertyNames) throws EntityCorruptException;
+	
+	/**
+	 * Opens a stream over a single Blob property without assembling the
+	 * entity. Shards are fetched lazily, a read-ahead window at a time (see
+	 * {@link MindashDatastoreConfig#setBlobReadAheadShards(int)}), so memory use
+	 * does not depend on the size of the blob.
+	 * 
+	 * @param key the key of the entity
+	 * @param propertyName the name of the Blob property
+	 * @return the stream of the blob bytes
+	 * @throws EntityNotFoundException if the entity does not exist
+	 */
+	public InputStream openBlobStream(Key key, String propertyName)
+	    throws EntityNotFoundException;
+	
+	public InputStream openBlobStream(Transaction txn, Key key,
+	    String propertyName) throws EntityNotFoundException;
+	
+	/**
+	 * Creates a stream that stores everything written to it as the only
+	 * property of the entity with the given key, replacing the entity. Shards
+	 * are stored in batches as they fill up (see
+	 * {@link MindashDatastoreConfig#setBlobWriterBatchShards(int)}), so memory
+	 * use does not depend on the size of the blob. The new shards are stored
+	 * past the old ones, so reads return the old entity until the stream is
+	 * closed and the new one after, and a stream that is not closed leaves the
+	 * old entity as it was.
+	 * 
+	 * @param key the complete key of the entity
+	 * @param propertyName the name of the Blob property
+	 * @return the stream to write the blob bytes to
+	 */
+	public OutputStream createBlobWriter(Key key, String propertyName);
+	
+	public OutputStream createBlobWriter(Transaction txn, Key key,
+	    String propertyName);
+	
 	public Collection<Transaction> getActiveTransactions();
 	
 	public Transaction getCurrentTransaction();
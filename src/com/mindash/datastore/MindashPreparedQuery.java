@@ -31,9 +31,12 @@ import com.google.appengine.api.datastore.PreparedQuery.TooManyResultsException;
  * {@link com.google.appengine.api.datastore.PreparedQuery}.
  * </p>
  * <p>
- * Because in order to retrieve the queries an assembly of entities from shards
- * is required, there is no computational benefit of choosing {@code
- * asIterable()} over {@code asList()}.
+ * The iterables and iterators retrieve the results a page of entities at a
+ * time, assembling the entities of a page in one batch, and are not limited
+ * in the number of results. {@code asList()} retrieves the same pages
+ * eagerly, so it should be given a limit. A limit counts the shards the
+ * query matches, which is more than the entities for a query that matches
+ * several shards of an entity.
  * </p>
  * 
  * @author Tristan Slominski
@@ -50,23 +53,47 @@ public interface MindashPreparedQuery {
 
   public List<Entity> asList(FetchOptions fetchOptions);
 
-  public QueryResultIterable<Entity> asQueryResultIterable()
-      throws NotImplementedException;
+  public QueryResultIterable<Entity> asQueryResultIterable();
 
   public QueryResultIterable<Entity> asQueryResultIterable(
-      FetchOptions fetchOptions) throws NotImplementedException;
-
-  public QueryResultIterator<Entity> asQueryResultIterator()
-      throws NotImplementedException;
+      FetchOptions fetchOptions);
+
+  /**
+   * Walks the results a page of entities at a time, the page size being the
+   * chunk size of the fetch options, so memory use does not depend on the
+   * number of results. The cursor of the iterator resumes the walk after
+   * the last entity returned.
+   * 
+   * @return the iterator over the results
+   */
+  public QueryResultIterator<Entity> asQueryResultIterator();
 
   public QueryResultIterator<Entity> asQueryResultIterator(
-      FetchOptions fetchOptions) throws NotImplementedException;
+      FetchOptions fetchOptions);
 
-  public QueryResultList<Entity> asQueryResultList(FetchOptions fetchOptions)
-      throws NotImplementedException;
+  public QueryResultList<Entity> asQueryResultList(FetchOptions fetchOptions);
 
   public Entity asSingleEntity() throws TooManyResultsException;
 
+  /**
+   * Counts the entities the query matches, not their shards, walking the
+   * keys of the matching shards a page at a time. The count is not bounded
+   * by the datastore count limit, but takes a round trip per 1000 entities.
+   * 
+   * @return the number of matching entities
+   */
   public int countEntities();
 
+  /**
+   * Returns a count of the entities the query matches that is at most
+   * <code>maximumAgeSeconds</code> old, kept in memcache under the query so
+   * that every instance of the application can serve it without touching
+   * the datastore. Counts anew when no such count is cached, and always
+   * inside a transaction.
+   * 
+   * @param maximumAgeSeconds how long a count may be served for
+   * @return the approximate number of matching entities
+   */
+  public int countEntities(int maximumAgeSeconds);
+
 }
@@ -0,0 +1,65 @@
+/**
+ * Copyright 2010 Tristan Slominski
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mindash.datastore;
+
+import java.util.Collection;
+import java.util.Map;
+
+import com.google.appengine.api.datastore.Key;
+
+/**
+ * <p>
+ * A cache of the manifests recorded in 0th shards, shared by every instance
+ * of the application (see
+ * {@link com.mindash.datastore.impl.MemcacheShardMetadataCache}). With a
+ * cache set through
+ * {@link MindashDatastoreConfig#setShardMetadataCache(ShardMetadataCache)},
+ * gets fetch the 0th shard together with the other shards instead of before
+ * them, and puts and deletes outside of transactions skip reading the 0th
+ * shard to learn how many shards to replace.
+ * </p>
+ * <p>
+ * The cache is a hint. Gets check the cached manifest against the 0th shard
+ * they fetch, and entities referencing deduplicated Blobs are always read
+ * from the datastore before they are replaced, so a stale entry can cost an
+ * extra round trip or leave excess shards behind, but never returns wrong
+ * properties.
+ * </p>
+ * 
+ * @author Tristan Slominski
+ *
+ */
+public interface ShardMetadataCache {
+
+  /**
+   * @param keys the keys of entities
+   * @return the encoded manifests that are cached, by entity key
+   */
+  public Map<Key, byte[]> getManifests(Collection<Key> keys);
+
+  /**
+   * @param manifests the encoded manifests of entities just stored, by
+   * entity key
+   */
+  public void putManifests(Map<Key, byte[]> manifests);
+
+  /**
+   * @param keys the keys of entities that were deleted or whose new
+   * manifest is not known
+   */
+  public void removeManifests(Collection<Key> keys);
+
+}
@@ -0,0 +1,45 @@
+/**
+ * Copyright 2010 Tristan Slominski
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mindash.datastore;
+
+import java.util.List;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+
+/**
+ * Decides how the properties of an entity are spread over its shards. Every
+ * property must end up in a single shard, except Blobs too large for one,
+ * which are split into pieces stored in consecutive shards, in order.
+ * 
+ * @author Tristan Slominski
+ *
+ */
+public interface ShardPlanner {
+
+  /**
+   * @param parentKey the key of the entity
+   * @param entity the entity to shard; it must not be modified
+   * @param shard0ReservedSize the number of bytes to leave free in the 0th
+   * shard for bookkeeping properties
+   * @param sizeEstimator sizes the shards and properties
+   * @return the shards in order, there is always at least the 0th shard
+   * @throws IllegalArgumentException if a property cannot be stored
+   */
+  public List<Entity> plan(Key parentKey, Entity entity,
+      int shard0ReservedSize, SizeEstimator sizeEstimator);
+
+}
@@ -0,0 +1,54 @@
+/**
+ * Copyright 2010 Tristan Slominski
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mindash.datastore;
+
+import com.google.appengine.api.datastore.Key;
+
+/**
+ * Estimates how much room entities and properties take up when stored, so
+ * that shards can be packed without exceeding
+ * {@link MindashDatastoreService#MindashEntityMaximumSize}. Estimates must
+ * never be lower than the real stored size. Blob values are not estimated,
+ * they always take up their length in bytes.
+ *
+ * @author Tristan Slominski
+ *
+ */
+public interface SizeEstimator {
+
+  /**
+   * @param shardKey the key of the shard
+   * @return the room a shard takes up before any properties are added
+   */
+  public int getEntityOverheadSize(Key shardKey);
+
+  /**
+   * @param propertyName the name of the property
+   * @return the room a property takes up in addition to its value
+   */
+  public int getPropertyOverheadSize(String propertyName);
+
+  /**
+   * Estimates the size of a property value that is never split (every
+   * supported type except Blob), checking the datastore length limits.
+   *
+   * @param value the property value
+   * @return the estimated size in bytes, without the property overhead
+   * @throws IllegalArgumentException if the value is too long or is Text
+   */
+  public long getPropertyValueSize(Object value);
+
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright 2010 Tristan Slominski
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mindash.datastore.impl;
+
+import java.util.concurrent.Callable;
+
+import com.google.apphosting.api.ApiProxy;
+
+/**
+ * <p>
+ * Runs a task with the App Engine API environment of the thread that created
+ * it. Datastore and memcache calls find their environment through the
+ * current thread, so a task handed to an executor would otherwise fail on a
+ * pool thread that has none. Every task that calls the datastore from
+ * another thread is wrapped in one of these.
+ * </p>
+ * <p>
+ * The environment the running thread had before is put back afterwards, so
+ * that an executor running tasks on the calling thread keeps working.
+ * </p>
+ * 
+ * @author Tristan Slominski
+ */
+class ApiEnvironmentCallable<V> implements Callable<V> {
+
+  private ApiProxy.Environment environment;
+  private Callable<V> task;
+
+  /**
+   * Captures the environment of the current thread.
+   * 
+   * @param task the task to run with it
+   */
+  ApiEnvironmentCallable(Callable<V> task) {
+    this.environment = ApiProxy.getCurrentEnvironment();
+    this.task = task;
+  }
+
+  public V call() throws Exception {
+    ApiProxy.Environment previous = ApiProxy.getCurrentEnvironment();
+    ApiProxy.setEnvironmentForCurrentThread(environment);
+    try {
+      return task.call();
+    } finally {
+      if (previous != null) {
+        ApiProxy.setEnvironmentForCurrentThread(previous);
+      } else {
+        ApiProxy.clearEnvironmentForCurrentThread();
+      }
+    }
+  }
+
+}
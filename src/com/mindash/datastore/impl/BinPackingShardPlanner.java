@@ -0,0 +1,194 @@
+/**
+ * Copyright 2010 Tristan Slominski
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mindash.datastore.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map.Entry;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.inject.Singleton;
+import com.mindash.datastore.MindashDatastoreService;
+import com.mindash.datastore.ShardPlanner;
+import com.mindash.datastore.SizeEstimator;
+
+/**
+ * <p>
+ * Packs properties into the fewest shards it can. Every property that fits
+ * into a shard, Blobs included, is placed first-fit-decreasing: largest
+ * first, into the first shard with room for it. Blobs too large for a shard
+ * are then split across the tail, largest first, starting in the free room
+ * of the emptiest shard, so only their last piece leaves a partly filled
+ * shard behind.
+ * </p>
+ * <p>
+ * The 0th shard keeps the room reserved for bookkeeping properties free.
+ * </p>
+ *
+ * @author Tristan Slominski
+ */
+@Singleton
+public class BinPackingShardPlanner implements ShardPlanner {
+
+  /**
+   * A property and the room it takes up in a shard.
+   */
+  private static class Item {
+    private Entry<String, Object> property;
+    private long size;
+
+    Item(Entry<String, Object> property, long size) {
+      this.property = property;
+      this.size = size;
+    }
+  }
+
+  /**
+   * The properties planned for one shard.
+   */
+  private static class Bin {
+    private List<Entry<String, Object>> properties =
+        new ArrayList<Entry<String, Object>>();
+    private long free;
+
+    Bin(long capacity) {
+      this.free = capacity;
+    }
+
+    void add(Item item) {
+      properties.add(item.property);
+      free -= item.size;
+    }
+  }
+
+  private static final Comparator<Item> LargestFirst = new Comparator<Item>() {
+    public int compare(Item a, Item b) {
+      if (a.size != b.size) {
+        return a.size > b.size ? -1 : 1;
+      }
+      // keep the plan the same from one put to the next
+      return a.property.getKey().compareTo(b.property.getKey());
+    }
+  };
+
+  @Override
+  public List<Entity> plan(Key parentKey, Entity entity,
+      int shard0ReservedSize, SizeEstimator sizeEstimator) {
+    // size shards by the widest shard name, so bins can be put in any order
+    long capacity =
+        MindashDatastoreService.MindashEntityMaximumSize
+            - sizeEstimator.getEntityOverheadSize(MindashDatastoreServiceImpl
+                .createMindashDatastoreKey(parentKey, Integer.MAX_VALUE));
+    List<Item> items = new ArrayList<Item>();
+    List<Item> largeBlobs = new ArrayList<Item>();
+    for (Entry<String, Object> property : new ArrayList<Entry<String, Object>>(
+        entity.getProperties().entrySet())) {
+      Object value = property.getValue();
+      long overhead = sizeEstimator.getPropertyOverheadSize(property.getKey());
+      if (value instanceof Blob) {
+        Item item =
+            new Item(property, ((Blob) value).getBytes().length + overhead);
+        if (item.size > capacity) {
+          largeBlobs.add(item);
+        } else {
+          items.add(item);
+        }
+      } else {
+        Item item =
+            new Item(property, sizeEstimator.getPropertyValueSize(value)
+                + overhead);
+        if (item.size > capacity) {
+          throw new IllegalArgumentException("Property \"" + property.getKey()
+              + "\" does not fit into a shard");
+        }
+        items.add(item);
+      }
+    }
+
+    // first fit decreasing
+    Collections.sort(items, LargestFirst);
+    List<Bin> bins = new ArrayList<Bin>();
+    bins.add(new Bin(capacity - shard0ReservedSize));
+    for (Item item : items) {
+      Bin fit = null;
+      for (Bin bin : bins) {
+        if (bin.free >= item.size) {
+          fit = bin;
+          break;
+        }
+      }
+      if (fit == null) {
+        fit = new Bin(capacity);
+        bins.add(fit);
+      }
+      fit.add(item);
+    }
+    // the emptiest bin goes last so the first large blob can start in it,
+    // the 0th shard stays where it is
+    if (bins.size() > 2) {
+      int emptiest = 1;
+      for (int i = 2; i < bins.size(); i++) {
+        if (bins.get(i).free > bins.get(emptiest).free) {
+          emptiest = i;
+        }
+      }
+      bins.add(bins.remove(emptiest));
+    }
+    List<Entity> shards = new ArrayList<Entity>(bins.size());
+    for (Bin bin : bins) {
+      Entity shard =
+          MindashDatastoreServiceImpl.createMindashEntityShard(parentKey,
+              shards.size());
+      for (Entry<String, Object> property : bin.properties) {
+        shard.setProperty(property.getKey(), property.getValue());
+      }
+      shards.add(shard);
+    }
+
+    // split the large blobs across the tail, each piece is a single copy of
+    // its own slice of the source bytes
+    Collections.sort(largeBlobs, LargestFirst);
+    long free = bins.get(bins.size() - 1).free;
+    for (Item item : largeBlobs) {
+      String propertyName = item.property.getKey();
+      byte[] bytes = ((Blob) item.property.getValue()).getBytes();
+      long overhead = sizeEstimator.getPropertyOverheadSize(propertyName);
+      int offset = 0;
+      while (offset < bytes.length) {
+        long available = free - overhead;
+        if (available <= 0) {
+          // no room left for a piece, start a new shard
+          shards.add(MindashDatastoreServiceImpl.createMindashEntityShard(
+              parentKey, shards.size()));
+          free = capacity;
+          continue;
+        }
+        int length = (int) Math.min(available, bytes.length - offset);
+        shards.get(shards.size() - 1).setProperty(propertyName,
+            new Blob(Arrays.copyOfRange(bytes, offset, offset + length)));
+        offset += length;
+        free -= length + overhead;
+      }
+    }
+    return shards;
+  }
+
+}
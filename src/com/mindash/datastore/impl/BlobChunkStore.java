@@ -0,0 +1,321 @@
+/**
+ * Copyright 2010 Tristan Slominski
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mindash.datastore.impl;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+import com.mindash.datastore.DatastoreHelper;
+import com.mindash.datastore.EntityCorruptException;
+import com.mindash.datastore.MindashDatastoreService;
+
+/**
+ * <p>
+ * Stores the pieces of deduplicated Blobs once, under the hash of their
+ * content, no matter how many entities hold them. Each chunk is a root
+ * entity of kind {@link MindashDatastoreService#MindashChunkKind} that
+ * counts the references to it; the 0th shard of every entity holding the
+ * Blob lists the hashes in its {@link ShardManifest}.
+ * </p>
+ * <p>
+ * Chunks are in entity groups of their own, so reference counts are updated
+ * in transactions of their own rather than in the caller's. References are
+ * always acquired before the shards listing them are stored and released
+ * only after those shards are replaced or deleted, so a failure in between
+ * leaves a count too high (an orphan chunk) but never too low. Writes and
+ * deletes under a caller's transaction release nothing, since the caller
+ * may still roll back; their old references are left as orphans too.
+ * </p>
+ *
+ * @author Tristan Slominski
+ */
+public class BlobChunkStore {
+
+  /** the property of a chunk holding its bytes */
+  public static final String ChunkBytesLabel = "b";
+  /** the property of a chunk holding the number of references to it */
+  public static final String ChunkReferencesLabel = "r";
+  /** the largest number of bytes in a chunk */
+  public static final int ChunkSize =
+      MindashDatastoreService.MindashEntityMaximumSize
+          - MindashDatastoreService.MindashInitialEntityOverheadSize
+          - 2 * MindashDatastoreService.MindashAssumedPropertyOverhead;
+  /** the number of times a contended reference count update is attempted */
+  public static final int UpdateAttempts = 5;
+
+  private static final char[] HexDigits = "0123456789abcdef".toCharArray();
+
+  /**
+   * A piece of a Blob and the hash it is stored under. The bytes are not
+   * copied out of the Blob.
+   */
+  public static class Chunk {
+    private String hash;
+    private byte[] bytes;
+    private int offset;
+    private int length;
+
+    Chunk(String hash, byte[] bytes, int offset, int length) {
+      this.hash = hash;
+      this.bytes = bytes;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    public String getHash() {
+      return hash;
+    }
+
+    public int getLength() {
+      return length;
+    }
+
+    byte[] getBytes() {
+      return Arrays.copyOfRange(bytes, offset, offset + length);
+    }
+  }
+
+  /**
+   * Splits a Blob into chunks of at most {@link #ChunkSize} bytes and hashes
+   * each of them. Nothing is stored.
+   *
+   * @param bytes the bytes of the Blob
+   * @return the chunks, in order; a single empty chunk for an empty Blob
+   */
+  public static List<Chunk> split(byte[] bytes) {
+    List<Chunk> chunks = new ArrayList<Chunk>(bytes.length / ChunkSize + 1);
+    int offset = 0;
+    do {
+      int length = Math.min(ChunkSize, bytes.length - offset);
+      chunks.add(new Chunk(hash(bytes, offset, length), bytes, offset, length));
+      offset += length;
+    } while (offset < bytes.length);
+    return chunks;
+  }
+
+  /**
+   * @param bytes the bytes to hash
+   * @param offset the offset of the first byte
+   * @param length the number of bytes
+   * @return the hex encoded SHA-1 hash of the bytes
+   */
+  public static String hash(byte[] bytes, int offset, int length) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      // every Java platform is required to support SHA-1
+      throw new IllegalStateException(e);
+    }
+    digest.update(bytes, offset, length);
+    byte[] hash = digest.digest();
+    char[] hex = new char[hash.length * 2];
+    for (int i = 0; i < hash.length; i++) {
+      hex[i * 2] = HexDigits[(hash[i] >> 4) & 0xf];
+      hex[i * 2 + 1] = HexDigits[hash[i] & 0xf];
+    }
+    return new String(hex);
+  }
+
+  /**
+   * @param hash the content hash of a chunk
+   * @return the key the chunk is stored under
+   */
+  public static Key createChunkKey(String hash) {
+    return KeyFactory.createKey(MindashDatastoreService.MindashChunkKind, hash);
+  }
+
+  private DatastoreService datastore;
+  private DatastoreHelper datastoreHelper;
+
+  public BlobChunkStore(DatastoreService datastore,
+      DatastoreHelper datastoreHelper) {
+    this.datastore = datastore;
+    this.datastoreHelper = datastoreHelper;
+  }
+
+  /**
+   * Adds a reference to each chunk, storing the chunks not stored yet. Only
+   * the bytes of new chunks are written.
+   *
+   * @param chunks the chunks, a chunk listed twice gets two references
+   */
+  public void acquire(List<Chunk> chunks) {
+    Map<String, Chunk> distinct = new LinkedHashMap<String, Chunk>();
+    Map<String, Integer> references = new LinkedHashMap<String, Integer>();
+    for (Chunk chunk : chunks) {
+      distinct.put(chunk.getHash(), chunk);
+      Integer count = references.get(chunk.getHash());
+      references.put(chunk.getHash(), count == null ? 1 : count + 1);
+    }
+    for (Entry<String, Integer> reference : references.entrySet()) {
+      updateReferences(reference.getKey(), distinct.get(reference.getKey()),
+          reference.getValue());
+    }
+  }
+
+  /**
+   * Removes a reference from each chunk, deleting the chunks no longer
+   * referenced.
+   *
+   * @param hashes the content hashes of the chunks, a hash listed twice
+   * loses two references
+   */
+  public void release(Collection<String> hashes) {
+    Map<String, Integer> references = new LinkedHashMap<String, Integer>();
+    for (String hash : hashes) {
+      Integer count = references.get(hash);
+      references.put(hash, count == null ? -1 : count - 1);
+    }
+    for (Entry<String, Integer> reference : references.entrySet()) {
+      updateReferences(reference.getKey(), null, reference.getValue());
+    }
+  }
+
+  /**
+   * Reads the chunks of a chunked Blob and joins them, copying each chunk
+   * once. Chunks are read outside of any transaction, their content never
+   * changes.
+   *
+   * @param key the key of the entity holding the Blob
+   * @param span the manifest span of the Blob
+   * @return the stored bytes of the Blob
+   * @throws EntityCorruptException if a chunk is missing or is not as long
+   * as the manifest lists
+   */
+  public byte[] load(Key key, ShardManifest.PropertySpan span)
+      throws EntityCorruptException {
+    long length = span.getLength();
+    if (length > Integer.MAX_VALUE) {
+      throw new EntityCorruptException("Blob \"" + span.getName()
+          + "\" is too large to assemble (" + length + " bytes)");
+    }
+    List<String> hashes = span.getChunkHashes();
+    List<Key> chunkKeys = new ArrayList<Key>(hashes.size());
+    for (String hash : hashes) {
+      chunkKeys.add(createChunkKey(hash));
+    }
+    Map<Key, Entity> chunks = datastoreHelper.get(datastore, chunkKeys);
+    byte[] bytes = new byte[(int) length];
+    int offset = 0;
+    for (int piece = 0; piece < hashes.size(); piece++) {
+      byte[] chunkBytes = getChunkBytes(chunks.get(chunkKeys.get(piece)));
+      if (chunkBytes == null
+          || chunkBytes.length != span.getPieceLength(piece)) {
+        throw new EntityCorruptException("Chunk " + hashes.get(piece)
+            + " holding piece " + piece + " of blob \"" + span.getName()
+            + "\" of " + key + " is missing or is not as listed in the "
+            + "manifest");
+      }
+      System.arraycopy(chunkBytes, 0, bytes, offset, chunkBytes.length);
+      offset += chunkBytes.length;
+    }
+    return bytes;
+  }
+
+  /**
+   * Reads the bytes of a single chunk.
+   *
+   * @param hash the content hash of the chunk
+   * @return the bytes, or <code>null</code> if the chunk is not stored
+   */
+  public byte[] load(String hash) {
+    try {
+      return getChunkBytes(datastore.get(createChunkKey(hash)));
+    } catch (EntityNotFoundException e) {
+      return null;
+    }
+  }
+
+  private static byte[] getChunkBytes(Entity chunk) {
+    if (chunk == null || !(chunk.getProperty(ChunkBytesLabel) instanceof Blob)) {
+      return null;
+    }
+    return ((Blob) chunk.getProperty(ChunkBytesLabel)).getBytes();
+  }
+
+  /**
+   * Changes the reference count of a chunk in a transaction of its own,
+   * retrying if the chunk is updated concurrently.
+   *
+   * @param hash the content hash of the chunk
+   * @param chunk the chunk, needed to store it if it does not exist yet,
+   * <code>null</code> when releasing
+   * @param delta the change in the number of references
+   */
+  private void updateReferences(String hash, Chunk chunk, int delta) {
+    Key chunkKey = createChunkKey(hash);
+    for (int attempt = 1;; attempt++) {
+      Transaction txn = datastore.beginTransaction();
+      try {
+        Entity stored = null;
+        try {
+          stored = datastore.get(txn, chunkKey);
+        } catch (EntityNotFoundException e) {
+          // stored below if a reference is being acquired
+        }
+        long references = delta;
+        if (stored != null) {
+          Object count = stored.getProperty(ChunkReferencesLabel);
+          references += count == null ? 0 : ((Number) count).longValue();
+        }
+        if (references > 0) {
+          if (stored == null) {
+            if (chunk == null) {
+              // releasing a chunk that is already gone, nothing to do
+              return;
+            }
+            stored = new Entity(MindashDatastoreService.MindashChunkKind, hash);
+            stored.setUnindexedProperty(ChunkBytesLabel, new Blob(chunk
+                .getBytes()));
+          }
+          stored.setProperty(ChunkReferencesLabel, references);
+          datastore.put(txn, stored);
+        } else if (stored != null) {
+          datastore.delete(txn, chunkKey);
+        }
+        txn.commit();
+        return;
+      } catch (ConcurrentModificationException e) {
+        if (attempt == UpdateAttempts) {
+          throw new DatastoreFailureException("References to chunk " + hash
+              + " could not be updated after " + attempt + " attempts", e);
+        }
+      } finally {
+        if (txn.isActive()) {
+          txn.rollback();
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,601 @@
+/**
+ * Copyright 2010 Tristan Slominski
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mindash.datastore.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyRange;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.ShortBlob;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.mindash.datastore.EntityCorruptException;
+import com.mindash.datastore.EntityVisitor;
+import com.mindash.datastore.MindashDatastoreConfig;
+import com.mindash.datastore.MindashDatastoreService;
+import com.mindash.datastore.MindashPreparedQuery;
+
+/**
+ * <p>
+ * Keeps assembled entities in memory, so that reading a hot entity again is
+ * a map lookup instead of fetching and joining its shards. The cache holds
+ * at most {@link MindashDatastoreConfig#getEntityCacheMaximumBytes()} bytes,
+ * weighed mostly by the length of Blobs and strings, and evicts the least
+ * recently used entities first.
+ * </p>
+ * <p>
+ * Puts, deletes and blob writers made through this service invalidate the
+ * entities they change; a put outside of a transaction caches the stored
+ * entity. An entity changed in a transaction is not cached again until the
+ * transaction is no longer active, so a read between the change and the
+ * commit cannot cache the old entity. Reads in a transaction and queries
+ * always go to the datastore.
+ * The cache is local to the process, so changes made by other instances are
+ * not seen until the entity is evicted: use it for entities that rarely
+ * change, such as configuration.
+ * </p>
+ * <p>
+ * Enable it by binding {@link MindashDatastoreService} to this class in
+ * place of {@link MindashDatastoreServiceImpl}.
+ * </p>
+ *
+ * @author Tristan Slominski
+ */
+@Singleton
+public class CachingMindashDatastoreService implements MindashDatastoreService {
+
+  /** the weight of an entity besides its properties */
+  public static int EntityWeight = 64;
+  /** the weight of a value that is not a Blob or a string */
+  public static int ValueWeight = 16;
+
+  /**
+   * @param entity an assembled entity
+   * @return the approximate number of bytes the entity holds in memory
+   */
+  public static long weigh(Entity entity) {
+    long weight = EntityWeight;
+    for (Entry<String, Object> property : entity.getProperties().entrySet()) {
+      weight += property.getKey().length() * 2;
+      Object value = property.getValue();
+      if (value instanceof Blob) {
+        weight += ((Blob) value).getBytes().length;
+      } else if (value instanceof ShortBlob) {
+        weight += ((ShortBlob) value).getBytes().length;
+      } else if (value instanceof String) {
+        weight += ((String) value).length() * 2;
+      } else if (value instanceof Text) {
+        weight += ((Text) value).getValue().length() * 2;
+      } else {
+        weight += ValueWeight;
+      }
+    }
+    return weight;
+  }
+
+  /**
+   * A cached entity and its weight.
+   */
+  private static class CacheEntry {
+    private Entity entity;
+    private long weight;
+
+    CacheEntry(Entity entity, long weight) {
+      this.entity = entity;
+      this.weight = weight;
+    }
+  }
+
+  private MindashDatastoreService delegate;
+  private long maximumBytes;
+
+  /** in least recently used order */
+  private LinkedHashMap<Key, CacheEntry> entries =
+      new LinkedHashMap<Key, CacheEntry>(16, 0.75f, true);
+  private long bytes;
+  /**
+   * counts invalidations, an entity read before the latest one is not
+   * cached in case it is stale
+   */
+  private long generation;
+  /** keys changed in transactions that may not have committed yet */
+  private Map<Key, List<Transaction>> pending =
+      new HashMap<Key, List<Transaction>>();
+
+  private AtomicLong hitCount = new AtomicLong();
+  private AtomicLong missCount = new AtomicLong();
+
+  @Inject
+  public CachingMindashDatastoreService(MindashDatastoreServiceImpl delegate,
+      MindashDatastoreConfig config) {
+    this((MindashDatastoreService) delegate, config.getEntityCacheMaximumBytes());
+  }
+
+  /**
+   * @param delegate the service to cache the entities of
+   * @param maximumBytes the largest total weight of the cached entities
+   */
+  public CachingMindashDatastoreService(MindashDatastoreService delegate,
+      long maximumBytes) {
+    this.delegate = delegate;
+    this.maximumBytes = maximumBytes;
+  }
+
+  /**
+   * @return the number of entities read from the cache
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * @return the number of entities the cache did not hold and that were
+   * read from the datastore
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * @return the total weight of the cached entities
+   */
+  public synchronized long getCachedBytes() {
+    return bytes;
+  }
+
+  /**
+   * @return the number of cached entities
+   */
+  public synchronized int getCachedEntityCount() {
+    return entries.size();
+  }
+
+  /**
+   * Empties the cache. The counters are not reset.
+   */
+  public synchronized void clear() {
+    entries.clear();
+    bytes = 0;
+    generation++;
+  }
+
+  @Override
+  public KeyRange allocateIds(Key parent, String kind, long num) {
+    return delegate.allocateIds(parent, kind, num);
+  }
+
+  @Override
+  public KeyRange allocateIds(String kind, long num) {
+    return delegate.allocateIds(kind, num);
+  }
+
+  @Override
+  public Transaction beginTransaction() {
+    return delegate.beginTransaction();
+  }
+
+  @Override
+  public void delete(Key... keys) {
+    delete(null, keys);
+  }
+
+  @Override
+  public void delete(Transaction txn, Key... keys) {
+    for (Key key : keys) {
+      invalidate(txn, key);
+    }
+    try {
+      delegate.delete(txn, keys);
+    } finally {
+      for (Key key : keys) {
+        invalidate(key);
+      }
+    }
+  }
+
+  @Override
+  public void delete(Transaction txn, Iterable<Key> keys) {
+    for (Key key : keys) {
+      invalidate(txn, key);
+    }
+    try {
+      delegate.delete(txn, keys);
+    } finally {
+      for (Key key : keys) {
+        invalidate(key);
+      }
+    }
+  }
+
+  @Override
+  public void delete(Iterable<Key> keys) {
+    delete(null, keys);
+  }
+
+  @Override
+  public Entity get(Key key) throws EntityNotFoundException,
+      EntityCorruptException {
+    return get(null, key);
+  }
+
+  @Override
+  public Entity get(Transaction txn, Key key) throws EntityNotFoundException,
+      EntityCorruptException {
+    if (txn != null) {
+      return delegate.get(txn, key);
+    }
+    Entity cached = lookup(key);
+    if (cached != null) {
+      return cached;
+    }
+    long observed = getGeneration();
+    Entity entity = delegate.get(key);
+    store(key, entity, observed);
+    return entity;
+  }
+
+  @Override
+  public Map<Key, Entity> get(Iterable<Key> keys) throws EntityCorruptException {
+    return get((Transaction) null, keys);
+  }
+
+  @Override
+  public Map<Key, Entity> get(Transaction txn, Iterable<Key> keys)
+      throws EntityCorruptException {
+    if (txn != null) {
+      return delegate.get(txn, keys);
+    }
+    Map<Key, Entity> result = new HashMap<Key, Entity>();
+    List<Key> missing = new ArrayList<Key>();
+    for (Key key : keys) {
+      Entity cached = lookup(key);
+      if (cached != null) {
+        result.put(key, cached);
+      } else {
+        missing.add(key);
+      }
+    }
+    if (missing.isEmpty()) {
+      return result;
+    }
+    long observed = getGeneration();
+    Map<Key, Entity> fetched = delegate.get(missing);
+    for (Entry<Key, Entity> entry : fetched.entrySet()) {
+      store(entry.getKey(), entry.getValue(), observed);
+    }
+    result.putAll(fetched);
+    return result;
+  }
+
+  @Override
+  public Entity get(Key key, Set<String> propertyNames)
+      throws EntityNotFoundException, EntityCorruptException {
+    return get(null, key, propertyNames);
+  }
+
+  @Override
+  public Entity get(Transaction txn, Key key, Set<String> propertyNames)
+      throws EntityNotFoundException, EntityCorruptException {
+    if (propertyNames == null) {
+      throw new IllegalArgumentException("propertyNames cannot be null");
+    }
+    if (txn == null) {
+      Entity cached = lookup(key);
+      if (cached != null) {
+        return project(cached, propertyNames);
+      }
+    }
+    // a partial entity is not cached
+    return delegate.get(txn, key, propertyNames);
+  }
+
+  @Override
+  public Map<Key, Entity> get(Iterable<Key> keys, Set<String> propertyNames)
+      throws EntityCorruptException {
+    return get(null, keys, propertyNames);
+  }
+
+  @Override
+  public Map<Key, Entity> get(Transaction txn, Iterable<Key> keys,
+      Set<String> propertyNames) throws EntityCorruptException {
+    if (propertyNames == null) {
+      throw new IllegalArgumentException("propertyNames cannot be null");
+    }
+    if (txn != null) {
+      return delegate.get(txn, keys, propertyNames);
+    }
+    Map<Key, Entity> result = new HashMap<Key, Entity>();
+    List<Key> missing = new ArrayList<Key>();
+    for (Key key : keys) {
+      Entity cached = lookup(key);
+      if (cached != null) {
+        result.put(key, project(cached, propertyNames));
+      } else {
+        missing.add(key);
+      }
+    }
+    if (!missing.isEmpty()) {
+      result.putAll(delegate.get(missing, propertyNames));
+    }
+    return result;
+  }
+
+  @Override
+  public InputStream openBlobStream(Key key, String propertyName)
+      throws EntityNotFoundException {
+    return openBlobStream(null, key, propertyName);
+  }
+
+  @Override
+  public InputStream openBlobStream(Transaction txn, Key key,
+      String propertyName) throws EntityNotFoundException {
+    if (txn == null) {
+      Entity cached = lookup(key);
+      if (cached != null && cached.getProperty(propertyName) instanceof Blob) {
+        return new ByteArrayInputStream(((Blob) cached
+            .getProperty(propertyName)).getBytes());
+      }
+    }
+    return delegate.openBlobStream(txn, key, propertyName);
+  }
+
+  @Override
+  public OutputStream createBlobWriter(Key key, String propertyName) {
+    return createBlobWriter(null, key, propertyName);
+  }
+
+  @Override
+  public OutputStream createBlobWriter(Transaction txn, final Key key,
+      String propertyName) {
+    invalidate(txn, key);
+    // the entity changes when the stream is closed
+    return new FilterOutputStream(delegate.createBlobWriter(txn, key,
+        propertyName)) {
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+      }
+
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          invalidate(key);
+        }
+      }
+    };
+  }
+
+  @Override
+  public Collection<Transaction> getActiveTransactions() {
+    return delegate.getActiveTransactions();
+  }
+
+  @Override
+  public Transaction getCurrentTransaction() {
+    return delegate.getCurrentTransaction();
+  }
+
+  @Override
+  public Transaction getCurrentTransaction(Transaction txn) {
+    return delegate.getCurrentTransaction(txn);
+  }
+
+  @Override
+  public long forEachParallel(Query query, int workers,
+      EntityVisitor visitor) {
+    return delegate.forEachParallel(query, workers, visitor);
+  }
+
+  @Override
+  public MindashPreparedQuery prepare(Query query) {
+    return delegate.prepare(query);
+  }
+
+  @Override
+  public MindashPreparedQuery prepare(Transaction txn, Query query) {
+    return delegate.prepare(txn, query);
+  }
+
+  @Override
+  public Key put(Entity entity) {
+    return put(null, entity);
+  }
+
+  @Override
+  public Key put(Transaction txn, Entity entity) {
+    if (entity.getKey().isComplete()) {
+      invalidate(txn, entity.getKey());
+    }
+    long observed = getGeneration();
+    Key key = delegate.put(txn, entity);
+    // a transaction may still roll back
+    if (txn == null && entity.getKey().isComplete()) {
+      store(key, entity, observed);
+    } else {
+      invalidate(key);
+    }
+    return key;
+  }
+
+  @Override
+  public List<Key> put(Iterable<Entity> entities) {
+    return put(null, entities);
+  }
+
+  @Override
+  public List<Key> put(Transaction txn, Iterable<Entity> entities) {
+    for (Entity entity : entities) {
+      if (entity.getKey().isComplete()) {
+        invalidate(txn, entity.getKey());
+      }
+    }
+    try {
+      return delegate.put(txn, entities);
+    } finally {
+      for (Entity entity : entities) {
+        if (entity.getKey().isComplete()) {
+          invalidate(entity.getKey());
+        }
+      }
+    }
+  }
+
+  /**
+   * @param key the key of an entity
+   * @return a copy of the cached entity, or <code>null</code> if it is not
+   * cached
+   */
+  private Entity lookup(Key key) {
+    CacheEntry entry;
+    synchronized (this) {
+      entry = entries.get(key);
+    }
+    if (entry == null) {
+      missCount.incrementAndGet();
+      return null;
+    }
+    hitCount.incrementAndGet();
+    // callers may change the entity they get
+    return entry.entity.clone();
+  }
+
+  /**
+   * Caches a copy of an entity, unless an invalidation happened since it was
+   * read, and evicts the least recently used entities that no longer fit.
+   *
+   * @param key the key of the entity
+   * @param entity the entity
+   * @param observed the generation before the entity was read
+   */
+  private synchronized void store(Key key, Entity entity, long observed) {
+    // dropping finished transactions invalidates their keys, so a read
+    // from before their commit is not cached either
+    dropFinishedTransactions();
+    if (observed != generation || pending.containsKey(key)) {
+      return;
+    }
+    long weight = weigh(entity);
+    if (weight > maximumBytes) {
+      return;
+    }
+    CacheEntry previous = entries.put(key, new CacheEntry(entity.clone(),
+        weight));
+    if (previous != null) {
+      bytes -= previous.weight;
+    }
+    bytes += weight;
+    Iterator<CacheEntry> eldest = entries.values().iterator();
+    while (bytes > maximumBytes && eldest.hasNext()) {
+      bytes -= eldest.next().weight;
+      eldest.remove();
+    }
+  }
+
+  private synchronized void invalidate(Key key) {
+    generation++;
+    CacheEntry removed = entries.remove(key);
+    if (removed != null) {
+      bytes -= removed.weight;
+    }
+  }
+
+  /**
+   * Invalidates an entity and, if it is changed in a transaction, keeps it
+   * from being cached until the transaction is no longer active.
+   *
+   * @param txn the transaction, can be <code>null</code>
+   * @param key the key of the entity
+   */
+  private synchronized void invalidate(Transaction txn, Key key) {
+    invalidate(key);
+    if (txn == null) {
+      return;
+    }
+    dropFinishedTransactions();
+    List<Transaction> txns = pending.get(key);
+    if (txns == null) {
+      txns = new ArrayList<Transaction>(1);
+      pending.put(key, txns);
+    }
+    if (!txns.contains(txn)) {
+      txns.add(txn);
+    }
+  }
+
+  /**
+   * Forgets the transactions that committed or rolled back, invalidating
+   * the keys they changed once none of their transactions is active.
+   */
+  private synchronized void dropFinishedTransactions() {
+    Iterator<Entry<Key, List<Transaction>>> keys =
+        pending.entrySet().iterator();
+    while (keys.hasNext()) {
+      Entry<Key, List<Transaction>> entry = keys.next();
+      Iterator<Transaction> txns = entry.getValue().iterator();
+      while (txns.hasNext()) {
+        if (!txns.next().isActive()) {
+          txns.remove();
+        }
+      }
+      if (entry.getValue().isEmpty()) {
+        keys.remove();
+        invalidate(entry.getKey());
+      }
+    }
+  }
+
+  private synchronized long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * @param entity a copy of a cached entity
+   * @param propertyNames the properties to keep
+   * @return <code>entity</code> with only the given properties
+   */
+  private static Entity project(Entity entity, Set<String> propertyNames) {
+    for (String propertyName : new ArrayList<String>(entity.getProperties()
+        .keySet())) {
+      if (!propertyNames.contains(propertyName)) {
+        entity.removeProperty(propertyName);
+      }
+    }
+    return entity;
+  }
+
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright 2010 Tristan Slominski
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mindash.datastore.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.google.appengine.api.datastore.Key;
+
+/**
+ * Streams a deduplicated Blob from its content addressed chunks, fetching
+ * one chunk at a time as the previous one is consumed, so at most one chunk
+ * is held in memory.
+ *
+ * @author Tristan Slominski
+ */
+public class ChunkedBlobInputStream extends InputStream {
+
+  private BlobChunkStore chunkStore;
+  private Key key;
+  private ShardManifest.PropertySpan span;
+
+  /** the index of the next chunk to fetch */
+  private int nextPiece;
+  private byte[] chunk;
+  private int position;
+  private boolean closed;
+
+  /**
+   * @param chunkStore the store holding the chunks
+   * @param key the key of the entity holding the Blob
+   * @param span the manifest span of the chunked Blob
+   */
+  ChunkedBlobInputStream(BlobChunkStore chunkStore, Key key,
+      ShardManifest.PropertySpan span) {
+    this.chunkStore = chunkStore;
+    this.key = key;
+    this.span = span;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!fill()) {
+      return -1;
+    }
+    return chunk[position++] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (off < 0 || len < 0 || len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (len == 0) {
+      return 0;
+    }
+    if (!fill()) {
+      return -1;
+    }
+    int count = Math.min(len, chunk.length - position);
+    System.arraycopy(chunk, position, b, off, count);
+    position += count;
+    return count;
+  }
+
+  @Override
+  public int available() {
+    return chunk == null ? 0 : chunk.length - position;
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    chunk = null;
+  }
+
+  /**
+   * Makes sure there are bytes left in the current chunk, fetching the next
+   * non-empty chunk if needed.
+   *
+   * @return <code>false</code> at the end of the Blob
+   * @throws IOException if the stream is closed or a chunk is missing or not
+   * as long as the manifest lists
+   */
+  private boolean fill() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+    while (chunk == null || position == chunk.length) {
+      if (nextPiece == span.getPieceCount()) {
+        return false;
+      }
+      String hash = span.getChunkHashes().get(nextPiece);
+      byte[] bytes = chunkStore.load(hash);
+      if (bytes == null || bytes.length != span.getPieceLength(nextPiece)) {
+        throw new IOException("Chunk " + hash + " holding piece "
+            + nextPiece + " of blob \"" + span.getName() + "\" of " + key
+            + " is missing or is not as listed in the manifest");
+      }
+      chunk = bytes;
+      position = 0;
+      nextPiece++;
+    }
+    return true;
+  }
+
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright 2010 Tristan Slominski
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mindash.datastore.impl;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.inject.Singleton;
+import com.mindash.datastore.MindashDatastoreService;
+import com.mindash.datastore.SizeEstimator;
+
+/**
+ * The original sizing rules: every character counts as 4 bytes (UTF-32),
+ * Keys are sized by their string encoding, and every property and shard
+ * gets a flat overhead of
+ * {@link MindashDatastoreService#MindashAssumedPropertyOverhead} and
+ * {@link MindashDatastoreService#MindashInitialEntityOverheadSize}. Safe,
+ * but it spreads entities over more shards than they need.
+ *
+ * @author Tristan Slominski
+ */
+@Singleton
+public class ConservativeSizeEstimator implements SizeEstimator {
+
+  @Override
+  public int getEntityOverheadSize(Key shardKey) {
+    return MindashDatastoreService.MindashInitialEntityOverheadSize;
+  }
+
+  @Override
+  public int getPropertyOverheadSize(String propertyName) {
+    return MindashDatastoreService.MindashAssumedPropertyOverhead
+        + propertyName.length() * 4; // allow for UTF-32
+  }
+
+  @Override
+  public long getPropertyValueSize(Object value) {
+    return MindashDatastoreServiceImpl.getPropertyValueSize(value);
+  }
+
+}
@@ -1,6 +1,6 @@
 /**
  * Copyright 2009 Tristan Slominski
- * 
+ *
  * Licensed under the MIT License (the "License");
  * you may not use this file except in compliance with the License.
  * You may obtain a copy of the License at
@@ -15,15 +15,28 @@
  */
 package com.mindash.datastore.impl;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
+import com.google.appengine.api.datastore.DatastoreFailureException;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Transaction;
+import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.mindash.datastore.DatastoreHelper;
+import com.mindash.datastore.MindashDatastoreConfig;
 
 /**
  * @author Tristan Slominski
@@ -32,129 +45,240 @@ import com.mindash.datastore.DatastoreHelper;
 @Singleton
 public class DatastoreHelperImpl implements DatastoreHelper {
 
+  /**
+   * A datastore call made for a single chunk.
+   */
+  private interface ChunkOperation<T, R> {
+    public R execute(List<T> chunk);
+  }
+
+  /**
+   * Splits <code>items</code> into consecutive chunks of at most
+   * <code>chunkSize</code> items. A list that already fits is returned as
+   * the only chunk.
+   *
+   * @param items the items to split
+   * @param chunkSize the maximum size of a chunk
+   * @return the chunks in input order
+   */
+  static <T> List<List<T>> split(List<T> items, int chunkSize) {
+    List<List<T>> chunks = new ArrayList<List<T>>();
+    if (items.size() <= chunkSize) {
+      chunks.add(items);
+      return chunks;
+    }
+    int index = 0;
+    while (index < items.size()) {
+      int indexHigh = Math.min(index + chunkSize, items.size());
+      chunks.add(items.subList(index, indexHigh));
+      index = indexHigh;
+    }
+    return chunks;
+  }
+
+  private MindashDatastoreConfig config;
+
+  public DatastoreHelperImpl() {
+    this(new MindashDatastoreConfig());
+  }
+
+  @Inject
+  public DatastoreHelperImpl(MindashDatastoreConfig config) {
+    this.config = config;
+  }
+
   public void delete(DatastoreService datastore, List<Key> keys) {
     delete(null, datastore, keys);
   }
-  
-  public void delete(Transaction txn, DatastoreService datastore, 
+
+  public void delete(final Transaction txn, final DatastoreService datastore,
       List<Key> keys){
-    
-    if (keys.size() > 500) {
-      List<Key> deleteChunk = null;
-      int index = 0;
-      int indexHigh = 0;
-      while ( index < keys.size()){
-        indexHigh = index + 499;
-        if (indexHigh >= keys.size()){
-          indexHigh = keys.size() - 1;
-        }
-        deleteChunk = keys.subList(index, indexHigh + 1);
-        if (txn != null){
-          datastore.delete(txn, deleteChunk);
-        } else {
-          datastore.delete(deleteChunk);
-        }
-        index = index + 500;
-      }
-    } else {
-      if (txn != null){
-        datastore.delete(txn, keys);
-      } else {
-        datastore.delete(keys);
-      }
 
-    }
-    
+    dispatch(txn, split(keys, DeleteChunkSize),
+        new ChunkOperation<Key, Void>() {
+          public Void execute(List<Key> chunk) {
+            if (txn != null) {
+              datastore.delete(txn, chunk);
+            } else {
+              datastore.delete(chunk);
+            }
+            return null;
+          }
+        });
+
   }
 
   public Map<Key, Entity> get(DatastoreService datastore, List<Key> keys) {
     return get(null, datastore, keys);
   }
-  
-  public Map<Key, Entity> get(Transaction txn, DatastoreService datastore,
-      List<Key> keys){
-    
-    Map<Key, Entity> result = null;
-    if ( keys.size() > 1000 ){
-      List<Key> retrieveChunk = null;
-      int index = 0;
-      int indexHigh = 0;
-      while ( index < keys.size() ){
-        indexHigh = index + 999;
-        if ( indexHigh >= keys.size() ){
-          indexHigh = keys.size() - 1;
-        }
-        retrieveChunk = keys.subList(index, indexHigh + 1);
-        Map<Key,Entity> chunk = null;
-        if ( txn != null){
-          chunk = datastore.get(txn, retrieveChunk);
-        } else {
-          chunk = datastore.get(retrieveChunk);
-        }
-        if ( result == null ){
-          result = chunk;
-        } else {
-          result.putAll(chunk);
-        }
-        index = index + 1000;
-      }
-    } else {
-      if ( txn != null ){
-        result = datastore.get(txn, keys);
-      } else {
-        result = datastore.get(keys);
+
+  public Map<Key, Entity> get(final Transaction txn,
+      final DatastoreService datastore, List<Key> keys){
+
+    List<Map<Key, Entity>> chunks =
+        dispatch(txn, split(keys, GetChunkSize),
+            new ChunkOperation<Key, Map<Key, Entity>>() {
+              public Map<Key, Entity> execute(List<Key> chunk) {
+                if (txn != null) {
+                  return datastore.get(txn, chunk);
+                } else {
+                  return datastore.get(chunk);
+                }
+              }
+            });
+    if (chunks.size() == 1) {
+      return chunks.get(0);
+    }
+    Map<Key, Entity> result = new HashMap<Key, Entity>(keys.size());
+    for (Map<Key, Entity> chunk : chunks) {
+      if (chunk != null) {
+        result.putAll(chunk);
       }
     }
-
     return result;
-    
+
   }
 
   public List<Key> put(DatastoreService datastore, List<Entity> entities) {
     return put(null, datastore, entities);
   }
-  
-  public List<Key> put(Transaction txn, DatastoreService datastore,
+
+  public List<Key> put(final Transaction txn, final DatastoreService datastore,
       List<Entity> entities){
-   
-    List<Key> result = null;
-    
-    if (entities.size() > 500) {
-      List<Entity> commitChunk = null;
-      int index = 0;
-      int indexHigh = 0;
-      while ( index < entities.size()){
-        indexHigh = index + 499;
-        if (indexHigh >= entities.size()){
-          indexHigh = entities.size() - 1;
-        }
-        commitChunk = entities.subList(index, indexHigh + 1);
-        List<Key> chunk = null;
-        if ( txn != null ){
-          chunk = datastore.put(txn,commitChunk);
-        } else {
-          chunk = datastore.put(commitChunk);
-        }
-        if ( result == null ){
-          result = chunk;
-        } else {
-          result.addAll(chunk);
+
+    List<List<Key>> chunks =
+        dispatch(txn, split(entities, PutChunkSize),
+            new ChunkOperation<Entity, List<Key>>() {
+              public List<Key> execute(List<Entity> chunk) {
+                if (txn != null) {
+                  return datastore.put(txn, chunk);
+                } else {
+                  return datastore.put(chunk);
+                }
+              }
+            });
+    if (chunks.size() == 1) {
+      return chunks.get(0);
+    }
+    // keys are returned in the same order as the entities were given
+    List<Key> result = new ArrayList<Key>(entities.size());
+    for (List<Key> chunk : chunks) {
+      if (chunk != null) {
+        result.addAll(chunk);
+      }
+    }
+    return result;
+
+  }
+
+  public Map<Key, Entity> getDescendants(final Transaction txn,
+      final DatastoreService datastore, List<Key> ancestors) {
+
+    if (ancestors.isEmpty()) {
+      return new HashMap<Key, Entity>();
+    }
+    // one ancestor per chunk, so the queries run concurrently
+    List<Map<Key, Entity>> chunks =
+        dispatch(txn, split(ancestors, 1),
+            new ChunkOperation<Key, Map<Key, Entity>>() {
+              public Map<Key, Entity> execute(List<Key> chunk) {
+                Key ancestor = chunk.get(0);
+                Query query = new Query(ancestor.getKind(), ancestor);
+                PreparedQuery prepared = null;
+                if (txn != null) {
+                  prepared = datastore.prepare(txn, query);
+                } else {
+                  prepared = datastore.prepare(query);
+                }
+                Map<Key, Entity> result = new HashMap<Key, Entity>();
+                for (Entity entity : prepared.asIterable(FetchOptions.Builder
+                    .withChunkSize(GetChunkSize))) {
+                  result.put(entity.getKey(), entity);
+                }
+                return result;
+              }
+            });
+    if (chunks.size() == 1) {
+      return chunks.get(0);
+    }
+    Map<Key, Entity> result = new HashMap<Key, Entity>();
+    for (Map<Key, Entity> chunk : chunks) {
+      result.putAll(chunk);
+    }
+    return result;
+  }
+
+  /**
+   * Runs <code>operation</code> on every chunk and returns the results in
+   * chunk order. Chunks are sent concurrently, at most
+   * {@link MindashDatastoreConfig#getMaximumChunksInFlight()} at a time, if a
+   * chunk executor is configured and there is no transaction; otherwise they
+   * are sent one after another on the calling thread.
+   *
+   * @param txn the transaction, can be <code>null</code>
+   * @param chunks the chunks to send
+   * @param operation the datastore call to make for each chunk
+   * @return the result of each chunk, in chunk order
+   */
+  private <T, R> List<R> dispatch(Transaction txn, List<List<T>> chunks,
+      final ChunkOperation<T, R> operation) {
+    List<R> results = new ArrayList<R>(chunks.size());
+    ExecutorService executor = config.getChunkExecutor();
+    if (executor == null || txn != null || chunks.size() == 1) {
+      for (List<T> chunk : chunks) {
+        results.add(operation.execute(chunk));
+      }
+      return results;
+    }
+    // sliding window: once the window is full, wait for the oldest chunk
+    // before sending the next one, this keeps the results in chunk order
+    LinkedList<Future<R>> inFlight = new LinkedList<Future<R>>();
+    try {
+      for (final List<T> chunk : chunks) {
+        if (inFlight.size() >= config.getMaximumChunksInFlight()) {
+          results.add(await(inFlight.removeFirst()));
         }
-        index = index + 500;
+        inFlight.add(executor.submit(new ApiEnvironmentCallable<R>(
+            new Callable<R>() {
+              public R call() {
+                return operation.execute(chunk);
+              }
+            })));
       }
-    } else {
-      if ( txn != null ){
-        result = datastore.put(txn, entities);
-      } else {
-        result = datastore.put(entities);
+      while (!inFlight.isEmpty()) {
+        results.add(await(inFlight.removeFirst()));
+      }
+    } finally {
+      // only non-empty if a chunk failed
+      for (Future<R> future : inFlight) {
+        future.cancel(true);
       }
     }
-    
-//    if ( result.size() != entities.size() ){
-//      result = datastore.put(entities);
-//    }
-    
-    return result;
-    
+    return results;
+  }
+
+  /**
+   * Waits for a chunk to finish, rethrowing whatever the datastore threw.
+   *
+   * @param future the chunk to wait for
+   * @return the chunk result
+   */
+  private <R> R await(Future<R> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new DatastoreFailureException(
+          "Interrupted while waiting for a datastore chunk", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new DatastoreFailureException("Datastore chunk failed", cause);
+    }
   }
 }
@@ -0,0 +1,89 @@
+/**
+ * Copyright 2010 Tristan Slominski
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mindash.datastore.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import com.mindash.datastore.BlobCodec;
+
+/**
+ * Compresses Blobs with <code>java.util.zip</code> Deflate. The default
+ * level favors speed, which already gets most of the gain on JSON and log
+ * payloads.
+ * 
+ * @author Tristan Slominski
+ */
+public class DeflateBlobCodec implements BlobCodec {
+
+  public static String Name = "deflate";
+
+  private static final int BufferSize = 8192;
+
+  private int level;
+
+  public DeflateBlobCodec() {
+    this(Deflater.BEST_SPEED);
+  }
+
+  /**
+   * @param level the compression level, see {@link Deflater}
+   */
+  public DeflateBlobCodec(int level) {
+    this.level = level;
+  }
+
+  @Override
+  public String getName() {
+    return Name;
+  }
+
+  @Override
+  public OutputStream encode(OutputStream out) throws IOException {
+    return new DeflaterOutputStream(out, new Deflater(level), BufferSize) {
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          // a Deflater passed in is not released by the stream
+          def.end();
+        }
+      }
+    };
+  }
+
+  @Override
+  public InputStream decode(InputStream in) throws IOException {
+    return new InflaterInputStream(in, new Inflater(), BufferSize) {
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          // an Inflater passed in is not released by the stream
+          inf.end();
+        }
+      }
+    };
+  }
+
+}
@@ -0,0 +1,177 @@
+/**
+ * Copyright 2010 Tristan Slominski
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mindash.datastore.impl;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DataTypeUtils;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Link;
+import com.google.appengine.api.datastore.ShortBlob;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.users.User;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.mindash.datastore.MindashDatastoreConfig;
+import com.mindash.datastore.MindashDatastoreService;
+import com.mindash.datastore.SizeEstimator;
+
+/**
+ * <p>
+ * Sizes entities close to their encoded (protocol buffer) size: strings by
+ * their UTF-8 length, Keys by the elements of their path, and properties by
+ * their name plus the few bytes of tags and lengths the encoding adds.
+ * </p>
+ * <p>
+ * Every estimate is increased by
+ * {@link MindashDatastoreConfig#getSizeEstimateMarginPercent()} so that
+ * small differences from the real encoding never push a shard over the
+ * limit.
+ * </p>
+ *
+ * @author Tristan Slominski
+ */
+@Singleton
+public class EncodedSizeEstimator implements SizeEstimator {
+
+  /** tags, lengths and flags of a single property */
+  public static int PropertyEncodingOverhead = 16;
+  /** tags and lengths of a single Key path element */
+  public static int KeyElementEncodingOverhead = 8;
+  /** application id, namespace and the entity group of a Key */
+  public static int KeyEncodingOverhead = 128;
+  /** tags and lengths of an entity besides its key and properties */
+  public static int EntityEncodingOverhead = 64;
+  /** tag and length of a value, or a full fixed-size value */
+  public static int ValueEncodingOverhead = 5;
+  /** the largest encoded number, date or boolean */
+  public static int FixedValueSize = 11;
+
+  /**
+   * @param s the string
+   * @return the number of bytes of the UTF-8 encoding of <code>s</code>
+   */
+  public static int getUtf8Length(String s) {
+    int length = 0;
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        length += 1;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+          && Character.isLowSurrogate(s.charAt(i + 1))) {
+        // a supplementary character takes 4 bytes for the pair
+        length += 4;
+        i++;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  /**
+   * @param key the key
+   * @return the encoded size of <code>key</code>, without the margin
+   */
+  public static int getKeySize(Key key) {
+    int size = KeyEncodingOverhead;
+    for (Key element = key; element != null; element = element.getParent()) {
+      size += KeyElementEncodingOverhead + getUtf8Length(element.getKind());
+      if (element.getName() != null) {
+        size += getUtf8Length(element.getName());
+      } else {
+        size += FixedValueSize;
+      }
+    }
+    return size;
+  }
+
+  private int marginPercent;
+
+  public EncodedSizeEstimator() {
+    this(new MindashDatastoreConfig());
+  }
+
+  @Inject
+  public EncodedSizeEstimator(MindashDatastoreConfig config) {
+    this.marginPercent = config.getSizeEstimateMarginPercent();
+  }
+
+  @Override
+  public int getEntityOverheadSize(Key shardKey) {
+    // every shard carries a checksum
+    return (int) withMargin(EntityEncodingOverhead + getKeySize(shardKey)
+        + PropertyEncodingOverhead
+        + getUtf8Length(MindashDatastoreService.MindashChecksumLabel)
+        + FixedValueSize + ValueEncodingOverhead);
+  }
+
+  @Override
+  public int getPropertyOverheadSize(String propertyName) {
+    return (int) withMargin(PropertyEncodingOverhead
+        + getUtf8Length(propertyName));
+  }
+
+  @Override
+  public long getPropertyValueSize(Object value) {
+    long size = 0;
+    if (value instanceof String) {
+      if (((String) value).length() > DataTypeUtils.MAX_STRING_PROPERTY_LENGTH) {
+        throw new IllegalArgumentException("String cannot be longer than "
+            + DataTypeUtils.MAX_STRING_PROPERTY_LENGTH);
+      }
+      size = getUtf8Length((String) value);
+    } else if (value instanceof Key) {
+      size = getKeySize((Key) value);
+    } else if (value instanceof User) {
+      User user = (User) value;
+      size =
+          getUtf8Length(user.getEmail()) + getUtf8Length(user.getAuthDomain())
+              + getUtf8Length(user.getNickname()) + 2 * ValueEncodingOverhead;
+    } else if (value instanceof ShortBlob) {
+      if (((ShortBlob) value).getBytes().length > DataTypeUtils.MAX_SHORT_BLOB_PROPERTY_LENGTH) {
+        throw new IllegalArgumentException("ShortBlob cannot be longer than "
+            + DataTypeUtils.MAX_SHORT_BLOB_PROPERTY_LENGTH);
+      }
+      size = ((ShortBlob) value).getBytes().length;
+    } else if (value instanceof Link) {
+      if (((Link) value).getValue().length() > DataTypeUtils.MAX_LINK_PROPERTY_LENGTH) {
+        throw new IllegalArgumentException("Link cannot be longer than "
+            + DataTypeUtils.MAX_LINK_PROPERTY_LENGTH);
+      }
+      size = getUtf8Length(((Link) value).getValue());
+    } else if (value instanceof Blob) {
+      size = ((Blob) value).getBytes().length;
+    } else if (value instanceof Text) {
+      throw new IllegalArgumentException("Mindash Datastore does not "
+          + "support Text type (use Blob instead)");
+    } else {
+      // numbers, dates (long), booleans and anything else
+      size = FixedValueSize;
+    }
+    return withMargin(size + ValueEncodingOverhead);
+  }
+
+  /**
+   * @param size an exact encoded size
+   * @return <code>size</code> increased by the safety margin, rounded up
+   */
+  private long withMargin(long size) {
+    return size + (size * marginPercent + 99) / 100;
+  }
+
+}
@@ -0,0 +1,43 @@
+/**
+ * Copyright 2010 Tristan Slominski
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mindash.datastore.impl;
+
+import java.util.List;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.inject.Singleton;
+import com.mindash.datastore.ShardPlanner;
+import com.mindash.datastore.SizeEstimator;
+
+/**
+ * The original planner: properties are packed in property map order and a
+ * shard is closed as soon as a Blob is placed in it. See
+ * {@link MindashDatastoreServiceImpl#planStorableEntityShards(Key, Entity, int, SizeEstimator)}.
+ * 
+ * @author Tristan Slominski
+ */
+@Singleton
+public class GreedyShardPlanner implements ShardPlanner {
+
+  @Override
+  public List<Entity> plan(Key parentKey, Entity entity,
+      int shard0ReservedSize, SizeEstimator sizeEstimator) {
+    return MindashDatastoreServiceImpl.planStorableEntityShards(parentKey,
+        entity, shard0ReservedSize, sizeEstimator);
+  }
+
+}
@@ -0,0 +1,217 @@
+/**
+ * Copyright 2010 Tristan Slominski
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mindash.datastore.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.KeyRange;
+import com.mindash.datastore.MindashDatastoreConfig;
+
+/**
+ * <p>
+ * Completes incomplete keys with ids allocated through
+ * {@link DatastoreService#allocateIds(String, long)}, so that an entity can
+ * be sharded under its final key without first storing a placeholder to
+ * learn it.
+ * </p>
+ * <p>
+ * Ids of root entities are allocated a block per kind at a time (see
+ * {@link MindashDatastoreConfig#setKeyIdBlockSize(int)}) and handed out from
+ * memory; the next block is allocated in the background once half of the
+ * current one is used up, if a chunk executor is set. Ids of child entities
+ * are only unique within their parent, so they are allocated per put, one
+ * call for all the new children of a parent.
+ * </p>
+ *
+ * @author Tristan Slominski
+ */
+public class KeyIdPool {
+
+  /**
+   * The ids of a kind not handed out yet.
+   */
+  private static class KindPool {
+    /** the next id to hand out */
+    private long next = 1;
+    /** the last id of the current block */
+    private long last = 0;
+    /** the next block, being allocated in the background */
+    private Future<KeyRange> refill;
+
+    private long available() {
+      return last - next + 1;
+    }
+  }
+
+  private DatastoreService datastore;
+  private MindashDatastoreConfig config;
+  private Map<String, KindPool> pools = new HashMap<String, KindPool>();
+
+  public KeyIdPool(DatastoreService datastore, MindashDatastoreConfig config) {
+    this.datastore = datastore;
+    this.config = config;
+  }
+
+  /**
+   * @param incompleteKey a key without an id or a name
+   * @return the completed key
+   */
+  public Key complete(Key incompleteKey) {
+    return complete(Arrays.asList(incompleteKey)).get(0);
+  }
+
+  /**
+   * @param incompleteKeys keys without an id or a name
+   * @return the completed keys, in the same order
+   */
+  public List<Key> complete(List<Key> incompleteKeys) {
+    Key[] completeKeys = new Key[incompleteKeys.size()];
+    // positions of the keys to complete, by kind and by parent
+    Map<String, List<Integer>> roots =
+        new LinkedHashMap<String, List<Integer>>();
+    Map<Key, Map<String, List<Integer>>> children =
+        new LinkedHashMap<Key, Map<String, List<Integer>>>();
+    for (int i = 0; i < completeKeys.length; i++) {
+      Key key = incompleteKeys.get(i);
+      if (key.isComplete()) {
+        throw new IllegalArgumentException(key + " is already complete");
+      }
+      if (key.getParent() == null) {
+        addPosition(roots, key.getKind(), i);
+      } else {
+        Map<String, List<Integer>> kinds = children.get(key.getParent());
+        if (kinds == null) {
+          kinds = new LinkedHashMap<String, List<Integer>>();
+          children.put(key.getParent(), kinds);
+        }
+        addPosition(kinds, key.getKind(), i);
+      }
+    }
+    for (Entry<String, List<Integer>> entry : roots.entrySet()) {
+      String kind = entry.getKey();
+      List<Integer> positions = entry.getValue();
+      List<Long> ids = take(kind, positions.size());
+      for (int i = 0; i < positions.size(); i++) {
+        completeKeys[positions.get(i)] =
+            KeyFactory.createKey(kind, ids.get(i));
+      }
+    }
+    for (Entry<Key, Map<String, List<Integer>>> parent : children.entrySet()) {
+      for (Entry<String, List<Integer>> entry : parent.getValue().entrySet()) {
+        String kind = entry.getKey();
+        List<Integer> positions = entry.getValue();
+        KeyRange range =
+            datastore.allocateIds(parent.getKey(), kind, positions.size());
+        long id = range.getStart().getId();
+        for (int position : positions) {
+          completeKeys[position] =
+              KeyFactory.createKey(parent.getKey(), kind, id++);
+        }
+      }
+    }
+    return Arrays.asList(completeKeys);
+  }
+
+  /**
+   * Hands out ids of a root kind, allocating a block if the pool runs out.
+   *
+   * @param kind the kind
+   * @param count the number of ids
+   * @return the ids
+   */
+  private List<Long> take(final String kind, int count) {
+    KindPool pool;
+    synchronized (pools) {
+      pool = pools.get(kind);
+      if (pool == null) {
+        pool = new KindPool();
+        pools.put(kind, pool);
+      }
+    }
+    final int blockSize = config.getKeyIdBlockSize();
+    synchronized (pool) {
+      List<Long> ids = new ArrayList<Long>(count);
+      while (ids.size() < count) {
+        if (pool.available() == 0) {
+          KeyRange range = nextBlock(kind, pool, count - ids.size());
+          pool.next = range.getStart().getId();
+          pool.last = range.getEnd().getId();
+        }
+        ids.add(pool.next++);
+      }
+      ExecutorService executor = config.getChunkExecutor();
+      if (executor != null && pool.refill == null
+          && pool.available() < (blockSize + 1) / 2) {
+        pool.refill =
+            executor.submit(new ApiEnvironmentCallable<KeyRange>(
+                new Callable<KeyRange>() {
+                  public KeyRange call() {
+                    return datastore.allocateIds(kind, blockSize);
+                  }
+                }));
+      }
+      return ids;
+    }
+  }
+
+  /**
+   * @param kind the kind
+   * @param pool the exhausted pool of the kind
+   * @param needed the number of ids still needed
+   * @return the block allocated in the background if there is one,
+   * otherwise a newly allocated block of at least <code>needed</code> ids
+   */
+  private KeyRange nextBlock(String kind, KindPool pool, int needed) {
+    if (pool.refill != null) {
+      Future<KeyRange> refill = pool.refill;
+      pool.refill = null;
+      try {
+        return refill.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        // allocate the block here instead, reporting the failure if it
+        // happens again
+      }
+    }
+    return datastore.allocateIds(kind, Math.max(config.getKeyIdBlockSize(),
+        needed));
+  }
+
+  private static void addPosition(Map<String, List<Integer>> positions,
+      String kind, int position) {
+    List<Integer> list = positions.get(kind);
+    if (list == null) {
+      list = new ArrayList<Integer>();
+      positions.put(kind, list);
+    }
+    list.add(position);
+  }
+
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright 2010 Tristan Slominski
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mindash.datastore.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.mindash.datastore.ShardMetadataCache;
+
+/**
+ * Keeps manifests in memcache, so that every instance of the application
+ * shares them. Entries expire after a while, which bounds how long a
+ * manifest that failed to be updated can be used for.
+ * 
+ * @author Tristan Slominski
+ *
+ */
+public class MemcacheShardMetadataCache implements ShardMetadataCache {
+
+  public static String CacheKeyPrefix = "mddm:";
+  public static int DefaultExpirationSeconds = 60 * 60;
+
+  private MemcacheService memcache;
+  private Expiration expiration;
+
+  public MemcacheShardMetadataCache() {
+    this(MemcacheServiceFactory.getMemcacheService(),
+        DefaultExpirationSeconds);
+  }
+
+  /**
+   * @param memcache the memcache to keep the manifests in
+   * @param expirationSeconds how long an entry is kept; 0 to keep it until
+   * memcache evicts it
+   */
+  public MemcacheShardMetadataCache(MemcacheService memcache,
+      int expirationSeconds) {
+    if (expirationSeconds < 0) {
+      throw new IllegalArgumentException(
+          "expirationSeconds cannot be negative");
+    }
+    this.memcache = memcache;
+    if (expirationSeconds > 0) {
+      this.expiration = Expiration.byDeltaSeconds(expirationSeconds);
+    }
+  }
+
+  /**
+   * @param key the key of an entity
+   * @return the memcache key of the entity's manifest
+   */
+  public static String createCacheKey(Key key) {
+    return CacheKeyPrefix + KeyFactory.keyToString(key);
+  }
+
+  @Override
+  public Map<Key, byte[]> getManifests(Collection<Key> keys) {
+    Map<Object, Key> keysByCacheKey = new HashMap<Object, Key>(keys.size());
+    for (Key key : keys) {
+      keysByCacheKey.put(createCacheKey(key), key);
+    }
+    Map<Object, Object> values =
+        memcache.getAll(new ArrayList<Object>(keysByCacheKey.keySet()));
+    Map<Key, byte[]> manifests = new HashMap<Key, byte[]>(values.size());
+    for (Entry<Object, Object> entry : values.entrySet()) {
+      Key key = keysByCacheKey.get(entry.getKey());
+      if (key != null && entry.getValue() instanceof byte[]) {
+        manifests.put(key, (byte[]) entry.getValue());
+      }
+    }
+    return manifests;
+  }
+
+  @Override
+  public void putManifests(Map<Key, byte[]> manifests) {
+    if (manifests.isEmpty()) {
+      return;
+    }
+    Map<Object, Object> values =
+        new HashMap<Object, Object>(manifests.size());
+    for (Entry<Key, byte[]> entry : manifests.entrySet()) {
+      values.put(createCacheKey(entry.getKey()), entry.getValue());
+    }
+    if (expiration != null) {
+      memcache.putAll(values, expiration);
+    } else {
+      memcache.putAll(values);
+    }
+  }
+
+  @Override
+  public void removeManifests(Collection<Key> keys) {
+    if (keys.isEmpty()) {
+      return;
+    }
+    List<Object> cacheKeys = new ArrayList<Object>(keys.size());
+    for (Key key : keys) {
+      cacheKeys.add(createCacheKey(key));
+    }
+    memcache.deleteAll(cacheKeys);
+  }
+
+}
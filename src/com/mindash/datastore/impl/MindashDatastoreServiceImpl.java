@@ -15,20 +15,32 @@
  */
 package com.mindash.datastore.impl;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeSet;
 
 import com.google.appengine.api.datastore.Blob;
 import com.google.appengine.api.datastore.DataTypeUtils;
+import com.google.appengine.api.datastore.DatastoreFailureException;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
@@ -42,10 +54,16 @@ import com.google.appengine.api.datastore.Text;
 import com.google.appengine.api.datastore.Transaction;
 import com.google.appengine.api.users.User;
 import com.google.inject.Inject;
+import com.mindash.datastore.BlobCodec;
 import com.mindash.datastore.DatastoreHelper;
 import com.mindash.datastore.EntityCorruptException;
+import com.mindash.datastore.EntityVisitor;
+import com.mindash.datastore.MindashDatastoreConfig;
 import com.mindash.datastore.MindashDatastoreService;
 import com.mindash.datastore.MindashPreparedQuery;
+import com.mindash.datastore.ShardMetadataCache;
+import com.mindash.datastore.ShardPlanner;
+import com.mindash.datastore.SizeEstimator;
 
 /**
  * The implementation of {@link com.mindash.datastore.MindashDatastoreService}.
@@ -99,6 +117,17 @@ public class MindashDatastoreServiceImpl implements MindashDatastoreService {
     return result;
   }
 
+  /**
+   * Utility method to create the name of the 0th shard property that records
+   * the total length of a split blob.
+   * 
+   * @param propertyName the name of the blob property
+   * @return the name of the length property
+   */
+  public static String createBlobLengthLabel(String propertyName) {
+    return MindashDatastoreService.MindashBlobLengthLabelPrefix + propertyName;
+  }
+
   /**
    * Utility method to create a key based on the desired shard.
    * 
@@ -120,6 +149,15 @@ public class MindashDatastoreServiceImpl implements MindashDatastoreService {
     return MindashDatastoreService.MindashNamePrefixLabel + thisShard;
   }
 
+  /**
+   * @param shardKey the key of a shard
+   * @return the index of the shard
+   */
+  public static int getShardIndex(Key shardKey) {
+    return Integer.parseInt(shardKey.getName().substring(
+        MindashDatastoreService.MindashNamePrefixLabel.length()));
+  }
+
   /**
    * Utility method to create an entity with the appropriate key for the
    * particular shard.
@@ -135,7 +173,9 @@ public class MindashDatastoreServiceImpl implements MindashDatastoreService {
 
   /**
    * Creates a storable shard that is less than 1MB while consuming properties
-   * from the property map.
+   * from the property map. Puts no longer use this method, see
+   * {@link #planStorableEntityShards(Key, Entity, int)}, which leaves the
+   * entity intact and does not re-copy the tail of a split blob.
    * 
    * @param entity the original entity with all properties; properties will be
    * stripped from this entity as they are sharded
@@ -143,6 +183,22 @@ public class MindashDatastoreServiceImpl implements MindashDatastoreService {
    * @return shard to store
    */
   public static Entity generateStorableEntityShard(Entity entity, Entity shard) {
+    return generateStorableEntityShard(entity, shard, 0);
+  }
+
+  /**
+   * Creates a storable shard that is less than 1MB while consuming properties
+   * from the property map, leaving room for bookkeeping properties that will
+   * be added to the shard afterwards.
+   * 
+   * @param entity the original entity with all properties; properties will be
+   * stripped from this entity as they are sharded
+   * @param shard the shard to add the properties to
+   * @param reservedSize the number of bytes to leave free in the shard
+   * @return shard to store
+   */
+  public static Entity generateStorableEntityShard(Entity entity,
+      Entity shard, int reservedSize) {
     Map<String, Object> properties = entity.getProperties();
 
     /** if there are no properties, return the shard */
@@ -152,7 +208,8 @@ public class MindashDatastoreServiceImpl implements MindashDatastoreService {
 
     /** have properties to do things with */
     Iterator<Entry<String, Object>> i = properties.entrySet().iterator();
-    long size = MindashDatastoreService.MindashInitialEntityOverheadSize;
+    long size =
+        MindashDatastoreService.MindashInitialEntityOverheadSize + reservedSize;
     while (i.hasNext()) {
       // get the next property
       Entry<String, Object> property = i.next();
@@ -212,63 +269,8 @@ public class MindashDatastoreServiceImpl implements MindashDatastoreService {
         }
       } else {
         // find out the property's size
-        if (value instanceof String) {
-          // property is a string
-          // make sure it is not too long
-          if (((String) value).length() > DataTypeUtils.MAX_STRING_PROPERTY_LENGTH) {
-            throw new IllegalArgumentException("String cannot be longer than "
-                + DataTypeUtils.MAX_STRING_PROPERTY_LENGTH);
-          }
-          // size of the string itself
-          size += ((String) value).length() * 4; // allow for UTF-32
-          size += getPropertyOverheadSize(property);
-        } else if (value instanceof Number || value instanceof Date) {
-          // property is a number or date (long)
-          // size is max of 8 bytes
-          size += 8;
-          size += getPropertyOverheadSize(property);
-        } else if (value instanceof Key) {
-          // property is a Key
-          // according to Jason from Google Entities can have up to 100 elements
-          // in the path and kind and key names can be up to 500 bytes,
-          // so theoretical limit for key size is 100,000 bytes + overhead
-          // for each recursion.
-          // we will use the KeyFactory.keyToString function to hack
-          // a safe estimate for storing the key
-          size += KeyFactory.keyToString((Key) value).length() * 4; // UTF-32
-          size += getPropertyOverheadSize(property);
-        } else if (value instanceof User) {
-          // property is a User
-          // estimating the size of user by getting the length of
-          // domain, email, and nickname and adding together
-          size +=
-              ((User) value).getAuthDomain().length() * 4
-                  + ((User) value).getEmail().length() * 4
-                  + ((User) value).getNickname().length() * 4; // allow for
-          // UTF-32
-          size += getPropertyOverheadSize(property);
-        } else if (value instanceof ShortBlob) {
-          // property is a shortBlob
-          // make sure it is not too long
-          if (((ShortBlob) value).getBytes().length > DataTypeUtils.MAX_SHORT_BLOB_PROPERTY_LENGTH) {
-            throw new IllegalArgumentException(
-                "ShortBlog cannot be longer than"
-                    + DataTypeUtils.MAX_SHORT_BLOB_PROPERTY_LENGTH);
-          }
-          // size of the shortBlob
-          size += ((ShortBlob) value).getBytes().length;
-          size += getPropertyOverheadSize(property);
-        } else if (value instanceof Link) {
-          // property is a link
-          // make sure it is not too long
-          if (((Link) value).getValue().length() > DataTypeUtils.MAX_LINK_PROPERTY_LENGTH) {
-            throw new IllegalArgumentException("Link cannot be longer than"
-                + DataTypeUtils.MAX_LINK_PROPERTY_LENGTH);
-          }
-          // size of the link
-          size += ((Link) value).getValue().length() * 4; // allow for UTF-32
-          size += getPropertyOverheadSize(property);
-        }
+        size += getPropertyValueSize(value);
+        size += getPropertyOverheadSize(property);
         // see if there is room to add the property
         if (size <= MindashDatastoreService.MindashEntityMaximumSize) {
           // entity can accept this property
@@ -284,6 +286,411 @@ public class MindashDatastoreServiceImpl implements MindashDatastoreService {
     return shard;
   }
 
+  /**
+   * Reads the shard count stored in the 0th shard. The datastore hands back
+   * integer properties as <code>Long</code>, so any <code>Number</code> is
+   * accepted.
+   * 
+   * @param shard0 the 0th shard of an entity
+   * @return the number of shards of the entity
+   */
+  public static int getShardCount(Entity shard0) {
+    return ((Number) shard0
+        .getProperty(MindashDatastoreService.MindashShardCountLabel))
+        .intValue();
+  }
+
+  /**
+   * Estimates the stored size of a property value that is never split (every
+   * supported type except Blob), checking the datastore length limits.
+   * 
+   * @param value the property value
+   * @return the estimated size in bytes, without the property overhead
+   * @throws IllegalArgumentException if the value is too long or is Text
+   */
+  public static long getPropertyValueSize(Object value) {
+    if (value instanceof String) {
+      // property is a string
+      // make sure it is not too long
+      if (((String) value).length() > DataTypeUtils.MAX_STRING_PROPERTY_LENGTH) {
+        throw new IllegalArgumentException("String cannot be longer than "
+            + DataTypeUtils.MAX_STRING_PROPERTY_LENGTH);
+      }
+      // size of the string itself
+      return ((String) value).length() * 4; // allow for UTF-32
+    } else if (value instanceof Key) {
+      // property is a Key
+      // according to Jason from Google Entities can have up to 100 elements
+      // in the path and kind and key names can be up to 500 bytes,
+      // so theoretical limit for key size is 100,000 bytes + overhead
+      // for each recursion.
+      // we will use the KeyFactory.keyToString function to hack
+      // a safe estimate for storing the key
+      return KeyFactory.keyToString((Key) value).length() * 4; // UTF-32
+    } else if (value instanceof User) {
+      // property is a User
+      // estimating the size of user by getting the length of
+      // domain, email, and nickname and adding together
+      return ((User) value).getAuthDomain().length() * 4
+          + ((User) value).getEmail().length() * 4
+          + ((User) value).getNickname().length() * 4; // allow for UTF-32
+    } else if (value instanceof ShortBlob) {
+      // property is a shortBlob
+      // make sure it is not too long
+      if (((ShortBlob) value).getBytes().length > DataTypeUtils.MAX_SHORT_BLOB_PROPERTY_LENGTH) {
+        throw new IllegalArgumentException("ShortBlog cannot be longer than"
+            + DataTypeUtils.MAX_SHORT_BLOB_PROPERTY_LENGTH);
+      }
+      // size of the shortBlob
+      return ((ShortBlob) value).getBytes().length;
+    } else if (value instanceof Link) {
+      // property is a link
+      // make sure it is not too long
+      if (((Link) value).getValue().length() > DataTypeUtils.MAX_LINK_PROPERTY_LENGTH) {
+        throw new IllegalArgumentException("Link cannot be longer than"
+            + DataTypeUtils.MAX_LINK_PROPERTY_LENGTH);
+      }
+      // size of the link
+      return ((Link) value).getValue().length() * 4; // allow for UTF-32
+    } else if (value instanceof Text) {
+      throw new IllegalArgumentException("Mindash Datastore does not "
+          + "support Text type (use Blob instead)");
+    }
+    // numbers, dates (long), booleans and anything else
+    // size is max of 8 bytes
+    return 8;
+  }
+
+  /**
+   * <p>
+   * Splits an entity into storable shards without modifying it. Properties
+   * are taken in the order of the property map and packed into a shard
+   * until the next one does not fit, at which point a new shard is started.
+   * A shard is also closed after a Blob is placed in it.
+   * </p>
+   * <p>
+   * A Blob too large for a single shard is split by offset: each shard
+   * receives one copy of its own slice of the source bytes, so splitting is
+   * linear in the size of the blob. A Blob that is not split is stored as is.
+   * </p>
+   * <p>
+   * Sizes are estimated with the original, conservative rules of
+   * {@link ConservativeSizeEstimator}.
+   * </p>
+   * 
+   * @param parentKey the key of the entity
+   * @param entity the entity to shard; it is not modified
+   * @param shard0ReservedSize the number of bytes to leave free in the 0th
+   * shard for bookkeeping properties
+   * @return the shards in order, there is always at least the 0th shard
+   * @throws IllegalArgumentException if a property cannot be stored
+   */
+  public static List<Entity> planStorableEntityShards(Key parentKey,
+      Entity entity, int shard0ReservedSize) {
+    return planStorableEntityShards(parentKey, entity, shard0ReservedSize,
+        new ConservativeSizeEstimator());
+  }
+
+  /**
+   * Splits an entity into storable shards without modifying it, see
+   * {@link #planStorableEntityShards(Key, Entity, int)}.
+   * 
+   * @param parentKey the key of the entity
+   * @param entity the entity to shard; it is not modified
+   * @param shard0ReservedSize the number of bytes to leave free in the 0th
+   * shard for bookkeeping properties
+   * @param sizeEstimator sizes the shards and properties
+   * @return the shards in order, there is always at least the 0th shard
+   * @throws IllegalArgumentException if a property cannot be stored
+   */
+  public static List<Entity> planStorableEntityShards(Key parentKey,
+      Entity entity, int shard0ReservedSize, SizeEstimator sizeEstimator) {
+    List<Entry<String, Object>> properties =
+        new ArrayList<Entry<String, Object>>(entity.getProperties().entrySet());
+    List<Entity> shards = new ArrayList<Entity>();
+    int next = 0;
+    // offset of the part of a split blob that has not been stored yet
+    int blobOffset = 0;
+    while (shards.isEmpty() || next < properties.size()) {
+      Entity shard = createMindashEntityShard(parentKey, shards.size());
+      shards.add(shard);
+      int entityOverhead = sizeEstimator.getEntityOverheadSize(shard.getKey());
+      long size = entityOverhead;
+      if (shards.size() == 1) {
+        size += shard0ReservedSize;
+      }
+      boolean empty = true;
+      while (next < properties.size()) {
+        Entry<String, Object> property = properties.get(next);
+        Object value = property.getValue();
+        int overhead = sizeEstimator.getPropertyOverheadSize(property.getKey());
+        if (value instanceof Blob) {
+          byte[] bytes = ((Blob) value).getBytes();
+          int remaining = bytes.length - blobOffset;
+          long available =
+              MindashDatastoreService.MindashEntityMaximumSize - size
+                  - overhead;
+          int propertyMaximumSize =
+              MindashDatastoreService.MindashEntityMaximumSize
+                  - entityOverhead - overhead;
+          int length = 0;
+          if (remaining <= available) {
+            // the rest of the blob fits
+            length = remaining;
+          } else if (remaining > propertyMaximumSize && empty
+              && available > 0) {
+            // blob is too big to fit into one shard, fill this one with
+            // the head; property name will remain the same for get
+            // concatenation
+            length = (int) available;
+          }
+          if (length > 0 || remaining == 0) {
+            if (blobOffset == 0 && length == bytes.length) {
+              // the whole blob fits, no need to copy it
+              shard.setProperty(property.getKey(), value);
+            } else {
+              shard.setProperty(property.getKey(), new Blob(Arrays
+                  .copyOfRange(bytes, blobOffset, blobOffset + length)));
+            }
+            blobOffset += length;
+            if (blobOffset == bytes.length) {
+              blobOffset = 0;
+              next++;
+            }
+          }
+          // close the shard with the blob so that retrieval can be simplified
+          break;
+        } else {
+          long propertySize =
+              sizeEstimator.getPropertyValueSize(value) + overhead;
+          if (size + propertySize > MindashDatastoreService.MindashEntityMaximumSize) {
+            if (empty) {
+              throw new IllegalArgumentException("Property \""
+                  + property.getKey() + "\" does not fit into a shard");
+            }
+            // shard is full, should be closed and a new shard started
+            break;
+          }
+          shard.setProperty(property.getKey(), value);
+          size += propertySize;
+          empty = false;
+          next++;
+        }
+      }
+    }
+    return shards;
+  }
+
+  /**
+   * Splits an entity into the shards to store, with the shard count and the
+   * shard manifest recorded in the 0th shard. Room for the manifest is
+   * reserved up front from an estimate; in the rare case the estimate is too
+   * small the entity is planned again with the actual size reserved.
+   * 
+   * @param parentKey the complete key of the entity
+   * @param entity the entity to shard; it is not modified
+   * @param chunks the chunks of deduplicated Blobs are added here, they
+   * must be acquired before the shards are stored
+   * @return the shards to store, the 0th shard first
+   */
+  private List<Entity> generateStorableEntityShards(Key parentKey,
+      Entity entity, List<BlobChunkStore.Chunk> chunks) {
+    BlobCodec codec = config.getBlobCodec(entity.getKind());
+    Map<String, Long> decodedLengths = new HashMap<String, Long>();
+    if (codec != null) {
+      entity = encodeBlobs(entity, codec, decodedLengths);
+    }
+    Map<String, List<BlobChunkStore.Chunk>> chunkedBlobs =
+        new LinkedHashMap<String, List<BlobChunkStore.Chunk>>();
+    if (config.isBlobDeduplication(entity.getKind())) {
+      entity = splitBlobs(entity, chunkedBlobs);
+    }
+    int reservedSize = ShardManifest.estimateStoredSize(entity);
+    for (Entry<String, List<BlobChunkStore.Chunk>> chunkedBlob : chunkedBlobs
+        .entrySet()) {
+      reservedSize +=
+          ShardManifest.estimateChunkedBlobSize(chunkedBlob.getKey(),
+              chunkedBlob.getValue().size());
+    }
+    while (true) {
+      List<Entity> shards =
+          shardPlanner.plan(parentKey, entity, reservedSize, sizeEstimator);
+      ShardManifest manifest = ShardManifest.fromShards(shards);
+      for (Entry<String, List<BlobChunkStore.Chunk>> chunkedBlob : chunkedBlobs
+          .entrySet()) {
+        manifest.addChunkedBlob(chunkedBlob.getKey(), chunkedBlob.getValue());
+      }
+      for (Entry<String, Long> decodedLength : decodedLengths.entrySet()) {
+        manifest.getPropertySpan(decodedLength.getKey()).setCodec(
+            codec.getName(), decodedLength.getValue());
+      }
+      int manifestSize = ShardManifest.getStoredSize(manifest.encode().length);
+      if (manifestSize <= reservedSize) {
+        Entity shard0 = shards.get(0);
+        shard0.setProperty(MindashDatastoreService.MindashShardCountLabel,
+            shards.size());
+        manifest.write(shard0);
+        for (Entity shard : shards) {
+          ShardChecksum.write(shard);
+        }
+        for (List<BlobChunkStore.Chunk> blobChunks : chunkedBlobs.values()) {
+          chunks.addAll(blobChunks);
+        }
+        return shards;
+      }
+      reservedSize = manifestSize;
+    }
+  }
+
+  /**
+   * Takes the Blob properties out of an entity so they can be stored in
+   * content addressed chunks instead of in its shards.
+   * 
+   * @param entity the entity to split; it is not modified
+   * @param chunkedBlobs the chunks of each Blob are recorded here, by
+   * property name
+   * @return a copy of the entity without the Blobs, or <code>entity</code>
+   * if it has none
+   */
+  private static Entity splitBlobs(Entity entity,
+      Map<String, List<BlobChunkStore.Chunk>> chunkedBlobs) {
+    Entity split = null;
+    for (Entry<String, Object> property : entity.getProperties().entrySet()) {
+      if (!(property.getValue() instanceof Blob)) {
+        continue;
+      }
+      chunkedBlobs.put(property.getKey(), BlobChunkStore
+          .split(((Blob) property.getValue()).getBytes()));
+      if (split == null) {
+        split = constructEntity(entity.getKey());
+        split.setPropertiesFrom(entity);
+      }
+    }
+    if (split == null) {
+      return entity;
+    }
+    for (String propertyName : chunkedBlobs.keySet()) {
+      split.removeProperty(propertyName);
+    }
+    return split;
+  }
+
+  /**
+   * @param shard0 the 0th shard of an entity
+   * @return the content hashes of the chunks the entity references, empty
+   * if it has no manifest or the manifest cannot be read (any chunks it
+   * references are then left for garbage collection)
+   */
+  private static List<String> getChunkHashes(Entity shard0) {
+    try {
+      ShardManifest manifest = ShardManifest.read(shard0);
+      if (manifest != null) {
+        return manifest.getChunkHashes();
+      }
+    } catch (EntityCorruptException e) {
+      // cannot tell which chunks are referenced
+    }
+    return new ArrayList<String>();
+  }
+
+  /**
+   * Encodes the Blob properties of an entity that the codec makes smaller.
+   * 
+   * @param entity the entity to encode; it is not modified
+   * @param codec the codec to encode with
+   * @param decodedLengths the original lengths of the encoded blobs are
+   * recorded here, by property name
+   * @return a copy of the entity with the encoded blobs, or
+   * <code>entity</code> if no blob was encoded
+   */
+  private static Entity encodeBlobs(Entity entity, BlobCodec codec,
+      Map<String, Long> decodedLengths) {
+    Entity encoded = null;
+    for (Entry<String, Object> property : entity.getProperties().entrySet()) {
+      if (!(property.getValue() instanceof Blob)) {
+        continue;
+      }
+      byte[] bytes = ((Blob) property.getValue()).getBytes();
+      byte[] encodedBytes = encodeBlob(codec, bytes);
+      if (encodedBytes.length >= bytes.length) {
+        // not worth decoding on every read
+        continue;
+      }
+      if (encoded == null) {
+        encoded = constructEntity(entity.getKey());
+        encoded.setPropertiesFrom(entity);
+      }
+      encoded.setProperty(property.getKey(), new Blob(encodedBytes));
+      decodedLengths.put(property.getKey(), (long) bytes.length);
+    }
+    return encoded == null ? entity : encoded;
+  }
+
+  /**
+   * @param codec the codec to encode with
+   * @param bytes the bytes to encode
+   * @return the encoded bytes
+   */
+  private static byte[] encodeBlob(BlobCodec codec, byte[] bytes) {
+    ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+    try {
+      OutputStream out = codec.encode(encoded);
+      out.write(bytes);
+      out.close();
+    } catch (IOException e) {
+      throw new DatastoreFailureException("Blob could not be encoded with "
+          + "codec \"" + codec.getName() + "\"", e);
+    }
+    return encoded.toByteArray();
+  }
+
+  /**
+   * @param key the key of the entity
+   * @param span the manifest span of an encoded blob
+   * @param bytes the stored bytes of the blob
+   * @return the decoded blob
+   * @throws EntityCorruptException if the codec is not registered or the
+   * bytes cannot be decoded to the recorded length
+   */
+  private Blob decodeBlob(Key key, ShardManifest.PropertySpan span,
+      byte[] bytes) throws EntityCorruptException {
+    String propertyName = span.getName();
+    BlobCodec codec = config.findBlobCodec(span.getCodec());
+    if (codec == null) {
+      throw new EntityCorruptException("Blob \"" + propertyName + "\" of "
+          + key + " was stored with codec \"" + span.getCodec()
+          + "\", which is not registered");
+    }
+    if (span.getDecodedLength() > Integer.MAX_VALUE) {
+      throw new EntityCorruptException("Blob \"" + propertyName
+          + "\" is too large to assemble (" + span.getDecodedLength()
+          + " bytes)");
+    }
+    byte[] decoded = new byte[(int) span.getDecodedLength()];
+    try {
+      InputStream in = codec.decode(new ByteArrayInputStream(bytes));
+      int offset = 0;
+      while (offset < decoded.length) {
+        int read = in.read(decoded, offset, decoded.length - offset);
+        if (read == -1) {
+          break;
+        }
+        offset += read;
+      }
+      boolean longer = in.read() != -1;
+      in.close();
+      if (offset != decoded.length || longer) {
+        throw new EntityCorruptException("Blob \"" + propertyName + "\" of "
+            + key + " does not decode to its recorded length of "
+            + decoded.length + " bytes");
+      }
+    } catch (IOException e) {
+      throw new EntityCorruptException("Blob \"" + propertyName + "\" of "
+          + key + " could not be decoded", e);
+    }
+    return new Blob(decoded);
+  }
+
   /**
    * Returns the property overhead for an entity property
    * 
@@ -297,17 +704,19 @@ public class MindashDatastoreServiceImpl implements MindashDatastoreService {
   }
 
   /**
-   * Utility method to determine if there are multiple properties in a given
-   * entity (discounting MindashShardCountLabel)
+   * Utility method to determine if a property is one of the properties
+   * Mindash Datastore adds to shards for its own bookkeeping.
    * 
-   * @param entity the entity to test
-   * @return <code>true</code> if <code>entity</code> has multiple properties
+   * @param propertyName the name of the property
+   * @return <code>true</code> if the property is not a user property
    */
-  private static boolean hasMultipleProperties(Entity entity) {
-    // remember shard 0 has an extra MindashShardCountLabel property
-    return (entity.hasProperty(MindashDatastoreService.MindashShardCountLabel) && entity
-        .getProperties().size() > 2)
-        || (entity.getProperties().size() > 1);
+  public static boolean isMindashProperty(String propertyName) {
+    return propertyName.equals(MindashDatastoreService.MindashShardCountLabel)
+        || propertyName.equals(MindashDatastoreService.MindashManifestLabel)
+        || propertyName.equals(MindashDatastoreService.MindashChecksumLabel)
+        || propertyName.equals(MindashDatastoreService.MindashWriterLabel)
+        || propertyName
+            .startsWith(MindashDatastoreService.MindashBlobLengthLabelPrefix);
   }
 
   @SuppressWarnings("unchecked")
@@ -350,12 +759,35 @@ public class MindashDatastoreServiceImpl implements MindashDatastoreService {
 
   private DatastoreService datastore;
   private DatastoreHelper datastoreHelper;
+  private MindashDatastoreConfig config;
+  private SizeEstimator sizeEstimator;
+  private ShardPlanner shardPlanner;
+  private BlobChunkStore chunkStore;
+  private KeyIdPool keyIdPool;
+  private ShardCountPredictor shardCountPredictor = new ShardCountPredictor();
 
-  @Inject
   public MindashDatastoreServiceImpl(DatastoreService datastore,
       DatastoreHelper datastoreHelper) {
+    this(datastore, datastoreHelper, new MindashDatastoreConfig());
+  }
+
+  public MindashDatastoreServiceImpl(DatastoreService datastore,
+      DatastoreHelper datastoreHelper, MindashDatastoreConfig config) {
+    this(datastore, datastoreHelper, config, new EncodedSizeEstimator(config),
+        new BinPackingShardPlanner());
+  }
+
+  @Inject
+  public MindashDatastoreServiceImpl(DatastoreService datastore,
+      DatastoreHelper datastoreHelper, MindashDatastoreConfig config,
+      SizeEstimator sizeEstimator, ShardPlanner shardPlanner) {
     this.datastore = datastore;
     this.datastoreHelper = datastoreHelper;
+    this.config = config;
+    this.sizeEstimator = sizeEstimator;
+    this.shardPlanner = shardPlanner;
+    this.chunkStore = new BlobChunkStore(datastore, datastoreHelper);
+    this.keyIdPool = new KeyIdPool(datastore, config);
   }
 
   @Override
@@ -394,9 +826,7 @@ public class MindashDatastoreServiceImpl implements MindashDatastoreService {
       key0thShards.add(createMindashDatastoreKey(k, 0));
     }
 
-    datastoreHelper
-        .delete(txn, datastore, generateShardsToDelete(key0thShards));
-
+    deleteEntities(txn, key0thShards);
   }
 
   @Override
@@ -413,8 +843,7 @@ public class MindashDatastoreServiceImpl implements MindashDatastoreService {
       key0thShards.add(createMindashDatastoreKey(k, 0));
     }
 
-    datastoreHelper
-        .delete(txn, datastore, generateShardsToDelete(key0thShards));
+    deleteEntities(txn, key0thShards);
   }
 
   @Override
@@ -431,117 +860,198 @@ public class MindashDatastoreServiceImpl implements MindashDatastoreService {
   @Override
   public Entity get(Transaction txn, Key key) throws EntityNotFoundException,
       EntityCorruptException {
-    int thisShard = 0;
-    Key mdKey = createMindashDatastoreKey(key, thisShard);
-    Entity e = null;
-    if (txn != null) {
-      e = datastore.get(txn, mdKey);
-    } else {
-      e = datastore.get(mdKey);
-    }
-    // got the 0th shard
-    // check how many shards there are
-    int shardCount =
-        (Integer) e.getProperty(MindashDatastoreService.MindashShardCountLabel);
-    // create the result entity using the passed key
-    Entity result = constructEntity(key);
-    if (shardCount > 1) {
-      // get the other shards
-      // create the keys
-      List<Key> mdKeys = new ArrayList<Key>(shardCount);
-      for (int i = 0; i < shardCount; i++) {
-        mdKeys.add(createMindashDatastoreKey(key, i));
-      }
-      // account for more than 1000 shards
-      if (mdKeys.size() > 1000) {
-        List<Key> retrieveChunk = null;
-        int index = 0;
-        int indexHigh = 0;
-        while (index < mdKeys.size()) {
-          indexHigh = index + 999;
-          if (indexHigh >= mdKeys.size()) {
-            indexHigh = mdKeys.size() - 1;
-          }
-          retrieveChunk = mdKeys.subList(index, indexHigh + 1);
-          result = assembleEntity(txn, result, retrieveChunk);
-          index = index + 1000;
-        }
-      } else {
-        result = assembleEntity(txn, result, mdKeys);
-      }
-    } else {
-      // only one shard
-      result.setPropertiesFrom(e);
-    }
-    result.removeProperty(MindashDatastoreService.MindashShardCountLabel);
-    return result;
+    return getEntity(txn, key, null);
   }
 
   @Override
   public Map<Key, Entity> get(Transaction txn, Iterable<Key> keys)
       throws EntityCorruptException {
+    return getEntities(txn, keys, null);
+  }
 
-    // assemble 0th shards keys
-    List<Key> shards0thKeys = new ArrayList<Key>();
+  @Override
+  public Map<Key, Entity> get(Iterable<Key> keys) throws EntityCorruptException {
+    return get(null, keys);
+  }
+
+  @Override
+  public Entity get(Key key, Set<String> propertyNames)
+      throws EntityNotFoundException, EntityCorruptException {
+    return get(null, key, propertyNames);
+  }
+
+  @Override
+  public Entity get(Transaction txn, Key key, Set<String> propertyNames)
+      throws EntityNotFoundException, EntityCorruptException {
+    if (propertyNames == null) {
+      throw new IllegalArgumentException("propertyNames cannot be null");
+    }
+    return getEntity(txn, key, propertyNames);
+  }
+
+  @Override
+  public Map<Key, Entity> get(Iterable<Key> keys, Set<String> propertyNames)
+      throws EntityCorruptException {
+    return get(null, keys, propertyNames);
+  }
+
+  @Override
+  public Map<Key, Entity> get(Transaction txn, Iterable<Key> keys,
+      Set<String> propertyNames) throws EntityCorruptException {
+    if (propertyNames == null) {
+      throw new IllegalArgumentException("propertyNames cannot be null");
+    }
+    return getEntities(txn, keys, propertyNames);
+  }
+
+  /**
+   * @return the predictor of the shard counts prefetched by batch gets,
+   * which counts how many prefetches hit and how many shards they wasted
+   */
+  public ShardCountPredictor getShardCountPredictor() {
+    return shardCountPredictor;
+  }
+
+  /**
+   * Retrieves whole entities with one ancestor query per entity, returning
+   * all the shards of an entity at once, whatever the read mode of their
+   * kind (see
+   * {@link MindashDatastoreConfig#setAncestorQueryReads(String, boolean)}).
+   * 
+   * @param keys the keys of the entities
+   * @return the entities that exist
+   * @throws EntityCorruptException if a shard is missing or corrupt
+   */
+  public Map<Key, Entity> getByAncestorQuery(Iterable<Key> keys)
+      throws EntityCorruptException {
+    return getByAncestorQuery(null, keys);
+  }
+
+  public Map<Key, Entity> getByAncestorQuery(Transaction txn,
+      Iterable<Key> keys) throws EntityCorruptException {
+    List<Key> keyList = new ArrayList<Key>();
     for (Key k : keys) {
-      shards0thKeys.add(createMindashDatastoreKey(k, 0));
+      keyList.add(k);
     }
-    // get all 0th shards
-    Map<Key, Entity> shards0th = null;
+    return getEntitiesByAncestorQuery(txn, keyList);
+  }
+
+  @Override
+  public InputStream openBlobStream(Key key, String propertyName)
+      throws EntityNotFoundException {
+    return openBlobStream(null, key, propertyName);
+  }
+
+  @Override
+  public InputStream openBlobStream(Transaction txn, Key key,
+      String propertyName) throws EntityNotFoundException {
+    Key mdKey = createMindashDatastoreKey(key, 0);
+    Entity shard0 = null;
     if (txn != null) {
-      shards0th = datastoreHelper.get(txn, datastore, shards0thKeys);
+      shard0 = datastore.get(txn, mdKey);
     } else {
-      shards0th = datastoreHelper.get(datastore, shards0thKeys);
-    }
-    // store shard count information
-    Map<Key, Integer> shardCounts = new HashMap<Key, Integer>(shards0th.size());
-    Iterator<Entry<Key, Entity>> iterator = shards0th.entrySet().iterator();
-    while (iterator.hasNext()) {
-      Entry<Key, Entity> e = iterator.next();
-      shardCounts.put(e.getKey(), (Integer) e.getValue().getProperty(
-          MindashDatastoreService.MindashShardCountLabel));
+      shard0 = datastore.get(mdKey);
     }
-    // create keys for all shards to get
-    // the tradeoff is that we will iterate through things in memory instead
-    // of doing a separate datastore.get call for each multi-shard entity
-    List<Key> allShardsToGet = new ArrayList<Key>();
-    // key reference is used later to reassemble the shards from a map that
-    // has no sequentiality guarantees whatsoever
-    Map<Key, List<Key>> keyReference =
-        new HashMap<Key, List<Key>>(shards0th.size());
-    for (Key k : keys) {
-      List<Key> shardKeys = new ArrayList<Key>(shardCounts.get(k));
-      for (int i = 0; i < shardCounts.get(k); i++) {
-        Key shardKey = createMindashDatastoreKey(k, i);
-        allShardsToGet.add(shardKey);
-        shardKeys.add(shardKey);
+    ShardManifest.PropertySpan span = null;
+    try {
+      ShardManifest manifest = ShardManifest.read(shard0);
+      if (manifest != null) {
+        span = manifest.getPropertySpan(propertyName);
       }
-      keyReference.put(k, shardKeys);
+    } catch (EntityCorruptException e) {
+      // the stream reports the corrupt manifest when it is read
     }
-
-    Map<Key, Entity> allShards = null;
-    if (txn != null) {
-      allShards = datastoreHelper.get(txn, datastore, allShardsToGet);
+    InputStream stream = null;
+    if (span != null && span.isChunked()) {
+      stream = new ChunkedBlobInputStream(chunkStore, key, span);
     } else {
-      allShards = datastoreHelper.get(datastore, allShardsToGet);
+      stream =
+          new ShardedBlobInputStream(datastore, datastoreHelper, config
+              .getChunkExecutor(), txn, key, propertyName, shard0,
+              getShardCount(shard0), config.getBlobReadAheadShards(), config
+                  .isShardChecksumVerification());
     }
-
-    // assemble entities and put them in results
-    Map<Key, Entity> results = new HashMap<Key, Entity>(shards0thKeys.size());
-    for (Key k : keys) {
-      Entity result = constructEntity(k);
-      assembleEntityFromKeysAndEntityMap(txn, result, keyReference.get(k),
-          allShards, false);
-      result.removeProperty(MindashDatastoreService.MindashShardCountLabel);
-      results.put(k, result);
+    if (span == null || span.getCodec() == null) {
+      return stream;
+    }
+    String codecName = span.getCodec();
+    // decode the bytes as they stream in
+    BlobCodec codec = config.findBlobCodec(codecName);
+    if (codec == null) {
+      throw new IllegalStateException("Blob \"" + propertyName + "\" of "
+          + key + " was stored with codec \"" + codecName
+          + "\", which is not registered");
+    }
+    try {
+      return codec.decode(stream);
+    } catch (IOException e) {
+      throw new IllegalStateException("Codec \"" + codecName
+          + "\" could not open a stream", e);
     }
+  }
 
-    return results;
+  @Override
+  public OutputStream createBlobWriter(Key key, String propertyName) {
+    return createBlobWriter(null, key, propertyName);
   }
 
   @Override
-  public Map<Key, Entity> get(Iterable<Key> keys) throws EntityCorruptException {
-    return get(null, keys);
+  public OutputStream createBlobWriter(Transaction txn, Key key,
+      String propertyName) {
+    if (!key.isComplete()) {
+      throw new IllegalArgumentException("Blob writer requires a complete key");
+    }
+    // find out how many shards there are now, so that the new blob can be
+    // stored past them and they can be deleted once it is
+    int oldShardCount = 0;
+    List<String> oldChunkHashes = new ArrayList<String>();
+    Key mdKey = createMindashDatastoreKey(key, 0);
+    try {
+      Entity shard0 = null;
+      if (txn != null) {
+        shard0 = datastore.get(txn, mdKey);
+      } else {
+        shard0 = datastore.get(mdKey);
+      }
+      oldShardCount = getShardCount(shard0);
+      oldChunkHashes = getChunkHashes(shard0);
+    } catch (EntityNotFoundException e) {
+      // entity doesn't exist, won't have to delete any shards
+    }
+    OutputStream stream =
+        new ShardedBlobOutputStream(datastore, datastoreHelper, config
+            .getChunkExecutor(), txn, key, propertyName, oldShardCount,
+            config.getBlobWriterBatchShards(), config.getBlobCodec(key
+                .getKind()));
+    final ShardMetadataCache cache = config.getShardMetadataCache();
+    if (oldChunkHashes.isEmpty() && cache == null) {
+      return stream;
+    }
+    // once the new blob is stored, the cached manifest of the replaced
+    // entity is dropped and the chunks it referenced are released
+    final Transaction blobTxn = txn;
+    final Key blobKey = key;
+    final List<String> releasedChunkHashes = oldChunkHashes;
+    return new FilterOutputStream(stream) {
+      private boolean released;
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+      }
+
+      @Override
+      public void close() throws IOException {
+        super.close();
+        if (!released) {
+          released = true;
+          if (cache != null) {
+            cache.removeManifests(Collections.singletonList(blobKey));
+          }
+          releaseChunks(blobTxn, releasedChunkHashes);
+        }
+      }
+    };
   }
 
   @Override
@@ -559,6 +1069,13 @@ public class MindashDatastoreServiceImpl implements MindashDatastoreService {
     return datastore.getCurrentTransaction(txn);
   }
 
+  @Override
+  public long forEachParallel(Query query, int workers,
+      EntityVisitor visitor) {
+    return new ParallelKeyRangeScan(datastore, this, query, workers, visitor,
+        config.getScanThreadFactory()).run();
+  }
+
   @Override
   public MindashPreparedQuery prepare(Query query) {
     return new MindashPreparedQueryImpl(datastore, this, query, null);
@@ -579,6 +1096,7 @@ public class MindashDatastoreServiceImpl implements MindashDatastoreService {
   @Override
   public Key put(Transaction txn, Entity entity) {
     int numOfShardsInDatastore = 0;
+    List<String> oldChunkHashes = new ArrayList<String>();
     /**
      * SOME NOTES: entity will have indexable and non-indexable properties. The
      * indexable properties have maximum sizes, so they can be dealt with in a
@@ -592,48 +1110,38 @@ public class MindashDatastoreServiceImpl implements MindashDatastoreService {
     // check if the key is complete
     if (entity.getKey().isComplete()) {
       parentKey = entity.getKey();
-      // check how many shards exist
-      Entity tempEntity = null;
-      Key mindashKey = createMindashDatastoreKey(parentKey, 0);
-      try {
-        if (txn != null) {
-          tempEntity = datastore.get(txn, mindashKey);
-        } else {
-          tempEntity = datastore.get(mindashKey);
-        }
-        Object property =
-            tempEntity
-                .getProperty(MindashDatastoreService.MindashShardCountLabel);
-        if (property != null) {
-          numOfShardsInDatastore = (Integer) property;
+      // check how many shards exist, the cached manifest will do unless the
+      // entity references chunks, which are released only on what the
+      // datastore says
+      ShardManifest cached =
+          decodeCachedManifest(getCachedManifests(txn,
+              Collections.singletonList(parentKey)).get(parentKey));
+      if (cached != null && cached.getChunkHashes().isEmpty()) {
+        numOfShardsInDatastore = cached.getShardCount();
+      } else {
+        Entity tempEntity = null;
+        Key mindashKey = createMindashDatastoreKey(parentKey, 0);
+        try {
+          if (txn != null) {
+            tempEntity = datastore.get(txn, mindashKey);
+          } else {
+            tempEntity = datastore.get(mindashKey);
+          }
+          Object property =
+              tempEntity
+                  .getProperty(MindashDatastoreService.MindashShardCountLabel);
+          if (property != null) {
+            numOfShardsInDatastore = ((Number) property).intValue();
+          }
+          oldChunkHashes = getChunkHashes(tempEntity);
+        } catch (EntityNotFoundException e) {
+          // entity doesn't exist, won't have to delete any shards
         }
-      } catch (EntityNotFoundException e) {
-        // entity doesn't exist, won't have to delete any shards
       }
     } else {
-      // "strip" the entity just to get a parent key (create a tempEntity that
-      // will get the key the entity would get if it was saved), this is
-      // necessary because if entity > 1MB, when we attempt to
-      // datastore.put(entity) it would result in an exception, this way
-      // datastore.put(tempEntity) will succeed unless something is horribly
-      // wrong
-      Entity tempEntity = new Entity(entity.getKind());
-      // Transaction txn = datastore.beginTransaction();
-      if (txn != null) {
-        parentKey = datastore.put(txn, tempEntity);
-      } else {
-        parentKey = datastore.put(tempEntity);
-      }
-      // txn.commit();
-      // clean up after ourselves and get rid of the placeholder entity so that
-      // if the user calls datastore.get on the returned key bypassing
-      // MindashDatastoreService, they will get nothing (this is to maintain
-      // integrity of the program)
-      if (txn != null) {
-        datastore.delete(txn, parentKey);
-      } else {
-        datastore.delete(parentKey);
-      }
+      // complete the key with an allocated id, the entity is stored directly
+      // under it
+      parentKey = keyIdPool.complete(entity.getKey());
     }
     /**
      * As per javadoc, the following are the classes that can be safely stored
@@ -655,23 +1163,15 @@ public class MindashDatastoreServiceImpl implements MindashDatastoreService {
      * reach the point where adding the next property would make the entity too
      * large, we just start another entity.
      */
-    ArrayList<Entity> shardsToStore = new ArrayList<Entity>();
-    // first shard is always 0
-    int thisShard = 0;
-    while (true) {
-      Entity shard = createMindashEntityShard(parentKey, thisShard);
-      // fill up this shard with properties and add it to storage queue
-      shardsToStore.add(generateStorableEntityShard(entity, shard));
-      thisShard++;
-      if (entity.getProperties().isEmpty()) {
-        break;
-      }
-    }
+    List<BlobChunkStore.Chunk> chunks = new ArrayList<BlobChunkStore.Chunk>();
+    List<Entity> shardsToStore =
+        generateStorableEntityShards(parentKey, entity, chunks);
     // find out how many shards we got
     int shardCount = shardsToStore.size();
-    // store the count in the first shard
-    shardsToStore.get(0).setProperty(
-        MindashDatastoreService.MindashShardCountLabel, shardCount);
+    // deduplicated blobs are referenced before the shards listing them exist
+    if (!chunks.isEmpty()) {
+      chunkStore.acquire(chunks);
+    }
     // 500 limit safe put
     datastoreHelper.put(txn, datastore, shardsToStore);
     // check if we need to delete any old shards in the datastore
@@ -684,48 +1184,36 @@ public class MindashDatastoreServiceImpl implements MindashDatastoreService {
       // 500 limit safe delete
       datastoreHelper.delete(txn, datastore, shardsToDelete);
     }
+    cacheManifests(txn, shardsToStore);
+    releaseChunks(txn, oldChunkHashes);
     // TODO: verify the shards got put
     return parentKey;
   }
 
-  // FIXME[Tristan]: test datastore cleanup delete during puts!
   @Override
   public List<Key> put(Transaction txn, Iterable<Entity> entities) {
-    // check if keys are complete
-    List<Entity> incompleteKeyEntities = new ArrayList<Entity>();
-    List<Entity> originalCompleteEntities = new ArrayList<Entity>();
-    List<Key> originalCompleteKeys = new ArrayList<Key>();
+    List<Entity> entityList = new ArrayList<Entity>();
+    List<Key> incompleteKeys = new ArrayList<Key>();
     for (Entity e : entities) {
+      entityList.add(e);
       if (!e.getKey().isComplete()) {
-        incompleteKeyEntities.add(e);
-      } else {
-        originalCompleteKeys.add(e.getKey());
-        originalCompleteEntities.add(e);
+        incompleteKeys.add(e.getKey());
       }
     }
-    List<Key> completedKeys = null;
-    if (!incompleteKeyEntities.isEmpty()) {
-      completedKeys =
-          datastoreHelper.put(txn, datastore, incompleteKeyEntities);
+    // complete the keys of new entities with allocated ids, the entities are
+    // stored directly under them
+    Iterator<Key> completedKeys = null;
+    if (!incompleteKeys.isEmpty()) {
+      completedKeys = keyIdPool.complete(incompleteKeys).iterator();
     }
-
-    // because we lost the relationship between the keys and the entities
-    // we need to retrieve them from the datastore
-    Map<Key, Entity> completeKeyEntities = null;
-    if (!completedKeys.isEmpty()) {
-      completeKeyEntities = datastoreHelper.get(txn, datastore, completedKeys);
-    }
-
-    // we now have two collections to save at this point
-    // originalCompleteEntities and completeKeyEntities
-    // we won't be combining them for performance reasons
-
-    // delete from datastore to maintain program integrity
-    if (!completedKeys.isEmpty()) {
-      if (txn != null) {
-        datastore.delete(txn, completedKeys);
+    List<Key> keys = new ArrayList<Key>(entityList.size());
+    List<Key> originalCompleteKeys = new ArrayList<Key>();
+    for (Entity e : entityList) {
+      if (e.getKey().isComplete()) {
+        keys.add(e.getKey());
+        originalCompleteKeys.add(e.getKey());
       } else {
-        datastore.delete(completedKeys);
+        keys.add(completedKeys.next());
       }
     }
 
@@ -734,59 +1222,66 @@ public class MindashDatastoreServiceImpl implements MindashDatastoreService {
     // original and new entity sizes
     Map<Key, Integer> originalSizes = new HashMap<Key, Integer>();
     Map<Key, Integer> newSizes = new HashMap<Key, Integer>();
+    // chunks of deduplicated blobs, new and replaced
+    List<BlobChunkStore.Chunk> chunks = new ArrayList<BlobChunkStore.Chunk>();
+    List<String> oldChunkHashes = new ArrayList<String>();
 
-    // get already existing entity sizes
+    // get already existing entity sizes, the cached manifest will do unless
+    // the entity references chunks
     if (!originalCompleteKeys.isEmpty()) {
+      Map<Key, byte[]> cachedManifests =
+          getCachedManifests(txn, originalCompleteKeys);
       ArrayList<Key> original0ShardKeys = new ArrayList<Key>();
       for (Key key : originalCompleteKeys) {
-        original0ShardKeys.add(createMindashDatastoreKey(key, 0));
+        ShardManifest cached = decodeCachedManifest(cachedManifests.get(key));
+        if (cached != null && cached.getChunkHashes().isEmpty()) {
+          originalSizes.put(key, cached.getShardCount());
+        } else {
+          original0ShardKeys.add(createMindashDatastoreKey(key, 0));
+        }
       }
-      Map<Key, Entity> entitiesInDatastore =
-          datastoreHelper.get(txn, datastore, original0ShardKeys);
-      for (Entry<Key, Entity> entry : entitiesInDatastore.entrySet()) {
-        Object property =
-            entry.getValue().getProperty(
-                MindashDatastoreService.MindashShardCountLabel);
-        if (property != null) {
-          originalSizes.put(entry.getKey(), (Integer) property);
+      if (!original0ShardKeys.isEmpty()) {
+        Map<Key, Entity> entitiesInDatastore =
+            datastoreHelper.get(txn, datastore, original0ShardKeys);
+        for (Entity shard0 : entitiesInDatastore.values()) {
+          originalSizes.put(shard0.getKey().getParent(),
+              getShardCount(shard0));
+          oldChunkHashes.addAll(getChunkHashes(shard0));
         }
       }
     }
 
-    // iterate through both collections to generate shards to store
-    // originalCompleteEntities
-    for (Entity entity : originalCompleteEntities) {
-      generateStorableEntityShards(shardsToStore, entity, newSizes);
-    }
-    // completeKeyEntities
-    Iterator<Entry<Key, Entity>> i = completeKeyEntities.entrySet().iterator();
-    while (i.hasNext()) {
-      Entity entity = i.next().getValue();
-      generateStorableEntityShards(shardsToStore, entity, null);
+    for (int i = 0; i < entityList.size(); i++) {
+      generateStorableEntityShards(shardsToStore, keys.get(i), entityList
+          .get(i), newSizes, chunks);
     }
 
-    List<Key> keys = datastoreHelper.put(txn, datastore, shardsToStore);
+    if (!chunks.isEmpty()) {
+      chunkStore.acquire(chunks);
+    }
+    datastoreHelper.put(txn, datastore, shardsToStore);
 
     // delete any excess shards
     ArrayList<Key> shardsToDelete = new ArrayList<Key>();
-    int orig = 0;
-    int newSize = 0;
     for (Key key : originalCompleteKeys) {
-      orig = originalSizes.get(key);
-      newSize = newSizes.get(key);
-      if (orig > newSize) {
-        for (int j = newSize; j < orig; j++) {
-          shardsToDelete.add(createMindashDatastoreKey(key, j));
-        }
+      Integer orig = originalSizes.get(key);
+      if (orig == null) {
+        // entity did not exist
+        continue;
+      }
+      int newSize = newSizes.get(key);
+      for (int j = newSize; j < orig; j++) {
+        shardsToDelete.add(createMindashDatastoreKey(key, j));
       }
     }
 
     if (!shardsToDelete.isEmpty()) {
       datastoreHelper.delete(txn, datastore, shardsToDelete);
     }
+    cacheManifests(txn, shardsToStore);
+    releaseChunks(txn, oldChunkHashes);
 
     return keys;
-
   }
 
   @Override
@@ -795,165 +1290,587 @@ public class MindashDatastoreServiceImpl implements MindashDatastoreService {
   }
 
   /**
-   * @param result the Entity to assemble
-   * @param mdKeys the keys of shards to use in assembly
+   * Retrieves a single entity, or some of its properties.
+   * 
+   * @param txn the transaction, can be <code>null</code>
+   * @param key the key of the entity
+   * @param propertyNames the properties to retrieve, <code>null</code> for
+   * all of them
+   * @return the assembled entity
+   * @throws EntityNotFoundException if the entity does not exist
+   * @throws EntityCorruptException if a needed shard is missing or corrupt
+   */
+  private Entity getEntity(Transaction txn, Key key, Set<String> propertyNames)
+      throws EntityNotFoundException, EntityCorruptException {
+    if (propertyNames == null && config.isAncestorQueryReads(key.getKind())) {
+      Entity result =
+          getEntitiesByAncestorQuery(txn, Collections.singletonList(key)).get(
+              key);
+      if (result == null) {
+        throw new EntityNotFoundException(key);
+      }
+      return result;
+    }
+    Key mdKey = createMindashDatastoreKey(key, 0);
+    Map<Key, Entity> shards = new HashMap<Key, Entity>();
+    byte[] cachedManifest =
+        getCachedManifests(txn, Collections.singletonList(key)).get(key);
+    ShardManifest cached = decodeCachedManifest(cachedManifest);
+    Entity shard0 = null;
+    if (cached != null) {
+      // the manifest is known, fetch the 0th shard along with the others
+      List<Key> mdKeys = new ArrayList<Key>();
+      mdKeys.add(mdKey);
+      addShardsToFetch(mdKeys, key, null, cached, propertyNames);
+      shards.putAll(datastoreHelper.get(datastore, mdKeys));
+      shard0 = shards.get(mdKey);
+      if (shard0 == null) {
+        uncacheManifests(Collections.singletonList(key));
+        throw new EntityNotFoundException(key);
+      }
+    } else if (txn != null) {
+      shard0 = datastore.get(txn, mdKey);
+    } else {
+      shard0 = datastore.get(mdKey);
+    }
+    // got the 0th shard, find out which other shards are needed
+    ShardManifest manifest = ShardManifest.read(shard0);
+    if (isManifestCaching(txn)
+        && !Arrays.equals(cachedManifest, getManifestBytes(shard0))) {
+      // not cached yet, or cached before the entity was replaced
+      cacheManifests(txn, Collections.singletonList(shard0));
+    }
+    List<Key> mdKeys = new ArrayList<Key>();
+    addShardsToFetch(mdKeys, key, shard0, manifest, propertyNames);
+    // a stale cached manifest may have missed some
+    mdKeys.removeAll(shards.keySet());
+    if (!mdKeys.isEmpty()) {
+      // 1000 limit safe get
+      if (txn != null) {
+        shards.putAll(datastoreHelper.get(txn, datastore, mdKeys));
+      } else {
+        shards.putAll(datastoreHelper.get(datastore, mdKeys));
+      }
+    }
+    shards.put(mdKey, shard0);
+    return assembleEntity(txn, constructEntity(key), shard0, manifest, shards,
+        propertyNames, true);
+  }
+
+  /**
+   * Retrieves entities, or some of their properties, reading all 0th shards
+   * in one batch and all the other needed shards in another.
+   * 
+   * @param txn the transaction, can be <code>null</code>
+   * @param keys the keys of the entities
+   * @param propertyNames the properties to retrieve, <code>null</code> for
+   * all of them
+   * @return the entities that exist
+   * @throws EntityCorruptException if a needed shard is missing or corrupt
+   */
+  private Map<Key, Entity> getEntities(Transaction txn, Iterable<Key> keys,
+      Set<String> propertyNames) throws EntityCorruptException {
+    List<Key> keyList = new ArrayList<Key>();
+    List<Key> queryKeys = new ArrayList<Key>();
+    for (Key k : keys) {
+      if (propertyNames == null && config.isAncestorQueryReads(k.getKind())) {
+        queryKeys.add(k);
+      } else {
+        keyList.add(k);
+      }
+    }
+    Map<Key, Entity> results = new HashMap<Key, Entity>();
+    if (!queryKeys.isEmpty()) {
+      results.putAll(getEntitiesByAncestorQuery(txn, queryKeys));
+      if (keyList.isEmpty()) {
+        return results;
+      }
+    }
+    Map<Key, byte[]> cachedManifests = getCachedManifests(txn, keyList);
+    // assemble 0th shards keys, along with the keys of the other shards of
+    // entities whose manifest is cached or whose shard count is predicted
+    int prefetchPercentile = config.getShardPrefetchPercentile();
+    Map<Key, Integer> predictedShardCounts = new HashMap<Key, Integer>();
+    List<Key> shards0thKeys = new ArrayList<Key>();
+    for (Key k : keyList) {
+      shards0thKeys.add(createMindashDatastoreKey(k, 0));
+      ShardManifest cached = decodeCachedManifest(cachedManifests.get(k));
+      if (cached != null) {
+        addShardsToFetch(shards0thKeys, k, null, cached, propertyNames);
+      } else if (propertyNames == null && prefetchPercentile > 0) {
+        int predicted =
+            shardCountPredictor.predict(k.getKind(), prefetchPercentile);
+        if (predicted > 1) {
+          predictedShardCounts.put(k, predicted);
+          for (int i = 1; i < predicted; i++) {
+            shards0thKeys.add(createMindashDatastoreKey(k, i));
+          }
+        }
+      }
+    }
+    // get all 0th shards
+    Map<Key, Entity> allShards = new HashMap<Key, Entity>();
+    if (txn != null) {
+      allShards.putAll(datastoreHelper.get(txn, datastore, shards0thKeys));
+    } else {
+      allShards.putAll(datastoreHelper.get(datastore, shards0thKeys));
+    }
+    // create keys for all other shards to get
+    // the tradeoff is that we will iterate through things in memory instead
+    // of doing a separate datastore.get call for each multi-shard entity
+    List<Key> allShardsToGet = new ArrayList<Key>();
+    Map<Key, ShardManifest> manifests = new HashMap<Key, ShardManifest>();
+    List<Entity> shards0thToCache = new ArrayList<Entity>();
+    List<Key> staleKeys = new ArrayList<Key>();
+    for (Key k : keyList) {
+      Entity shard0 = allShards.get(createMindashDatastoreKey(k, 0));
+      byte[] cachedManifest = cachedManifests.get(k);
+      Integer predicted = predictedShardCounts.get(k);
+      if (shard0 == null) {
+        // entity does not exist
+        if (cachedManifest != null) {
+          staleKeys.add(k);
+        }
+        if (predicted != null) {
+          shardCountPredictor.recordPrefetch(predicted, 0);
+        }
+        continue;
+      }
+      ShardManifest manifest = ShardManifest.read(shard0);
+      manifests.put(k, manifest);
+      if (prefetchPercentile > 0) {
+        int shardCount =
+            manifest != null ? manifest.getShardCount() : getShardCount(shard0);
+        shardCountPredictor.record(k.getKind(), shardCount);
+        if (predicted != null) {
+          shardCountPredictor.recordPrefetch(predicted, shardCount);
+        }
+      }
+      if (isManifestCaching(txn)
+          && !Arrays.equals(cachedManifest, getManifestBytes(shard0))) {
+        shards0thToCache.add(shard0);
+      }
+      addShardsToFetch(allShardsToGet, k, shard0, manifest, propertyNames);
+    }
+    uncacheManifests(staleKeys);
+    cacheManifests(txn, shards0thToCache);
+    // a stale cached manifest may have missed some
+    allShardsToGet.removeAll(allShards.keySet());
+    if (!allShardsToGet.isEmpty()) {
+      if (txn != null) {
+        allShards.putAll(datastoreHelper.get(txn, datastore, allShardsToGet));
+      } else {
+        allShards.putAll(datastoreHelper.get(datastore, allShardsToGet));
+      }
+    }
+
+    // assemble entities and put them in results
+    for (Entry<Key, ShardManifest> entry : manifests.entrySet()) {
+      Key k = entry.getKey();
+      Entity shard0 = allShards.get(createMindashDatastoreKey(k, 0));
+      results.put(k, assembleEntity(txn, constructEntity(k), shard0, entry
+          .getValue(), allShards, propertyNames, false));
+    }
+    return results;
+  }
+
+  /**
+   * Retrieves whole entities with one ancestor query per entity. Every
+   * shard is a child of its entity, so the query returns all of them in one
+   * round trip; shards of descendants the query also returns are ignored.
+   * 
+   * @param txn the transaction, can be <code>null</code>
+   * @param keys the keys of the entities
+   * @return the entities that exist
+   * @throws EntityCorruptException if a shard is missing or corrupt
+   */
+  private Map<Key, Entity> getEntitiesByAncestorQuery(Transaction txn,
+      List<Key> keys) throws EntityCorruptException {
+    Map<Key, Entity> descendants =
+        datastoreHelper.getDescendants(txn, datastore, keys);
+    Set<Key> keySet = new HashSet<Key>(keys);
+    Map<Key, Entity> allShards = new HashMap<Key, Entity>(descendants.size());
+    for (Entity shard : descendants.values()) {
+      Key shardKey = shard.getKey();
+      if (keySet.contains(shardKey.getParent()) && isShardKey(shardKey)) {
+        allShards.put(shardKey, shard);
+      }
+    }
+    Map<Key, Entity> results = new HashMap<Key, Entity>(keySet.size());
+    for (Key k : keySet) {
+      Entity shard0 = allShards.get(createMindashDatastoreKey(k, 0));
+      if (shard0 == null) {
+        // entity does not exist
+        continue;
+      }
+      // the manifest lists the shards, a shard the query did not return is
+      // reported as missing
+      results.put(k, assembleEntity(txn, constructEntity(k), shard0,
+          ShardManifest.read(shard0), allShards, null, false));
+    }
+    return results;
+  }
+
+  /**
+   * @param key a key
+   * @return <code>true</code> if the key is named like a shard
+   */
+  static boolean isShardKey(Key key) {
+    return key.getName() != null
+        && key.getName().matches(
+            MindashDatastoreService.MindashNamePrefixLabel + "\\d+");
+  }
+
+  /**
+   * Adds the keys of the shards, other than the 0th, that have to be fetched
+   * to read the requested properties. Entities without a manifest are
+   * fetched whole, the 0th shard included, as they always have been.
+   * 
+   * @param shardKeys the keys are added to this
+   * @param key the key of the entity
+   * @param shard0 the 0th shard
+   * @param manifest the manifest, <code>null</code> for a legacy entity
+   * @param propertyNames the properties to retrieve, <code>null</code> for
+   * all of them
+   */
+  private static void addShardsToFetch(List<Key> shardKeys, Key key,
+      Entity shard0, ShardManifest manifest, Set<String> propertyNames) {
+    if (manifest == null) {
+      int shardCount = getShardCount(shard0);
+      if (shardCount > 1) {
+        for (int i = 0; i < shardCount; i++) {
+          shardKeys.add(createMindashDatastoreKey(key, i));
+        }
+      }
+      return;
+    }
+    Collection<Integer> shards =
+        propertyNames == null ? manifest.getShards() : manifest
+            .getShardsFor(propertyNames);
+    for (int i : shards) {
+      if (i != 0) {
+        shardKeys.add(createMindashDatastoreKey(key, i));
+      }
+    }
+  }
+
+  /**
+   * Assembles an entity, or some of its properties, from its retrieved
+   * shards.
+   * 
+   * @param txn the transaction, can be <code>null</code>
+   * @param result the entity to assemble the properties into
+   * @param shard0 the 0th shard
+   * @param manifest the manifest, <code>null</code> for a legacy entity
+   * @param shards the retrieved shards
+   * @param propertyNames the properties to assemble, <code>null</code> for
+   * all of them
+   * @param doubleCheckDatastore whether to retrieve missing shards again
    * @return the assembled <code>result</code>
-   * @throws EntityCorruptException
+   * @throws EntityCorruptException if a needed shard is missing or corrupt
    */
-  private Entity assembleEntity(Transaction txn, Entity result, List<Key> mdKeys)
+  private Entity assembleEntity(Transaction txn, Entity result, Entity shard0,
+      ShardManifest manifest, Map<Key, Entity> shards,
+      Set<String> propertyNames, Boolean doubleCheckDatastore)
       throws EntityCorruptException {
-    // get the shards
-    Map<Key, Entity> shards = null;
-    if (txn != null) {
-      shards = datastore.get(txn, mdKeys);
+    if (manifest == null) {
+      int shardCount = getShardCount(shard0);
+      List<Key> mdKeys = new ArrayList<Key>(shardCount);
+      for (int i = 0; i < shardCount; i++) {
+        mdKeys.add(createMindashDatastoreKey(result.getKey(), i));
+      }
+      assembleLegacyEntity(txn, result, mdKeys, shards, doubleCheckDatastore,
+          shard0);
+      if (propertyNames != null) {
+        for (String propertyName : new ArrayList<String>(result
+            .getProperties().keySet())) {
+          if (!propertyNames.contains(propertyName)) {
+            result.removeProperty(propertyName);
+          }
+        }
+      }
+      return result;
+    }
+    // a blob writer leaves unused shard indexes, only the listed shards
+    // make up the entity
+    Set<Integer> shardIndexes = new TreeSet<Integer>();
+    shardIndexes.add(0);
+    if (propertyNames == null) {
+      shardIndexes.addAll(manifest.getShards());
     } else {
-      shards = datastore.get(mdKeys);
+      shardIndexes.addAll(manifest.getShardsFor(propertyNames));
+    }
+    verifyShards(txn, result.getKey(), shardIndexes, shards,
+        doubleCheckDatastore);
+    for (ShardManifest.PropertySpan span : manifest.getPropertySpans()) {
+      if (propertyNames == null || propertyNames.contains(span.getName())) {
+        assembleProperty(txn, result, span, shards, doubleCheckDatastore);
+      }
     }
-    return assembleEntityFromKeysAndEntityMap(txn, result, mdKeys, shards, true);
+    return result;
   }
 
   /**
-   * @param txn
-   * @param result
-   * @param mdKeys
-   * @param shards
-   * @return
-   * @throws EntityCorruptException
+   * Reads a single property from the shards listed in its manifest span. The
+   * pieces of a split blob are copied into a single array allocated once.
+   * 
+   * @param txn the transaction, can be <code>null</code>
+   * @param result the entity to set the property on
+   * @param span the manifest span of the property
+   * @param shards the retrieved shards, must include the span
+   * @param doubleCheckDatastore whether to retrieve missing shards again
+   * @throws EntityCorruptException if a shard is missing or does not hold
+   * the piece the manifest lists
+   */
+  private void assembleProperty(Transaction txn, Entity result,
+      ShardManifest.PropertySpan span, Map<Key, Entity> shards,
+      Boolean doubleCheckDatastore) throws EntityCorruptException {
+    String propertyName = span.getName();
+    if (span.isChunked()) {
+      byte[] bytes = chunkStore.load(result.getKey(), span);
+      if (span.getCodec() != null) {
+        result.setProperty(propertyName, decodeBlob(result.getKey(), span,
+            bytes));
+      } else {
+        result.setProperty(propertyName, new Blob(bytes));
+      }
+      return;
+    }
+    if (span.getShardSpan() == 1) {
+      Entity shard =
+          getManifestShard(txn, result.getKey(), span.getFirstShard(), shards,
+              doubleCheckDatastore);
+      Object value = shard.getProperty(propertyName);
+      if (!shard.hasProperty(propertyName)
+          || (span.isBlob() && ((Blob) value).getBytes().length != span
+              .getPieceLength(0))) {
+        throw new EntityCorruptException("Shard " + span.getFirstShard()
+            + " of " + result.getKey() + " does not hold property \""
+            + propertyName + "\" as listed in the manifest", span
+            .getFirstShard());
+      }
+      if (span.getCodec() != null) {
+        value = decodeBlob(result.getKey(), span, ((Blob) value).getBytes());
+      }
+      result.setProperty(propertyName, value);
+      return;
+    }
+    long length = span.getLength();
+    if (length > Integer.MAX_VALUE) {
+      throw new EntityCorruptException("Blob \"" + propertyName
+          + "\" is too large to assemble (" + length + " bytes)");
+    }
+    byte[] bytes = new byte[(int) length];
+    int offset = 0;
+    for (int piece = 0; piece < span.getShardSpan(); piece++) {
+      int thisShard = span.getFirstShard() + piece;
+      Entity shard =
+          getManifestShard(txn, result.getKey(), thisShard, shards,
+              doubleCheckDatastore);
+      Object value = shard.getProperty(propertyName);
+      if (!(value instanceof Blob)
+          || ((Blob) value).getBytes().length != span.getPieceLength(piece)) {
+        throw new EntityCorruptException("Shard " + thisShard + " of "
+            + result.getKey() + " does not hold piece " + piece
+            + " of blob \"" + propertyName + "\" as listed in the manifest",
+            thisShard);
+      }
+      byte[] pieceBytes = ((Blob) value).getBytes();
+      System.arraycopy(pieceBytes, 0, bytes, offset, pieceBytes.length);
+      offset += pieceBytes.length;
+    }
+    if (span.getCodec() != null) {
+      result.setProperty(propertyName, decodeBlob(result.getKey(), span,
+          bytes));
+    } else {
+      result.setProperty(propertyName, new Blob(bytes));
+    }
+  }
+
+  /**
+   * Makes sure the shards an entity is assembled from are all there and,
+   * unless turned off, match their checksums. The shards other than the 0th
+   * that are missing or do not match are read again, all in a single batch,
+   * in case a concurrent put replaced them while the entity was being read.
+   * 
+   * @param txn the transaction, can be <code>null</code>
+   * @param key the key of the entity
+   * @param shardIndexes the indexes of the shards to check
+   * @param shards the retrieved shards, shards read again replace the bad
+   * ones
+   * @param doubleCheckDatastore whether to read bad shards again
+   * @throws EntityCorruptException reporting the index of the first shard
+   * that is still missing or does not match
    */
-  private Entity assembleEntityFromKeysAndEntityMap(Transaction txn,
-      Entity result, List<Key> mdKeys, Map<Key, Entity> shards,
+  private void verifyShards(Transaction txn, Key key,
+      Collection<Integer> shardIndexes, Map<Key, Entity> shards,
       Boolean doubleCheckDatastore) throws EntityCorruptException {
-    // assemble a single entity from the shards
+    boolean verifyChecksums = config.isShardChecksumVerification();
+    List<Key> badShardKeys = new ArrayList<Key>();
+    for (int thisShard : shardIndexes) {
+      Key mdKey = createMindashDatastoreKey(key, thisShard);
+      Entity shard = shards.get(mdKey);
+      if (shard != null
+          && (!verifyChecksums || ShardChecksum.matches(shard))) {
+        continue;
+      }
+      // the 0th shard was already used to plan the read
+      if (thisShard == 0 || !doubleCheckDatastore) {
+        checkShard(key, thisShard, shard, verifyChecksums);
+      }
+      badShardKeys.add(mdKey);
+    }
+    if (badShardKeys.isEmpty()) {
+      return;
+    }
+    for (Key mdKey : badShardKeys) {
+      shards.remove(mdKey);
+    }
+    if (txn != null) {
+      shards.putAll(datastoreHelper.get(txn, datastore, badShardKeys));
+    } else {
+      shards.putAll(datastoreHelper.get(datastore, badShardKeys));
+    }
+    for (Key mdKey : badShardKeys) {
+      checkShard(key, getShardIndex(mdKey), shards.get(mdKey),
+          verifyChecksums);
+    }
+  }
+
+  /**
+   * @param key the key of the entity
+   * @param thisShard the index of the shard
+   * @param shard the retrieved shard, <code>null</code> if it was not found
+   * @param verifyChecksum whether to check the shard against its checksum
+   * @throws EntityCorruptException reporting <code>thisShard</code> if the
+   * shard is missing or does not match its checksum
+   */
+  private static void checkShard(Key key, int thisShard, Entity shard,
+      boolean verifyChecksum) throws EntityCorruptException {
+    if (shard == null) {
+      throw new EntityCorruptException("Shard " + thisShard + " of " + key
+          + " was not found. The entity is corrupt and cannot be retrieved",
+          thisShard);
+    }
+    if (verifyChecksum) {
+      ShardChecksum.verify(key, shard, thisShard);
+    }
+  }
+
+  /**
+   * @param txn the transaction, can be <code>null</code>
+   * @param key the key of the entity
+   * @param thisShard the index of the shard
+   * @param shards the retrieved shards
+   * @param doubleCheckDatastore whether to retrieve a missing shard again
+   * @return the shard
+   * @throws EntityCorruptException if the shard is missing
+   */
+  private Entity getManifestShard(Transaction txn, Key key, int thisShard,
+      Map<Key, Entity> shards, Boolean doubleCheckDatastore)
+      throws EntityCorruptException {
+    Key mdKey = createMindashDatastoreKey(key, thisShard);
+    return checkIfNullAndAttemptRetrieval(txn, mdKey, shards.get(mdKey),
+        doubleCheckDatastore);
+  }
+
+  /**
+   * Assembles an entity stored before shard manifests existed (format
+   * version {@value ShardManifest#LegacyVersion}) in one pass. A property
+   * found in more than one shard is a Blob that was split; its pieces are
+   * joined in shard order into a single array allocated once, sized from the
+   * length recorded in the 0th shard (or from the pieces for entities stored
+   * before lengths were recorded).
+   * 
+   * @param txn the transaction, can be <code>null</code>
+   * @param result the entity to assemble the properties into
+   * @param mdKeys the keys of all the shards, in shard order
+   * @param shards the retrieved shards
+   * @param doubleCheckDatastore whether to retrieve missing shards again
+   * @param shard0 the 0th shard
+   * @return the assembled <code>result</code>
+   * @throws EntityCorruptException if a shard is missing or a split blob
+   * does not add up to its recorded length
+   */
+  private Entity assembleLegacyEntity(Transaction txn, Entity result,
+      List<Key> mdKeys, Map<Key, Entity> shards,
+      Boolean doubleCheckDatastore, Entity shard0)
+      throws EntityCorruptException {
+    Map<String, List<Blob>> splitBlobs = new HashMap<String, List<Blob>>();
     // map may not be in order so iterate through keys we created
     for (int i = 0; i < mdKeys.size(); i++) {
-      Entity shard = shards.get(mdKeys.get(i));
+      Entity shard = i == 0 ? shard0 : shards.get(mdKeys.get(i));
       // make sure we got the entity, if not, go get it again
       shard =
           checkIfNullAndAttemptRetrieval(txn, mdKeys.get(i), shard,
               doubleCheckDatastore);
-      // if there are more than one property, we can safely assume
-      // that there are no split properties
-      if (hasMultipleProperties(shard)) {
-        result.setPropertiesFrom(shard);
-      } else {
-        // there will only ever be one split property to start with
-        // if this isn't just a single last non-split property
-        String propertyName =
-            shard.getProperties().entrySet().iterator().next().getKey();
-        Object obj = shard.getProperty(propertyName);
-        // get the next shard
-        i++;
-        // TODO: handle the corner case when an entity is split between
-        // shard 999 and shard 1000
-        if (i >= mdKeys.size()) {
-          // no more entities, set the property and return
-          result.setProperty(propertyName, obj);
-          return result;
+      for (Entry<String, Object> property : shard.getProperties().entrySet()) {
+        String propertyName = property.getKey();
+        if (isMindashProperty(propertyName)) {
+          continue;
         }
-        // check if the head of the blob is already in the result
-        // this is a corner case of shard 999 and shard 1000 blob split
-        obj = result.getProperty(propertyName);
-        if (obj != null) {
-          Blob blob = (Blob) obj;
-          Blob tail = (Blob) shard.getProperty(propertyName);
-          blob = concatenateBlob(blob, tail);
-          obj = blob;
-          Entity next = shards.get(mdKeys.get(i));
-          next =
-              checkIfNullAndAttemptRetrieval(txn, mdKeys.get(i), next,
-                  doubleCheckDatastore);
-          // see if next shard has the same property (tail)
-          while (next.hasProperty(propertyName)) {
-            // yes, found same property, part of the tail!
-            // this means that our obj is a blob that was split
-            // only blobs get split (otherwise how do you tell if it's a
-            // Text or a Blob? more fields, we don't like that)
-            tail = (Blob) next.getProperty(propertyName);
-            blob = concatenateBlob(blob, tail);
-            // see if there are multiple properties
-            // if ( hasMultipleProperties(next) ){
-            // // since there are many properties, this is the final tail
-            // // set the property
-            // result.setProperty(propertyName, obj);
-            // // go on to the rest of the properties
-            // // remove the property to prevent overwriting the blob
-            // next.removeProperty(propertyName);
-            // // set the other properties
-            // result.setPropertiesFrom(next);
-            // // go on to the next shard
-            // i++;
-            // if ( i >= mdKeys.size() ){
-            // return result;
-            // }
-            // } else {
-            // go on to the next shard
-            i++;
-            if (i >= mdKeys.size()) {
-              // no more entities, set the property and return
-              result.setProperty(propertyName, blob);
-              return result;
-            }
-            next = shards.get(mdKeys.get(i));
-            next =
-                checkIfNullAndAttemptRetrieval(txn, mdKeys.get(i), next,
-                    doubleCheckDatastore);
-            // }
-          }
+        List<Blob> pieces = splitBlobs.get(propertyName);
+        if (pieces != null) {
+          pieces.add((Blob) property.getValue());
+        } else if (result.hasProperty(propertyName)) {
+          // seen in an earlier shard, so this is the tail of a split blob
+          // (only blobs get split)
+          pieces = new ArrayList<Blob>();
+          pieces.add((Blob) result.getProperty(propertyName));
+          pieces.add((Blob) property.getValue());
+          splitBlobs.put(propertyName, pieces);
         } else {
-          Entity next = shards.get(mdKeys.get(i));
-          next =
-              checkIfNullAndAttemptRetrieval(txn, mdKeys.get(i), next,
-                  doubleCheckDatastore);
-          // see if next shard has the same property (tail)
-          while (next.hasProperty(propertyName)) {
-            // yes, found same property, part of the tail!
-            // this means that our obj is a blob that was split
-            // only blobs get split (otherwise how do you tell if it's a
-            // Text or a Blob? more fields, we don't like that)
-            Blob blob = (Blob) obj;
-            Blob tail = (Blob) next.getProperty(propertyName);
-            blob = concatenateBlob(blob, tail);
-            // see if there are multiple properties
-            if (hasMultipleProperties(next)) {
-              // since there are many properties, this is the final tail
-              // set the property
-              result.setProperty(propertyName, blob);
-              // go on to the rest of the properties
-              // remove the property to prevent overwriting the blob
-              next.removeProperty(propertyName);
-              // set the other properties
-              result.setPropertiesFrom(next);
-              // go on to the next shard
-              i++;
-              if (i >= mdKeys.size()) {
-                return result;
-              }
-            } else {
-              // go on to the next shard
-              i++;
-              if (i >= mdKeys.size()) {
-                // no more entities, set the property and return
-                result.setProperty(propertyName, blob);
-                return result;
-              }
-              next = shards.get(mdKeys.get(i++));
-              next =
-                  checkIfNullAndAttemptRetrieval(txn, mdKeys.get(i), next,
-                      doubleCheckDatastore);
-              obj = blob;
-            }
-          }
+          result.setProperty(propertyName, property.getValue());
         }
-        // next did not have the same property and next exists
-        // commit the object we were suspecting of being a split object
-        // or if we just put together a blob
-        result.setProperty(propertyName, obj);
-        i--; // reset the count and let the loop do its thing
       }
     }
+    for (Entry<String, List<Blob>> splitBlob : splitBlobs.entrySet()) {
+      String propertyName = splitBlob.getKey();
+      Object recordedLength =
+          shard0.getProperty(createBlobLengthLabel(propertyName));
+      result.setProperty(propertyName, joinBlob(propertyName, splitBlob
+          .getValue(), recordedLength == null ? -1 : ((Number) recordedLength)
+          .longValue()));
+    }
     return result;
   }
 
+  /**
+   * Joins the pieces of a split blob, copying each piece exactly once.
+   * 
+   * @param propertyName the name of the blob property
+   * @param pieces the pieces in shard order
+   * @param length the recorded length of the blob, or -1 if not recorded
+   * @return the joined blob
+   * @throws EntityCorruptException if the pieces do not add up to
+   * <code>length</code>
+   */
+  private static Blob joinBlob(String propertyName, List<Blob> pieces,
+      long length) throws EntityCorruptException {
+    long actualLength = 0;
+    for (Blob piece : pieces) {
+      actualLength += piece.getBytes().length;
+    }
+    if (length >= 0 && length != actualLength) {
+      throw new EntityCorruptException("Blob \"" + propertyName
+          + "\" should be " + length + " bytes long but its shards hold "
+          + actualLength + " bytes. The entity is corrupt and cannot be "
+          + "retrieved");
+    }
+    if (actualLength > Integer.MAX_VALUE) {
+      throw new EntityCorruptException("Blob \"" + propertyName
+          + "\" is too large to assemble (" + actualLength + " bytes)");
+    }
+    byte[] bytes = new byte[(int) actualLength];
+    int offset = 0;
+    for (Blob piece : pieces) {
+      byte[] pieceBytes = piece.getBytes();
+      System.arraycopy(pieceBytes, 0, bytes, offset, pieceBytes.length);
+      offset += pieceBytes.length;
+    }
+    return new Blob(bytes);
+  }
+
   /**
    * @param key
    * @param shard
@@ -972,77 +1889,226 @@ public class MindashDatastoreServiceImpl implements MindashDatastoreService {
       } catch (EntityNotFoundException ex) {
         // this is very bad, we lost the integrity of the data
         // let the user know
-        throw new EntityCorruptException("One of the Entity shards was not "
-            + "found. The entity is corrupt and cannot be retrieved");
+        throw new EntityCorruptException("Shard " + getShardIndex(key)
+            + " of " + key.getParent() + " was not found. The entity is "
+            + "corrupt and cannot be retrieved", getShardIndex(key));
       }
     } else if (shard == null) {
       // this is very bad, we lost the integrity of the data
       // let the user know
-      throw new EntityCorruptException("One of the Entity shards was not "
-          + "found. The entity is corrupt and cannot be retrieved");
+      throw new EntityCorruptException("Shard " + getShardIndex(key) + " of "
+          + key.getParent() + " was not found. The entity is corrupt and "
+          + "cannot be retrieved", getShardIndex(key));
     }
     return shard;
   }
 
+  /**
+   * Deletes entities along with all their shards, then drops their cached
+   * manifests and releases the chunks they referenced.
+   * 
+   * @param txn the transaction, can be <code>null</code>
+   * @param key0thShards the keys of the 0th shards of the entities
+   */
+  private void deleteEntities(Transaction txn, List<Key> key0thShards) {
+    List<String> chunkHashes = new ArrayList<String>();
+    datastoreHelper.delete(txn, datastore, generateShardsToDelete(txn,
+        key0thShards, chunkHashes));
+    List<Key> keys = new ArrayList<Key>(key0thShards.size());
+    for (Key k : key0thShards) {
+      keys.add(k.getParent());
+    }
+    uncacheManifests(keys);
+    releaseChunks(txn, chunkHashes);
+  }
+
+  /**
+   * Releases the references the replaced or deleted shards held to their
+   * chunks. Reference counts are updated in transactions of their own, so
+   * under a caller's transaction nothing is released: if the caller rolled
+   * back, the restored shards would reference chunks that may be gone. The
+   * references are then left too high, leaving an orphan chunk.
+   * 
+   * @param txn the transaction of the caller, can be <code>null</code>
+   * @param chunkHashes the hashes of the chunks no longer referenced
+   */
+  private void releaseChunks(Transaction txn, List<String> chunkHashes) {
+    if (txn == null && !chunkHashes.isEmpty()) {
+      chunkStore.release(chunkHashes);
+    }
+  }
+
+  /**
+   * @param txn the transaction, can be <code>null</code>
+   * @return <code>true</code> if a manifest cache is set and may be used;
+   * transactions always read the 0th shards
+   */
+  private boolean isManifestCaching(Transaction txn) {
+    return txn == null && config.getShardMetadataCache() != null;
+  }
+
+  /**
+   * @param txn the transaction, can be <code>null</code>
+   * @param keys the keys of entities
+   * @return the cached encoded manifests of the entities, by entity key;
+   * empty if there is no cache or inside a transaction
+   */
+  private Map<Key, byte[]> getCachedManifests(Transaction txn,
+      Collection<Key> keys) {
+    if (!isManifestCaching(txn) || keys.isEmpty()) {
+      return Collections.emptyMap();
+    }
+    return config.getShardMetadataCache().getManifests(keys);
+  }
+
+  /**
+   * @param bytes an encoded manifest, can be <code>null</code>
+   * @return the manifest, or <code>null</code> if there is none or it
+   * cannot be decoded, in which case the 0th shard is read instead
+   */
+  private static ShardManifest decodeCachedManifest(byte[] bytes) {
+    if (bytes == null) {
+      return null;
+    }
+    try {
+      return ShardManifest.decode(bytes);
+    } catch (EntityCorruptException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @param shard0 the 0th shard of an entity
+   * @return the encoded manifest, or <code>null</code> for a legacy entity
+   */
+  private static byte[] getManifestBytes(Entity shard0) {
+    Object value =
+        shard0.getProperty(MindashDatastoreService.MindashManifestLabel);
+    if (value == null) {
+      return null;
+    }
+    return ((Blob) value).getBytes();
+  }
+
+  /**
+   * Records the manifests of 0th shards in the cache, if there is one.
+   * Within a transaction, which may yet roll back, the cached manifests are
+   * dropped instead.
+   * 
+   * @param txn the transaction the shards were stored in, can be
+   * <code>null</code>
+   * @param shards stored or retrieved shards, only the 0th are recorded
+   */
+  private void cacheManifests(Transaction txn, List<Entity> shards) {
+    ShardMetadataCache cache = config.getShardMetadataCache();
+    if (cache == null) {
+      return;
+    }
+    Map<Key, byte[]> manifests = new HashMap<Key, byte[]>();
+    for (Entity shard : shards) {
+      if (getShardIndex(shard.getKey()) == 0) {
+        manifests.put(shard.getKey().getParent(), getManifestBytes(shard));
+      }
+    }
+    if (manifests.isEmpty()) {
+      return;
+    }
+    if (txn != null) {
+      cache.removeManifests(manifests.keySet());
+      return;
+    }
+    // legacy entities are not cached
+    Iterator<byte[]> i = manifests.values().iterator();
+    while (i.hasNext()) {
+      if (i.next() == null) {
+        i.remove();
+      }
+    }
+    cache.putManifests(manifests);
+  }
+
+  /**
+   * @param keys the keys of entities whose cached manifests to drop
+   */
+  private void uncacheManifests(Collection<Key> keys) {
+    ShardMetadataCache cache = config.getShardMetadataCache();
+    if (cache != null && !keys.isEmpty()) {
+      cache.removeManifests(keys);
+    }
+  }
+
   /**
    * This utility method calls the datastore to get all 0th shards and then
    * creates all keys to be acted on.
    * 
+   * @param txn the transaction, can be <code>null</code>
    * @param key0thShards the list of 0th shards
+   * @param chunkHashes the content hashes of the chunks the entities
+   * reference are added here, to be released once the shards are deleted
    * @return the list of all shards associated with passed in 0th shards
    */
-  private List<Key> generateShardsToDelete(List<Key> key0thShards) {
+  private List<Key> generateShardsToDelete(Transaction txn,
+      List<Key> key0thShards, List<String> chunkHashes) {
+
+    // cached manifests will do for entities that do not reference chunks
+    List<Key> keys = new ArrayList<Key>(key0thShards.size());
+    for (Key k : key0thShards) {
+      keys.add(k.getParent());
+    }
+    Map<Key, byte[]> cachedManifests = getCachedManifests(txn, keys);
+    List<Key> shardsToDelete = new ArrayList<Key>(key0thShards.size());
+    List<Key> shards0thToGet = new ArrayList<Key>(key0thShards.size());
+    for (Key k : key0thShards) {
+      ShardManifest cached =
+          decodeCachedManifest(cachedManifests.get(k.getParent()));
+      if (cached != null && cached.getChunkHashes().isEmpty()) {
+        for (int i = 0; i < cached.getShardCount(); i++) {
+          shardsToDelete.add(createMindashDatastoreKey(k.getParent(), i));
+        }
+      } else {
+        shards0thToGet.add(k);
+      }
+    }
+    if (shards0thToGet.isEmpty()) {
+      return shardsToDelete;
+    }
 
-    Map<Key, Entity> shards0th = datastoreHelper.get(datastore, key0thShards);
+    Map<Key, Entity> shards0th =
+        datastoreHelper.get(datastore, shards0thToGet);
 
     // for each shard generate keys to be deleted
-    List<Key> shardsToDelete = new ArrayList<Key>(shards0th.size());
-    for (Key k : key0thShards) {
+    for (Key k : shards0thToGet) {
       Entity e = shards0th.get(k);
       if (e != null) {
-        int shardCount =
-            (Integer) e
-                .getProperty(MindashDatastoreService.MindashShardCountLabel);
+        int shardCount = getShardCount(e);
         for (int i = 0; i < shardCount; i++) {
           shardsToDelete.add(createMindashDatastoreKey(k.getParent(), i));
         }
+        chunkHashes.addAll(getChunkHashes(e));
       }
     }
     return shardsToDelete;
   }
 
   /**
-   * Utility method that
+   * Utility method that generates the shards of an entity and adds them to
+   * the shards to store.
    * 
    * @param shardsToStore generated shards will be added to this
+   * @param key the complete key of the entity
    * @param entity the entity to generate shards from
+   * @param shardsCountMap if not <code>null</code>, the number of generated
+   * shards is recorded here
+   * @param chunks the chunks of deduplicated Blobs are added here
    */
-  private void generateStorableEntityShards(ArrayList<Entity> shardsToStore,
-      Entity entity, Map<Key, Integer> shardsCountMap) {
-    // shard 0 is special case to store the shard count
-    Entity shard0 = createMindashEntityShard(entity.getKey(), 0);
-    shard0 = generateStorableEntityShard(entity, shard0);
-    if (!entity.getProperties().isEmpty()) {
-      ArrayList<Entity> shardChunkToStore = new ArrayList<Entity>();
-      int thisShard = 1;
-      while (true) {
-        Entity shard = createMindashEntityShard(entity.getKey(), thisShard);
-        shardChunkToStore.add(generateStorableEntityShard(entity, shard));
-        thisShard++;
-        if (entity.getProperties().isEmpty()) {
-          break;
-        }
-      }
-      shard0.setProperty(MindashDatastoreService.MindashShardCountLabel,
-          shardChunkToStore.size() + 1);
-      if (shardsCountMap != null) {
-        shardsCountMap.put(entity.getKey(), shardChunkToStore.size() + 1);
-      }
-      shardsToStore.addAll(shardChunkToStore);
-    } else {
-      shard0.setProperty(MindashDatastoreService.MindashShardCountLabel, 1);
+  private void generateStorableEntityShards(List<Entity> shardsToStore,
+      Key key, Entity entity, Map<Key, Integer> shardsCountMap,
+      List<BlobChunkStore.Chunk> chunks) {
+    List<Entity> shards = generateStorableEntityShards(key, entity, chunks);
+    if (shardsCountMap != null) {
+      shardsCountMap.put(key, shards.size());
     }
-    shardsToStore.add(shard0);
+    shardsToStore.addAll(shards);
   }
 
 }
@@ -18,81 +18,121 @@ package com.mindash.datastore.impl;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 
+import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.PreparedQuery;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.QueryResultIterable;
 import com.google.appengine.api.datastore.QueryResultIterator;
 import com.google.appengine.api.datastore.QueryResultList;
 import com.google.appengine.api.datastore.Transaction;
 import com.google.appengine.api.datastore.PreparedQuery.TooManyResultsException;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import com.google.inject.Inject;
 import com.mindash.datastore.EntityCorruptException;
 import com.mindash.datastore.MindashDatastoreService;
 import com.mindash.datastore.MindashPreparedQuery;
-import com.mindash.datastore.NotImplementedException;
 
 /**
  * @author Tristan Slominski
  * 
  */
 public class MindashPreparedQueryImpl implements MindashPreparedQuery {
+
+  public static int DefaultPageSize = 100;
+  public static int CountPageSize = 1000;
+  public static String CountCacheKeyPrefix = "mddn:";
+
+  /**
+   * The results of <code>asQueryResultList</code> along with the cursor
+   * after the last of them.
+   */
+  @SuppressWarnings("serial")
+  private static class ResultList extends ArrayList<Entity> implements
+      QueryResultList<Entity> {
+    private Cursor cursor;
+
+    public Cursor getCursor() {
+      return cursor;
+    }
+  }
+
   private DatastoreService datastore;
   private MindashDatastoreService mindashDatastore;
   private Query query;
   private Transaction txn;
+  private MemcacheService countCache;
 
   @Inject
   public MindashPreparedQueryImpl(DatastoreService datastore,
       MindashDatastoreService mindashDatastore, Query query, Transaction txn) {
+    this(datastore, mindashDatastore, query, txn, null);
+  }
+
+  /**
+   * @param countCache the memcache to keep approximate counts in,
+   * <code>null</code> for the default memcache
+   */
+  public MindashPreparedQueryImpl(DatastoreService datastore,
+      MindashDatastoreService mindashDatastore, Query query, Transaction txn,
+      MemcacheService countCache) {
     this.datastore = datastore;
     this.mindashDatastore = mindashDatastore;
     this.query = query;
     this.txn = txn;
+    this.countCache = countCache;
   }
 
   @Override
   public Iterable<Entity> asIterable() {
-    return retrieveSortedEntities(null);
+    return asQueryResultIterable(null);
   }
 
   @Override
   public Iterable<Entity> asIterable(FetchOptions fetchOptions) {
-    return retrieveSortedEntities(fetchOptions);
+    return asQueryResultIterable(fetchOptions);
   }
 
   @Override
   public Iterator<Entity> asIterator() {
-    return retrieveSortedEntities(null).iterator();
+    return asQueryResultIterator(null);
   }
 
   @Override
   public Iterator<Entity> asIterator(FetchOptions fetchOptions) {
-    return retrieveSortedEntities(fetchOptions).iterator();
+    return asQueryResultIterator(fetchOptions);
   }
 
   @Override
   public List<Entity> asList(FetchOptions fetchOptions) {
-    return retrieveSortedEntities(fetchOptions);
+    return asQueryResultList(fetchOptions);
   }
 
   @Override
   public Entity asSingleEntity() throws TooManyResultsException {
-    // we want only the key
-    query.setKeysOnly();
-    Entity result = null;
-    if (txn != null) {
-      result = datastore.prepare(txn, query).asSingleEntity();
-    } else {
-      result = datastore.prepare(query).asSingleEntity();
+    // we want only the key; several shards of the entity can match
+    Key key = null;
+    for (Entity shard : prepareShardQuery().asIterable(
+        FetchOptions.Builder.withChunkSize(DefaultPageSize))) {
+      if (key == null) {
+        key = shard.getParent();
+      } else if (!key.equals(shard.getParent())) {
+        throw new TooManyResultsException();
+      }
+    }
+    if (key == null) {
+      return null;
     }
+    Entity result = null;
     try {
-      result = mindashDatastore.get(result.getParent());
+      result = mindashDatastore.get(key);
     } catch (EntityNotFoundException e) {
       // TODO don't know how to deal with this yet
       e.printStackTrace();
@@ -105,87 +145,128 @@ public class MindashPreparedQueryImpl implements MindashPreparedQuery {
 
   @Override
   public int countEntities() {
-    if (txn != null) {
-      return datastore.prepare(txn, query).countEntities();
-    } else {
-      return datastore.prepare(query).countEntities();
+    PreparedQuery prepared = prepareShardQuery();
+    // walk the keys a page at a time from cursor to cursor, so neither the
+    // count limit of the datastore nor the number of entities matters
+    int count = 0;
+    Key lastKey = null;
+    Cursor cursor = null;
+    while (true) {
+      FetchOptions fetchOptions = FetchOptions.Builder.withLimit(CountPageSize);
+      if (cursor != null) {
+        fetchOptions.startCursor(cursor);
+      }
+      QueryResultList<Entity> page = prepared.asQueryResultList(fetchOptions);
+      for (Entity shard : page) {
+        // matching shards of an entity come one after another
+        Key key = shard.getParent();
+        if (!key.equals(lastKey)) {
+          count++;
+          lastKey = key;
+        }
+      }
+      if (page.size() < CountPageSize) {
+        return count;
+      }
+      cursor = page.getCursor();
+    }
+  }
+
+  @Override
+  public int countEntities(int maximumAgeSeconds) {
+    if (txn != null || maximumAgeSeconds <= 0) {
+      return countEntities();
+    }
+    if (countCache == null) {
+      countCache = MemcacheServiceFactory.getMemcacheService();
     }
+    String cacheKey = CountCacheKeyPrefix + query.toString();
+    Object cached = countCache.get(cacheKey);
+    if (cached instanceof Integer) {
+      return (Integer) cached;
+    }
+    int count = countEntities();
+    countCache.put(cacheKey, count, Expiration
+        .byDeltaSeconds(maximumAgeSeconds));
+    return count;
   }
 
   @Override
-  public QueryResultIterable<Entity> asQueryResultIterable()
-      throws NotImplementedException {
-    // FIXME[Tristan]: implement
-    throw new NotImplementedException();
+  public QueryResultIterable<Entity> asQueryResultIterable() {
+    return asQueryResultIterable(null);
   }
 
   @Override
   public QueryResultIterable<Entity> asQueryResultIterable(
-      FetchOptions fetchOptions) throws NotImplementedException {
-    // FIXME[Tristan]: implement
-    throw new NotImplementedException();
+      final FetchOptions fetchOptions) {
+    return new QueryResultIterable<Entity>() {
+      public QueryResultIterator<Entity> iterator() {
+        return asQueryResultIterator(fetchOptions);
+      }
+    };
   }
 
   @Override
-  public QueryResultIterator<Entity> asQueryResultIterator()
-      throws NotImplementedException {
-    // FIXME[Tristan]: implement
-    throw new NotImplementedException();
+  public QueryResultIterator<Entity> asQueryResultIterator() {
+    return asQueryResultIterator(null);
   }
 
   @Override
   public QueryResultIterator<Entity> asQueryResultIterator(
-      FetchOptions fetchOptions) throws NotImplementedException {
-    // FIXME[Tristan]: implement
-    throw new NotImplementedException();
+      FetchOptions fetchOptions) {
+    if (fetchOptions == null) {
+      fetchOptions = FetchOptions.Builder.withChunkSize(DefaultPageSize);
+    }
+    // we want only keys, the entities are retrieved a page at a time
+    QueryResultIterator<Entity> shardKeys =
+        prepareShardQuery().asQueryResultIterator(fetchOptions);
+    Integer pageSize = fetchOptions.getChunkSize();
+    return new MindashQueryResultIterator(mindashDatastore, txn, shardKeys,
+        pageSize != null ? pageSize : DefaultPageSize, fetchOptions
+            .getStartCursor());
   }
 
   @Override
-  public QueryResultList<Entity> asQueryResultList(FetchOptions fetchOptions)
-      throws NotImplementedException {
-    // FIXME[Tristan]: implement
-    throw new NotImplementedException();
+  public QueryResultList<Entity> asQueryResultList(FetchOptions fetchOptions) {
+    QueryResultIterator<Entity> iterator = asQueryResultIterator(fetchOptions);
+    ResultList results = new ResultList();
+    while (iterator.hasNext()) {
+      results.add(iterator.next());
+    }
+    results.cursor = iterator.getCursor();
+    return results;
   }
 
   /**
-   * @return
+   * Prepares a keys only copy of the query, leaving the caller's query as it
+   * is. The copy keeps the order of the query: the shards an entity has in
+   * common with the query come one after another, and are deduplicated as
+   * they are read.
+   * 
+   * @return the prepared keys only query over the shards
    */
-  private List<Entity> retrieveSortedEntities(FetchOptions fetchOptions) {
-    if (fetchOptions == null) {
-      fetchOptions = FetchOptions.Builder.withLimit(1000);
-    }
-    // we want only keys
-    query.setKeysOnly();
-    List<Entity> results = null;
-    if (txn != null) {
-      results = datastore.prepare(txn, query).asList(fetchOptions);
+  private PreparedQuery prepareShardQuery() {
+    Query shardQuery = null;
+    if (query.getKind() != null) {
+      shardQuery = new Query(query.getKind());
     } else {
-      results = datastore.prepare(query).asList(fetchOptions);
+      shardQuery = new Query();
     }
-    // pull out the parent from each one, retrieve the entries, put them
-    // in the required order and deliver
-    List<Key> entitiesToGet = new ArrayList<Key>(results.size());
-    for (Entity e : results) {
-      entitiesToGet.add(e.getParent());
+    if (query.getAncestor() != null) {
+      shardQuery.setAncestor(query.getAncestor());
     }
-    Map<Key, Entity> unsortedEntities = null;
-    try {
-      if (txn != null) {
-        unsortedEntities = mindashDatastore.get(txn, entitiesToGet);
-      } else {
-        unsortedEntities = mindashDatastore.get(entitiesToGet);
-      }
-    } catch (EntityCorruptException e1) {
-      // TODO don't know how to handle this yet
-      e1.printStackTrace();
+    for (Query.FilterPredicate filter : query.getFilterPredicates()) {
+      shardQuery.addFilter(filter.getPropertyName(), filter.getOperator(),
+          filter.getValue());
     }
-    // created sorted list
-    List<Entity> sortedEntities =
-        new ArrayList<Entity>(unsortedEntities.size());
-    for (Key k : entitiesToGet) {
-      sortedEntities.add(unsortedEntities.get(k));
+    for (Query.SortPredicate sort : query.getSortPredicates()) {
+      shardQuery.addSort(sort.getPropertyName(), sort.getDirection());
+    }
+    shardQuery.setKeysOnly();
+    if (txn != null) {
+      return datastore.prepare(txn, shardQuery);
     }
-    return sortedEntities;
+    return datastore.prepare(shardQuery);
   }
 
 }
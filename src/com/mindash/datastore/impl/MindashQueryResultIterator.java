@@ -0,0 +1,155 @@
+/**
+ * Copyright 2010 Tristan Slominski
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mindash.datastore.impl;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.datastore.Transaction;
+import com.mindash.datastore.EntityCorruptException;
+import com.mindash.datastore.MindashDatastoreService;
+
+/**
+ * Walks the results of a keys only query over shards a page at a time,
+ * retrieving the entities of each page in one batch, so that memory use
+ * does not depend on the number of results. The cursor points after the
+ * last entity returned by {@link #next()}.
+ *
+ * @author Tristan Slominski
+ */
+public class MindashQueryResultIterator implements QueryResultIterator<Entity> {
+
+  private MindashDatastoreService mindashDatastore;
+  private Transaction txn;
+  private QueryResultIterator<Entity> shardKeys;
+  private int pageSize;
+
+  /** the entities of the current page not returned yet */
+  private LinkedList<Entity> page = new LinkedList<Entity>();
+  /** the cursor after each entity of the current page */
+  private LinkedList<Cursor> pageCursors = new LinkedList<Cursor>();
+  private Cursor cursor;
+  /** the entity of the last shard read */
+  private Key lastKey;
+
+  /**
+   * @param mindashDatastore the datastore to retrieve the entities from
+   * @param txn the transaction, can be <code>null</code>
+   * @param shardKeys the results of a keys only query over shards
+   * @param pageSize the number of entities to retrieve in one batch
+   * @param startCursor the cursor the query started at, can be
+   * <code>null</code>
+   */
+  MindashQueryResultIterator(MindashDatastoreService mindashDatastore,
+      Transaction txn, QueryResultIterator<Entity> shardKeys, int pageSize,
+      Cursor startCursor) {
+    if (pageSize < 1) {
+      throw new IllegalArgumentException("pageSize must be at least 1");
+    }
+    this.mindashDatastore = mindashDatastore;
+    this.txn = txn;
+    this.shardKeys = shardKeys;
+    this.pageSize = pageSize;
+    this.cursor = startCursor;
+  }
+
+  @Override
+  public boolean hasNext() {
+    fill();
+    return !page.isEmpty();
+  }
+
+  @Override
+  public Entity next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    cursor = pageCursors.removeFirst();
+    return page.removeFirst();
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public Cursor getCursor() {
+    return cursor;
+  }
+
+  /**
+   * Retrieves the next page once the current one is used up. Shards whose
+   * entity no longer exists are skipped, as are shards of an entity already
+   * in the page or right before it; queries that match several shards of an
+   * entity return them one after another, in key order.
+   */
+  private void fill() {
+    while (page.isEmpty() && shardKeys.hasNext()) {
+      List<Key> keys = new ArrayList<Key>(pageSize);
+      List<Cursor> cursors = new ArrayList<Cursor>(pageSize);
+      Set<Key> pageKeys = new HashSet<Key>();
+      while (keys.size() < pageSize && shardKeys.hasNext()) {
+        Key key = shardKeys.next().getParent();
+        Cursor shardCursor = shardKeys.getCursor();
+        if (key.equals(lastKey)) {
+          // another shard of the same entity, resume after it
+          if (!cursors.isEmpty()) {
+            cursors.set(cursors.size() - 1, shardCursor);
+          }
+          continue;
+        }
+        lastKey = key;
+        if (pageKeys.add(key)) {
+          keys.add(key);
+          cursors.add(shardCursor);
+        }
+      }
+      if (keys.isEmpty()) {
+        continue;
+      }
+      Map<Key, Entity> entities = null;
+      try {
+        if (txn != null) {
+          entities = mindashDatastore.get(txn, keys);
+        } else {
+          entities = mindashDatastore.get(keys);
+        }
+      } catch (EntityCorruptException e) {
+        throw new DatastoreFailureException("Could not retrieve a page of "
+            + "query results", e);
+      }
+      for (int i = 0; i < keys.size(); i++) {
+        Entity entity = entities.get(keys.get(i));
+        if (entity != null) {
+          page.add(entity);
+          pageCursors.add(cursors.get(i));
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,446 @@
+/**
+ * Copyright 2010 Tristan Slominski
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mindash.datastore.impl;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.inject.Inject;
+import com.mindash.datastore.DatastoreHelper;
+import com.mindash.datastore.EntityCorruptException;
+import com.mindash.datastore.MindashDatastoreService;
+
+/**
+ * <p>
+ * Finds and deletes orphan shards of a kind: shards whose entity has no 0th
+ * shard, left behind by a put or delete that failed part way, shards at or
+ * past the shard count of their 0th shard, left behind when an entity
+ * shrank and its excess shards were not deleted, and shards the manifest of
+ * their 0th shard does not list, left behind by a blob writer.
+ * </p>
+ * <p>
+ * The kind is walked with keys only queries a page at a time. The 0th
+ * shards of the entities with other shards in the page are read to learn
+ * their shard counts. A put in progress looks the same as one that failed,
+ * so orphans are only deleted once they have been found at least
+ * {@link #setConfirmDelayMillis(long) the confirm delay} ago and are still
+ * orphans when their 0th shards are read again. The second read and the
+ * delete are done in one transaction per entity, so a put of the entity
+ * that lands in between makes the transaction fail and its shards are left
+ * alone until a later sweep.
+ * </p>
+ * <p>
+ * A blob writer stores its shards before the 0th shard that lists them, and
+ * may take much longer than the confirm delay. Its shards carry the time it
+ * started under {@link MindashDatastoreService#MindashWriterLabel}; they are
+ * read before being deleted and kept until
+ * {@link #setWriterTimeoutMillis(long) the writer timeout} has passed, after
+ * which the writer is taken to be abandoned.
+ * </p>
+ * <p>
+ * A sweep walks a bounded number of pages and returns the cursor to start
+ * the next one from, so that a long walk can be split across requests or
+ * tasks. The totals over all sweeps are kept for monitoring.
+ * </p>
+ * 
+ * @author Tristan Slominski
+ */
+public class OrphanShardCollector {
+
+  public static int DefaultPageSize = 500;
+  public static long DefaultConfirmDelayMillis = 60 * 1000;
+  public static long DefaultWriterTimeoutMillis = 60 * 60 * 1000;
+
+  /**
+   * The outcome of a sweep.
+   */
+  public static class Sweep {
+    private Cursor cursor;
+    private boolean done;
+    private long shardsScanned;
+    private long orphansFound;
+    private long orphansDeleted;
+
+    /**
+     * @return the cursor to start the next sweep from, <code>null</code> if
+     * the sweep reached the end of the kind
+     */
+    public Cursor getCursor() {
+      return cursor;
+    }
+
+    /**
+     * @return <code>true</code> if the sweep reached the end of the kind
+     */
+    public boolean isDone() {
+      return done;
+    }
+
+    public long getShardsScanned() {
+      return shardsScanned;
+    }
+
+    public long getOrphansFound() {
+      return orphansFound;
+    }
+
+    /**
+     * @return the number of orphans deleted, fewer than found if some turned
+     * out to belong to a put or blob writer in progress
+     */
+    public long getOrphansDeleted() {
+      return orphansDeleted;
+    }
+  }
+
+  private DatastoreService datastore;
+  private DatastoreHelper datastoreHelper;
+  private int pageSize = DefaultPageSize;
+  private int maximumShardsPerSecond;
+  private long confirmDelayMillis = DefaultConfirmDelayMillis;
+  private long writerTimeoutMillis = DefaultWriterTimeoutMillis;
+
+  private long sweepCount;
+  private long shardsScanned;
+  private long orphansFound;
+  private long orphansDeleted;
+
+  @Inject
+  public OrphanShardCollector(DatastoreService datastore,
+      DatastoreHelper datastoreHelper) {
+    this.datastore = datastore;
+    this.datastoreHelper = datastoreHelper;
+  }
+
+  /**
+   * @param pageSize the number of shard keys to read per query
+   */
+  public void setPageSize(int pageSize) {
+    if (pageSize < 1) {
+      throw new IllegalArgumentException("pageSize must be at least 1");
+    }
+    this.pageSize = pageSize;
+  }
+
+  /**
+   * @param maximumShardsPerSecond the most shard keys to read per second, 0
+   * for no limit
+   */
+  public void setMaximumShardsPerSecond(int maximumShardsPerSecond) {
+    this.maximumShardsPerSecond = maximumShardsPerSecond;
+  }
+
+  /**
+   * @param confirmDelayMillis how long after an orphan is found it is read
+   * again and deleted; must be longer than a put takes
+   */
+  public void setConfirmDelayMillis(long confirmDelayMillis) {
+    this.confirmDelayMillis = confirmDelayMillis;
+  }
+
+  /**
+   * @param writerTimeoutMillis how long after a blob writer started its
+   * shards are kept; must be longer than a blob takes to write
+   */
+  public void setWriterTimeoutMillis(long writerTimeoutMillis) {
+    this.writerTimeoutMillis = writerTimeoutMillis;
+  }
+
+  /**
+   * Walks up to <code>maximumPages</code> pages of shard keys of a kind,
+   * deleting the orphans among them. Orphans found less than the confirm
+   * delay before the last page are waited for.
+   * 
+   * @param kind the kind to sweep
+   * @param startCursor the cursor of the previous sweep, <code>null</code>
+   * to start at the beginning of the kind
+   * @param maximumPages the number of pages to walk, 0 for all of them
+   * @return the outcome of the sweep
+   */
+  public Sweep collect(String kind, Cursor startCursor, int maximumPages) {
+    PreparedQuery shardKeys =
+        datastore.prepare(new Query(kind).setKeysOnly());
+    Sweep sweep = new Sweep();
+    Cursor cursor = startCursor;
+    List<Key> pending = new ArrayList<Key>();
+    long pendingSince = 0;
+    long started = System.currentTimeMillis();
+    for (int page = 0; maximumPages <= 0 || page < maximumPages; page++) {
+      FetchOptions fetchOptions = FetchOptions.Builder.withLimit(pageSize);
+      if (cursor != null) {
+        fetchOptions.startCursor(cursor);
+      }
+      QueryResultList<Entity> shards =
+          shardKeys.asQueryResultList(fetchOptions);
+      List<Key> keys = new ArrayList<Key>(shards.size());
+      for (Entity shard : shards) {
+        keys.add(shard.getKey());
+      }
+      sweep.shardsScanned += keys.size();
+      List<Key> orphans = findOrphans(keys);
+      if (!orphans.isEmpty()) {
+        if (pending.isEmpty()) {
+          pendingSince = System.currentTimeMillis();
+        }
+        pending.addAll(orphans);
+        sweep.orphansFound += orphans.size();
+      }
+      if (shards.size() < pageSize) {
+        cursor = null;
+        sweep.done = true;
+        break;
+      }
+      cursor = shards.getCursor();
+      if (!pending.isEmpty()
+          && System.currentTimeMillis() - pendingSince >= confirmDelayMillis) {
+        sweep.orphansDeleted += deleteOrphans(pending);
+        pending.clear();
+      }
+      if (!throttle(started, sweep.shardsScanned)) {
+        break;
+      }
+    }
+    if (!pending.isEmpty()
+        && sleep(pendingSince + confirmDelayMillis
+            - System.currentTimeMillis())) {
+      sweep.orphansDeleted += deleteOrphans(pending);
+    }
+    sweep.cursor = cursor;
+    synchronized (this) {
+      sweepCount++;
+      shardsScanned += sweep.shardsScanned;
+      orphansFound += sweep.orphansFound;
+      orphansDeleted += sweep.orphansDeleted;
+    }
+    return sweep;
+  }
+
+  /**
+   * @return the number of sweeps made
+   */
+  public synchronized long getSweepCount() {
+    return sweepCount;
+  }
+
+  /**
+   * @return the number of shard keys read by all sweeps
+   */
+  public synchronized long getShardsScanned() {
+    return shardsScanned;
+  }
+
+  /**
+   * @return the number of orphans found by all sweeps
+   */
+  public synchronized long getOrphansFound() {
+    return orphansFound;
+  }
+
+  /**
+   * @return the number of orphans deleted by all sweeps
+   */
+  public synchronized long getOrphansDeleted() {
+    return orphansDeleted;
+  }
+
+  /**
+   * Reads the 0th shards of the entities the given shards belong to and
+   * picks out the orphans. A 0th shard is never an orphan. Keys that are not
+   * named like shards, and shards of a 0th shard without a shard count or
+   * with a manifest that cannot be read, are left alone. The shards of blob
+   * writers at work are among the orphans.
+   * 
+   * @param keys shard keys
+   * @return the orphans among them
+   */
+  List<Key> findOrphans(List<Key> keys) {
+    return findOrphans(null, keys);
+  }
+
+  /**
+   * @param txn the transaction to read the 0th shards in, can be
+   * <code>null</code>
+   * @see #findOrphans(List)
+   */
+  private List<Key> findOrphans(Transaction txn, List<Key> keys) {
+    Set<Key> shard0Keys = new LinkedHashSet<Key>();
+    for (Key key : keys) {
+      if (MindashDatastoreServiceImpl.isShardKey(key)
+          && MindashDatastoreServiceImpl.getShardIndex(key) > 0) {
+        shard0Keys.add(MindashDatastoreServiceImpl.createMindashDatastoreKey(
+            key.getParent(), 0));
+      }
+    }
+    List<Key> orphans = new ArrayList<Key>();
+    if (shard0Keys.isEmpty()) {
+      return orphans;
+    }
+    Map<Key, Entity> shard0s =
+        datastoreHelper.get(txn, datastore, new ArrayList<Key>(shard0Keys));
+    for (Key key : keys) {
+      if (!MindashDatastoreServiceImpl.isShardKey(key)) {
+        continue;
+      }
+      int index = MindashDatastoreServiceImpl.getShardIndex(key);
+      if (index == 0) {
+        continue;
+      }
+      Entity shard0 =
+          shard0s.get(MindashDatastoreServiceImpl.createMindashDatastoreKey(
+              key.getParent(), 0));
+      if (shard0 == null) {
+        orphans.add(key);
+      } else if (shard0
+          .hasProperty(MindashDatastoreService.MindashShardCountLabel)
+          && !isListed(shard0, index)) {
+        orphans.add(key);
+      }
+    }
+    return orphans;
+  }
+
+  /**
+   * @param shard0 a 0th shard with a shard count
+   * @param index the index of another shard of the entity
+   * @return <code>true</code> if the shard is part of the entity, or the
+   * manifest cannot be read
+   */
+  private static boolean isListed(Entity shard0, int index) {
+    if (index >= MindashDatastoreServiceImpl.getShardCount(shard0)) {
+      return false;
+    }
+    try {
+      ShardManifest manifest = ShardManifest.read(shard0);
+      // entities without a manifest use every index below the shard count
+      return manifest == null || manifest.getShards().contains(index);
+    } catch (EntityCorruptException e) {
+      return true;
+    }
+  }
+
+  /**
+   * Deletes the orphans that still are orphans. The shards of an entity are
+   * checked and deleted in a transaction on its entity group; if the entity
+   * is written meanwhile the transaction fails and they are kept.
+   * 
+   * @return the number of orphans deleted
+   */
+  private int deleteOrphans(List<Key> candidates) {
+    Map<Key, List<Key>> byParent = new LinkedHashMap<Key, List<Key>>();
+    for (Key key : candidates) {
+      List<Key> shards = byParent.get(key.getParent());
+      if (shards == null) {
+        shards = new ArrayList<Key>();
+        byParent.put(key.getParent(), shards);
+      }
+      shards.add(key);
+    }
+    int deleted = 0;
+    for (List<Key> shards : byParent.values()) {
+      Transaction txn = datastore.beginTransaction();
+      try {
+        List<Key> orphans = keepAbandoned(txn, findOrphans(txn, shards));
+        if (!orphans.isEmpty()) {
+          datastoreHelper.delete(txn, datastore, orphans);
+        }
+        txn.commit();
+        deleted += orphans.size();
+      } catch (ConcurrentModificationException e) {
+        // the entity was written meanwhile, a later sweep looks again
+      } finally {
+        if (txn.isActive()) {
+          txn.rollback();
+        }
+      }
+    }
+    return deleted;
+  }
+
+  /**
+   * Reads orphans and drops those written by a blob writer that started less
+   * than the writer timeout ago.
+   * 
+   * @param txn the transaction to read the orphans in
+   * @param orphans the orphans of one entity
+   * @return the orphans that may be deleted
+   */
+  private List<Key> keepAbandoned(Transaction txn, List<Key> orphans) {
+    if (orphans.isEmpty()) {
+      return orphans;
+    }
+    Map<Key, Entity> shards = datastoreHelper.get(txn, datastore, orphans);
+    long cutoff = System.currentTimeMillis() - writerTimeoutMillis;
+    List<Key> abandoned = new ArrayList<Key>(orphans.size());
+    for (Key key : orphans) {
+      Entity shard = shards.get(key);
+      if (shard == null) {
+        // already gone
+        continue;
+      }
+      Object started =
+          shard.getProperty(MindashDatastoreService.MindashWriterLabel);
+      if (!(started instanceof Number)
+          || ((Number) started).longValue() < cutoff) {
+        abandoned.add(key);
+      }
+    }
+    return abandoned;
+  }
+
+  /**
+   * Sleeps long enough to keep to the maximum rate.
+   * 
+   * @return <code>false</code> if interrupted
+   */
+  private boolean throttle(long started, long scanned) {
+    if (maximumShardsPerSecond <= 0) {
+      return true;
+    }
+    long due = started + scanned * 1000 / maximumShardsPerSecond;
+    return sleep(due - System.currentTimeMillis());
+  }
+
+  /**
+   * @return <code>false</code> if interrupted
+   */
+  private static boolean sleep(long millis) {
+    if (millis <= 0) {
+      return true;
+    }
+    try {
+      Thread.sleep(millis);
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+}
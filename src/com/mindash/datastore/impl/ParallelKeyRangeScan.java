@@ -0,0 +1,319 @@
+/**
+ * Copyright 2010 Tristan Slominski
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mindash.datastore.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.mindash.datastore.EntityVisitor;
+import com.mindash.datastore.MindashDatastoreService;
+
+/**
+ * Visits every entity a query over a kind matches by splitting the key space
+ * of the kind into <code>__key__</code> ranges and walking the ranges on
+ * several threads at once, each with its own keys only query whose results
+ * are assembled a page at a time.
+ * <p>
+ * The split points are the entities of a sample of shards taken in
+ * <code>__scatter__</code> order, which is spread evenly over the kind. A
+ * query with an ancestor, filters or sort orders is walked as one range,
+ * since ranging it by key would need composite indexes; so is a kind with no
+ * scatter sample.
+ * </p>
+ * <p>
+ * At most one range per thread is walked at a time and a range holds one
+ * page of entities, so memory use does not depend on the size of the kind,
+ * and a slow visitor holds back the scan rather than letting entities pile
+ * up.
+ * </p>
+ * <p>
+ * Threads are only started from the given thread factory, since App Engine
+ * does not allow threads made by the default one. Without a factory the
+ * ranges are walked one after another on the calling thread.
+ * </p>
+ * 
+ * @author Tristan Slominski
+ */
+public class ParallelKeyRangeScan {
+
+  public static String ScatterProperty = "__scatter__";
+  /** key ranges per thread, so that a thread done early takes another */
+  public static int RangesPerWorker = 4;
+  /** sampled shards per key range */
+  public static int SamplesPerRange = 8;
+
+  private DatastoreService datastore;
+  private MindashDatastoreService mindashDatastore;
+  private Query query;
+  private int workers;
+  private EntityVisitor visitor;
+  private ThreadFactory threadFactory;
+  private AtomicLong entitiesVisited = new AtomicLong();
+
+  /**
+   * @param datastore the datastore to query the shards with
+   * @param mindashDatastore the datastore to assemble the entities with
+   * @param query the query over a kind
+   * @param workers the number of ranges to walk at once
+   * @param visitor the visitor of the entities
+   * @param threadFactory the factory of the threads walking the ranges,
+   * <code>null</code> to walk them on the calling thread
+   */
+  ParallelKeyRangeScan(DatastoreService datastore,
+      MindashDatastoreService mindashDatastore, Query query, int workers,
+      EntityVisitor visitor, ThreadFactory threadFactory) {
+    if (query.getKind() == null) {
+      throw new IllegalArgumentException("query must have a kind");
+    }
+    if (workers < 1) {
+      throw new IllegalArgumentException("workers must be at least 1");
+    }
+    this.datastore = datastore;
+    this.mindashDatastore = mindashDatastore;
+    this.query = query;
+    this.workers = workers;
+    this.visitor = visitor;
+    this.threadFactory = threadFactory;
+  }
+
+  /**
+   * Walks all the key ranges, returning once every entity has been visited.
+   * If walking a range fails, the other ranges are stopped and the failure
+   * is rethrown.
+   * 
+   * @return the number of entities visited
+   */
+  public long run() {
+    List<Query> ranges = createRangeQueries();
+    if (ranges.size() == 1 || workers == 1 || threadFactory == null) {
+      for (int i = 0; i < ranges.size(); i++) {
+        scan(ranges.get(i));
+        visitor.rangeScanned(i + 1, ranges.size(), entitiesVisited.get());
+      }
+      return entitiesVisited.get();
+    }
+    ExecutorService executor =
+        Executors.newFixedThreadPool(workers, threadFactory);
+    CompletionService<Query> completion =
+        new ExecutorCompletionService<Query>(executor);
+    try {
+      int submitted = 0;
+      int scanned = 0;
+      // keep one range per thread in flight, submitting the next one as
+      // each finishes
+      while (scanned < ranges.size()) {
+        while (submitted < ranges.size() && submitted - scanned < workers) {
+          final Query range = ranges.get(submitted++);
+          completion.submit(new ApiEnvironmentCallable<Query>(
+              new Callable<Query>() {
+                public Query call() {
+                  scan(range);
+                  return range;
+                }
+              }));
+        }
+        await(completion);
+        scanned++;
+        visitor.rangeScanned(scanned, ranges.size(), entitiesVisited.get());
+      }
+    } finally {
+      // stops the ranges still in flight if one failed
+      executor.shutdownNow();
+    }
+    return entitiesVisited.get();
+  }
+
+  /**
+   * @return the number of entities visited so far
+   */
+  public long getEntitiesVisited() {
+    return entitiesVisited.get();
+  }
+
+  /**
+   * @return a keys only query per key range, in key order
+   */
+  List<Query> createRangeQueries() {
+    List<Query> ranges = new ArrayList<Query>();
+    if (query.getAncestor() != null || !query.getFilterPredicates().isEmpty()
+        || !query.getSortPredicates().isEmpty()) {
+      ranges.add(createKeysOnlyQuery());
+      return ranges;
+    }
+    List<Key> splitPoints = sampleSplitPoints(workers * RangesPerWorker);
+    Key start = null;
+    for (Key end : splitPoints) {
+      ranges.add(createRangeQuery(start, end));
+      start = end;
+    }
+    ranges.add(createRangeQuery(start, null));
+    return ranges;
+  }
+
+  /**
+   * @return a keys only copy of the query, leaving the caller's query as it
+   * is
+   */
+  private Query createKeysOnlyQuery() {
+    Query keysOnly = null;
+    if (query.getKind() != null) {
+      keysOnly = new Query(query.getKind());
+    } else {
+      keysOnly = new Query();
+    }
+    if (query.getAncestor() != null) {
+      keysOnly.setAncestor(query.getAncestor());
+    }
+    for (Query.FilterPredicate filter : query.getFilterPredicates()) {
+      keysOnly.addFilter(filter.getPropertyName(), filter.getOperator(),
+          filter.getValue());
+    }
+    for (Query.SortPredicate sort : query.getSortPredicates()) {
+      keysOnly.addSort(sort.getPropertyName(), sort.getDirection());
+    }
+    return keysOnly.setKeysOnly();
+  }
+
+  /**
+   * Picks entities evenly spread over the kind from a sample of its shards
+   * in scatter order.
+   * 
+   * @param rangeCount the number of ranges wanted
+   * @return up to <code>rangeCount - 1</code> entity keys, in key order
+   */
+  private List<Key> sampleSplitPoints(int rangeCount) {
+    List<Key> splitPoints = new ArrayList<Key>();
+    if (rangeCount < 2) {
+      return splitPoints;
+    }
+    Query sample = new Query(query.getKind()).setKeysOnly();
+    sample.addSort(ScatterProperty);
+    TreeSet<Key> sampled = new TreeSet<Key>();
+    for (Entity shard : datastore.prepare(sample).asList(
+        FetchOptions.Builder.withLimit(rangeCount * SamplesPerRange))) {
+      // a range starting at an entity holds all of the entity's shards
+      if (shard.getParent() != null) {
+        sampled.add(shard.getParent());
+      }
+    }
+    List<Key> sorted = new ArrayList<Key>(sampled);
+    Key last = null;
+    for (int i = 1; i < rangeCount; i++) {
+      Key splitPoint = null;
+      if (!sorted.isEmpty()) {
+        splitPoint = sorted.get(i * sorted.size() / rangeCount);
+      }
+      if (splitPoint != null && !splitPoint.equals(last)) {
+        splitPoints.add(splitPoint);
+        last = splitPoint;
+      }
+    }
+    return splitPoints;
+  }
+
+  /**
+   * @param start the first entity of the range, <code>null</code> for the
+   * start of the kind
+   * @param end the entity after the range, <code>null</code> for the end of
+   * the kind
+   * @return the keys only query over the shards of the range
+   */
+  private Query createRangeQuery(Key start, Key end) {
+    Query range = new Query(query.getKind()).setKeysOnly();
+    if (start != null) {
+      range.addFilter(Entity.KEY_RESERVED_PROPERTY,
+          Query.FilterOperator.GREATER_THAN_OR_EQUAL, start);
+    }
+    if (end != null) {
+      range.addFilter(Entity.KEY_RESERVED_PROPERTY,
+          Query.FilterOperator.LESS_THAN, end);
+    }
+    return range;
+  }
+
+  /**
+   * Visits the entities of a range a page at a time. Subclasses that walk
+   * a range another way call {@link #recordVisited()} for each entity.
+   * 
+   * @param range the keys only query over the shards of the range
+   */
+  protected void scan(Query range) {
+    FetchOptions fetchOptions =
+        FetchOptions.Builder
+            .withChunkSize(MindashPreparedQueryImpl.DefaultPageSize);
+    QueryResultIterator<Entity> shardKeys =
+        datastore.prepare(range).asQueryResultIterator(fetchOptions);
+    MindashQueryResultIterator entities =
+        new MindashQueryResultIterator(mindashDatastore, null, shardKeys,
+            MindashPreparedQueryImpl.DefaultPageSize, null);
+    while (entities.hasNext()) {
+      if (Thread.currentThread().isInterrupted()) {
+        return;
+      }
+      visitor.visit(entities.next());
+      recordVisited();
+    }
+  }
+
+  /**
+   * Counts an entity towards the progress of the scan.
+   */
+  protected void recordVisited() {
+    entitiesVisited.incrementAndGet();
+  }
+
+  /**
+   * Waits for the next range to be walked, rethrowing whatever walking it
+   * threw.
+   * 
+   * @param completion the ranges in flight
+   */
+  private void await(CompletionService<Query> completion) {
+    try {
+      completion.take().get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new DatastoreFailureException(
+          "Interrupted while waiting for a key range", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new DatastoreFailureException("Key range scan failed", cause);
+    }
+  }
+
+}
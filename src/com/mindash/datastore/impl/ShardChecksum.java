@@ -0,0 +1,190 @@
+/**
+ * Copyright 2010 Tristan Slominski
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mindash.datastore.impl;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Link;
+import com.google.appengine.api.datastore.ShortBlob;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.users.User;
+import com.mindash.datastore.EntityCorruptException;
+import com.mindash.datastore.MindashDatastoreService;
+
+/**
+ * <p>
+ * Computes and checks the CRC-32 every shard carries under
+ * {@link MindashDatastoreService#MindashChecksumLabel}. The checksum covers
+ * the name and value of every other property of the shard, in name order,
+ * so a truncated, stale or partly written shard is caught before it is
+ * joined into an entity.
+ * </p>
+ * <p>
+ * Values are checksummed in the form the datastore returns them: all whole
+ * numbers as longs and all floating point numbers as doubles. Shards stored
+ * before checksums existed do not have one and are not checked.
+ * </p>
+ *
+ * @author Tristan Slominski
+ */
+public class ShardChecksum {
+
+  private static final byte TypeNull = 0;
+  private static final byte TypeBytes = 1;
+  private static final byte TypeString = 2;
+  private static final byte TypeLong = 3;
+  private static final byte TypeDouble = 4;
+  private static final byte TypeBoolean = 5;
+  private static final byte TypeDate = 6;
+  private static final byte TypeKey = 7;
+  private static final byte TypeUser = 8;
+  private static final byte TypeLink = 9;
+  private static final byte TypeText = 10;
+  private static final byte TypeCollection = 11;
+  private static final byte TypeOther = 12;
+
+  /**
+   * @param shard a shard
+   * @return the checksum of every property of the shard except the
+   * checksum itself
+   */
+  public static long compute(Entity shard) {
+    // the properties of a shard read back from the datastore are not in the
+    // order they were set in
+    Map<String, Object> properties =
+        new TreeMap<String, Object>(shard.getProperties());
+    properties.remove(MindashDatastoreService.MindashChecksumLabel);
+    CRC32 crc = new CRC32();
+    for (Map.Entry<String, Object> property : properties.entrySet()) {
+      update(crc, property.getKey());
+      update(crc, property.getValue());
+    }
+    return crc.getValue();
+  }
+
+  /**
+   * Records the checksum of a shard in the shard. Must be called after the
+   * last property is set.
+   *
+   * @param shard a shard about to be stored
+   */
+  public static void write(Entity shard) {
+    shard.setUnindexedProperty(MindashDatastoreService.MindashChecksumLabel,
+        compute(shard));
+  }
+
+  /**
+   * @param shard a retrieved shard
+   * @return <code>true</code> if the shard matches its recorded checksum or
+   * was stored without one
+   */
+  public static boolean matches(Entity shard) {
+    Object recorded =
+        shard.getProperty(MindashDatastoreService.MindashChecksumLabel);
+    if (recorded == null) {
+      return true;
+    }
+    return ((Number) recorded).longValue() == compute(shard);
+  }
+
+  /**
+   * @param key the key of the entity
+   * @param shard a retrieved shard
+   * @param thisShard the index of the shard
+   * @throws EntityCorruptException reporting <code>thisShard</code> if the
+   * shard does not match its recorded checksum
+   */
+  public static void verify(Key key, Entity shard, int thisShard)
+      throws EntityCorruptException {
+    if (!matches(shard)) {
+      throw new EntityCorruptException("Shard " + thisShard + " of " + key
+          + " does not match its checksum. The entity is corrupt and cannot "
+          + "be retrieved", thisShard);
+    }
+  }
+
+  private static void update(CRC32 crc, Object value) {
+    if (value == null) {
+      crc.update(TypeNull);
+    } else if (value instanceof Blob) {
+      update(crc, TypeBytes, ((Blob) value).getBytes());
+    } else if (value instanceof ShortBlob) {
+      update(crc, TypeBytes, ((ShortBlob) value).getBytes());
+    } else if (value instanceof String) {
+      update(crc, TypeString, utf8((String) value));
+    } else if (value instanceof Long || value instanceof Integer
+        || value instanceof Short || value instanceof Byte) {
+      update(crc, TypeLong, ((Number) value).longValue());
+    } else if (value instanceof Double || value instanceof Float) {
+      update(crc, TypeDouble, Double.doubleToLongBits(((Number) value)
+          .doubleValue()));
+    } else if (value instanceof Boolean) {
+      crc.update(TypeBoolean);
+      crc.update(((Boolean) value) ? 1 : 0);
+    } else if (value instanceof Date) {
+      update(crc, TypeDate, ((Date) value).getTime());
+    } else if (value instanceof Key) {
+      update(crc, TypeKey, utf8(KeyFactory.keyToString((Key) value)));
+    } else if (value instanceof User) {
+      User user = (User) value;
+      update(crc, TypeUser, utf8(user.getEmail() + "\u0000"
+          + user.getAuthDomain()));
+    } else if (value instanceof Link) {
+      update(crc, TypeLink, utf8(((Link) value).getValue()));
+    } else if (value instanceof Text) {
+      update(crc, TypeText, utf8(((Text) value).getValue()));
+    } else if (value instanceof Collection<?>) {
+      Collection<?> values = (Collection<?>) value;
+      update(crc, TypeCollection, values.size());
+      for (Object element : values) {
+        update(crc, element);
+      }
+    } else {
+      update(crc, TypeOther, utf8(value.toString()));
+    }
+  }
+
+  private static void update(CRC32 crc, byte type, byte[] bytes) {
+    update(crc, type, bytes.length);
+    crc.update(bytes);
+  }
+
+  private static void update(CRC32 crc, byte type, long value) {
+    crc.update(type);
+    for (int shift = 56; shift >= 0; shift -= 8) {
+      crc.update((int) (value >>> shift));
+    }
+  }
+
+  private static byte[] utf8(String s) {
+    try {
+      return s.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      // every Java platform is required to support UTF-8
+      throw new IllegalStateException(e);
+    }
+  }
+
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright 2010 Tristan Slominski
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mindash.datastore.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Predicts how many shards entities of a kind have, from a histogram of the
+ * shard counts read so far, so that a batch get can fetch the shards of
+ * most entities together with their 0th shard (see
+ * {@link com.mindash.datastore.MindashDatastoreConfig#setShardPrefetchPercentile(int)}).
+ * The histogram of a kind is halved whenever it grows past
+ * {@link #DecaySampleCount} samples, so the prediction follows changes in
+ * the data.
+ * </p>
+ * <p>
+ * Outcomes of the predictions are counted, so that the bytes a prefetch
+ * wastes can be weighed against the round trips it saves.
+ * </p>
+ *
+ * @author Tristan Slominski
+ */
+public class ShardCountPredictor {
+
+  public static int MaximumPredictedShardCount = 64;
+  public static int MinimumSampleCount = 16;
+  public static int DecaySampleCount = 1024;
+
+  /**
+   * The shard counts read for a kind. The last bucket also counts all
+   * entities with more shards.
+   */
+  private static class Histogram {
+    private long[] counts = new long[MaximumPredictedShardCount + 1];
+    private long total;
+  }
+
+  private Map<String, Histogram> histograms = new HashMap<String, Histogram>();
+
+  private long predictionCount;
+  private long hitCount;
+  private long prefetchedShardCount;
+  private long wastedShardCount;
+
+  /**
+   * @param kind the kind of an entity that was read
+   * @param shardCount the number of shards of the entity
+   */
+  public synchronized void record(String kind, int shardCount) {
+    Histogram histogram = histograms.get(kind);
+    if (histogram == null) {
+      histogram = new Histogram();
+      histograms.put(kind, histogram);
+    }
+    histogram.counts[Math.min(shardCount, MaximumPredictedShardCount)]++;
+    histogram.total++;
+    if (histogram.total > DecaySampleCount) {
+      histogram.total = 0;
+      for (int i = 0; i < histogram.counts.length; i++) {
+        histogram.counts[i] /= 2;
+        histogram.total += histogram.counts[i];
+      }
+    }
+  }
+
+  /**
+   * @param kind the kind of an entity about to be read
+   * @param percentile the percentage of entities the prediction should
+   * cover
+   * @return the smallest shard count at least <code>percentile</code>
+   * percent of the entities of the kind read so far have had, or 1 if too
+   * few have been read
+   */
+  public synchronized int predict(String kind, int percentile) {
+    Histogram histogram = histograms.get(kind);
+    if (histogram == null || histogram.total < MinimumSampleCount) {
+      return 1;
+    }
+    long covered = 0;
+    for (int i = 1; i < histogram.counts.length; i++) {
+      covered += histogram.counts[i];
+      if (covered * 100 >= histogram.total * percentile) {
+        return i;
+      }
+    }
+    return MaximumPredictedShardCount;
+  }
+
+  /**
+   * @param predictedShardCount the number of shards fetched along with the
+   * 0th shard, the 0th shard included
+   * @param shardCount the number of shards the entity turned out to have, 0
+   * if it does not exist
+   */
+  public synchronized void recordPrefetch(int predictedShardCount,
+      int shardCount) {
+    predictionCount++;
+    if (shardCount <= predictedShardCount) {
+      hitCount++;
+    }
+    prefetchedShardCount += predictedShardCount - 1;
+    wastedShardCount += Math.max(predictedShardCount
+        - Math.max(shardCount, 1), 0);
+  }
+
+  /**
+   * @return the number of entities whose shards were prefetched
+   */
+  public synchronized long getPredictionCount() {
+    return predictionCount;
+  }
+
+  /**
+   * @return the number of entities that needed no further fetch
+   */
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  /**
+   * @return the number of shards fetched along with 0th shards
+   */
+  public synchronized long getPrefetchedShardCount() {
+    return prefetchedShardCount;
+  }
+
+  /**
+   * @return the number of prefetched shards that did not exist
+   */
+  public synchronized long getWastedShardCount() {
+    return wastedShardCount;
+  }
+
+  /**
+   * @return the fraction of prefetching entity reads that needed no further
+   * fetch, 0 if there were none
+   */
+  public synchronized double getHitRate() {
+    return predictionCount == 0 ? 0 : (double) hitCount / predictionCount;
+  }
+
+  /**
+   * @return the fraction of prefetched shards that did not exist, 0 if none
+   * were prefetched
+   */
+  public synchronized double getWasteRate() {
+    return prefetchedShardCount == 0 ? 0 : (double) wastedShardCount
+        / prefetchedShardCount;
+  }
+
+}
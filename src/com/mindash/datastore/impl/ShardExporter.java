@@ -0,0 +1,267 @@
+/**
+ * Copyright 2010 Tristan Slominski
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mindash.datastore.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Properties;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.mindash.datastore.MindashDatastoreService;
+
+/**
+ * <p>
+ * Exports every stored entity of a kind, that is every shard of its sharded
+ * entities, to a file of length prefixed records (see
+ * {@link ShardRecordCodec}). Shards are written as the datastore returns
+ * them, a page at a time, through a large direct buffer, so Blobs are never
+ * assembled and memory use does not depend on the size of the kind. To
+ * export a kind whose Blobs are deduplicated, also export the
+ * {@link MindashDatastoreService#MindashChunkKind} kind.
+ * </p>
+ * <p>
+ * Each time the buffer is written out, the number of records, the length of
+ * the file and the query cursor after the last record are saved to a
+ * manifest next to the file. Exporting to the same file again resumes from
+ * the manifest, dropping anything written after it.
+ * </p>
+ * 
+ * @author Tristan Slominski
+ */
+public class ShardExporter {
+
+  public static int DefaultBufferBytes = 4 * 1024 * 1024;
+  public static int DefaultChunkSize = 10;
+  public static String ManifestSuffix = ".manifest";
+
+  /** room kept in the buffer for the next record */
+  private static final int RecordReserveBytes =
+      MindashDatastoreService.MindashEntityMaximumSize + 64 * 1024;
+
+  private static final String ManifestKind = "kind";
+  private static final String ManifestRecords = "records";
+  static final String ManifestLength = "length";
+  private static final String ManifestCursor = "cursor";
+  private static final String ManifestComplete = "complete";
+
+  /** a reusable record buffer whose bytes can be wrapped without a copy */
+  private static class RecordBuffer extends ByteArrayOutputStream {
+    ByteBuffer asByteBuffer() {
+      return ByteBuffer.wrap(buf, 0, count);
+    }
+  }
+
+  private DatastoreService datastore;
+  private int bufferBytes;
+  private int chunkSize;
+
+  public ShardExporter(DatastoreService datastore) {
+    this(datastore, DefaultBufferBytes, DefaultChunkSize);
+  }
+
+  /**
+   * @param datastore the datastore to export from
+   * @param bufferBytes the size of the direct buffer records are written
+   * through
+   * @param chunkSize the number of shards to retrieve per round trip
+   */
+  public ShardExporter(DatastoreService datastore, int bufferBytes,
+      int chunkSize) {
+    if (chunkSize < 1) {
+      throw new IllegalArgumentException("chunkSize must be at least 1");
+    }
+    this.datastore = datastore;
+    this.bufferBytes = Math.max(bufferBytes, RecordReserveBytes * 2);
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * @param file an export file
+   * @return the manifest of the export file
+   */
+  public static File getManifestFile(File file) {
+    return new File(file.getPath() + ManifestSuffix);
+  }
+
+  /**
+   * Exports the stored entities of a kind, resuming an export of the same
+   * kind to the same file that did not complete.
+   * 
+   * @param kind the kind to export
+   * @param file the file to export to
+   * @return the number of records in the file
+   * @throws IOException if the file or its manifest cannot be written
+   */
+  public long export(String kind, File file) throws IOException {
+    File manifestFile = getManifestFile(file);
+    Properties manifest = readManifest(manifestFile);
+    if (manifest != null && !kind.equals(manifest.getProperty(ManifestKind))) {
+      throw new IOException(file + " is an export of "
+          + manifest.getProperty(ManifestKind) + ", not of " + kind);
+    }
+    if (manifest != null
+        && Boolean.parseBoolean(manifest.getProperty(ManifestComplete))) {
+      return Long.parseLong(manifest.getProperty(ManifestRecords));
+    }
+    long records = 0;
+    Cursor cursor = null;
+    RandomAccessFile out = new RandomAccessFile(file, "rw");
+    try {
+      FileChannel channel = out.getChannel();
+      ByteBuffer buffer = ByteBuffer.allocateDirect(bufferBytes);
+      if (manifest != null) {
+        // drop whatever was written after the last checkpoint
+        records = Long.parseLong(manifest.getProperty(ManifestRecords));
+        long length = Long.parseLong(manifest.getProperty(ManifestLength));
+        String webSafeCursor = manifest.getProperty(ManifestCursor);
+        if (webSafeCursor != null) {
+          cursor = Cursor.fromWebSafeString(webSafeCursor);
+        }
+        channel.truncate(length);
+        channel.position(length);
+      } else {
+        channel.truncate(0);
+        buffer.putInt(ShardRecordCodec.FileMagic);
+        buffer.putInt(ShardRecordCodec.FileVersion);
+      }
+      FetchOptions fetchOptions = FetchOptions.Builder.withChunkSize(chunkSize);
+      if (cursor != null) {
+        fetchOptions.startCursor(cursor);
+      }
+      QueryResultIterator<Entity> shards =
+          datastore.prepare(new Query(kind)).asQueryResultIterator(
+              fetchOptions);
+      RecordBuffer record = new RecordBuffer();
+      DataOutputStream recordOut = new DataOutputStream(record);
+      while (shards.hasNext()) {
+        if (buffer.remaining() < RecordReserveBytes) {
+          records = checkpoint(channel, buffer, manifestFile, kind, records,
+              shards.getCursor(), false);
+        }
+        record.reset();
+        ShardRecordCodec.write(recordOut, shards.next());
+        recordOut.flush();
+        ByteBuffer bytes = record.asByteBuffer();
+        if (bytes.remaining() + 4 > buffer.remaining()) {
+          // larger than any shard, write it past the buffer
+          write(channel, buffer);
+          ByteBuffer length = ByteBuffer.allocate(4);
+          length.putInt(bytes.remaining());
+          length.flip();
+          channel.write(length);
+          while (bytes.hasRemaining()) {
+            channel.write(bytes);
+          }
+        } else {
+          buffer.putInt(bytes.remaining());
+          buffer.put(bytes);
+        }
+        records++;
+      }
+      return checkpoint(channel, buffer, manifestFile, kind, records, null,
+          true);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Writes out the buffer, forces it to disk and saves the manifest.
+   * 
+   * @return the number of records
+   */
+  private long checkpoint(FileChannel channel, ByteBuffer buffer,
+      File manifestFile, String kind, long records, Cursor cursor,
+      boolean complete) throws IOException {
+    write(channel, buffer);
+    channel.force(false);
+    Properties manifest = new Properties();
+    manifest.setProperty(ManifestKind, kind);
+    manifest.setProperty(ManifestRecords, Long.toString(records));
+    manifest.setProperty(ManifestLength, Long.toString(channel.position()));
+    if (cursor != null) {
+      manifest.setProperty(ManifestCursor, cursor.toWebSafeString());
+    }
+    manifest.setProperty(ManifestComplete, Boolean.toString(complete));
+    writeManifest(manifestFile, manifest);
+    return records;
+  }
+
+  /**
+   * Writes out and clears the buffer.
+   */
+  private static void write(FileChannel channel, ByteBuffer buffer)
+      throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+
+  /**
+   * @return the manifest, or <code>null</code> if there is none
+   */
+  static Properties readManifest(File manifestFile) throws IOException {
+    if (!manifestFile.exists()) {
+      return null;
+    }
+    Properties manifest = new Properties();
+    FileInputStream in = new FileInputStream(manifestFile);
+    try {
+      manifest.load(in);
+    } finally {
+      in.close();
+    }
+    return manifest;
+  }
+
+  /**
+   * Replaces the manifest through a temporary file, so that a failure part
+   * way leaves the previous manifest.
+   */
+  static void writeManifest(File manifestFile, Properties manifest)
+      throws IOException {
+    File temporary = new File(manifestFile.getPath() + ".tmp");
+    FileOutputStream out = new FileOutputStream(temporary);
+    try {
+      manifest.store(out, null);
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+    if (!temporary.renameTo(manifestFile)) {
+      // renaming over an existing file fails on some platforms
+      manifestFile.delete();
+      if (!temporary.renameTo(manifestFile)) {
+        throw new IOException("Could not replace " + manifestFile);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,297 @@
+/**
+ * Copyright 2010 Tristan Slominski
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mindash.datastore.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.inject.Inject;
+import com.mindash.datastore.DatastoreHelper;
+import com.mindash.datastore.MindashDatastoreConfig;
+
+/**
+ * <p>
+ * Loads a file written by {@link ShardExporter} back into the datastore.
+ * The file is read through memory mapped windows and its records, which are
+ * already shards, are stored in batches as they are read, so memory use
+ * does not depend on the size of the file. Batches are stored concurrently,
+ * at most {@link MindashDatastoreConfig#getMaximumChunksInFlight()} at a
+ * time, if a chunk executor is set.
+ * </p>
+ * <p>
+ * Each time a batch is stored, the length of the file stored so far is saved
+ * to a checkpoint next to the file; batches are finished in file order, so
+ * everything before it is in the datastore. Importing the same file again
+ * resumes from the checkpoint.
+ * </p>
+ * <p>
+ * Shards are stored as they are, bypassing
+ * {@link MindashDatastoreConfig#getShardMetadataCache()}, so the import is
+ * meant for restoring into a datastore that does not hold the entities.
+ * </p>
+ * 
+ * @author Tristan Slominski
+ */
+public class ShardImporter {
+
+  public static int DefaultBatchBytes = 8 * 1024 * 1024;
+  public static int MappedWindowBytes = 64 * 1024 * 1024;
+  public static String CheckpointSuffix = ".import";
+
+  private static final String CheckpointLength = "length";
+  private static final String CheckpointRecords = "records";
+  private static final String CheckpointComplete = "complete";
+
+  /** a batch of records and where the file stands after them */
+  private static class Batch {
+    private List<Entity> shards = new ArrayList<Entity>();
+    private int bytes;
+    private long endPosition;
+    private long endRecords;
+  }
+
+  private DatastoreService datastore;
+  private DatastoreHelper datastoreHelper;
+  private MindashDatastoreConfig config;
+  private int batchBytes = DefaultBatchBytes;
+
+  @Inject
+  public ShardImporter(DatastoreService datastore,
+      DatastoreHelper datastoreHelper, MindashDatastoreConfig config) {
+    this.datastore = datastore;
+    this.datastoreHelper = datastoreHelper;
+    this.config = config;
+  }
+
+  /**
+   * @param batchBytes the number of record bytes to store per batch, a
+   * batch also holds at most {@link DatastoreHelper#PutChunkSize} records
+   */
+  public void setBatchBytes(int batchBytes) {
+    this.batchBytes = batchBytes;
+  }
+
+  /**
+   * @param file an export file
+   * @return the checkpoint of an import of the file
+   */
+  public static File getCheckpointFile(File file) {
+    return new File(file.getPath() + CheckpointSuffix);
+  }
+
+  /**
+   * Stores every record of an export file, resuming an import of the same
+   * file that did not complete. If the export did not complete, only the
+   * records up to its last checkpoint are stored.
+   * 
+   * @param file the export file
+   * @return the number of records stored, including those stored before
+   * resuming
+   * @throws IOException if the file is not an export file or cannot be read
+   */
+  public long importFile(File file) throws IOException {
+    File checkpointFile = getCheckpointFile(file);
+    Properties checkpoint = ShardExporter.readManifest(checkpointFile);
+    if (checkpoint != null
+        && Boolean.parseBoolean(checkpoint.getProperty(CheckpointComplete))) {
+      return Long.parseLong(checkpoint.getProperty(CheckpointRecords));
+    }
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = in.getChannel();
+      long end = getExportedLength(file, channel.size());
+      if (end < ShardRecordCodec.FileHeaderLength) {
+        throw new IOException(file + " is not an export file");
+      }
+      ByteBuffer header =
+          channel.map(FileChannel.MapMode.READ_ONLY, 0,
+              ShardRecordCodec.FileHeaderLength);
+      if (header.getInt() != ShardRecordCodec.FileMagic) {
+        throw new IOException(file + " is not an export file");
+      }
+      int version = header.getInt();
+      if (version != ShardRecordCodec.FileVersion) {
+        throw new IOException(file + " has unknown export format version "
+            + version);
+      }
+      long position = ShardRecordCodec.FileHeaderLength;
+      long records = 0;
+      if (checkpoint != null) {
+        position = Long.parseLong(checkpoint.getProperty(CheckpointLength));
+        records = Long.parseLong(checkpoint.getProperty(CheckpointRecords));
+      }
+      LinkedList<Future<Batch>> inFlight = new LinkedList<Future<Batch>>();
+      try {
+        MappedByteBuffer window = null;
+        long windowStart = 0;
+        Batch batch = new Batch();
+        while (position < end) {
+          int offset = (int) (position - windowStart);
+          if (window == null || window.limit() - offset < 4
+              || window.limit() - offset < 4 + window.getInt(offset)) {
+            window = map(channel, position, end);
+            windowStart = position;
+            offset = 0;
+          }
+          int length = window.getInt(offset);
+          window.position(offset + 4);
+          ByteBuffer record = window.slice();
+          record.limit(length);
+          batch.shards.add(ShardRecordCodec.read(record));
+          batch.bytes += length;
+          position += 4 + length;
+          records++;
+          if (batch.bytes >= batchBytes
+              || batch.shards.size() >= DatastoreHelper.PutChunkSize) {
+            batch.endPosition = position;
+            batch.endRecords = records;
+            store(batch, inFlight, checkpointFile);
+            batch = new Batch();
+          }
+        }
+        if (!batch.shards.isEmpty()) {
+          batch.endPosition = position;
+          batch.endRecords = records;
+          store(batch, inFlight, checkpointFile);
+        }
+        while (!inFlight.isEmpty()) {
+          saveCheckpoint(checkpointFile, await(inFlight.removeFirst()), false);
+        }
+      } finally {
+        // only non-empty if a batch failed
+        for (Future<Batch> future : inFlight) {
+          future.cancel(true);
+        }
+      }
+      Batch done = new Batch();
+      done.endPosition = position;
+      done.endRecords = records;
+      saveCheckpoint(checkpointFile, done, true);
+      return records;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * @return the length of the file up to the last checkpoint of its export,
+   * or the whole length if the export has no manifest
+   */
+  private static long getExportedLength(File file, long fileLength)
+      throws IOException {
+    Properties manifest =
+        ShardExporter.readManifest(ShardExporter.getManifestFile(file));
+    if (manifest == null
+        || manifest.getProperty(ShardExporter.ManifestLength) == null) {
+      return fileLength;
+    }
+    return Math.min(fileLength, Long.parseLong(manifest
+        .getProperty(ShardExporter.ManifestLength)));
+  }
+
+  /**
+   * Maps a window of the file starting at a record, large enough to hold
+   * the whole record.
+   */
+  private static MappedByteBuffer map(FileChannel channel, long position,
+      long end) throws IOException {
+    if (end - position < 4) {
+      throw new IOException("Truncated export record at " + position);
+    }
+    int length =
+        channel.map(FileChannel.MapMode.READ_ONLY, position, 4).getInt(0);
+    long size = Math.min(Math.max(MappedWindowBytes, 4L + length), end
+        - position);
+    if (length < 0 || size < 4L + length) {
+      throw new IOException("Truncated export record at " + position);
+    }
+    return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+  }
+
+  /**
+   * Stores a batch, in the background if there is a chunk executor. Once
+   * the window of batches in flight is full, waits for the oldest and saves
+   * the checkpoint after it.
+   */
+  private void store(final Batch batch, LinkedList<Future<Batch>> inFlight,
+      File checkpointFile) throws IOException {
+    ExecutorService executor = config.getChunkExecutor();
+    if (executor == null) {
+      datastoreHelper.put(datastore, batch.shards);
+      saveCheckpoint(checkpointFile, batch, false);
+      return;
+    }
+    if (inFlight.size() >= config.getMaximumChunksInFlight()) {
+      saveCheckpoint(checkpointFile, await(inFlight.removeFirst()), false);
+    }
+    inFlight.add(executor.submit(new ApiEnvironmentCallable<Batch>(
+        new Callable<Batch>() {
+          public Batch call() {
+            datastoreHelper.put(datastore, batch.shards);
+            // the shards are not needed once stored
+            batch.shards = null;
+            return batch;
+          }
+        })));
+  }
+
+  private static void saveCheckpoint(File checkpointFile, Batch batch,
+      boolean complete) throws IOException {
+    Properties checkpoint = new Properties();
+    checkpoint.setProperty(CheckpointLength, Long.toString(batch.endPosition));
+    checkpoint.setProperty(CheckpointRecords, Long.toString(batch.endRecords));
+    checkpoint.setProperty(CheckpointComplete, Boolean.toString(complete));
+    ShardExporter.writeManifest(checkpointFile, checkpoint);
+  }
+
+  /**
+   * Waits for a batch to be stored, rethrowing whatever the datastore threw.
+   */
+  private static Batch await(Future<Batch> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new DatastoreFailureException(
+          "Interrupted while waiting for an import batch", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new DatastoreFailureException("Import batch failed", cause);
+    }
+  }
+
+}
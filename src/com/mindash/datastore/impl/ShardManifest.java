@@ -0,0 +1,567 @@
+/**
+ * Copyright 2010 Tristan Slominski
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mindash.datastore.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Entity;
+import com.mindash.datastore.EntityCorruptException;
+import com.mindash.datastore.MindashDatastoreService;
+
+/**
+ * <p>
+ * Describes the layout of a sharded entity: for every property, the shards
+ * it occupies and, for Blobs, the length of the piece in each shard (from
+ * which the byte offsets follow). The manifest is stored in the 0th shard
+ * under {@link MindashDatastoreService#MindashManifestLabel}, so a reader can
+ * plan exactly which shards to fetch and assemble them without guessing.
+ * </p>
+ * <p>
+ * A deduplicated Blob is not held by any shard; its pieces are chunks stored
+ * once under their content hash (see {@link BlobChunkStore}) and the
+ * manifest lists the hash of each piece instead.
+ * </p>
+ * <p>
+ * Encoding, version 3 (all integers are unsigned varints):
+ * </p>
+ *
+ * <pre>
+ * byte    format version
+ * varint  shard count
+ * varint  property count
+ * for each property:
+ *   UTF     name
+ *   byte    flags (1 = Blob, 2 = encoded, 4 = chunked)
+ *   varint  first shard
+ *   Blobs only:
+ *     varint  piece count
+ *     varint  length of each piece
+ *   chunked Blobs only:
+ *     UTF     content hash of each piece
+ *   encoded Blobs only:
+ *     UTF     codec name
+ *     varint  decoded length
+ * </pre>
+ * <p>
+ * Version 2 is the same without chunked Blobs, version 1 also without
+ * encoded Blobs. Entities without a manifest are format version 0 and are
+ * read by scanning their shards.
+ * </p>
+ *
+ * @author Tristan Slominski
+ */
+public class ShardManifest {
+
+  /** entities stored before manifests existed */
+  public static final int LegacyVersion = 0;
+  public static final int CurrentVersion = 3;
+
+  private static final int FlagBlob = 1;
+  private static final int FlagEncoded = 2;
+  private static final int FlagChunked = 4;
+
+  /**
+   * The shards occupied by a single property.
+   */
+  public static class PropertySpan {
+    private String name;
+    private boolean blob;
+    private int firstShard;
+    private List<Integer> pieceLengths = new ArrayList<Integer>();
+    private List<String> chunkHashes;
+    private String codec;
+    private long decodedLength = -1;
+
+    PropertySpan(String name, boolean blob, int firstShard) {
+      this.name = name;
+      this.blob = blob;
+      this.firstShard = firstShard;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * @return <code>true</code> if the property is a Blob
+     */
+    public boolean isBlob() {
+      return blob;
+    }
+
+    public int getFirstShard() {
+      return firstShard;
+    }
+
+    public int getLastShard() {
+      return firstShard + getShardSpan() - 1;
+    }
+
+    /**
+     * @return the number of shards the property occupies, 0 for a chunked
+     * Blob
+     */
+    public int getShardSpan() {
+      if (isChunked()) {
+        return 0;
+      }
+      return blob ? pieceLengths.size() : 1;
+    }
+
+    /**
+     * @return <code>true</code> if the Blob is stored in content addressed
+     * chunks instead of in the shards
+     */
+    public boolean isChunked() {
+      return chunkHashes != null;
+    }
+
+    /**
+     * @return the number of pieces of a Blob
+     */
+    public int getPieceCount() {
+      return pieceLengths.size();
+    }
+
+    /**
+     * @return the content hashes of the chunks of a chunked Blob, in order
+     */
+    public List<String> getChunkHashes() {
+      return Collections.unmodifiableList(chunkHashes);
+    }
+
+    /**
+     * @param piece the index of the piece, 0 is in the first shard
+     * @return the length of the piece
+     */
+    public int getPieceLength(int piece) {
+      return pieceLengths.get(piece);
+    }
+
+    /**
+     * @param piece the index of the piece, 0 is in the first shard
+     * @return the offset of the piece within the blob
+     */
+    public long getPieceOffset(int piece) {
+      long offset = 0;
+      for (int i = 0; i < piece; i++) {
+        offset += pieceLengths.get(i);
+      }
+      return offset;
+    }
+
+    /**
+     * @return the total length of the blob, or -1 if the property is not a
+     * Blob
+     */
+    public long getLength() {
+      if (!blob) {
+        return -1;
+      }
+      return getPieceOffset(pieceLengths.size());
+    }
+
+    /**
+     * @return the name of the codec the stored bytes were encoded with, or
+     * <code>null</code> if they are stored as they are
+     */
+    public String getCodec() {
+      return codec;
+    }
+
+    /**
+     * @return the length of the blob once decoded, or -1 if the blob is not
+     * encoded
+     */
+    public long getDecodedLength() {
+      return decodedLength;
+    }
+
+    /**
+     * Records that the stored bytes were encoded.
+     *
+     * @param codec the name of the codec
+     * @param decodedLength the length of the blob before it was encoded
+     */
+    void setCodec(String codec, long decodedLength) {
+      this.codec = codec;
+      this.decodedLength = decodedLength;
+    }
+  }
+
+  /**
+   * Builds the manifest of freshly planned shards.
+   *
+   * @param shards the shards of an entity, in order
+   * @return the manifest describing <code>shards</code>
+   */
+  public static ShardManifest fromShards(List<Entity> shards) {
+    ShardManifest manifest = new ShardManifest(CurrentVersion, shards.size());
+    for (int i = 0; i < shards.size(); i++) {
+      for (Entry<String, Object> property : shards.get(i).getProperties()
+          .entrySet()) {
+        String name = property.getKey();
+        if (MindashDatastoreServiceImpl.isMindashProperty(name)) {
+          continue;
+        }
+        Object value = property.getValue();
+        PropertySpan span = manifest.spans.get(name);
+        if (span == null) {
+          span = new PropertySpan(name, value instanceof Blob, i);
+          manifest.spans.put(name, span);
+        }
+        if (span.isBlob()) {
+          span.pieceLengths.add(((Blob) value).getBytes().length);
+        }
+      }
+    }
+    return manifest;
+  }
+
+  /**
+   * Builds the manifest of an entity that consists of a single Blob.
+   *
+   * @param shardCount the number of shards of the entity
+   * @param propertyName the name of the blob property
+   * @param firstShard the shard holding the first piece
+   * @param pieceLengths the length of each piece, in shard order
+   * @return the manifest
+   */
+  static ShardManifest forBlob(int shardCount, String propertyName,
+      int firstShard, List<Integer> pieceLengths) {
+    ShardManifest manifest = new ShardManifest(CurrentVersion, shardCount);
+    PropertySpan span = new PropertySpan(propertyName, true, firstShard);
+    span.pieceLengths.addAll(pieceLengths);
+    manifest.spans.put(propertyName, span);
+    return manifest;
+  }
+
+  /**
+   * Adds a Blob stored in content addressed chunks.
+   *
+   * @param propertyName the name of the blob property
+   * @param chunks the chunks of the blob, in order
+   * @return the span of the blob
+   */
+  PropertySpan addChunkedBlob(String propertyName,
+      List<BlobChunkStore.Chunk> chunks) {
+    PropertySpan span = new PropertySpan(propertyName, true, 0);
+    span.chunkHashes = new ArrayList<String>(chunks.size());
+    for (BlobChunkStore.Chunk chunk : chunks) {
+      span.pieceLengths.add(chunk.getLength());
+      span.chunkHashes.add(chunk.getHash());
+    }
+    spans.put(propertyName, span);
+    return span;
+  }
+
+  /**
+   * @return the content hashes of the chunks of every chunked Blob, a hash
+   * is listed once for each time it is referenced
+   */
+  public List<String> getChunkHashes() {
+    List<String> hashes = new ArrayList<String>();
+    for (PropertySpan span : spans.values()) {
+      if (span.isChunked()) {
+        hashes.addAll(span.chunkHashes);
+      }
+    }
+    return hashes;
+  }
+
+  /**
+   * Reads the manifest stored in the 0th shard.
+   *
+   * @param shard0 the 0th shard of an entity
+   * @return the manifest, or <code>null</code> if the entity was stored
+   * without one
+   * @throws EntityCorruptException if the manifest cannot be decoded
+   */
+  public static ShardManifest read(Entity shard0) throws EntityCorruptException {
+    Object value = shard0.getProperty(MindashDatastoreService.MindashManifestLabel);
+    if (value == null) {
+      return null;
+    }
+    return decode(((Blob) value).getBytes());
+  }
+
+  /**
+   * @param bytes an encoded manifest
+   * @return the decoded manifest
+   * @throws EntityCorruptException if the manifest cannot be decoded
+   */
+  public static ShardManifest decode(byte[] bytes) throws EntityCorruptException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+    try {
+      int version = in.readUnsignedByte();
+      if (version > CurrentVersion) {
+        throw new EntityCorruptException("Shard format version " + version
+            + " is newer than the supported version " + CurrentVersion);
+      }
+      ShardManifest manifest = new ShardManifest(version, readVarInt(in));
+      int propertyCount = readVarInt(in);
+      for (int i = 0; i < propertyCount; i++) {
+        String name = in.readUTF();
+        int flags = in.readUnsignedByte();
+        PropertySpan span =
+            new PropertySpan(name, (flags & FlagBlob) != 0, readVarInt(in));
+        if (span.isBlob()) {
+          int pieceCount = readVarInt(in);
+          for (int j = 0; j < pieceCount; j++) {
+            span.pieceLengths.add(readVarInt(in));
+          }
+        }
+        if (version >= 3 && (flags & FlagChunked) != 0) {
+          span.chunkHashes = new ArrayList<String>(span.pieceLengths.size());
+          for (int j = 0; j < span.pieceLengths.size(); j++) {
+            span.chunkHashes.add(in.readUTF());
+          }
+        }
+        if (version >= 2 && (flags & FlagEncoded) != 0) {
+          span.setCodec(in.readUTF(), readVarLong(in));
+        }
+        manifest.spans.put(name, span);
+      }
+      return manifest;
+    } catch (IOException e) {
+      throw new EntityCorruptException("The shard manifest is corrupt", e);
+    }
+  }
+
+  /**
+   * @param bytes the length of an encoded manifest
+   * @return the room the manifest takes up in the 0th shard
+   */
+  public static int getStoredSize(int bytes) {
+    return MindashDatastoreService.MindashAssumedPropertyOverhead
+        + MindashDatastoreService.MindashManifestLabel.length() * 4 // UTF-32
+        + bytes;
+  }
+
+  /**
+   * Estimates the room the manifest of an entity will take up in the 0th
+   * shard, before the entity is sharded.
+   *
+   * @param entity the entity about to be sharded
+   * @return the estimated stored size of the manifest
+   */
+  public static int estimateStoredSize(Entity entity) {
+    int bytes = 1 + 5 + 5;
+    for (Entry<String, Object> property : entity.getProperties().entrySet()) {
+      bytes += 2 + property.getKey().length() * 3 + 1 + 5;
+      if (property.getValue() instanceof Blob) {
+        int length = ((Blob) property.getValue()).getBytes().length;
+        int pieces =
+            length / (MindashDatastoreService.MindashEntityMaximumSize
+                - MindashDatastoreService.MindashInitialEntityOverheadSize
+                - MindashDatastoreServiceImpl.getPropertyOverheadSize(property)) + 2;
+        // piece lengths, and a codec name and decoded length
+        bytes += 5 + pieces * 5 + 64;
+      }
+    }
+    return getStoredSize(bytes);
+  }
+
+  /**
+   * Estimates the room the span of a chunked Blob takes up in the encoded
+   * manifest.
+   *
+   * @param propertyName the name of the blob property
+   * @param chunkCount the number of chunks of the blob
+   * @return the estimated encoded length of the span
+   */
+  public static int estimateChunkedBlobSize(String propertyName,
+      int chunkCount) {
+    // name, flags and first shard, piece count, a codec name and decoded
+    // length, and a length and a hex hash for every piece
+    return 2 + propertyName.length() * 3 + 1 + 5 + 5 + 64 + chunkCount
+        * (5 + 2 + 40);
+  }
+
+  private static int readVarInt(DataInputStream in) throws IOException {
+    long value = readVarLong(in);
+    if (value > Integer.MAX_VALUE) {
+      throw new IOException("Malformed varint");
+    }
+    return (int) value;
+  }
+
+  private static long readVarLong(DataInputStream in) throws IOException {
+    long value = 0;
+    int shift = 0;
+    while (true) {
+      int b = in.readUnsignedByte();
+      value |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+      shift += 7;
+      if (shift > 56) {
+        throw new IOException("Malformed varint");
+      }
+    }
+  }
+
+  private static void writeVarLong(DataOutputStream out, long value)
+      throws IOException {
+    while ((value & ~0x7fL) != 0) {
+      out.writeByte((int) ((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+
+  private int version;
+  private int shardCount;
+  private Map<String, PropertySpan> spans =
+      new LinkedHashMap<String, PropertySpan>();
+
+  ShardManifest(int version, int shardCount) {
+    this.version = version;
+    this.shardCount = shardCount;
+  }
+
+  /**
+   * @return the shard format version the entity was stored with
+   */
+  public int getVersion() {
+    return version;
+  }
+
+  /**
+   * @return one more than the highest shard index of the entity; an entity
+   * written by a blob writer does not use all the indexes below it, see
+   * {@link #getShards()}
+   */
+  public int getShardCount() {
+    return shardCount;
+  }
+
+  /**
+   * @return the spans of all the properties
+   */
+  public Collection<PropertySpan> getPropertySpans() {
+    return Collections.unmodifiableCollection(spans.values());
+  }
+
+  /**
+   * @param propertyName the name of a property
+   * @return the span of the property, or <code>null</code> if the entity
+   * does not have it
+   */
+  public PropertySpan getPropertySpan(String propertyName) {
+    return spans.get(propertyName);
+  }
+
+  /**
+   * @param propertyNames the names of properties
+   * @return the indexes of the shards holding any of the properties, in
+   * order
+   */
+  public SortedSet<Integer> getShardsFor(Collection<String> propertyNames) {
+    SortedSet<Integer> shards = new TreeSet<Integer>();
+    for (String propertyName : propertyNames) {
+      PropertySpan span = spans.get(propertyName);
+      if (span != null) {
+        for (int i = span.getFirstShard(); i <= span.getLastShard(); i++) {
+          shards.add(i);
+        }
+      }
+    }
+    return shards;
+  }
+
+  /**
+   * @return the indexes of the shards holding any property, in order; the
+   * shards in between are not part of the entity
+   */
+  public SortedSet<Integer> getShards() {
+    return getShardsFor(spans.keySet());
+  }
+
+  /**
+   * @return the encoded manifest
+   */
+  public byte[] encode() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeByte(version);
+      writeVarLong(out, shardCount);
+      writeVarLong(out, spans.size());
+      for (PropertySpan span : spans.values()) {
+        out.writeUTF(span.getName());
+        int flags = span.isBlob() ? FlagBlob : 0;
+        if (span.getCodec() != null) {
+          flags |= FlagEncoded;
+        }
+        if (span.isChunked()) {
+          flags |= FlagChunked;
+        }
+        out.writeByte(flags);
+        writeVarLong(out, span.getFirstShard());
+        if (span.isBlob()) {
+          writeVarLong(out, span.pieceLengths.size());
+          for (int pieceLength : span.pieceLengths) {
+            writeVarLong(out, pieceLength);
+          }
+        }
+        if (span.isChunked()) {
+          for (String chunkHash : span.chunkHashes) {
+            out.writeUTF(chunkHash);
+          }
+        }
+        if (span.getCodec() != null) {
+          out.writeUTF(span.getCodec());
+          writeVarLong(out, span.getDecodedLength());
+        }
+      }
+      out.flush();
+    } catch (IOException e) {
+      // writing to memory, should never happen
+      throw new IllegalStateException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Stores the manifest in the 0th shard.
+   *
+   * @param shard0 the 0th shard
+   * @return the encoded length of the manifest
+   */
+  public int write(Entity shard0) {
+    byte[] bytes = encode();
+    shard0.setUnindexedProperty(MindashDatastoreService.MindashManifestLabel,
+        new Blob(bytes));
+    return bytes.length;
+  }
+
+}
@@ -0,0 +1,287 @@
+/**
+ * Copyright 2010 Tristan Slominski
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mindash.datastore.impl;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Link;
+import com.google.appengine.api.datastore.ShortBlob;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.users.User;
+
+/**
+ * <p>
+ * Encodes stored entities, shards and chunks alike, as the records of an
+ * export file, see {@link ShardExporter}. Every record is the shard exactly
+ * as the datastore holds it, so Blobs are exported a shard at a time and
+ * never assembled.
+ * </p>
+ * <p>
+ * Export file (all integers are big endian):
+ * </p>
+ * 
+ * <pre>
+ * int     magic, &quot;MDDE&quot;
+ * int     file format version
+ * for each record:
+ *   int     record length
+ *   bytes   record
+ * </pre>
+ * <p>
+ * Record:
+ * </p>
+ * 
+ * <pre>
+ * bytes   key, as a key string
+ * int     property count
+ * for each property:
+ *   bytes   name
+ *   byte    1 if unindexed, 0 otherwise
+ *   value
+ * </pre>
+ * <p>
+ * A value is a type byte followed by its payload: nothing for null, bytes
+ * for Blobs, ShortBlobs, strings, Links and Texts, a long for whole numbers,
+ * dates and the bits of floating point numbers, a byte for booleans, a key
+ * string for keys, the email and auth domain for users, and a count and
+ * that many values for collections. Bytes are an int length and the bytes,
+ * strings are UTF-8.
+ * </p>
+ * <p>
+ * Whether a property is unindexed is read with
+ * {@link Entity#isUnindexedProperty(String)}, so exporting needs App Engine
+ * SDK 1.3.1 or later.
+ * </p>
+ * 
+ * @author Tristan Slominski
+ */
+public class ShardRecordCodec {
+
+  public static final int FileMagic = 0x4d444445;
+  public static final int FileVersion = 1;
+  /** the length of the magic and version at the start of an export file */
+  public static final int FileHeaderLength = 8;
+
+  private static final byte TypeNull = 0;
+  private static final byte TypeBlob = 1;
+  private static final byte TypeShortBlob = 2;
+  private static final byte TypeString = 3;
+  private static final byte TypeLong = 4;
+  private static final byte TypeDouble = 5;
+  private static final byte TypeBoolean = 6;
+  private static final byte TypeDate = 7;
+  private static final byte TypeKey = 8;
+  private static final byte TypeUser = 9;
+  private static final byte TypeLink = 10;
+  private static final byte TypeText = 11;
+  private static final byte TypeCollection = 12;
+
+  /**
+   * @param out the output to write the record to
+   * @param shard the stored entity, its key must have a name as shard and
+   * chunk keys do
+   * @throws IOException if the output cannot be written
+   * @throws IllegalArgumentException if the key has no name or a property
+   * has a type that cannot be exported
+   */
+  public static void write(DataOutput out, Entity shard) throws IOException {
+    if (shard.getKey().getName() == null) {
+      throw new IllegalArgumentException("Cannot export " + shard.getKey()
+          + ", only named keys can be exported");
+    }
+    writeBytes(out, utf8(KeyFactory.keyToString(shard.getKey())));
+    Map<String, Object> properties = shard.getProperties();
+    out.writeInt(properties.size());
+    for (Map.Entry<String, Object> property : properties.entrySet()) {
+      writeBytes(out, utf8(property.getKey()));
+      out.writeByte(shard.isUnindexedProperty(property.getKey()) ? 1 : 0);
+      writeValue(out, property.getValue());
+    }
+  }
+
+  /**
+   * @param in the buffer positioned at the start of a record, after its
+   * length
+   * @return the stored entity
+   * @throws IOException if the record is malformed
+   */
+  public static Entity read(ByteBuffer in) throws IOException {
+    try {
+      Key key = KeyFactory.stringToKey(readString(in));
+      Entity shard = null;
+      if (key.getParent() != null) {
+        shard = new Entity(key.getKind(), key.getName(), key.getParent());
+      } else {
+        shard = new Entity(key.getKind(), key.getName());
+      }
+      int propertyCount = in.getInt();
+      for (int i = 0; i < propertyCount; i++) {
+        String name = readString(in);
+        boolean unindexed = in.get() == 1;
+        Object value = readValue(in);
+        if (unindexed) {
+          shard.setUnindexedProperty(name, value);
+        } else {
+          shard.setProperty(name, value);
+        }
+      }
+      return shard;
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Truncated export record");
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Malformed export record: " + e.getMessage());
+    }
+  }
+
+  private static void writeValue(DataOutput out, Object value)
+      throws IOException {
+    if (value == null) {
+      out.writeByte(TypeNull);
+    } else if (value instanceof Blob) {
+      out.writeByte(TypeBlob);
+      writeBytes(out, ((Blob) value).getBytes());
+    } else if (value instanceof ShortBlob) {
+      out.writeByte(TypeShortBlob);
+      writeBytes(out, ((ShortBlob) value).getBytes());
+    } else if (value instanceof String) {
+      out.writeByte(TypeString);
+      writeBytes(out, utf8((String) value));
+    } else if (value instanceof Long || value instanceof Integer
+        || value instanceof Short || value instanceof Byte) {
+      out.writeByte(TypeLong);
+      out.writeLong(((Number) value).longValue());
+    } else if (value instanceof Double || value instanceof Float) {
+      out.writeByte(TypeDouble);
+      out.writeLong(Double.doubleToLongBits(((Number) value).doubleValue()));
+    } else if (value instanceof Boolean) {
+      out.writeByte(TypeBoolean);
+      out.writeByte(((Boolean) value) ? 1 : 0);
+    } else if (value instanceof Date) {
+      out.writeByte(TypeDate);
+      out.writeLong(((Date) value).getTime());
+    } else if (value instanceof Key) {
+      out.writeByte(TypeKey);
+      writeBytes(out, utf8(KeyFactory.keyToString((Key) value)));
+    } else if (value instanceof User) {
+      User user = (User) value;
+      out.writeByte(TypeUser);
+      writeBytes(out, utf8(user.getEmail()));
+      writeBytes(out, utf8(user.getAuthDomain()));
+    } else if (value instanceof Link) {
+      out.writeByte(TypeLink);
+      writeBytes(out, utf8(((Link) value).getValue()));
+    } else if (value instanceof Text) {
+      out.writeByte(TypeText);
+      writeBytes(out, utf8(((Text) value).getValue()));
+    } else if (value instanceof Collection<?>) {
+      Collection<?> values = (Collection<?>) value;
+      out.writeByte(TypeCollection);
+      out.writeInt(values.size());
+      for (Object element : values) {
+        writeValue(out, element);
+      }
+    } else {
+      throw new IllegalArgumentException("Cannot export a property of type "
+          + value.getClass().getName());
+    }
+  }
+
+  private static Object readValue(ByteBuffer in) throws IOException {
+    byte type = in.get();
+    switch (type) {
+      case TypeNull:
+        return null;
+      case TypeBlob:
+        return new Blob(readBytes(in));
+      case TypeShortBlob:
+        return new ShortBlob(readBytes(in));
+      case TypeString:
+        return readString(in);
+      case TypeLong:
+        return in.getLong();
+      case TypeDouble:
+        return Double.longBitsToDouble(in.getLong());
+      case TypeBoolean:
+        return in.get() == 1;
+      case TypeDate:
+        return new Date(in.getLong());
+      case TypeKey:
+        return KeyFactory.stringToKey(readString(in));
+      case TypeUser:
+        return new User(readString(in), readString(in));
+      case TypeLink:
+        return new Link(readString(in));
+      case TypeText:
+        return new Text(readString(in));
+      case TypeCollection:
+        int count = in.getInt();
+        if (count < 0) {
+          throw new IOException("Malformed export record");
+        }
+        List<Object> values = new ArrayList<Object>(count);
+        for (int i = 0; i < count; i++) {
+          values.add(readValue(in));
+        }
+        return values;
+      default:
+        throw new IOException("Unknown value type " + type
+            + " in export record");
+    }
+  }
+
+  private static void writeBytes(DataOutput out, byte[] bytes)
+      throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static byte[] readBytes(ByteBuffer in) throws IOException {
+    int length = in.getInt();
+    if (length < 0 || length > in.remaining()) {
+      throw new IOException("Truncated export record");
+    }
+    byte[] bytes = new byte[length];
+    in.get(bytes);
+    return bytes;
+  }
+
+  private static String readString(ByteBuffer in) throws IOException {
+    return new String(readBytes(in), "UTF-8");
+  }
+
+  private static byte[] utf8(String s) {
+    try {
+      return s.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      // every Java platform is required to support UTF-8
+      throw new IllegalStateException(e);
+    }
+  }
+
+}
@@ -0,0 +1,373 @@
+/**
+ * Copyright 2010 Tristan Slominski
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mindash.datastore.impl;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadFactory;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.mindash.datastore.DatastoreHelper;
+import com.mindash.datastore.EntityCorruptException;
+import com.mindash.datastore.EntityVisitor;
+import com.mindash.datastore.MindashDatastoreService;
+
+/**
+ * <p>
+ * Checks that every entity of a kind can be read, walking the kind over
+ * several key ranges at once like
+ * {@link MindashDatastoreService#forEachParallel}. The shard keys of a range
+ * are read with a keys only query and, a page of entities at a time, only
+ * the 0th shards are retrieved. An entity is corrupt if:
+ * </p>
+ * <ul>
+ * <li>it has shards but no 0th shard, or a 0th shard without a shard
+ * count,</li>
+ * <li>a shard its manifest lists, or any shard below the shard count of an
+ * entity without a manifest, is missing,</li>
+ * <li>its manifest cannot be decoded, or disagrees with the shard count,</li>
+ * <li>its 0th shard does not match its checksum.</li>
+ * </ul>
+ * <p>
+ * Shards at or past the shard count, and shards a manifest does not list,
+ * do not stop an entity from being read; they are reported as orphans for
+ * {@link OrphanShardCollector}. A blob writer leaves unused shard indexes
+ * below the shard count, which are not missing shards. The listed
+ * shards are only retrieved, a few at a time and never assembled, if
+ * {@link #setVerifyChecksums(boolean)} is set.
+ * </p>
+ * 
+ * @author Tristan Slominski
+ */
+public class ShardVerifier extends ParallelKeyRangeScan {
+
+  /** entities whose 0th shards are retrieved in one batch */
+  public static int DefaultPageSize = 100;
+  /** shards of an entity retrieved at once to check their checksums */
+  public static int ChecksumBatchShards = 8;
+
+  /** a visitor for verifiers whose progress nobody follows */
+  private static final EntityVisitor NoProgress = new EntityVisitor() {
+    public void visit(Entity entity) {
+    }
+
+    public void rangeScanned(int rangesScanned, int rangeCount,
+        long entitiesVisited) {
+    }
+  };
+
+  /**
+   * The findings of a verifier, safe to read while it runs.
+   */
+  public static class Report {
+    private Map<Key, String> corruptEntities = new LinkedHashMap<Key, String>();
+    private List<Key> orphanShards = new ArrayList<Key>();
+    private long entitiesChecked;
+    private long shardsChecked;
+
+    /**
+     * @return the keys of the corrupt entities, with what is wrong with each
+     */
+    public synchronized Map<Key, String> getCorruptEntities() {
+      return new LinkedHashMap<Key, String>(corruptEntities);
+    }
+
+    /**
+     * @return the keys of the shards at or past the shard count of their
+     * entity, or of entities without a 0th shard
+     */
+    public synchronized List<Key> getOrphanShards() {
+      return new ArrayList<Key>(orphanShards);
+    }
+
+    public synchronized long getEntitiesChecked() {
+      return entitiesChecked;
+    }
+
+    public synchronized long getShardsChecked() {
+      return shardsChecked;
+    }
+
+    private synchronized boolean addCorruptEntity(Key key, String problem) {
+      if (corruptEntities.containsKey(key)) {
+        return false;
+      }
+      corruptEntities.put(key, problem);
+      return true;
+    }
+
+    private synchronized void addOrphanShard(Key key) {
+      orphanShards.add(key);
+    }
+
+    private synchronized void addChecked(long entities, long shards) {
+      entitiesChecked += entities;
+      shardsChecked += shards;
+    }
+  }
+
+  private DatastoreService datastore;
+  private DatastoreHelper datastoreHelper;
+  private int pageSize = DefaultPageSize;
+  private boolean verifyChecksums;
+  private Queue<Key> repairQueue;
+  private Report report = new Report();
+
+  /**
+   * @param datastore the datastore to read the shards from
+   * @param datastoreHelper the helper to retrieve batches of shards with
+   * @param kind the kind to verify
+   * @param workers the number of key ranges to walk at once
+   * @param progress receives the progress of the verifier, its
+   * <code>visit</code> is not called; can be <code>null</code>
+   * @param threadFactory the factory of the threads walking the ranges,
+   * <code>null</code> to walk them on the calling thread
+   */
+  public ShardVerifier(DatastoreService datastore,
+      DatastoreHelper datastoreHelper, String kind, int workers,
+      EntityVisitor progress, ThreadFactory threadFactory) {
+    super(datastore, null, new Query(kind), workers,
+        progress != null ? progress : NoProgress, threadFactory);
+    this.datastore = datastore;
+    this.datastoreHelper = datastoreHelper;
+  }
+
+  /**
+   * @param pageSize the number of entities whose 0th shards are retrieved in
+   * one batch
+   */
+  public void setPageSize(int pageSize) {
+    if (pageSize < 1) {
+      throw new IllegalArgumentException("pageSize must be at least 1");
+    }
+    this.pageSize = pageSize;
+  }
+
+  /**
+   * @param verifyChecksums <code>true</code> to also retrieve every shard
+   * other than the 0th and check it against its checksum
+   */
+  public void setVerifyChecksums(boolean verifyChecksums) {
+    this.verifyChecksums = verifyChecksums;
+  }
+
+  /**
+   * @param repairQueue a queue safe for concurrent use that the key of every
+   * corrupt entity is offered to as soon as it is found, can be
+   * <code>null</code>
+   */
+  public void setRepairQueue(Queue<Key> repairQueue) {
+    this.repairQueue = repairQueue;
+  }
+
+  /**
+   * @return the findings so far
+   */
+  public Report getReport() {
+    return report;
+  }
+
+  /**
+   * Walks the whole kind.
+   * 
+   * @return the findings
+   */
+  public Report verify() {
+    run();
+    return report;
+  }
+
+  /**
+   * Collects the shard indexes of each entity of the range, which the key
+   * order keeps together, and checks them a page of entities at a time.
+   */
+  @Override
+  protected void scan(Query range) {
+    QueryResultIterator<Entity> shardKeys =
+        datastore.prepare(range).asQueryResultIterator(
+            FetchOptions.Builder.withChunkSize(DatastoreHelper.GetChunkSize));
+    Map<Key, SortedSet<Integer>> page =
+        new LinkedHashMap<Key, SortedSet<Integer>>();
+    Key lastKey = null;
+    SortedSet<Integer> indexes = null;
+    while (shardKeys.hasNext()) {
+      if (Thread.currentThread().isInterrupted()) {
+        return;
+      }
+      Key shardKey = shardKeys.next().getKey();
+      if (!MindashDatastoreServiceImpl.isShardKey(shardKey)) {
+        continue;
+      }
+      Key key = shardKey.getParent();
+      if (!key.equals(lastKey)) {
+        if (page.size() >= pageSize) {
+          check(page);
+          page = new LinkedHashMap<Key, SortedSet<Integer>>();
+        }
+        lastKey = key;
+        indexes = page.get(key);
+        if (indexes == null) {
+          indexes = new TreeSet<Integer>();
+          page.put(key, indexes);
+        }
+      }
+      indexes.add(MindashDatastoreServiceImpl.getShardIndex(shardKey));
+    }
+    if (!page.isEmpty()) {
+      check(page);
+    }
+  }
+
+  /**
+   * Checks a page of entities against their 0th shards.
+   * 
+   * @param page the shard indexes found for each entity
+   */
+  private void check(Map<Key, SortedSet<Integer>> page) {
+    List<Key> shard0Keys = new ArrayList<Key>(page.size());
+    for (Key key : page.keySet()) {
+      shard0Keys.add(MindashDatastoreServiceImpl.createMindashDatastoreKey(
+          key, 0));
+    }
+    Map<Key, Entity> shard0s = datastoreHelper.get(datastore, shard0Keys);
+    long shards = 0;
+    for (Map.Entry<Key, SortedSet<Integer>> entity : page.entrySet()) {
+      Key key = entity.getKey();
+      SortedSet<Integer> indexes = entity.getValue();
+      shards += indexes.size();
+      Entity shard0 =
+          shard0s.get(MindashDatastoreServiceImpl.createMindashDatastoreKey(
+              key, 0));
+      if (shard0 == null) {
+        reportCorrupt(key, "Has shards but no 0th shard");
+        for (int index : indexes) {
+          report.addOrphanShard(MindashDatastoreServiceImpl
+              .createMindashDatastoreKey(key, index));
+        }
+      } else {
+        check(key, shard0, indexes);
+      }
+      recordVisited();
+    }
+    report.addChecked(page.size(), shards);
+  }
+
+  /**
+   * Checks an entity that has a 0th shard.
+   * 
+   * @param key the key of the entity
+   * @param shard0 the 0th shard
+   * @param indexes the indexes of the shards found
+   */
+  private void check(Key key, Entity shard0, SortedSet<Integer> indexes) {
+    if (!shard0.hasProperty(MindashDatastoreService.MindashShardCountLabel)) {
+      reportCorrupt(key, "0th shard has no shard count");
+      return;
+    }
+    int shardCount = MindashDatastoreServiceImpl.getShardCount(shard0);
+    for (int index : indexes.tailSet(shardCount)) {
+      report.addOrphanShard(MindashDatastoreServiceImpl
+          .createMindashDatastoreKey(key, index));
+    }
+    if (!ShardChecksum.matches(shard0)) {
+      reportCorrupt(key, "0th shard does not match its checksum");
+      return;
+    }
+    ShardManifest manifest = null;
+    try {
+      manifest = ShardManifest.read(shard0);
+      if (manifest != null && manifest.getShardCount() != shardCount) {
+        reportCorrupt(key, "Manifest lists " + manifest.getShardCount()
+            + " shards, the shard count is " + shardCount);
+        return;
+      }
+    } catch (EntityCorruptException e) {
+      reportCorrupt(key, e.getMessage());
+      return;
+    }
+    // the shards the entity is made of
+    SortedSet<Integer> used = new TreeSet<Integer>();
+    used.add(0);
+    if (manifest != null) {
+      used.addAll(manifest.getShards());
+    } else {
+      for (int i = 1; i < shardCount; i++) {
+        used.add(i);
+      }
+    }
+    for (int index : indexes.headSet(shardCount)) {
+      if (!used.contains(index)) {
+        report.addOrphanShard(MindashDatastoreServiceImpl
+            .createMindashDatastoreKey(key, index));
+      }
+    }
+    for (int i : used) {
+      if (!indexes.contains(i)) {
+        reportCorrupt(key, "Shard " + i + " of " + shardCount
+            + " is missing");
+        return;
+      }
+    }
+    if (verifyChecksums) {
+      checkChecksums(key, used.tailSet(1));
+    }
+  }
+
+  /**
+   * Retrieves the given shards of an entity, a few at a time, and checks
+   * each against its checksum.
+   */
+  private void checkChecksums(Key key, SortedSet<Integer> shardIndexes) {
+    List<Integer> ordered = new ArrayList<Integer>(shardIndexes);
+    for (int first = 0; first < ordered.size(); first +=
+        ChecksumBatchShards) {
+      List<Key> shardKeys = new ArrayList<Key>(ChecksumBatchShards);
+      for (int i : ordered.subList(first, Math.min(first
+          + ChecksumBatchShards, ordered.size()))) {
+        shardKeys.add(MindashDatastoreServiceImpl.createMindashDatastoreKey(
+            key, i));
+      }
+      Map<Key, Entity> shards = datastoreHelper.get(datastore, shardKeys);
+      for (Key shardKey : shardKeys) {
+        Entity shard = shards.get(shardKey);
+        if (shard == null || !ShardChecksum.matches(shard)) {
+          reportCorrupt(key, "Shard "
+              + MindashDatastoreServiceImpl.getShardIndex(shardKey)
+              + (shard == null ? " is missing" : " does not match its "
+                  + "checksum"));
+          return;
+        }
+      }
+    }
+  }
+
+  private void reportCorrupt(Key key, String problem) {
+    if (report.addCorruptEntity(key, problem) && repairQueue != null) {
+      repairQueue.offer(key);
+    }
+  }
+
+}
@@ -0,0 +1,365 @@
+/**
+ * Copyright 2010 Tristan Slominski
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mindash.datastore.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.ShortBlob;
+import com.google.appengine.api.datastore.Transaction;
+import com.mindash.datastore.DatastoreHelper;
+import com.mindash.datastore.EntityCorruptException;
+
+/**
+ * <p>
+ * Streams the bytes of one Blob property of a sharded entity. A split blob
+ * occupies consecutive shards, so the stream walks the shards in order,
+ * fetching a read-ahead window of shards at a time. If the entity has a
+ * {@link ShardManifest}, only the shards the manifest lists for the property
+ * are fetched; otherwise the stream starts at the 0th shard and stops at the
+ * first shard after the blob that no longer has the property.
+ * </p>
+ * <p>
+ * If an executor is given, the next window is fetched in the background
+ * while the current one is being read.
+ * </p>
+ *
+ * @author Tristan Slominski
+ */
+public class ShardedBlobInputStream extends InputStream {
+
+  private DatastoreService datastore;
+  private DatastoreHelper datastoreHelper;
+  private ExecutorService executor;
+  private Transaction txn;
+  private Key key;
+  private String propertyName;
+  private Entity shard0;
+  /** the stream does not fetch shards at or past this index */
+  private int shardCount;
+  private int readAheadShards;
+  private boolean verifyChecksums;
+
+  /** index of the next shard to request from the datastore */
+  private int nextShardToFetch;
+  /** shards fetched but not yet looked at, in shard order */
+  private LinkedList<Entity> window = new LinkedList<Entity>();
+  /** the next window, if it is being fetched in the background */
+  private Future<List<Entity>> pendingWindow;
+
+  private byte[] piece;
+  private int position;
+  private boolean planned;
+  private boolean started;
+  private boolean finished;
+  private boolean closed;
+
+  /**
+   * @param datastore the datastore to read the shards from
+   * @param datastoreHelper the helper used for batch gets
+   * @param executor executor for background read-ahead, can be
+   * <code>null</code>
+   * @param txn the transaction, can be <code>null</code>
+   * @param key the key of the entity
+   * @param propertyName the name of the blob property
+   * @param shard0 the already retrieved 0th shard
+   * @param shardCount the number of shards of the entity
+   * @param readAheadShards the number of shards to fetch at a time
+   * @param verifyChecksums whether to check shards against their checksums
+   */
+  ShardedBlobInputStream(DatastoreService datastore,
+      DatastoreHelper datastoreHelper, ExecutorService executor,
+      Transaction txn, Key key, String propertyName, Entity shard0,
+      int shardCount, int readAheadShards, boolean verifyChecksums) {
+    this.datastore = datastore;
+    this.datastoreHelper = datastoreHelper;
+    // datastore transactions are not shared between threads
+    this.executor = txn == null ? executor : null;
+    this.txn = txn;
+    this.key = key;
+    this.propertyName = propertyName;
+    this.shardCount = shardCount;
+    this.readAheadShards = readAheadShards;
+    this.verifyChecksums = verifyChecksums;
+    this.shard0 = shard0;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!ensurePiece()) {
+      return -1;
+    }
+    return piece[position++] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (off < 0 || len < 0 || len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (len == 0) {
+      return 0;
+    }
+    if (!ensurePiece()) {
+      return -1;
+    }
+    int count = Math.min(len, piece.length - position);
+    System.arraycopy(piece, position, b, off, count);
+    position += count;
+    return count;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    long skipped = 0;
+    while (skipped < n && ensurePiece()) {
+      int count = (int) Math.min(n - skipped, piece.length - position);
+      position += count;
+      skipped += count;
+    }
+    return skipped;
+  }
+
+  @Override
+  public int available() throws IOException {
+    if (closed || piece == null) {
+      return 0;
+    }
+    return piece.length - position;
+  }
+
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    piece = null;
+    shard0 = null;
+    window.clear();
+    if (pendingWindow != null) {
+      pendingWindow.cancel(true);
+      pendingWindow = null;
+    }
+  }
+
+  /**
+   * Makes sure there are unread bytes in <code>piece</code>.
+   *
+   * @return <code>false</code> if the end of the blob was reached
+   * @throws IOException
+   */
+  private boolean ensurePiece() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+    if (!planned) {
+      plan();
+    }
+    while (piece == null || position >= piece.length) {
+      piece = null;
+      if (finished) {
+        return false;
+      }
+      Entity shard = nextShard();
+      if (shard == null) {
+        // ran out of shards
+        finished = true;
+        if (!started) {
+          throw new IOException("Entity " + key + " has no property \""
+              + propertyName + "\"");
+        }
+        return false;
+      }
+      if (shard.hasProperty(propertyName)) {
+        started = true;
+        piece = toBytes(shard.getProperty(propertyName));
+        position = 0;
+      } else if (started) {
+        // the pieces of a split blob are in consecutive shards
+        finished = true;
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Narrows the shards to fetch down to the span of the property, if the
+   * entity has a manifest.
+   * 
+   * @throws IOException if the 0th shard or the manifest is corrupt
+   */
+  private void plan() throws IOException {
+    planned = true;
+    ShardManifest manifest = null;
+    try {
+      if (verifyChecksums) {
+        ShardChecksum.verify(key, shard0, 0);
+      }
+      manifest = ShardManifest.read(shard0);
+    } catch (EntityCorruptException e) {
+      throw new IOException(e);
+    }
+    int firstShard = 0;
+    if (manifest != null) {
+      ShardManifest.PropertySpan span = manifest.getPropertySpan(propertyName);
+      if (span == null) {
+        // nothing to fetch, the stream reports the missing property
+        shardCount = 0;
+        shard0 = null;
+        return;
+      }
+      firstShard = span.getFirstShard();
+      shardCount = span.getLastShard() + 1;
+    }
+    if (firstShard == 0) {
+      window.add(shard0);
+      nextShardToFetch = 1;
+    } else {
+      nextShardToFetch = firstShard;
+    }
+    shard0 = null;
+  }
+
+  /**
+   * @return the next shard in order, or <code>null</code> if there are no
+   * more shards
+   * @throws IOException
+   */
+  private Entity nextShard() throws IOException {
+    if (window.isEmpty()) {
+      List<Entity> shards = null;
+      if (pendingWindow != null) {
+        shards = awaitWindow();
+      } else if (nextShardToFetch < shardCount) {
+        shards = fetchWindow(requestWindow());
+      }
+      if (shards == null) {
+        return null;
+      }
+      window.addAll(shards);
+      // start on the next window while this one is being read
+      if (executor != null && nextShardToFetch < shardCount) {
+        final List<Key> keys = requestWindow();
+        pendingWindow =
+            executor.submit(new ApiEnvironmentCallable<List<Entity>>(
+                new Callable<List<Entity>>() {
+                  public List<Entity> call() throws Exception {
+                    return fetchWindow(keys);
+                  }
+                }));
+      }
+    }
+    return window.poll();
+  }
+
+  /**
+   * @return the keys of the next window of shards
+   */
+  private List<Key> requestWindow() {
+    int end = Math.min(nextShardToFetch + readAheadShards, shardCount);
+    List<Key> keys = new ArrayList<Key>(end - nextShardToFetch);
+    for (int i = nextShardToFetch; i < end; i++) {
+      keys.add(MindashDatastoreServiceImpl.createMindashDatastoreKey(key, i));
+    }
+    nextShardToFetch = end;
+    return keys;
+  }
+
+  /**
+   * @param keys the shard keys to retrieve
+   * @return the shards in the order of <code>keys</code>
+   * @throws IOException if any of the shards is missing or does not match
+   * its checksum
+   */
+  private List<Entity> fetchWindow(List<Key> keys) throws IOException {
+    Map<Key, Entity> shards = null;
+    if (txn != null) {
+      shards = datastoreHelper.get(txn, datastore, keys);
+    } else {
+      shards = datastoreHelper.get(datastore, keys);
+    }
+    List<Entity> result = new ArrayList<Entity>(keys.size());
+    for (Key k : keys) {
+      Entity shard = shards.get(k);
+      int thisShard = MindashDatastoreServiceImpl.getShardIndex(k);
+      if (shard == null) {
+        throw new IOException(new EntityCorruptException("Shard " + thisShard
+            + " of " + key + " was not found. The entity is corrupt and "
+            + "cannot be retrieved", thisShard));
+      }
+      if (verifyChecksums) {
+        try {
+          ShardChecksum.verify(key, shard, thisShard);
+        } catch (EntityCorruptException e) {
+          throw new IOException(e);
+        }
+      }
+      result.add(shard);
+    }
+    return result;
+  }
+
+  /**
+   * @return the window fetched in the background
+   * @throws IOException
+   */
+  private List<Entity> awaitWindow() throws IOException {
+    Future<List<Entity>> future = pendingWindow;
+    pendingWindow = null;
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while reading ahead");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  /**
+   * @param value the property value
+   * @return the bytes of the value
+   * @throws IOException if the value is not a blob
+   */
+  private byte[] toBytes(Object value) throws IOException {
+    if (value instanceof Blob) {
+      return ((Blob) value).getBytes();
+    } else if (value instanceof ShortBlob) {
+      return ((ShortBlob) value).getBytes();
+    }
+    throw new IOException("Property \"" + propertyName + "\" of " + key
+        + " is not a Blob");
+  }
+
+}
@@ -0,0 +1,351 @@
+/**
+ * Copyright 2010 Tristan Slominski
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mindash.datastore.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Transaction;
+import com.mindash.datastore.BlobCodec;
+import com.mindash.datastore.DatastoreHelper;
+import com.mindash.datastore.MindashDatastoreService;
+
+/**
+ * <p>
+ * Writes an entity that consists of a single Blob property, cutting the
+ * bytes into shards as they are written. The shards are stored in batches
+ * as soon as a batch fills up; shard 0 only carries the shard count and the
+ * {@link ShardManifest}, which cannot be known before the last byte, and is
+ * stored on {@link #close()}.
+ * </p>
+ * <p>
+ * The blob goes into the shards after those of the entity being replaced,
+ * which stays whole and readable while the stream is written. Storing shard
+ * 0 switches readers to the new blob, and only then are the old shards
+ * deleted, leaving their indexes unused. A writer that fails or is abandoned
+ * before {@link #close()} leaves the old entity as it was, along with
+ * orphan shards for {@link OrphanShardCollector} to delete. Until shard 0
+ * is stored the new shards look like orphans too, so every shard carries
+ * the time its writer started under
+ * {@link MindashDatastoreService#MindashWriterLabel}, and the collector
+ * leaves the shards of a recent writer alone.
+ * </p>
+ * <p>
+ * Since the blob always starts past the old shards, rewriting an entity
+ * with blob writers moves its shards to higher indexes each time; a put of
+ * the entity moves them back to the start.
+ * </p>
+ * <p>
+ * If an executor is given, a full batch is stored in the background while
+ * the next one is being filled, so at most two batches are held in memory.
+ * </p>
+ * <p>
+ * If a codec is given, the bytes are encoded as they are written and the
+ * shards hold the encoded bytes.
+ * </p>
+ *
+ * @author Tristan Slominski
+ */
+public class ShardedBlobOutputStream extends OutputStream {
+
+  private DatastoreService datastore;
+  private DatastoreHelper datastoreHelper;
+  private ExecutorService executor;
+  private Transaction txn;
+  private Key key;
+  private String propertyName;
+  private int oldShardCount;
+  /** the index of the first shard of the blob, past the old shards */
+  private int firstShard;
+  /** when the writer started, stored with every shard */
+  private long started = System.currentTimeMillis();
+  private int batchShards;
+  private BlobCodec codec;
+  /** encodes into the shards, created on the first write */
+  private OutputStream encoder;
+  private long decodedLength;
+
+  private int capacity;
+  private byte[] buffer;
+  private int position;
+  private List<Integer> pieceLengths = new ArrayList<Integer>();
+  /** the index of the next shard to cut */
+  private int nextShard;
+  private List<Entity> batch;
+  private Future<List<Key>> pendingBatch;
+  private boolean closed;
+
+  /**
+   * @param datastore the datastore to write the shards to
+   * @param datastoreHelper the helper used for batch puts and deletes
+   * @param executor executor for storing batches in the background, can be
+   * <code>null</code>
+   * @param txn the transaction, can be <code>null</code>
+   * @param key the complete key of the entity
+   * @param propertyName the name of the blob property
+   * @param oldShardCount the shard count of the entity being replaced, 0 if
+   * there is none
+   * @param batchShards the number of shards to store in one batch
+   * @param codec the codec to encode the blob with, can be <code>null</code>
+   */
+  ShardedBlobOutputStream(DatastoreService datastore,
+      DatastoreHelper datastoreHelper, ExecutorService executor,
+      Transaction txn, Key key, String propertyName, int oldShardCount,
+      int batchShards, BlobCodec codec) {
+    this.datastore = datastore;
+    this.datastoreHelper = datastoreHelper;
+    // datastore transactions are not shared between threads
+    this.executor = txn == null ? executor : null;
+    this.txn = txn;
+    this.key = key;
+    this.propertyName = propertyName;
+    this.oldShardCount = oldShardCount;
+    this.firstShard = Math.max(oldShardCount, 1);
+    this.nextShard = firstShard;
+    this.batchShards = batchShards;
+    this.codec = codec;
+    this.capacity = getShardCapacity(propertyName);
+    this.buffer = new byte[capacity];
+    this.batch = new ArrayList<Entity>(batchShards);
+  }
+
+  /**
+   * @param propertyName the name of the blob property
+   * @return the number of blob bytes that fit into one shard
+   */
+  static int getShardCapacity(String propertyName) {
+    return MindashDatastoreService.MindashEntityMaximumSize
+        - MindashDatastoreService.MindashInitialEntityOverheadSize
+        - MindashDatastoreService.MindashAssumedPropertyOverhead
+        - propertyName.length() * 4; // allow for UTF-32
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    ensureOpen();
+    decodedLength++;
+    if (codec != null) {
+      getEncoder().write(b);
+    } else {
+      writeRaw(b);
+    }
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    ensureOpen();
+    if (off < 0 || len < 0 || len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+    decodedLength += len;
+    if (codec != null) {
+      getEncoder().write(b, off, len);
+    } else {
+      writeRaw(b, off, len);
+    }
+  }
+
+  /**
+   * Writes stored bytes into the current shard.
+   */
+  private void writeRaw(int b) throws IOException {
+    if (position == buffer.length) {
+      cutShard();
+    }
+    buffer[position++] = (byte) b;
+  }
+
+  /**
+   * Writes stored bytes into the current shard, cutting shards as they fill
+   * up.
+   */
+  private void writeRaw(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      // a full buffer is only cut once more bytes arrive, so the last shard
+      // is never empty
+      if (position == buffer.length) {
+        cutShard();
+      }
+      int count = Math.min(len, buffer.length - position);
+      System.arraycopy(b, off, buffer, position, count);
+      position += count;
+      off += count;
+      len -= count;
+    }
+  }
+
+  /**
+   * Stores the remaining shards, then shard 0 with the shard count and the
+   * manifest, and deletes the shards of the replaced entity.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    if (codec != null) {
+      // flushes the rest of the encoded bytes
+      getEncoder().close();
+    }
+    closed = true;
+    // the last shard is stored even if it is empty, so an empty blob still
+    // has its property
+    byte[] last = new byte[position];
+    System.arraycopy(buffer, 0, last, 0, position);
+    buffer = null;
+    addShard(last);
+    flushBatch();
+    awaitPendingBatch();
+
+    Entity shard0 = MindashDatastoreServiceImpl.createMindashEntityShard(key, 0);
+    shard0.setProperty(MindashDatastoreService.MindashShardCountLabel,
+        nextShard);
+    ShardManifest manifest =
+        ShardManifest.forBlob(nextShard, propertyName, firstShard,
+            pieceLengths);
+    if (codec != null) {
+      manifest.getPropertySpan(propertyName).setCodec(codec.getName(),
+          decodedLength);
+    }
+    manifest.write(shard0);
+    ShardChecksum.write(shard0);
+    if (txn != null) {
+      datastore.put(txn, shard0);
+    } else {
+      datastore.put(shard0);
+    }
+
+    // readers now go to the new shards
+    if (oldShardCount > 1) {
+      List<Key> shardsToDelete = new ArrayList<Key>();
+      for (int i = 1; i < oldShardCount; i++) {
+        shardsToDelete.add(MindashDatastoreServiceImpl
+            .createMindashDatastoreKey(key, i));
+      }
+      datastoreHelper.delete(txn, datastore, shardsToDelete);
+    }
+  }
+
+  /**
+   * Turns the full buffer into the next shard.
+   */
+  private void cutShard() throws IOException {
+    addShard(buffer);
+    if (batch.size() >= batchShards) {
+      flushBatch();
+    }
+    buffer = new byte[capacity];
+    position = 0;
+  }
+
+  /**
+   * Adds the next shard to the current batch.
+   */
+  private void addShard(byte[] bytes) {
+    Entity shard =
+        MindashDatastoreServiceImpl.createMindashEntityShard(key, nextShard);
+    shard.setProperty(propertyName, new Blob(bytes));
+    shard.setUnindexedProperty(MindashDatastoreService.MindashWriterLabel,
+        started);
+    ShardChecksum.write(shard);
+    batch.add(shard);
+    pieceLengths.add(bytes.length);
+    nextShard++;
+  }
+
+  /**
+   * Stores the current batch, in the background if there is an executor.
+   */
+  private void flushBatch() throws IOException {
+    if (batch.isEmpty()) {
+      return;
+    }
+    final List<Entity> toStore = batch;
+    batch = new ArrayList<Entity>(batchShards);
+    // only one batch in flight at a time
+    awaitPendingBatch();
+    if (executor != null) {
+      pendingBatch =
+          executor.submit(new ApiEnvironmentCallable<List<Key>>(
+              new Callable<List<Key>>() {
+                public List<Key> call() {
+                  return datastoreHelper.put(datastore, toStore);
+                }
+              }));
+    } else {
+      datastoreHelper.put(txn, datastore, toStore);
+    }
+  }
+
+  private void awaitPendingBatch() throws IOException {
+    if (pendingBatch == null) {
+      return;
+    }
+    Future<List<Key>> future = pendingBatch;
+    pendingBatch = null;
+    try {
+      future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while storing shards");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  private OutputStream getEncoder() throws IOException {
+    if (encoder == null) {
+      encoder = codec.encode(new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+          writeRaw(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+          writeRaw(b, off, len);
+        }
+
+        @Override
+        public void close() {
+          // the shards are stored by the enclosing stream
+        }
+      });
+    }
+    return encoder;
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+  }
+
+}
@@ -1,13 +1,23 @@
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 
+import com.mindash.datastore.impl.CachingMindashDatastoreServiceTest;
 import com.mindash.datastore.impl.DatastoreHelperImplTest;
 import com.mindash.datastore.impl.MindashDatastoreServiceImplTest;
+import com.mindash.datastore.impl.MindashPreparedQueryImplTest;
+import com.mindash.datastore.impl.OrphanShardCollectorTest;
+import com.mindash.datastore.impl.ShardExporterTest;
+import com.mindash.datastore.impl.ShardVerifierTest;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses( {
   DatastoreHelperImplTest.class,
-  MindashDatastoreServiceImplTest.class}
+  MindashDatastoreServiceImplTest.class,
+  CachingMindashDatastoreServiceTest.class,
+  MindashPreparedQueryImplTest.class,
+  OrphanShardCollectorTest.class,
+  ShardExporterTest.class,
+  ShardVerifierTest.class}
 )
 public class AllTests {
 }
@@ -0,0 +1,220 @@
+/**
+ * Copyright 2010 Tristan Slominski
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied.
+ */
+package com.mindash.datastore.impl;
+
+import static org.easymock.classextension.EasyMock.*;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Transaction;
+import com.mindash.datastore.EntityCorruptException;
+import com.mindash.datastore.LocalTestCase;
+import com.mindash.datastore.MindashDatastoreService;
+
+/**
+ * @author Tristan Slominski
+ *
+ */
+public class CachingMindashDatastoreServiceTest extends LocalTestCase {
+
+  private MindashDatastoreService delegate;
+
+  @Before
+  public void setUp() {
+    // entities need an API environment even with a mock delegate
+    super.setUp();
+    delegate = createMock(MindashDatastoreService.class);
+  }
+
+  private Entity createEntity(String name, int blobLength) {
+    Entity entity = new Entity("testKind", name);
+    entity.setProperty("property1", "test string");
+    entity.setProperty("MyBlob", new Blob(new byte[blobLength]));
+    return entity;
+  }
+
+  @Test
+  public void getShouldReadAnEntityFromTheDatastoreOnlyOnce()
+      throws EntityNotFoundException, EntityCorruptException {
+    CachingMindashDatastoreService cache =
+        new CachingMindashDatastoreService(delegate, 1024 * 1024);
+    Entity entity = createEntity("testName", 1000);
+    expect(delegate.get(entity.getKey())).andReturn(entity).once();
+    replay(delegate);
+    cache.get(entity.getKey());
+    Entity result = cache.get(entity.getKey());
+    verify(delegate);
+    assertTrue("Second get should be served from the cache", result
+        .getProperty("property1").equals("test string"));
+    assertTrue("Cache should count one hit and one miss", cache
+        .getHitCount() == 1
+        && cache.getMissCount() == 1);
+  }
+
+  @Test
+  public void getShouldReturnACopyOfTheCachedEntity()
+      throws EntityNotFoundException, EntityCorruptException {
+    CachingMindashDatastoreService cache =
+        new CachingMindashDatastoreService(delegate, 1024 * 1024);
+    Entity entity = createEntity("testName", 1000);
+    expect(delegate.get(entity.getKey())).andReturn(entity).once();
+    replay(delegate);
+    cache.get(entity.getKey()).setProperty("property1", "changed");
+    Entity result = cache.get(entity.getKey());
+    verify(delegate);
+    assertTrue("Changing a returned entity should not change the cache",
+        result.getProperty("property1").equals("test string"));
+  }
+
+  @Test
+  public void cacheShouldEvictLeastRecentlyUsedEntitiesByWeight()
+      throws EntityNotFoundException, EntityCorruptException {
+    Entity a = createEntity("a", 40000);
+    Entity b = createEntity("b", 40000);
+    Entity c = createEntity("c", 40000);
+    // room for two of the entities
+    CachingMindashDatastoreService cache =
+        new CachingMindashDatastoreService(delegate,
+            CachingMindashDatastoreService.weigh(a) * 2);
+    expect(delegate.get(a.getKey())).andReturn(a).once();
+    expect(delegate.get(b.getKey())).andReturn(b).once();
+    expect(delegate.get(c.getKey())).andReturn(c).once();
+    expect(delegate.get(b.getKey())).andReturn(b).once();
+    replay(delegate);
+    cache.get(a.getKey());
+    cache.get(b.getKey());
+    // a is now used more recently than b
+    cache.get(a.getKey());
+    cache.get(c.getKey());
+    cache.get(a.getKey());
+    cache.get(b.getKey());
+    verify(delegate);
+    assertTrue("Cache should stay within its bound",
+        cache.getCachedBytes() <= CachingMindashDatastoreService.weigh(a) * 2);
+  }
+
+  @Test
+  public void cacheShouldNotHoldEntitiesLargerThanItsBound()
+      throws EntityNotFoundException, EntityCorruptException {
+    CachingMindashDatastoreService cache =
+        new CachingMindashDatastoreService(delegate, 1000);
+    Entity entity = createEntity("testName", 5000);
+    expect(delegate.get(entity.getKey())).andReturn(entity).times(2);
+    replay(delegate);
+    cache.get(entity.getKey());
+    cache.get(entity.getKey());
+    verify(delegate);
+    assertTrue("Cache should be empty", cache.getCachedEntityCount() == 0);
+  }
+
+  @Test
+  public void putShouldRefreshAndDeleteShouldInvalidate()
+      throws EntityNotFoundException, EntityCorruptException {
+    CachingMindashDatastoreService cache =
+        new CachingMindashDatastoreService(delegate, 1024 * 1024);
+    Entity entity = createEntity("testName", 1000);
+    Entity updated = createEntity("testName", 1000);
+    updated.setProperty("property1", "updated");
+    expect(delegate.get(entity.getKey())).andReturn(entity).once();
+    expect(delegate.put((Transaction) null, updated)).andReturn(
+        updated.getKey());
+    delegate.delete((Transaction) null, updated.getKey());
+    expectLastCall().once();
+    expect(delegate.get(entity.getKey())).andThrow(
+        new EntityNotFoundException(entity.getKey()));
+    replay(delegate);
+    cache.get(entity.getKey());
+    cache.put(updated);
+    assertTrue("Put should refresh the cached entity", cache.get(
+        entity.getKey()).getProperty("property1").equals("updated"));
+    cache.delete(updated.getKey());
+    try {
+      cache.get(entity.getKey());
+      assertTrue("Deleted entity should not be served from the cache", false);
+    } catch (EntityNotFoundException e) {
+      assertTrue(true);
+    }
+    verify(delegate);
+  }
+
+  @Test
+  public void transactionalGetShouldBypassTheCache()
+      throws EntityNotFoundException, EntityCorruptException {
+    CachingMindashDatastoreService cache =
+        new CachingMindashDatastoreService(delegate, 1024 * 1024);
+    Transaction txn = createMock(Transaction.class);
+    Entity entity = createEntity("testName", 1000);
+    expect(delegate.get(txn, entity.getKey())).andReturn(entity).times(2);
+    replay(delegate);
+    cache.get(txn, entity.getKey());
+    cache.get(txn, entity.getKey());
+    verify(delegate);
+    assertTrue("Transactional reads should not be cached", cache
+        .getCachedEntityCount() == 0
+        && cache.getHitCount() == 0);
+  }
+
+  @Test
+  public void transactionalPutShouldKeepTheEntityUncachedUntilCommitted()
+      throws EntityNotFoundException, EntityCorruptException {
+    CachingMindashDatastoreService cache =
+        new CachingMindashDatastoreService(delegate, 1024 * 1024);
+    Transaction txn = createMock(Transaction.class);
+    Entity entity = createEntity("testName", 1000);
+    Entity updated = createEntity("testName", 1000);
+    updated.setProperty("property1", "updated");
+    // active during the first two reads, committed after
+    expect(txn.isActive()).andReturn(true).times(2);
+    expect(txn.isActive()).andReturn(false).anyTimes();
+    expect(delegate.put(txn, updated)).andReturn(updated.getKey());
+    expect(delegate.get(entity.getKey())).andReturn(entity).times(2);
+    expect(delegate.get(entity.getKey())).andReturn(updated).times(2);
+    replay(txn, delegate);
+    cache.put(txn, updated);
+    cache.get(entity.getKey());
+    cache.get(entity.getKey());
+    // the first read after the commit drops the transaction uncached
+    cache.get(entity.getKey());
+    cache.get(entity.getKey());
+    Entity result = cache.get(entity.getKey());
+    verify(delegate);
+    assertTrue("Committed entity should be cached", result.getProperty(
+        "property1").equals("updated")
+        && cache.getHitCount() == 1);
+  }
+
+  @Test
+  public void getIterableShouldReadOnlyTheMissingEntities()
+      throws EntityNotFoundException, EntityCorruptException {
+    CachingMindashDatastoreService cache =
+        new CachingMindashDatastoreService(delegate, 1024 * 1024);
+    Entity a = createEntity("a", 1000);
+    Entity b = createEntity("b", 1000);
+    Map<Key, Entity> bResult = new HashMap<Key, Entity>(1);
+    bResult.put(b.getKey(), b);
+    expect(delegate.get(a.getKey())).andReturn(a).once();
+    expect(delegate.get(Arrays.asList(b.getKey()))).andReturn(bResult).once();
+    replay(delegate);
+    cache.get(a.getKey());
+    Map<Key, Entity> result =
+        cache.get(Arrays.asList(a.getKey(), b.getKey()));
+    verify(delegate);
+    assertTrue("Result should have both entities", result.size() == 2);
+  }
+
+}
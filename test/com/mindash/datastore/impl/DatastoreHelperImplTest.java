@@ -8,10 +8,18 @@
 package com.mindash.datastore.impl;
 
 import static org.easymock.classextension.EasyMock.*;
+import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.easymock.IAnswer;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
@@ -21,14 +29,19 @@ import atunit.MockFramework;
 import atunit.Unit;
 
 import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
 import com.google.inject.Binder;
 import com.google.inject.Inject;
 import com.google.inject.Module;
 import com.mindash.datastore.DatastoreHelper;
 import com.mindash.datastore.LocalDatastoreTestCase;
+import com.mindash.datastore.MindashDatastoreConfig;
 import com.mindash.datastore.impl.DatastoreHelperImpl;
 
 /**
@@ -51,6 +64,23 @@ public class DatastoreHelperImplTest extends LocalDatastoreTestCase
     b.bind(DatastoreHelper.class).to(DatastoreHelperImpl.class);
   }
   
+  private List<Key> generateKeys(int count){
+    List<Key> keys = new ArrayList<Key>(count);
+    for (int i = 0; i < count; i++){
+      Key k = KeyFactory.createKey("testKind", "a" + String.valueOf(i));
+      keys.add(k);
+    }
+    return keys;
+  }
+  
+  private DatastoreHelper createConcurrentHelper(ExecutorService executor,
+      int maximumChunksInFlight){
+    MindashDatastoreConfig config = new MindashDatastoreConfig();
+    config.setChunkExecutor(executor);
+    config.setMaximumChunksInFlight(maximumChunksInFlight);
+    return new DatastoreHelperImpl(config);
+  }
+  
   @Test
   public void getShouldRetrieveLessThan1000EntitiesInOneTryOnDatastore(){
     List<Key> keys = new ArrayList<Key>(900);
@@ -183,4 +213,160 @@ public class DatastoreHelperImplTest extends LocalDatastoreTestCase
     verify(datastore);
   }
 
+  @Test
+  public void getShouldMergeChunksRetrievedConcurrently(){
+    List<Key> keys = generateKeys(2200);
+    Map<Key, Entity> chunk1 = new HashMap<Key, Entity>();
+    chunk1.put(keys.get(0), new Entity("testKind", "a0"));
+    Map<Key, Entity> chunk2 = new HashMap<Key, Entity>();
+    chunk2.put(keys.get(1000), new Entity("testKind", "a1000"));
+    Map<Key, Entity> chunk3 = new HashMap<Key, Entity>();
+    chunk3.put(keys.get(2000), new Entity("testKind", "a2000"));
+    expect(datastore.get(keys.subList(0, 1000))).andReturn(chunk1).once();
+    expect(datastore.get(keys.subList(1000, 2000))).andReturn(chunk2).once();
+    expect(datastore.get(keys.subList(2000, 2200))).andReturn(chunk3).once();
+    replay(datastore);
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      Map<Key, Entity> result =
+          createConcurrentHelper(executor, 3).get(datastore, keys);
+      assertTrue("Result should contain entities from all chunks",
+          result.size() == 3 && result.containsKey(keys.get(0))
+              && result.containsKey(keys.get(1000))
+              && result.containsKey(keys.get(2000)));
+    } finally {
+      executor.shutdown();
+    }
+    verify(datastore);
+  }
+  
+  @Test
+  public void putShouldReturnKeysInInputOrderWhenPutConcurrently(){
+    List<Entity> entities = new ArrayList<Entity>(1200);
+    List<Key> keys = generateKeys(1200);
+    for (Key k : keys){
+      entities.add(new Entity("testKind", k.getName()));
+    }
+    expect(datastore.put(entities.subList(0, 500)))
+        .andReturn(new ArrayList<Key>(keys.subList(0, 500))).once();
+    expect(datastore.put(entities.subList(500, 1000)))
+        .andReturn(new ArrayList<Key>(keys.subList(500, 1000))).once();
+    expect(datastore.put(entities.subList(1000, 1200)))
+        .andReturn(new ArrayList<Key>(keys.subList(1000, 1200))).once();
+    replay(datastore);
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      List<Key> result =
+          createConcurrentHelper(executor, 2).put(datastore, entities);
+      assertTrue("Keys should be returned in the order of the entities",
+          result.equals(keys));
+    } finally {
+      executor.shutdown();
+    }
+    verify(datastore);
+  }
+  
+  @Test
+  public void deleteShouldDelete1200EntitiesInThreeConcurrentTries(){
+    List<Key> keys = generateKeys(1200);
+    datastore.delete(keys.subList(0, 500));
+    expectLastCall().once();
+    datastore.delete(keys.subList(500, 1000));
+    expectLastCall().once();
+    datastore.delete(keys.subList(1000, 1200));
+    expectLastCall().once();
+    replay(datastore);
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      createConcurrentHelper(executor, 3).delete(datastore, keys);
+    } finally {
+      executor.shutdown();
+    }
+    verify(datastore);
+  }
+  
+  @Test
+  public void concurrentGetShouldNotExceedMaximumChunksInFlight(){
+    List<Key> keys = generateKeys(5000);
+    final AtomicInteger inFlight = new AtomicInteger();
+    final AtomicInteger maximum = new AtomicInteger();
+    IAnswer<Map<Key, Entity>> answer = new IAnswer<Map<Key, Entity>>(){
+      public Map<Key, Entity> answer() throws Throwable {
+        int current = inFlight.incrementAndGet();
+        synchronized (maximum){
+          if (current > maximum.get()){
+            maximum.set(current);
+          }
+        }
+        Thread.sleep(50);
+        inFlight.decrementAndGet();
+        return new HashMap<Key, Entity>();
+      }
+    };
+    for (int i = 0; i < 5; i++){
+      expect(datastore.get(keys.subList(i * 1000, (i + 1) * 1000)))
+          .andAnswer(answer).once();
+    }
+    replay(datastore);
+    ExecutorService executor = Executors.newFixedThreadPool(5);
+    try {
+      createConcurrentHelper(executor, 2).get(datastore, keys);
+    } finally {
+      executor.shutdown();
+    }
+    verify(datastore);
+    assertTrue("No more than 2 chunks should be in flight at once",
+        maximum.get() <= 2);
+  }
+  
+  @Test
+  public void getDescendantsShouldRunOneAncestorQueryPerAncestor(){
+    List<Key> keys = generateKeys(3);
+    PreparedQuery prepared = createMock(PreparedQuery.class);
+    for (Key k : keys){
+      Entity child = new Entity("testKind", "mdd0", k);
+      expect(datastore.prepare(isA(Query.class))).andReturn(prepared).once();
+      expect(prepared.asIterable(isA(FetchOptions.class))).andReturn(
+          Arrays.asList(child)).once();
+    }
+    replay(datastore, prepared);
+    Map<Key, Entity> result = helper.getDescendants(null, datastore, keys);
+    verify(datastore, prepared);
+    assertTrue("Should collect the children of every ancestor",
+        result.size() == 3);
+  }
+  
+  @Test
+  public void concurrentPutAndGetShouldWorkAgainstTheLocalDatastore(){
+    // pool threads have no API environment of their own
+    DatastoreService local = DatastoreServiceFactory.getDatastoreService();
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      DatastoreHelper concurrent = createConcurrentHelper(executor, 2);
+      List<Entity> entities = new ArrayList<Entity>(1200);
+      for (int i = 0; i < 1200; i++){
+        entities.add(new Entity("testKind", "a" + String.valueOf(i)));
+      }
+      List<Key> keys = concurrent.put(local, entities);
+      assertTrue("Should put all 1200 entities", keys.size() == 1200);
+      assertTrue("Should get all 1200 entities back",
+          concurrent.get(local, keys).size() == 1200);
+      concurrent.delete(local, keys);
+      assertTrue("Should delete all 1200 entities",
+          concurrent.get(local, keys).isEmpty());
+    } finally {
+      executor.shutdown();
+    }
+  }
+  
+  @Test
+  public void splitShouldReturnChunksInInputOrder(){
+    List<Integer> items = Arrays.asList(1, 2, 3, 4, 5);
+    List<List<Integer>> chunks = DatastoreHelperImpl.split(items, 2);
+    assertTrue("Should split 5 items into 3 chunks", chunks.size() == 3);
+    assertTrue(chunks.get(0).equals(Arrays.asList(1, 2)));
+    assertTrue(chunks.get(1).equals(Arrays.asList(3, 4)));
+    assertTrue(chunks.get(2).equals(Arrays.asList(5)));
+  }
+
 }
@@ -15,8 +15,11 @@
  */
 package com.mindash.datastore.impl;
 
+import static org.easymock.EasyMock.capture;
+import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.isA;
 import static org.easymock.classextension.EasyMock.createMock;
 import static org.easymock.classextension.EasyMock.createNiceMock;
 import static org.easymock.classextension.EasyMock.replay;
@@ -24,20 +27,28 @@ import static org.easymock.classextension.EasyMock.verify;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Random;
 import java.util.logging.Logger;
 
+import org.easymock.Capture;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -50,10 +61,12 @@ import atunit.Unit;
 
 import com.google.appengine.api.datastore.Blob;
 import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.KeyRange;
 import com.google.appengine.api.datastore.Link;
 import com.google.appengine.api.datastore.ShortBlob;
 import com.google.appengine.api.datastore.Text;
@@ -66,8 +79,11 @@ import com.google.inject.Module;
 import com.mindash.datastore.DatastoreHelper;
 import com.mindash.datastore.EntityCorruptException;
 import com.mindash.datastore.LocalDatastoreTestCase;
+import com.mindash.datastore.MindashDatastoreConfig;
 import com.mindash.datastore.MindashDatastoreService;
-import com.mindash.util.EntityWithIncompleteKeyEquals;
+import com.mindash.datastore.ShardMetadataCache;
+import com.mindash.datastore.ShardPlanner;
+import com.mindash.datastore.SizeEstimator;
 import com.mindash.util.ListOf0thShardKeysEquals;
 import com.mindash.util.ListOfEntitiesSizeEquals;
 import com.mindash.util.ListOfEntitiesWithMddLayerEquals;
@@ -107,6 +123,8 @@ public class MindashDatastoreServiceImplTest extends LocalDatastoreTestCase
      * Class bindings
      */
     b.bind(DatastoreHelper.class).to(DatastoreHelperImpl.class);
+    b.bind(SizeEstimator.class).to(EncodedSizeEstimator.class);
+    b.bind(ShardPlanner.class).to(BinPackingShardPlanner.class);
     b.bind(DatastoreService.class).toInstance(
         createNiceMock(DatastoreService.class));
     b.bind(MindashDatastoreService.class).to(MindashDatastoreServiceImpl.class);
@@ -135,6 +153,21 @@ public class MindashDatastoreServiceImplTest extends LocalDatastoreTestCase
     return buffer;
   }
 
+  /**
+   * @param in the stream to read
+   * @return everything read from the stream
+   */
+  private byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[3];
+    int read = 0;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    in.close();
+    return out.toByteArray();
+  }
+
   @Before
   public void setUp() {
     super.setUp();
@@ -382,6 +415,155 @@ public class MindashDatastoreServiceImplTest extends LocalDatastoreTestCase
         .getProperties().size() == 0);
   }
 
+  @Test
+  public void planStorableEntityShardsShouldNotModifyTheEntity() {
+    Entity entity = new Entity("testKind", "testName");
+    Blob blob = new Blob(new byte[2500000]);
+    entity.setProperty("property1", blob);
+    entity.setProperty("property2", "test string");
+    mdImpl.planStorableEntityShards(entity.getKey(), entity, 0);
+    assertTrue("Entity should keep all of its properties", entity
+        .getProperties().size() == 2);
+    assertTrue("Entity should keep the original blob", entity.getProperty(
+        "property1") == blob);
+  }
+
+  @Test
+  public void planStorableEntityShardsShouldSplitBlobIntoSlicesThatJoinBack() {
+    Entity entity = new Entity("testKind", "testName");
+    byte[] bytes = new byte[2500000];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) i;
+    }
+    entity.setProperty("property1", new Blob(bytes));
+    List<Entity> shards =
+        mdImpl.planStorableEntityShards(entity.getKey(), entity, 0);
+    assertTrue("2.5MB blob should be split into 3 shards", shards.size() == 3);
+    byte[] joined = new byte[0];
+    for (int i = 0; i < shards.size(); i++) {
+      Entity shard = shards.get(i);
+      assertTrue("Shard should have the key of shard " + i, shard.getKey()
+          .getName().equals(
+              MindashDatastoreServiceImpl.createMindashDatastoreKeyName(i)));
+      joined =
+          mdImpl.concatenateBlob(new Blob(joined),
+              (Blob) shard.getProperty("property1")).getBytes();
+    }
+    assertTrue("Slices should join back into the original blob", Arrays
+        .equals(joined, bytes));
+  }
+
+  @Test
+  public void planStorableEntityShardsShouldReturnShard0ForEntityWithoutProperties() {
+    Entity entity = new Entity("testKind", "testName");
+    List<Entity> shards =
+        mdImpl.planStorableEntityShards(entity.getKey(), entity, 0);
+    assertTrue("There should be a single empty shard", shards.size() == 1
+        && shards.get(0).getProperties().isEmpty());
+  }
+
+  @Test
+  public void encodedSizeEstimatorShouldCountUtf8Bytes() {
+    assertTrue("'abc' should be 3 bytes",
+        EncodedSizeEstimator.getUtf8Length("abc") == 3);
+    assertTrue("'\u00e9' should be 2 bytes", EncodedSizeEstimator
+        .getUtf8Length("\u00e9") == 2);
+    assertTrue("'\u20ac' should be 3 bytes", EncodedSizeEstimator
+        .getUtf8Length("\u20ac") == 3);
+    assertTrue("A surrogate pair should be 4 bytes", EncodedSizeEstimator
+        .getUtf8Length("\ud834\udd1e") == 4);
+  }
+
+  @Test
+  public void encodedSizeEstimatorShouldNotUnderestimateStrings() {
+    MindashDatastoreConfig config = new MindashDatastoreConfig();
+    config.setSizeEstimateMarginPercent(0);
+    SizeEstimator estimator = new EncodedSizeEstimator(config);
+    String value = "\u20ac\u20ac\u20acabc";
+    assertTrue("Estimate should cover the UTF-8 bytes", estimator
+        .getPropertyValueSize(value) >= 12);
+    assertTrue("Estimate with a margin should be larger",
+        new EncodedSizeEstimator().getPropertyValueSize(value) > estimator
+            .getPropertyValueSize(value));
+  }
+
+  @Test
+  public void encodedSizeEstimatorShouldPackRealisticEntityIntoFewerShards() {
+    Entity entity = new Entity("testKind", "testName");
+    StringBuilder title = new StringBuilder();
+    for (int i = 0; i < 200; i++) {
+      title.append((char) ('a' + i % 26));
+    }
+    for (int i = 0; i < 1000; i++) {
+      entity.setProperty("title" + i, title.toString());
+      entity.setProperty("count" + i, (long) i);
+      entity.setProperty("created" + i, new Date(i));
+    }
+    int conservative =
+        mdImpl.planStorableEntityShards(entity.getKey(), entity, 0,
+            new ConservativeSizeEstimator()).size();
+    int encoded =
+        mdImpl.planStorableEntityShards(entity.getKey(), entity, 0,
+            new EncodedSizeEstimator()).size();
+    logger.info("3000 property entity: " + conservative
+        + " shards with conservative sizes, " + encoded
+        + " shards with encoded sizes");
+    assertTrue("Conservative sizes should need more than one shard",
+        conservative > 1);
+    assertTrue("Encoded sizes should fit the entity into one shard",
+        encoded == 1);
+  }
+
+  @Test
+  public void binPackingShardPlannerShouldPackMediumBlobsIntoFewerShards() {
+    Entity entity = new Entity("testKind", "testName");
+    for (int i = 0; i < 6; i++) {
+      entity.setProperty("blob" + i, new Blob(new byte[300000]));
+    }
+    SizeEstimator estimator = new EncodedSizeEstimator();
+    int greedy =
+        new GreedyShardPlanner().plan(entity.getKey(), entity, 0, estimator)
+            .size();
+    List<Entity> shards =
+        new BinPackingShardPlanner().plan(entity.getKey(), entity, 0,
+            estimator);
+    assertTrue("Greedy planner should put each blob into its own shard",
+        greedy == 6);
+    assertTrue("Bin packing should put 3 blobs into each shard", shards
+        .size() == 2);
+    assertTrue("Entity should keep all of its properties", entity
+        .getProperties().size() == 6);
+  }
+
+  @Test
+  public void binPackingShardPlannerShouldSplitLargeBlobAcrossTheTail() {
+    Entity entity = new Entity("testKind", "testName");
+    byte[] bytes = new byte[2500000];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) i;
+    }
+    entity.setProperty("large", new Blob(bytes));
+    entity.setProperty("small", new Blob(new byte[1000]));
+    entity.setProperty("string", "test string");
+    List<Entity> shards =
+        new BinPackingShardPlanner().plan(entity.getKey(), entity, 0,
+            new EncodedSizeEstimator());
+    assertTrue("2.5MB should need 3 shards", shards.size() == 3);
+    assertTrue("Small properties should be in shard 0", shards.get(0)
+        .hasProperty("small")
+        && shards.get(0).hasProperty("string"));
+    byte[] joined = new byte[0];
+    for (Entity shard : shards) {
+      assertTrue("Every shard should hold a piece of the large blob", shard
+          .hasProperty("large"));
+      joined =
+          mdImpl.concatenateBlob(new Blob(joined),
+              (Blob) shard.getProperty("large")).getBytes();
+    }
+    assertTrue("Pieces should join back into the original blob", Arrays
+        .equals(joined, bytes));
+  }
+
   @Test
   public void beginTransactionShouldCallDatastoreBeginTransaction() {
     expect(datastore.beginTransaction()).andReturn(transaction);
@@ -791,6 +973,893 @@ public class MindashDatastoreServiceImplTest extends LocalDatastoreTestCase
         + " with value '2001'", (Integer) result.getProperty("2001") == 2001);
   }
 
+  @Test
+  public void getKeyShouldJoinSplitBlobUsingRecordedLength()
+      throws EntityNotFoundException, EntityCorruptException {
+    Key mindashKey = KeyFactory.createKey("testKind", "testName");
+    Entity shard0 = mdImpl.createMindashEntityShard(mindashKey, 0);
+    shard0.setProperty(MindashDatastoreService.MindashShardCountLabel, 3);
+    shard0.setProperty(MindashDatastoreServiceImpl
+        .createBlobLengthLabel("MyBlob"), 18L);
+    shard0.setProperty("0", "zero");
+    Entity shard1 = mdImpl.createMindashEntityShard(mindashKey, 1);
+    shard1.setProperty("MyBlob", new Blob("blob head".getBytes()));
+    Entity shard2 = mdImpl.createMindashEntityShard(mindashKey, 2);
+    shard2.setProperty("MyBlob", new Blob("blob tail".getBytes()));
+    shard2.setProperty("2", "two");
+    List<Key> keys = new ArrayList<Key>(3);
+    keys.add(shard0.getKey());
+    keys.add(shard1.getKey());
+    keys.add(shard2.getKey());
+    Map<Key, Entity> shards = new HashMap<Key, Entity>(3);
+    shards.put(shard0.getKey(), shard0);
+    shards.put(shard1.getKey(), shard1);
+    shards.put(shard2.getKey(), shard2);
+    expect(datastore.get(shard0.getKey())).andReturn(shard0);
+    expect(datastore.get(keys)).andReturn(shards);
+    replay(datastore);
+    Entity result = md.get(mindashKey);
+    assertTrue("Result should have property 'MyBlob' with value "
+        + "'blob headblob tail'", new String(((Blob) result
+        .getProperty("MyBlob")).getBytes()).equals("blob headblob tail"));
+    assertTrue("Result should have property '2' with value 'two'", result
+        .getProperty("2").equals("two"));
+    assertTrue("Result should have only user properties", result
+        .getProperties().size() == 3);
+  }
+
+  @Test
+  public void getKeyShouldThrowEntityCorruptExceptionIfSplitBlobLengthDiffers()
+      throws EntityNotFoundException {
+    Key mindashKey = KeyFactory.createKey("testKind", "testName");
+    Entity shard0 = mdImpl.createMindashEntityShard(mindashKey, 0);
+    shard0.setProperty(MindashDatastoreService.MindashShardCountLabel, 2);
+    shard0.setProperty(MindashDatastoreServiceImpl
+        .createBlobLengthLabel("MyBlob"), 100L);
+    shard0.setProperty("MyBlob", new Blob("blob head".getBytes()));
+    Entity shard1 = mdImpl.createMindashEntityShard(mindashKey, 1);
+    shard1.setProperty("MyBlob", new Blob("blob tail".getBytes()));
+    List<Key> keys = new ArrayList<Key>(2);
+    keys.add(shard0.getKey());
+    keys.add(shard1.getKey());
+    Map<Key, Entity> shards = new HashMap<Key, Entity>(2);
+    shards.put(shard0.getKey(), shard0);
+    shards.put(shard1.getKey(), shard1);
+    expect(datastore.get(shard0.getKey())).andReturn(shard0);
+    expect(datastore.get(keys)).andReturn(shards);
+    replay(datastore);
+    try {
+      md.get(mindashKey);
+      fail("Should throw EntityCorruptException");
+    } catch (EntityCorruptException e) {
+      assertTrue(true);
+    }
+  }
+
+  @Test
+  public void getKeyShouldAssembleEntityFromManifest()
+      throws EntityNotFoundException, EntityCorruptException {
+    Key mindashKey = KeyFactory.createKey("testKind", "testName");
+    Entity shard0 = mdImpl.createMindashEntityShard(mindashKey, 0);
+    shard0.setProperty(MindashDatastoreService.MindashShardCountLabel, 3);
+    shard0.setProperty("0", "zero");
+    Entity shard1 = mdImpl.createMindashEntityShard(mindashKey, 1);
+    shard1.setProperty("MyBlob", new Blob("blob head".getBytes()));
+    Entity shard2 = mdImpl.createMindashEntityShard(mindashKey, 2);
+    shard2.setProperty("MyBlob", new Blob("blob tail".getBytes()));
+    ShardManifest.fromShards(Arrays.asList(shard0, shard1, shard2)).write(
+        shard0);
+    Map<Key, Entity> shards = new HashMap<Key, Entity>(2);
+    shards.put(shard1.getKey(), shard1);
+    shards.put(shard2.getKey(), shard2);
+    expect(datastore.get(shard0.getKey())).andReturn(shard0);
+    // the 0th shard is not fetched again
+    expect(datastore.get(Arrays.asList(shard1.getKey(), shard2.getKey())))
+        .andReturn(shards);
+    replay(datastore);
+    Entity result = md.get(mindashKey);
+    assertTrue("Result should have property 'MyBlob' with value "
+        + "'blob headblob tail'", new String(((Blob) result
+        .getProperty("MyBlob")).getBytes()).equals("blob headblob tail"));
+    assertTrue("Result should have property '0' with value 'zero'", result
+        .getProperty("0").equals("zero"));
+    assertTrue("Result should have only user properties", result
+        .getProperties().size() == 2);
+  }
+
+  @Test
+  public void getKeyShouldThrowEntityCorruptExceptionIfShardDoesNotMatchManifest()
+      throws EntityNotFoundException {
+    Key mindashKey = KeyFactory.createKey("testKind", "testName");
+    Entity shard0 = mdImpl.createMindashEntityShard(mindashKey, 0);
+    shard0.setProperty(MindashDatastoreService.MindashShardCountLabel, 2);
+    shard0.setProperty("MyBlob", new Blob("blob head".getBytes()));
+    Entity shard1 = mdImpl.createMindashEntityShard(mindashKey, 1);
+    shard1.setProperty("MyBlob", new Blob("blob tail".getBytes()));
+    ShardManifest.fromShards(Arrays.asList(shard0, shard1)).write(shard0);
+    shard1.setProperty("MyBlob", new Blob("tail".getBytes()));
+    Map<Key, Entity> shards = new HashMap<Key, Entity>(1);
+    shards.put(shard1.getKey(), shard1);
+    expect(datastore.get(shard0.getKey())).andReturn(shard0);
+    expect(datastore.get(Arrays.asList(shard1.getKey()))).andReturn(shards);
+    replay(datastore);
+    try {
+      md.get(mindashKey);
+      fail("Should throw EntityCorruptException");
+    } catch (EntityCorruptException e) {
+      assertTrue(true);
+    }
+  }
+
+  /**
+   * @param key the key of the entity
+   * @return 4 shards with a manifest: "0" in shard 0, "MyBlob" split over
+   * shards 1 and 2, and "3" in shard 3
+   */
+  private List<Entity> generateShardsWithManifest(Key key) {
+    Entity shard0 = mdImpl.createMindashEntityShard(key, 0);
+    shard0.setProperty(MindashDatastoreService.MindashShardCountLabel, 4);
+    shard0.setProperty("0", "zero");
+    Entity shard1 = mdImpl.createMindashEntityShard(key, 1);
+    shard1.setProperty("MyBlob", new Blob("blob head".getBytes()));
+    Entity shard2 = mdImpl.createMindashEntityShard(key, 2);
+    shard2.setProperty("MyBlob", new Blob("blob tail".getBytes()));
+    Entity shard3 = mdImpl.createMindashEntityShard(key, 3);
+    shard3.setProperty("3", "three");
+    List<Entity> shards = Arrays.asList(shard0, shard1, shard2, shard3);
+    ShardManifest.fromShards(shards).write(shard0);
+    return shards;
+  }
+
+  @Test
+  public void getKeyPropertiesShouldFetchOnlyTheShardsHoldingTheProperties()
+      throws EntityNotFoundException, EntityCorruptException {
+    Key mindashKey = KeyFactory.createKey("testKind", "testName");
+    List<Entity> shards = generateShardsWithManifest(mindashKey);
+    Map<Key, Entity> shard3Result = new HashMap<Key, Entity>(1);
+    shard3Result.put(shards.get(3).getKey(), shards.get(3));
+    expect(datastore.get(shards.get(0).getKey())).andReturn(shards.get(0));
+    expect(datastore.get(Arrays.asList(shards.get(3).getKey()))).andReturn(
+        shard3Result).once();
+    replay(datastore);
+    Entity result =
+        md.get(mindashKey, new HashSet<String>(Arrays.asList("0", "3")));
+    verify(datastore);
+    assertTrue("Result should have property '0' with value 'zero'", result
+        .getProperty("0").equals("zero"));
+    assertTrue("Result should have property '3' with value 'three'", result
+        .getProperty("3").equals("three"));
+    assertTrue("Result should have only the requested properties", result
+        .getProperties().size() == 2);
+  }
+
+  @Test
+  public void getIterablePropertiesShouldFetchOnlyTheShardsHoldingTheProperties()
+      throws EntityCorruptException {
+    Key key1 = KeyFactory.createKey("testKind", "a");
+    Key key2 = KeyFactory.createKey("testKind", "b");
+    List<Entity> shards1 = generateShardsWithManifest(key1);
+    List<Entity> shards2 = generateShardsWithManifest(key2);
+    Map<Key, Entity> shards0th = new HashMap<Key, Entity>(2);
+    shards0th.put(shards1.get(0).getKey(), shards1.get(0));
+    shards0th.put(shards2.get(0).getKey(), shards2.get(0));
+    Map<Key, Entity> blobShards = new HashMap<Key, Entity>(4);
+    for (int i = 1; i < 3; i++) {
+      blobShards.put(shards1.get(i).getKey(), shards1.get(i));
+      blobShards.put(shards2.get(i).getKey(), shards2.get(i));
+    }
+    expect(
+        datastore.get(Arrays.asList(shards1.get(0).getKey(), shards2.get(0)
+            .getKey()))).andReturn(shards0th).once();
+    expect(
+        datastore.get(Arrays.asList(shards1.get(1).getKey(), shards1.get(2)
+            .getKey(), shards2.get(1).getKey(), shards2.get(2).getKey())))
+        .andReturn(blobShards).once();
+    replay(datastore);
+    Map<Key, Entity> results =
+        md.get(Arrays.asList(key1, key2), Collections.singleton("MyBlob"));
+    verify(datastore);
+    assertTrue("There should be 2 results", results.size() == 2);
+    for (Entity result : results.values()) {
+      assertTrue("Result should have only property 'MyBlob' with value "
+          + "'blob headblob tail'", result.getProperties().size() == 1
+          && new String(((Blob) result.getProperty("MyBlob")).getBytes())
+              .equals("blob headblob tail"));
+    }
+  }
+
+  @Test
+  public void putEntityShouldRecordAChecksumInEveryShard()
+      throws EntityNotFoundException {
+    Entity entity = new Entity("testKind", "testName");
+    entity.setProperty("property1", new Blob(new byte[2500000]));
+    entity.setProperty("property2", "test string");
+    entity.setProperty("property3", 42);
+    Capture<List<Entity>> stored = new Capture<List<Entity>>();
+    expect(datastore.get(mdImpl.createMindashDatastoreKey(entity.getKey(), 0)))
+        .andThrow(new EntityNotFoundException(entity.getKey()));
+    expect(datastore.put(capture(stored))).andReturn(new ArrayList<Key>());
+    replay(datastore);
+    md.put(entity);
+    verify(datastore);
+    for (Entity shard : stored.getValue()) {
+      assertTrue("Shard " + shard.getKey().getName()
+          + " should record its checksum", shard
+          .hasProperty(MindashDatastoreService.MindashChecksumLabel)
+          && ShardChecksum.matches(shard));
+    }
+  }
+
+  @Test
+  public void shardChecksumShouldMatchShardAsTheDatastoreReturnsIt() {
+    Key key = KeyFactory.createKey("testKind", "testName");
+    Entity stored = mdImpl.createMindashEntityShard(key, 1);
+    stored.setProperty("int", 42);
+    stored.setProperty("float", 1.5f);
+    stored.setProperty("string", "test string");
+    ShardChecksum.write(stored);
+    // integers come back as longs and floats as doubles, in any order
+    Entity retrieved = mdImpl.createMindashEntityShard(key, 1);
+    retrieved.setProperty("string", "test string");
+    retrieved.setProperty("float", 1.5d);
+    retrieved.setProperty("int", 42L);
+    retrieved.setProperty(MindashDatastoreService.MindashChecksumLabel, stored
+        .getProperty(MindashDatastoreService.MindashChecksumLabel));
+    assertTrue("Checksum should match the retrieved shard", ShardChecksum
+        .matches(retrieved));
+    retrieved.setProperty("string", "test strinG");
+    assertTrue("Checksum should not match a changed shard", !ShardChecksum
+        .matches(retrieved));
+  }
+
+  @Test
+  public void getEntityShouldReReadOnlyTheCorruptShardAndReportItsIndex()
+      throws EntityNotFoundException {
+    Key mindashKey = KeyFactory.createKey("testKind", "testName");
+    List<Entity> shards = generateShardsWithManifest(mindashKey);
+    for (Entity shard : shards) {
+      ShardChecksum.write(shard);
+    }
+    // a truncated piece that still has the length listed in the manifest
+    Entity corrupt = mdImpl.createMindashEntityShard(mindashKey, 2);
+    corrupt.setPropertiesFrom(shards.get(2));
+    corrupt.setProperty("MyBlob", new Blob("blob tai\u0000".getBytes()));
+    Map<Key, Entity> otherShards = new HashMap<Key, Entity>(3);
+    otherShards.put(shards.get(1).getKey(), shards.get(1));
+    otherShards.put(corrupt.getKey(), corrupt);
+    otherShards.put(shards.get(3).getKey(), shards.get(3));
+    Map<Key, Entity> reread = new HashMap<Key, Entity>(1);
+    reread.put(corrupt.getKey(), corrupt);
+    expect(datastore.get(shards.get(0).getKey())).andReturn(shards.get(0));
+    expect(
+        datastore.get(Arrays.asList(shards.get(1).getKey(), shards.get(2)
+            .getKey(), shards.get(3).getKey()))).andReturn(otherShards);
+    expect(datastore.get(Arrays.asList(corrupt.getKey()))).andReturn(reread)
+        .once();
+    replay(datastore);
+    try {
+      md.get(mindashKey);
+      fail("Should throw EntityCorruptException");
+    } catch (EntityCorruptException e) {
+      assertTrue("Exception should report shard 2", e.getShardIndex() == 2);
+    }
+    verify(datastore);
+  }
+
+  @Test
+  public void getEntityShouldSkipChecksumsWhenVerificationIsOff()
+      throws EntityNotFoundException, EntityCorruptException {
+    MindashDatastoreConfig config = new MindashDatastoreConfig();
+    config.setShardChecksumVerification(false);
+    MindashDatastoreService service =
+        new MindashDatastoreServiceImpl(datastore, new DatastoreHelperImpl(),
+            config);
+    Key mindashKey = KeyFactory.createKey("testKind", "testName");
+    List<Entity> shards = generateShardsWithManifest(mindashKey);
+    for (Entity shard : shards) {
+      ShardChecksum.write(shard);
+    }
+    shards.get(3).setProperty("3", "changed");
+    Map<Key, Entity> otherShards = new HashMap<Key, Entity>(3);
+    for (int i = 1; i < 4; i++) {
+      otherShards.put(shards.get(i).getKey(), shards.get(i));
+    }
+    expect(datastore.get(shards.get(0).getKey())).andReturn(shards.get(0));
+    expect(
+        datastore.get(Arrays.asList(shards.get(1).getKey(), shards.get(2)
+            .getKey(), shards.get(3).getKey()))).andReturn(otherShards);
+    replay(datastore);
+    Entity result = service.get(mindashKey);
+    verify(datastore);
+    assertTrue("Unchecked shard should be used as it is", result.getProperty(
+        "3").equals("changed"));
+  }
+
+  @Test
+  public void getIterableShouldReportTheIndexOfAMissingShard() {
+    Key mindashKey = KeyFactory.createKey("testKind", "testName");
+    List<Entity> shards = generateShardsWithManifest(mindashKey);
+    Map<Key, Entity> shards0th = new HashMap<Key, Entity>(1);
+    shards0th.put(shards.get(0).getKey(), shards.get(0));
+    Map<Key, Entity> otherShards = new HashMap<Key, Entity>(2);
+    otherShards.put(shards.get(1).getKey(), shards.get(1));
+    otherShards.put(shards.get(2).getKey(), shards.get(2));
+    expect(datastore.get(Arrays.asList(shards.get(0).getKey()))).andReturn(
+        shards0th);
+    expect(
+        datastore.get(Arrays.asList(shards.get(1).getKey(), shards.get(2)
+            .getKey(), shards.get(3).getKey()))).andReturn(otherShards);
+    replay(datastore);
+    try {
+      md.get(Arrays.asList(mindashKey));
+      fail("Should throw EntityCorruptException");
+    } catch (EntityCorruptException e) {
+      assertTrue("Exception should report shard 3", e.getShardIndex() == 3);
+    }
+    verify(datastore);
+  }
+
+  @Test
+  public void getIterableShouldReadAncestorQueryKindsInOneRoundTrip()
+      throws EntityCorruptException {
+    DatastoreHelper helper = createMock(DatastoreHelper.class);
+    MindashDatastoreConfig config = new MindashDatastoreConfig();
+    config.setAncestorQueryReads("testKind", true);
+    MindashDatastoreService service =
+        new MindashDatastoreServiceImpl(datastore, helper, config);
+    Key mindashKey = KeyFactory.createKey("testKind", "testName");
+    Map<Key, Entity> descendants = new HashMap<Key, Entity>();
+    for (Entity shard : generateShardsWithManifest(mindashKey)) {
+      descendants.put(shard.getKey(), shard);
+    }
+    // a shard of a child entity of the same kind is ignored
+    Key childKey = KeyFactory.createKey(mindashKey, "testKind", "child");
+    Entity childShard = mdImpl.createMindashEntityShard(childKey, 0);
+    childShard.setProperty(MindashDatastoreService.MindashShardCountLabel, 1);
+    childShard.setProperty("0", "child");
+    descendants.put(childShard.getKey(), childShard);
+    expect(
+        helper.getDescendants((Transaction) eq(null), eq(datastore),
+            eq(Arrays.asList(mindashKey)))).andReturn(descendants).once();
+    replay(helper, datastore);
+    Map<Key, Entity> results = service.get(Arrays.asList(mindashKey));
+    verify(helper, datastore);
+    Entity result = results.get(mindashKey);
+    assertTrue("Result should be assembled from the queried shards", results
+        .size() == 1
+        && result.getProperty("0").equals("zero")
+        && result.getProperty("3").equals("three")
+        && new String(((Blob) result.getProperty("MyBlob")).getBytes())
+            .equals("blob headblob tail"));
+  }
+
+  @Test
+  public void getByAncestorQueryShouldReportTheIndexOfAMissingShard() {
+    DatastoreHelper helper = createMock(DatastoreHelper.class);
+    MindashDatastoreServiceImpl service =
+        new MindashDatastoreServiceImpl(datastore, helper);
+    Key mindashKey = KeyFactory.createKey("testKind", "testName");
+    List<Entity> shards = generateShardsWithManifest(mindashKey);
+    Map<Key, Entity> descendants = new HashMap<Key, Entity>();
+    descendants.put(shards.get(0).getKey(), shards.get(0));
+    descendants.put(shards.get(1).getKey(), shards.get(1));
+    descendants.put(shards.get(3).getKey(), shards.get(3));
+    expect(
+        helper.getDescendants((Transaction) eq(null), eq(datastore),
+            eq(Arrays.asList(mindashKey)))).andReturn(descendants).once();
+    replay(helper, datastore);
+    try {
+      service.getByAncestorQuery(Arrays.asList(mindashKey));
+      fail("Should throw EntityCorruptException");
+    } catch (EntityCorruptException e) {
+      assertTrue("Exception should report shard 2", e.getShardIndex() == 2);
+    }
+    verify(helper, datastore);
+  }
+
+  @Test
+  public void shardCountPredictorShouldCoverThePercentile() {
+    ShardCountPredictor predictor = new ShardCountPredictor();
+    assertTrue("Should predict only the 0th shard without samples",
+        predictor.predict("testKind", 90) == 1);
+    for (int i = 0; i < 18; i++) {
+      predictor.record("testKind", 3);
+    }
+    predictor.record("testKind", 1);
+    predictor.record("testKind", 10);
+    assertTrue("90th percentile should be 3 shards", predictor.predict(
+        "testKind", 90) == 3);
+    assertTrue("100th percentile should be 10 shards", predictor.predict(
+        "testKind", 100) == 10);
+    predictor.recordPrefetch(3, 1);
+    predictor.recordPrefetch(3, 10);
+    assertTrue("One of two prefetches should hit",
+        predictor.getHitRate() == 0.5);
+    assertTrue("Two of four prefetched shards should be wasted", predictor
+        .getWasteRate() == 0.5);
+  }
+
+  @Test
+  public void getIterableShouldPrefetchThePredictedShards()
+      throws EntityCorruptException {
+    MindashDatastoreConfig config = new MindashDatastoreConfig();
+    config.setShardPrefetchPercentile(90);
+    MindashDatastoreServiceImpl service =
+        new MindashDatastoreServiceImpl(datastore, new DatastoreHelperImpl(),
+            config);
+    for (int i = 0; i < ShardCountPredictor.MinimumSampleCount; i++) {
+      service.getShardCountPredictor().record("testKind", 4);
+    }
+    Key mindashKey = KeyFactory.createKey("testKind", "testName");
+    List<Entity> shards = generateShardsWithManifest(mindashKey);
+    Map<Key, Entity> allShards = new HashMap<Key, Entity>(4);
+    List<Key> allKeys = new ArrayList<Key>(4);
+    for (Entity shard : shards) {
+      allShards.put(shard.getKey(), shard);
+      allKeys.add(shard.getKey());
+    }
+    expect(datastore.get(allKeys)).andReturn(allShards).once();
+    replay(datastore);
+    Map<Key, Entity> results = service.get(Arrays.asList(mindashKey));
+    verify(datastore);
+    assertTrue("Result should be assembled from the single batch", results
+        .get(mindashKey).getProperty("3").equals("three"));
+    assertTrue("Prefetch should hit without waste", service
+        .getShardCountPredictor().getHitRate() == 1
+        && service.getShardCountPredictor().getWastedShardCount() == 0);
+  }
+
+  @Test
+  public void getEntityShouldFetchAllShardsAtOnceWithACachedManifest()
+      throws EntityNotFoundException, EntityCorruptException {
+    ShardMetadataCache cache = createMock(ShardMetadataCache.class);
+    MindashDatastoreConfig config = new MindashDatastoreConfig();
+    config.setShardMetadataCache(cache);
+    MindashDatastoreService service =
+        new MindashDatastoreServiceImpl(datastore, new DatastoreHelperImpl(),
+            config);
+    Key mindashKey = KeyFactory.createKey("testKind", "testName");
+    List<Entity> shards = generateShardsWithManifest(mindashKey);
+    Map<Key, byte[]> cached = new HashMap<Key, byte[]>(1);
+    cached.put(mindashKey, ShardManifest.read(shards.get(0)).encode());
+    Map<Key, Entity> allShards = new HashMap<Key, Entity>(4);
+    List<Key> allKeys = new ArrayList<Key>(4);
+    for (Entity shard : shards) {
+      allShards.put(shard.getKey(), shard);
+      allKeys.add(shard.getKey());
+    }
+    expect(cache.getManifests(Collections.singletonList(mindashKey)))
+        .andReturn(cached);
+    expect(datastore.get(allKeys)).andReturn(allShards).once();
+    replay(cache, datastore);
+    Entity result = service.get(mindashKey);
+    verify(cache, datastore);
+    assertTrue("Result should be assembled from the single batch", result
+        .getProperty("0").equals("zero")
+        && result.getProperty("3").equals("three")
+        && new String(((Blob) result.getProperty("MyBlob")).getBytes())
+            .equals("blob headblob tail"));
+  }
+
+  @Test
+  public void getEntityShouldRefetchWhenTheCachedManifestIsStale()
+      throws EntityNotFoundException, EntityCorruptException {
+    ShardMetadataCache cache = createMock(ShardMetadataCache.class);
+    MindashDatastoreConfig config = new MindashDatastoreConfig();
+    config.setShardMetadataCache(cache);
+    MindashDatastoreService service =
+        new MindashDatastoreServiceImpl(datastore, new DatastoreHelperImpl(),
+            config);
+    Key mindashKey = KeyFactory.createKey("testKind", "testName");
+    List<Entity> shards = generateShardsWithManifest(mindashKey);
+    // cached when the entity had a single shard
+    Entity oldShard0 = mdImpl.createMindashEntityShard(mindashKey, 0);
+    oldShard0.setProperty(MindashDatastoreService.MindashShardCountLabel, 1);
+    oldShard0.setProperty("0", "zero");
+    Map<Key, byte[]> cached = new HashMap<Key, byte[]>(1);
+    cached.put(mindashKey, ShardManifest.fromShards(Arrays.asList(oldShard0))
+        .encode());
+    Map<Key, Entity> shard0Result = new HashMap<Key, Entity>(1);
+    shard0Result.put(shards.get(0).getKey(), shards.get(0));
+    Map<Key, Entity> otherShards = new HashMap<Key, Entity>(3);
+    for (int i = 1; i < 4; i++) {
+      otherShards.put(shards.get(i).getKey(), shards.get(i));
+    }
+    expect(cache.getManifests(Collections.singletonList(mindashKey)))
+        .andReturn(cached);
+    expect(datastore.get(Arrays.asList(shards.get(0).getKey()))).andReturn(
+        shard0Result);
+    cache.putManifests(isA(Map.class));
+    expectLastCall().once();
+    expect(
+        datastore.get(Arrays.asList(shards.get(1).getKey(), shards.get(2)
+            .getKey(), shards.get(3).getKey()))).andReturn(otherShards);
+    replay(cache, datastore);
+    Entity result = service.get(mindashKey);
+    verify(cache, datastore);
+    assertTrue("Result should have the properties of every shard", result
+        .getProperty("3").equals("three"));
+  }
+
+  @Test
+  public void putAndDeleteShouldUseAndUpdateTheCachedManifest()
+      throws EntityCorruptException {
+    ShardMetadataCache cache = createMock(ShardMetadataCache.class);
+    MindashDatastoreConfig config = new MindashDatastoreConfig();
+    config.setShardMetadataCache(cache);
+    MindashDatastoreService service =
+        new MindashDatastoreServiceImpl(datastore, new DatastoreHelperImpl(),
+            config);
+    Key mindashKey = KeyFactory.createKey("testKind", "testName");
+    List<Entity> shards = generateShardsWithManifest(mindashKey);
+    Map<Key, byte[]> cached = new HashMap<Key, byte[]>(1);
+    cached.put(mindashKey, ShardManifest.read(shards.get(0)).encode());
+    Entity entity = new Entity("testKind", "testName");
+    entity.setProperty("property1", "test string");
+    // the 0th shard is not read, the cached manifest tells there are 4
+    expect(cache.getManifests(Collections.singletonList(mindashKey)))
+        .andReturn(cached);
+    expect(datastore.put(isA(List.class))).andReturn(new ArrayList<Key>());
+    datastore.delete(Arrays.asList(shards.get(1).getKey(), shards.get(2)
+        .getKey(), shards.get(3).getKey()));
+    expectLastCall().once();
+    cache.putManifests(isA(Map.class));
+    expectLastCall().once();
+    // the new manifest is cached, telling there is 1
+    Map<Key, byte[]> recached = new HashMap<Key, byte[]>(1);
+    recached.put(mindashKey, ShardManifest.fromShards(
+        Arrays.asList(shards.get(0))).encode());
+    expect(cache.getManifests(Collections.singletonList(mindashKey)))
+        .andReturn(recached);
+    datastore.delete(Arrays.asList(shards.get(0).getKey()));
+    expectLastCall().once();
+    cache.removeManifests(Collections.singletonList(mindashKey));
+    expectLastCall().once();
+    replay(cache, datastore);
+    service.put(entity);
+    service.delete(mindashKey);
+    verify(cache, datastore);
+  }
+
+  @Test
+  public void shardManifestShouldDescribePlannedShardsAndSurviveEncoding()
+      throws EntityCorruptException {
+    Entity entity = new Entity("testKind", "testName");
+    entity.setProperty("property1", new Blob(new byte[2500000]));
+    List<Entity> shards =
+        mdImpl.planStorableEntityShards(entity.getKey(), entity, 0);
+    ShardManifest manifest =
+        ShardManifest.decode(ShardManifest.fromShards(shards).encode());
+    ShardManifest.PropertySpan span = manifest.getPropertySpan("property1");
+    assertTrue("Manifest should be the current version",
+        manifest.getVersion() == ShardManifest.CurrentVersion);
+    assertTrue("Manifest should record 3 shards",
+        manifest.getShardCount() == 3);
+    assertTrue("Blob should span shards 0 to 2", span.isBlob()
+        && span.getFirstShard() == 0 && span.getLastShard() == 2);
+    assertTrue("Blob should be 2500000 bytes long",
+        span.getLength() == 2500000);
+    assertTrue("Second piece should start after the first", span
+        .getPieceOffset(1) == span.getPieceLength(0));
+  }
+
+  @Test
+  public void putEntityShouldRecordManifestInShard0()
+      throws EntityNotFoundException, EntityCorruptException {
+    Entity entity = new Entity("testKind", "testName");
+    entity.setProperty("property1", new Blob(new byte[2500000]));
+    entity.setProperty("property2", "test string");
+    Capture<List<Entity>> stored = new Capture<List<Entity>>();
+    expect(datastore.get(mdImpl.createMindashDatastoreKey(entity.getKey(), 0)))
+        .andThrow(new EntityNotFoundException(entity.getKey()));
+    expect(datastore.put(capture(stored))).andReturn(new ArrayList<Key>());
+    replay(datastore);
+    md.put(entity);
+    verify(datastore);
+    List<Entity> shards = stored.getValue();
+    ShardManifest manifest = ShardManifest.read(shards.get(0));
+    assertTrue("Manifest should record every shard",
+        manifest.getShardCount() == shards.size());
+    for (ShardManifest.PropertySpan span : manifest.getPropertySpans()) {
+      for (int i = span.getFirstShard(); i <= span.getLastShard(); i++) {
+        assertTrue("Shard " + i + " should hold \"" + span.getName() + "\"",
+            shards.get(i).hasProperty(span.getName()));
+      }
+    }
+    assertTrue("Manifest should list both properties", manifest
+        .getPropertySpans().size() == 2);
+  }
+
+  @Test
+  public void putEntityShouldEncodeBlobsWithTheCodecOfTheKind()
+      throws EntityNotFoundException, EntityCorruptException {
+    MindashDatastoreConfig config = new MindashDatastoreConfig();
+    config.setBlobCodec("testKind", new DeflateBlobCodec());
+    MindashDatastoreService service =
+        new MindashDatastoreServiceImpl(datastore, new DatastoreHelperImpl(),
+            config);
+    Entity entity = new Entity("testKind", "testName");
+    entity.setProperty("property1", new Blob(new byte[2500000]));
+    entity.setProperty("property2", "test string");
+    Capture<List<Entity>> stored = new Capture<List<Entity>>();
+    expect(datastore.get(mdImpl.createMindashDatastoreKey(entity.getKey(), 0)))
+        .andThrow(new EntityNotFoundException(entity.getKey()));
+    expect(datastore.put(capture(stored))).andReturn(new ArrayList<Key>());
+    replay(datastore);
+    service.put(entity);
+    verify(datastore);
+    List<Entity> shards = stored.getValue();
+    assertTrue("Compressed entity should fit into a single shard", shards
+        .size() == 1);
+    ShardManifest.PropertySpan span =
+        ShardManifest.read(shards.get(0)).getPropertySpan("property1");
+    assertTrue("Manifest should record the codec", DeflateBlobCodec.Name
+        .equals(span.getCodec()));
+    assertTrue("Manifest should record the decoded length", span
+        .getDecodedLength() == 2500000);
+    assertTrue("Shard should hold the encoded blob", ((Blob) shards.get(0)
+        .getProperty("property1")).getBytes().length < 2500000);
+    assertTrue("Entity passed in should not be modified", ((Blob) entity
+        .getProperty("property1")).getBytes().length == 2500000);
+  }
+
+  @Test
+  public void putEntityShouldNotEncodeBlobsThatDoNotGetSmaller()
+      throws EntityNotFoundException, EntityCorruptException {
+    MindashDatastoreConfig config = new MindashDatastoreConfig();
+    config.setBlobCodec("testKind", new DeflateBlobCodec());
+    MindashDatastoreService service =
+        new MindashDatastoreServiceImpl(datastore, new DatastoreHelperImpl(),
+            config);
+    Entity entity = new Entity("testKind", "testName");
+    byte[] bytes = new byte[1000];
+    new Random(1).nextBytes(bytes);
+    entity.setProperty("property1", new Blob(bytes));
+    Capture<List<Entity>> stored = new Capture<List<Entity>>();
+    expect(datastore.get(mdImpl.createMindashDatastoreKey(entity.getKey(), 0)))
+        .andThrow(new EntityNotFoundException(entity.getKey()));
+    expect(datastore.put(capture(stored))).andReturn(new ArrayList<Key>());
+    replay(datastore);
+    service.put(entity);
+    verify(datastore);
+    Entity shard0 = stored.getValue().get(0);
+    assertTrue("Random bytes should be stored as they are", ShardManifest
+        .read(shard0).getPropertySpan("property1").getCodec() == null);
+    assertTrue("Random bytes should be stored as they are", Arrays.equals(
+        bytes, ((Blob) shard0.getProperty("property1")).getBytes()));
+  }
+
+  @Test
+  public void getEntityShouldDecodeEncodedBlobs()
+      throws EntityNotFoundException, EntityCorruptException {
+    Key key = KeyFactory.createKey("testKind", "testName");
+    byte[] bytes = "compressible compressible compressible".getBytes();
+    ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+    try {
+      OutputStream out = new DeflateBlobCodec().encode(encoded);
+      out.write(bytes);
+      out.close();
+    } catch (IOException e) {
+      fail("Encoding into memory should not fail");
+    }
+    Entity shard0 = mdImpl.createMindashEntityShard(key, 0);
+    shard0.setProperty("MyBlob", new Blob(encoded.toByteArray()));
+    ShardManifest manifest = ShardManifest.fromShards(Arrays.asList(shard0));
+    manifest.getPropertySpan("MyBlob").setCodec(DeflateBlobCodec.Name,
+        bytes.length);
+    manifest.write(shard0);
+    shard0.setProperty(MindashDatastoreService.MindashShardCountLabel, 1);
+    expect(datastore.get(shard0.getKey())).andReturn(shard0);
+    replay(datastore);
+    Entity result = md.get(key);
+    verify(datastore);
+    assertTrue("Blob should be decoded", Arrays.equals(bytes, ((Blob) result
+        .getProperty("MyBlob")).getBytes()));
+  }
+
+  @Test
+  public void blobCodecShouldTradeCpuForFewerShards() throws IOException {
+    // the shard count stands in for datastore RPCs, the time for CPU
+    byte[] bytes = new byte[4000000];
+    byte[] text =
+        "<record id=\"1\"><name>test</name><value>42</value></record>"
+            .getBytes();
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = text[i % text.length];
+    }
+    Entity entity = new Entity("testKind", "testName");
+    entity.setProperty("MyBlob", new Blob(bytes));
+    SizeEstimator sizeEstimator = new EncodedSizeEstimator();
+    int rawShards =
+        new BinPackingShardPlanner().plan(entity.getKey(), entity, 0,
+            sizeEstimator).size();
+    long start = System.nanoTime();
+    ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+    OutputStream out = new DeflateBlobCodec().encode(encoded);
+    out.write(bytes);
+    out.close();
+    long encodeNanos = System.nanoTime() - start;
+    start = System.nanoTime();
+    byte[] decoded =
+        readFully(new DeflateBlobCodec().decode(new ByteArrayInputStream(
+            encoded.toByteArray())));
+    long decodeNanos = System.nanoTime() - start;
+    entity.setProperty("MyBlob", new Blob(encoded.toByteArray()));
+    int encodedShards =
+        new BinPackingShardPlanner().plan(entity.getKey(), entity, 0,
+            sizeEstimator).size();
+    logger.info("4MB markup blob: " + rawShards + " raw shards, "
+        + encodedShards + " deflated shards, encode " + encodeNanos / 1000000
+        + "ms, decode " + decodeNanos / 1000000 + "ms");
+    assertTrue("Blob should survive encoding", Arrays.equals(bytes, decoded));
+    assertTrue("Deflated blob should need fewer shards",
+        encodedShards < rawShards);
+  }
+
+  @Test
+  public void putEntityShouldStoreDeduplicatedBlobsOnceByContent()
+      throws EntityNotFoundException, EntityCorruptException {
+    MindashDatastoreConfig config = new MindashDatastoreConfig();
+    config.setBlobDeduplication("testKind", true);
+    MindashDatastoreService service =
+        new MindashDatastoreServiceImpl(datastore, new DatastoreHelperImpl(),
+            config);
+    Transaction chunkTransaction = createNiceMock(Transaction.class);
+    Entity entity = new Entity("testKind", "testName");
+    entity.setProperty("MyBlob", new Blob("attachment".getBytes()));
+    entity.setProperty("property2", "test string");
+    byte[] bytes = "attachment".getBytes();
+    Key chunkKey =
+        BlobChunkStore.createChunkKey(BlobChunkStore.hash(bytes, 0,
+            bytes.length));
+    Capture<Entity> chunk = new Capture<Entity>();
+    Capture<List<Entity>> stored = new Capture<List<Entity>>();
+    expect(datastore.get(mdImpl.createMindashDatastoreKey(entity.getKey(), 0)))
+        .andThrow(new EntityNotFoundException(entity.getKey()));
+    expect(datastore.beginTransaction()).andReturn(chunkTransaction);
+    expect(datastore.get(chunkTransaction, chunkKey)).andThrow(
+        new EntityNotFoundException(chunkKey));
+    expect(datastore.put(eq(chunkTransaction), capture(chunk))).andReturn(
+        chunkKey);
+    expect(datastore.put(capture(stored))).andReturn(new ArrayList<Key>());
+    replay(datastore);
+    service.put(entity);
+    verify(datastore);
+    assertTrue("Chunk should hold the blob", Arrays.equals(bytes,
+        ((Blob) chunk.getValue().getProperty(BlobChunkStore.ChunkBytesLabel))
+            .getBytes()));
+    assertTrue("Chunk should be referenced once", chunk.getValue()
+        .getProperty(BlobChunkStore.ChunkReferencesLabel).equals(1L));
+    Entity shard0 = stored.getValue().get(0);
+    assertTrue("Shard 0 should not hold the blob", !shard0.hasProperty("MyBlob"));
+    ShardManifest.PropertySpan span =
+        ShardManifest.read(shard0).getPropertySpan("MyBlob");
+    assertTrue("Manifest should reference the chunk", span.isChunked()
+        && span.getChunkHashes().equals(
+            Arrays.asList(chunkKey.getName())));
+  }
+
+  @Test
+  public void putEntityShouldOnlyCountReferencesToStoredChunks()
+      throws EntityNotFoundException {
+    MindashDatastoreConfig config = new MindashDatastoreConfig();
+    config.setBlobDeduplication("testKind", true);
+    MindashDatastoreService service =
+        new MindashDatastoreServiceImpl(datastore, new DatastoreHelperImpl(),
+            config);
+    Transaction chunkTransaction = createNiceMock(Transaction.class);
+    Entity entity = new Entity("testKind", "testName");
+    byte[] bytes = "attachment".getBytes();
+    entity.setProperty("MyBlob", new Blob(bytes));
+    Key chunkKey =
+        BlobChunkStore.createChunkKey(BlobChunkStore.hash(bytes, 0,
+            bytes.length));
+    Entity storedChunk = new Entity(chunkKey.getKind(), chunkKey.getName());
+    storedChunk.setProperty(BlobChunkStore.ChunkBytesLabel, new Blob(bytes));
+    storedChunk.setProperty(BlobChunkStore.ChunkReferencesLabel, 3L);
+    Capture<Entity> chunk = new Capture<Entity>();
+    expect(datastore.get(mdImpl.createMindashDatastoreKey(entity.getKey(), 0)))
+        .andThrow(new EntityNotFoundException(entity.getKey()));
+    expect(datastore.beginTransaction()).andReturn(chunkTransaction);
+    expect(datastore.get(chunkTransaction, chunkKey)).andReturn(storedChunk);
+    expect(datastore.put(eq(chunkTransaction), capture(chunk))).andReturn(
+        chunkKey);
+    expect(datastore.put(ListOfEntitiesSizeEquals.eqListOfEntitiesSize(1)))
+        .andReturn(new ArrayList<Key>());
+    replay(datastore);
+    service.put(entity);
+    verify(datastore);
+    assertTrue("Chunk should gain a reference", chunk.getValue().getProperty(
+        BlobChunkStore.ChunkReferencesLabel).equals(4L));
+  }
+
+  @Test
+  public void rolledBackWritesShouldKeepDeduplicatedBlobsReadable()
+      throws EntityNotFoundException, EntityCorruptException {
+    MindashDatastoreConfig config = new MindashDatastoreConfig();
+    config.setBlobDeduplication("testKind", true);
+    MindashDatastoreService service =
+        new MindashDatastoreServiceImpl(DatastoreServiceFactory
+            .getDatastoreService(), new DatastoreHelperImpl(), config);
+    byte[] bytes = "attachment".getBytes();
+    Entity entity = new Entity("testKind", "testName");
+    entity.setProperty("MyBlob", new Blob(bytes));
+    service.put(entity);
+    // replace the blob, then delete the entity, rolling back both times
+    Entity replacement = new Entity("testKind", "testName");
+    replacement.setProperty("MyBlob", new Blob("other".getBytes()));
+    Transaction txn = service.beginTransaction();
+    service.put(txn, replacement);
+    txn.rollback();
+    txn = service.beginTransaction();
+    service.delete(txn, entity.getKey());
+    txn.rollback();
+    Entity result = service.get(entity.getKey());
+    assertTrue("Blob should still be readable", Arrays.equals(bytes,
+        ((Blob) result.getProperty("MyBlob")).getBytes()));
+  }
+
+  @Test
+  public void getEntityShouldAssembleDeduplicatedBlobsFromChunks()
+      throws EntityNotFoundException, EntityCorruptException {
+    Key key = KeyFactory.createKey("testKind", "testName");
+    byte[] bytes = "attachment".getBytes();
+    List<BlobChunkStore.Chunk> chunks = BlobChunkStore.split(bytes);
+    Entity shard0 = mdImpl.createMindashEntityShard(key, 0);
+    shard0.setProperty("property2", "test string");
+    ShardManifest manifest = ShardManifest.fromShards(Arrays.asList(shard0));
+    manifest.addChunkedBlob("MyBlob", chunks);
+    manifest.write(shard0);
+    shard0.setProperty(MindashDatastoreService.MindashShardCountLabel, 1);
+    Key chunkKey = BlobChunkStore.createChunkKey(chunks.get(0).getHash());
+    Entity storedChunk = new Entity(chunkKey.getKind(), chunkKey.getName());
+    storedChunk.setProperty(BlobChunkStore.ChunkBytesLabel, new Blob(bytes));
+    Map<Key, Entity> storedChunks = new HashMap<Key, Entity>(1);
+    storedChunks.put(chunkKey, storedChunk);
+    expect(datastore.get(shard0.getKey())).andReturn(shard0);
+    expect(datastore.get(Arrays.asList(chunkKey))).andReturn(storedChunks);
+    replay(datastore);
+    Entity result = md.get(key);
+    verify(datastore);
+    assertTrue("Blob should be assembled from its chunk", Arrays.equals(bytes,
+        ((Blob) result.getProperty("MyBlob")).getBytes()));
+    assertTrue("Other properties should be read from the shards", result
+        .getProperty("property2").equals("test string"));
+  }
+
+  @Test
+  public void deleteShouldReleaseChunksAndDeleteTheUnreferencedOnes() {
+    Key key = KeyFactory.createKey("testKind", "testName");
+    byte[] bytes = "attachment".getBytes();
+    List<BlobChunkStore.Chunk> chunks = BlobChunkStore.split(bytes);
+    Entity shard0 = mdImpl.createMindashEntityShard(key, 0);
+    ShardManifest manifest = ShardManifest.fromShards(Arrays.asList(shard0));
+    manifest.addChunkedBlob("MyBlob", chunks);
+    manifest.write(shard0);
+    shard0.setProperty(MindashDatastoreService.MindashShardCountLabel, 1);
+    Map<Key, Entity> shard0results = new HashMap<Key, Entity>(1);
+    shard0results.put(shard0.getKey(), shard0);
+    Key chunkKey = BlobChunkStore.createChunkKey(chunks.get(0).getHash());
+    Entity storedChunk = new Entity(chunkKey.getKind(), chunkKey.getName());
+    storedChunk.setProperty(BlobChunkStore.ChunkReferencesLabel, 1L);
+    Transaction chunkTransaction = createNiceMock(Transaction.class);
+    expect(datastore.get(ListOf0thShardKeysEquals.eqListOf0thShardKeys()))
+        .andReturn(shard0results);
+    datastore.delete(Arrays.asList(shard0.getKey()));
+    expectLastCall().once();
+    expect(datastore.beginTransaction()).andReturn(chunkTransaction);
+    try {
+      expect(datastore.get(chunkTransaction, chunkKey)).andReturn(storedChunk);
+    } catch (EntityNotFoundException e) {
+      fail("Recording an expectation should not throw");
+    }
+    datastore.delete(chunkTransaction, chunkKey);
+    expectLastCall().once();
+    replay(datastore);
+    md.delete(key);
+    verify(datastore);
+  }
+
   @Test
   public void concatenateBlobShouldConcatenateCorrectly() {
     Blob head = new Blob("head".getBytes());
@@ -800,6 +1869,259 @@ public class MindashDatastoreServiceImplTest extends LocalDatastoreTestCase
         "headtail".equals(new String(result.getBytes())));
   }
 
+  @Test
+  public void openBlobStreamShouldStreamBlobSplitAcrossShards()
+      throws EntityNotFoundException, IOException {
+    Key mindashKey = KeyFactory.createKey("testKind", "testName");
+    Entity shard0 = mdImpl.createMindashEntityShard(mindashKey, 0);
+    shard0.setProperty(MindashDatastoreService.MindashShardCountLabel, 4);
+    shard0.setProperty("0", "zero");
+    Entity shard1 = mdImpl.createMindashEntityShard(mindashKey, 1);
+    shard1.setProperty("MyBlob", new Blob("blob head".getBytes()));
+    Entity shard2 = mdImpl.createMindashEntityShard(mindashKey, 2);
+    shard2.setProperty("MyBlob", new Blob("blob tail".getBytes()));
+    Entity shard3 = mdImpl.createMindashEntityShard(mindashKey, 3);
+    shard3.setProperty("3", "three");
+    List<Key> keys = new ArrayList<Key>(3);
+    keys.add(shard1.getKey());
+    keys.add(shard2.getKey());
+    keys.add(shard3.getKey());
+    Map<Key, Entity> shards = new HashMap<Key, Entity>(3);
+    shards.put(shard1.getKey(), shard1);
+    shards.put(shard2.getKey(), shard2);
+    shards.put(shard3.getKey(), shard3);
+    expect(datastore.get(shard0.getKey())).andReturn(shard0);
+    expect(datastore.get(keys)).andReturn(shards);
+    replay(datastore);
+    byte[] result = readFully(md.openBlobStream(mindashKey, "MyBlob"));
+    verify(datastore);
+    assertTrue("Stream should return 'blob headblob tail'", "blob headblob tail"
+        .equals(new String(result)));
+  }
+
+  @Test
+  public void openBlobStreamShouldNotFetchShardsPastTheEndOfTheBlob()
+      throws EntityNotFoundException, IOException {
+    MindashDatastoreConfig config = new MindashDatastoreConfig();
+    config.setBlobReadAheadShards(1);
+    MindashDatastoreService service =
+        new MindashDatastoreServiceImpl(datastore, new DatastoreHelperImpl(),
+            config);
+    Key mindashKey = KeyFactory.createKey("testKind", "testName");
+    Entity shard0 = mdImpl.createMindashEntityShard(mindashKey, 0);
+    shard0.setProperty(MindashDatastoreService.MindashShardCountLabel, 4);
+    shard0.setProperty("MyBlob", new Blob("blob head".getBytes()));
+    Entity shard1 = mdImpl.createMindashEntityShard(mindashKey, 1);
+    shard1.setProperty("MyBlob", new Blob("blob tail".getBytes()));
+    Entity shard2 = mdImpl.createMindashEntityShard(mindashKey, 2);
+    shard2.setProperty("2", "two");
+    Map<Key, Entity> shard1Result = new HashMap<Key, Entity>(1);
+    shard1Result.put(shard1.getKey(), shard1);
+    Map<Key, Entity> shard2Result = new HashMap<Key, Entity>(1);
+    shard2Result.put(shard2.getKey(), shard2);
+    expect(datastore.get(shard0.getKey())).andReturn(shard0);
+    expect(datastore.get(Arrays.asList(shard1.getKey()))).andReturn(
+        shard1Result).once();
+    expect(datastore.get(Arrays.asList(shard2.getKey()))).andReturn(
+        shard2Result).once();
+    replay(datastore);
+    byte[] result = readFully(service.openBlobStream(mindashKey, "MyBlob"));
+    verify(datastore);
+    assertTrue("Stream should return 'blob headblob tail'", "blob headblob tail"
+        .equals(new String(result)));
+  }
+
+  @Test
+  public void openBlobStreamShouldFetchOnlyTheShardsListedInTheManifest()
+      throws EntityNotFoundException, IOException {
+    Key mindashKey = KeyFactory.createKey("testKind", "testName");
+    Entity shard0 = mdImpl.createMindashEntityShard(mindashKey, 0);
+    shard0.setProperty(MindashDatastoreService.MindashShardCountLabel, 5);
+    shard0.setProperty("0", "zero");
+    Entity shard1 = mdImpl.createMindashEntityShard(mindashKey, 1);
+    shard1.setProperty("1", "one");
+    Entity shard2 = mdImpl.createMindashEntityShard(mindashKey, 2);
+    shard2.setProperty("MyBlob", new Blob("blob head".getBytes()));
+    Entity shard3 = mdImpl.createMindashEntityShard(mindashKey, 3);
+    shard3.setProperty("MyBlob", new Blob("blob tail".getBytes()));
+    Entity shard4 = mdImpl.createMindashEntityShard(mindashKey, 4);
+    shard4.setProperty("4", "four");
+    ShardManifest.fromShards(
+        Arrays.asList(shard0, shard1, shard2, shard3, shard4)).write(shard0);
+    Map<Key, Entity> shards = new HashMap<Key, Entity>(2);
+    shards.put(shard2.getKey(), shard2);
+    shards.put(shard3.getKey(), shard3);
+    expect(datastore.get(shard0.getKey())).andReturn(shard0);
+    expect(datastore.get(Arrays.asList(shard2.getKey(), shard3.getKey())))
+        .andReturn(shards).once();
+    replay(datastore);
+    byte[] result = readFully(md.openBlobStream(mindashKey, "MyBlob"));
+    verify(datastore);
+    assertTrue("Stream should return 'blob headblob tail'", "blob headblob tail"
+        .equals(new String(result)));
+  }
+
+  @Test
+  public void openBlobStreamShouldThrowIOExceptionIfShardIsMissing()
+      throws EntityNotFoundException {
+    Key mindashKey = KeyFactory.createKey("testKind", "testName");
+    Entity shard0 = mdImpl.createMindashEntityShard(mindashKey, 0);
+    shard0.setProperty(MindashDatastoreService.MindashShardCountLabel, 2);
+    shard0.setProperty("MyBlob", new Blob("blob head".getBytes()));
+    expect(datastore.get(shard0.getKey())).andReturn(shard0);
+    expect(
+        datastore.get(Arrays.asList(mdImpl.createMindashDatastoreKey(
+            mindashKey, 1)))).andReturn(new HashMap<Key, Entity>());
+    replay(datastore);
+    try {
+      readFully(md.openBlobStream(mindashKey, "MyBlob"));
+      fail("Should throw IOException");
+    } catch (IOException e) {
+      assertTrue(true);
+    }
+  }
+
+  @Test
+  public void createBlobWriterShouldStoreShardsInBatchesAndShard0OnClose()
+      throws EntityNotFoundException, EntityCorruptException, IOException {
+    MindashDatastoreConfig config = new MindashDatastoreConfig();
+    config.setBlobWriterBatchShards(1);
+    MindashDatastoreService service =
+        new MindashDatastoreServiceImpl(datastore, new DatastoreHelperImpl(),
+            config);
+    Key mindashKey = KeyFactory.createKey("testKind", "testName");
+    int capacity = ShardedBlobOutputStream.getShardCapacity("MyBlob");
+    byte[] bytes = new byte[capacity * 2 + 10];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) i;
+    }
+    Capture<Entity> shard0 = new Capture<Entity>();
+    expect(datastore.get(mdImpl.createMindashDatastoreKey(mindashKey, 0)))
+        .andThrow(new EntityNotFoundException(mindashKey));
+    expect(datastore.put(ListOfEntitiesSizeEquals.eqListOfEntitiesSize(1)))
+        .andReturn(new ArrayList<Key>()).times(3);
+    expect(datastore.put(capture(shard0))).andReturn(
+        mdImpl.createMindashDatastoreKey(mindashKey, 0)).once();
+    replay(datastore);
+    OutputStream out = service.createBlobWriter(mindashKey, "MyBlob");
+    out.write(bytes);
+    out.close();
+    verify(datastore);
+    assertTrue("Shard 0 should record 4 shards", shard0.getValue()
+        .getProperty(MindashDatastoreService.MindashShardCountLabel).equals(4));
+    assertTrue("Shard 0 should not hold any of the blob", !shard0.getValue()
+        .hasProperty("MyBlob"));
+    ShardManifest.PropertySpan span =
+        ShardManifest.read(shard0.getValue()).getPropertySpan("MyBlob");
+    assertTrue("Manifest should list the blob in shards 1 to 3", span
+        .getFirstShard() == 1
+        && span.getLastShard() == 3);
+    assertTrue("Manifest should record the length of the blob", span
+        .getLength() == bytes.length);
+  }
+
+  @Test
+  public void createBlobWriterShouldWritePastTheOldShardsAndDeleteThemOnClose()
+      throws EntityNotFoundException, EntityCorruptException, IOException {
+    Key mindashKey = KeyFactory.createKey("testKind", "testName");
+    Entity oldShard0 = mdImpl.createMindashEntityShard(mindashKey, 0);
+    oldShard0.setProperty(MindashDatastoreService.MindashShardCountLabel, 4);
+    Capture<List<Entity>> blobShards = new Capture<List<Entity>>();
+    Capture<Entity> shard0 = new Capture<Entity>();
+    expect(datastore.get(oldShard0.getKey())).andReturn(oldShard0);
+    expect(datastore.put(capture(blobShards))).andReturn(new ArrayList<Key>())
+        .once();
+    expect(datastore.put(capture(shard0))).andReturn(oldShard0.getKey())
+        .once();
+    List<Key> keys = new ArrayList<Key>(3);
+    for (int i = 1; i < 4; i++) {
+      keys.add(mdImpl.createMindashDatastoreKey(mindashKey, i));
+    }
+    datastore.delete(keys);
+    expectLastCall().once();
+    replay(datastore);
+    OutputStream out = md.createBlobWriter(mindashKey, "MyBlob");
+    out.write("small blob".getBytes());
+    out.close();
+    verify(datastore);
+    assertTrue("Blob should be stored past the old shards", blobShards
+        .getValue().get(0).getKey().equals(
+            mdImpl.createMindashDatastoreKey(mindashKey, 4)));
+    ShardManifest.PropertySpan span =
+        ShardManifest.read(shard0.getValue()).getPropertySpan("MyBlob");
+    assertTrue("Manifest should list the blob in shard 4", span
+        .getFirstShard() == 4
+        && span.getLastShard() == 4);
+  }
+
+  @Test
+  public void blobWriterShouldLeaveTheOldEntityReadableUntilClosed()
+      throws EntityNotFoundException, EntityCorruptException, IOException {
+    MindashDatastoreConfig config = new MindashDatastoreConfig();
+    config.setBlobWriterBatchShards(1);
+    MindashDatastoreService service =
+        new MindashDatastoreServiceImpl(DatastoreServiceFactory
+            .getDatastoreService(), new DatastoreHelperImpl(), config);
+    Entity entity = new Entity("testKind", "testName");
+    // a blob of more than a shard
+    entity.setProperty("MyBlob", new Blob(new byte[1500000]));
+    service.put(entity);
+    int capacity = ShardedBlobOutputStream.getShardCapacity("MyBlob");
+    byte[] bytes = new byte[capacity * 3];
+    Arrays.fill(bytes, (byte) 1);
+    // stores at least one batch, then is abandoned
+    OutputStream abandoned =
+        service.createBlobWriter(entity.getKey(), "MyBlob");
+    abandoned.write(bytes);
+    assertTrue("Abandoned writer should leave the old entity", ((Blob) service
+        .get(entity.getKey()).getProperty("MyBlob")).getBytes().length
+        == 1500000);
+    OutputStream out = service.createBlobWriter(entity.getKey(), "MyBlob");
+    out.write(bytes);
+    assertTrue("Open writer should leave the old entity", ((Blob) service
+        .get(entity.getKey()).getProperty("MyBlob")).getBytes().length
+        == 1500000);
+    out.close();
+    assertTrue("Closed writer should replace the entity", Arrays.equals(
+        bytes, ((Blob) service.get(entity.getKey()).getProperty("MyBlob"))
+            .getBytes()));
+  }
+
+  @Test
+  public void createBlobWriterShouldEncodeWithTheCodecOfTheKind()
+      throws EntityNotFoundException, EntityCorruptException, IOException {
+    MindashDatastoreConfig config = new MindashDatastoreConfig();
+    config.setBlobCodec("testKind", new DeflateBlobCodec());
+    MindashDatastoreService service =
+        new MindashDatastoreServiceImpl(datastore, new DatastoreHelperImpl(),
+            config);
+    Key mindashKey = KeyFactory.createKey("testKind", "testName");
+    byte[] bytes = new byte[3000000];
+    Capture<List<Entity>> blobShards = new Capture<List<Entity>>();
+    Capture<Entity> shard0 = new Capture<Entity>();
+    expect(datastore.get(mdImpl.createMindashDatastoreKey(mindashKey, 0)))
+        .andThrow(new EntityNotFoundException(mindashKey));
+    expect(datastore.put(capture(blobShards))).andReturn(new ArrayList<Key>())
+        .once();
+    expect(datastore.put(capture(shard0))).andReturn(
+        mdImpl.createMindashDatastoreKey(mindashKey, 0)).once();
+    replay(datastore);
+    OutputStream out = service.createBlobWriter(mindashKey, "MyBlob");
+    out.write(bytes);
+    out.close();
+    verify(datastore);
+    assertTrue("Compressed blob should fit into a single shard", blobShards
+        .getValue().size() == 1);
+    ShardManifest.PropertySpan span =
+        ShardManifest.read(shard0.getValue()).getPropertySpan("MyBlob");
+    assertTrue("Manifest should record the codec", DeflateBlobCodec.Name
+        .equals(span.getCodec()));
+    assertTrue("Manifest should record the decoded length", span
+        .getDecodedLength() == bytes.length);
+    assertTrue("Manifest should record the stored length",
+        span.getLength() < bytes.length);
+  }
+
   // @Test
   // public void testMindashDatastoreServiceImplGetTransactionKey(){
   // assertTrue("Not implemented", false);
@@ -861,25 +2183,61 @@ public class MindashDatastoreServiceImplTest extends LocalDatastoreTestCase
   // verify(datastore).put(
   // }
 
+  /**
+   * @param kind the kind
+   * @param num the number of ids
+   * @return ids allocated by the local datastore
+   */
+  private KeyRange allocateLocalIds(String kind, long num) {
+    return DatastoreServiceFactory.getDatastoreService().allocateIds(kind,
+        num);
+  }
+
   @Test
-  public void putEntityNoKeyShouldPreemptivelySaveEntityToCompleteKey() {
+  public void putEntityNoKeyShouldCompleteKeyWithAnAllocatedId() {
     Entity entity = new Entity("testKind");
+    KeyRange range =
+        allocateLocalIds("testKind",
+            MindashDatastoreConfig.DefaultKeyIdBlockSize);
     expect(
-        datastore
-            .put(EntityWithIncompleteKeyEquals.eqEntityWithIncompleteKey()))
-        .andReturn(KeyFactory.createKey("testKind", 1));
+        datastore.allocateIds("testKind",
+            MindashDatastoreConfig.DefaultKeyIdBlockSize)).andReturn(range)
+        .once();
+    expect(datastore.put(isA(List.class))).andReturn(new ArrayList<Key>())
+        .once();
     replay(datastore);
-    md.put(entity);
+    Key key = md.put(entity);
+    verify(datastore);
+    assertTrue("Key should be completed with the first allocated id", key
+        .equals(range.getStart()));
+  }
+
+  @Test
+  public void putEntityNoKeyShouldTakeIdsFromThePoolWithoutAllocatingAgain() {
+    KeyRange range =
+        allocateLocalIds("testKind",
+            MindashDatastoreConfig.DefaultKeyIdBlockSize);
+    expect(
+        datastore.allocateIds("testKind",
+            MindashDatastoreConfig.DefaultKeyIdBlockSize)).andReturn(range)
+        .once();
+    expect(datastore.put(isA(List.class))).andReturn(new ArrayList<Key>())
+        .times(2);
+    replay(datastore);
+    Key key1 = md.put(new Entity("testKind"));
+    Key key2 = md.put(new Entity("testKind"));
     verify(datastore);
+    assertTrue("Keys should be distinct", !key1.equals(key2));
   }
 
   @Test
   public void putEntityShouldStoreShardsByAddingIntermediateLayer() {
     Entity entity = new Entity("testKind");
     expect(
-        datastore
-            .put(EntityWithIncompleteKeyEquals.eqEntityWithIncompleteKey()))
-        .andReturn(KeyFactory.createKey("testKind", 1));
+        datastore.allocateIds("testKind",
+            MindashDatastoreConfig.DefaultKeyIdBlockSize)).andReturn(
+        allocateLocalIds("testKind",
+            MindashDatastoreConfig.DefaultKeyIdBlockSize));
     expect(
         datastore.put(ListOfEntitiesWithMddLayerEquals
             .eqListOfEntitiesWithMddLayer("testKind"))).andReturn(
@@ -908,17 +2266,58 @@ public class MindashDatastoreServiceImplTest extends LocalDatastoreTestCase
     verify(datastore);
   }
 
-  // @Test
-  // public void
-  // putEntitesIterableShouldPreemptivelySaveEntitiesToCompleteIncompleteKeys(){
-  // Entity e1 = new Entity("testKind");
-  // Entity e2 = new Entity("testKind2");
-  // List<Entity> entities = new ArrayList<Entity>(2);
-  // entities.add(e1);
-  // entities.add(e2);
-  // List<Key> keys = md.put((Iterable<Entity>) entities);
-  // verify(datastore).put(argThat(new IsListOfIncompleteKeyEntities()));
-  // }
+  @Test
+  public void putEntitiesIterableShouldCompleteIncompleteKeysWithoutPlaceholders() {
+    Entity e1 = new Entity("testKind");
+    Entity e2 = new Entity("testKind2");
+    Entity e3 = new Entity("testKind", "testName");
+    List<Entity> entities = Arrays.asList(e1, e2, e3);
+    expect(
+        datastore.allocateIds("testKind",
+            MindashDatastoreConfig.DefaultKeyIdBlockSize)).andReturn(
+        allocateLocalIds("testKind",
+            MindashDatastoreConfig.DefaultKeyIdBlockSize)).once();
+    expect(
+        datastore.allocateIds("testKind2",
+            MindashDatastoreConfig.DefaultKeyIdBlockSize)).andReturn(
+        allocateLocalIds("testKind2",
+            MindashDatastoreConfig.DefaultKeyIdBlockSize)).once();
+    // only the entity with a complete key may have shards to replace
+    expect(
+        datastore.get(Arrays.asList(mdImpl.createMindashDatastoreKey(e3
+            .getKey(), 0)))).andReturn(new HashMap<Key, Entity>()).once();
+    expect(
+        datastore.put(ListOfEntitiesSizeEquals.eqListOfEntitiesSize(3)))
+        .andReturn(new ArrayList<Key>()).once();
+    replay(datastore);
+    List<Key> keys = md.put((Iterable<Entity>) entities);
+    verify(datastore);
+    assertTrue("Should return a key per entity, in order", keys.size() == 3
+        && keys.get(0).isComplete() && keys.get(0).getKind().equals("testKind")
+        && keys.get(1).isComplete()
+        && keys.get(1).getKind().equals("testKind2")
+        && keys.get(2).equals(e3.getKey()));
+  }
+
+  @Test
+  public void putEntitiesIterableShouldDeleteExcessShardsOfReplacedEntities() {
+    Key key = KeyFactory.createKey("testKind", "testName");
+    List<Entity> shards = generateShardsWithManifest(key);
+    Map<Key, Entity> shards0th = new HashMap<Key, Entity>(1);
+    shards0th.put(shards.get(0).getKey(), shards.get(0));
+    Entity entity = new Entity("testKind", "testName");
+    entity.setProperty("property1", "test string");
+    expect(datastore.get(Arrays.asList(shards.get(0).getKey()))).andReturn(
+        shards0th).once();
+    expect(datastore.put(isA(List.class))).andReturn(new ArrayList<Key>())
+        .once();
+    datastore.delete(Arrays.asList(shards.get(1).getKey(), shards.get(2)
+        .getKey(), shards.get(3).getKey()));
+    expectLastCall().once();
+    replay(datastore);
+    md.put(Arrays.asList(entity));
+    verify(datastore);
+  }
 
   // @Test
   // public void testMindashDatastoreServiceImplPutTransactionEntity(){
@@ -0,0 +1,251 @@
+/**
+ * Copyright 2010 Tristan Slominski
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied.
+ */
+package com.mindash.datastore.impl;
+
+import static org.easymock.classextension.EasyMock.*;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.mindash.datastore.EntityVisitor;
+import com.mindash.datastore.LocalDatastoreTestCase;
+import com.mindash.datastore.MindashDatastoreService;
+import com.mindash.datastore.MindashPreparedQuery;
+
+/**
+ * Runs queries against the local datastore.
+ * 
+ * @author Tristan Slominski
+ *
+ */
+public class MindashPreparedQueryImplTest extends LocalDatastoreTestCase {
+
+  private MindashDatastoreService createService() {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    return new MindashDatastoreServiceImpl(datastore,
+        new DatastoreHelperImpl());
+  }
+
+  private Set<Key> putTaggedEntities(MindashDatastoreService md, int count) {
+    Set<Key> keys = new HashSet<Key>();
+    for (int i = 0; i < count; i++) {
+      Entity entity = new Entity("testKind", "a" + i);
+      entity.setProperty("tag", "tagged");
+      keys.add(md.put(entity));
+    }
+    return keys;
+  }
+
+  private Query createTagQuery() {
+    return new Query("testKind").addFilter("tag", Query.FilterOperator.EQUAL,
+        "tagged");
+  }
+
+  private void putMultiShardEntities(MindashDatastoreService md, Key parent,
+      int count) {
+    for (int i = 0; i < count; i++) {
+      Entity entity = null;
+      if (parent != null) {
+        entity = new Entity("testKind", "b" + i, parent);
+      } else {
+        entity = new Entity("testKind", "b" + i);
+      }
+      // a blob of more than a shard
+      entity.setProperty("MyBlob", new Blob(new byte[1500000]));
+      md.put(entity);
+    }
+  }
+
+  private int count(Iterator<Entity> iterator) {
+    Set<Key> seen = new HashSet<Key>();
+    int count = 0;
+    while (iterator.hasNext()) {
+      seen.add(iterator.next().getKey());
+      count++;
+    }
+    assertTrue("Every entity should be returned once", seen.size() == count);
+    return count;
+  }
+
+  @Test
+  public void kindQueryShouldReturnEachMultiShardEntityOnce() {
+    MindashDatastoreService md = createService();
+    putMultiShardEntities(md, null, 3);
+    assertTrue("List should have 3 entities", md.prepare(
+        new Query("testKind")).asList(FetchOptions.Builder.withLimit(10))
+        .size() == 3);
+    assertTrue("Iterator should return 3 entities", count(md.prepare(
+        new Query("testKind")).asQueryResultIterator()) == 3);
+  }
+
+  @Test
+  public void ancestorQueryShouldReturnEachMultiShardEntityOnce() {
+    MindashDatastoreService md = createService();
+    Key parent = KeyFactory.createKey("parentKind", "parent");
+    putMultiShardEntities(md, parent, 2);
+    assertTrue("List should have 2 entities", md.prepare(
+        new Query("testKind", parent)).asList(
+        FetchOptions.Builder.withLimit(10)).size() == 2);
+    assertTrue("Iterator should return 2 entities", count(md.prepare(
+        new Query("testKind", parent)).asQueryResultIterator(
+        FetchOptions.Builder.withChunkSize(1))) == 2);
+  }
+
+  @Test
+  public void countEntitiesShouldCountEntitiesNotShards() {
+    MindashDatastoreService md = createService();
+    Key parent = KeyFactory.createKey("parentKind", "parent");
+    putMultiShardEntities(md, null, 3);
+    putMultiShardEntities(md, parent, 2);
+    assertTrue("Kind should have 5 entities", md.prepare(
+        new Query("testKind")).countEntities() == 5);
+    assertTrue("Parent should have 2 entities", md.prepare(
+        new Query("testKind", parent)).countEntities() == 2);
+  }
+
+  @Test
+  public void approximateCountShouldBeServedFromTheCache() {
+    MemcacheService memcache = createMock(MemcacheService.class);
+    DatastoreService datastore = createMock(DatastoreService.class);
+    Query query = new Query("testKind");
+    MindashPreparedQuery prepared =
+        new MindashPreparedQueryImpl(datastore, createService(), query, null,
+            memcache);
+    expect(memcache.get(isA(String.class))).andReturn(42).once();
+    replay(memcache, datastore);
+    int count = prepared.countEntities(60);
+    verify(memcache, datastore);
+    assertTrue("Cached count should be returned", count == 42);
+  }
+
+  @Test
+  public void kindQueryShouldKeepKeyOrderAndLeaveTheQueryAlone() {
+    MindashDatastoreService md = createService();
+    Entity large = new Entity("testKind", "a");
+    // a blob of more than a shard
+    large.setProperty("MyBlob", new Blob(new byte[1500000]));
+    md.put(large);
+    md.put(new Entity("testKind", "z"));
+    Query query = new Query("testKind");
+    List<Entity> results =
+        md.prepare(query).asList(FetchOptions.Builder.withLimit(10));
+    assertTrue("Results should be in key order", results.size() == 2
+        && results.get(0).getKey().getName().equals("a")
+        && results.get(1).getKey().getName().equals("z"));
+    assertTrue("Query should not be changed", !query.isKeysOnly()
+        && query.getFilterPredicates().isEmpty());
+  }
+
+  @Test
+  public void asIterableShouldNotStopAtAThousandEntities() {
+    MindashDatastoreService md = createService();
+    List<Entity> entities = new ArrayList<Entity>();
+    for (int i = 0; i < 1001; i++) {
+      Entity entity = new Entity("testKind", "c" + i);
+      entity.setProperty("tag", "tagged");
+      entities.add(entity);
+    }
+    md.put(entities);
+    int count = 0;
+    for (Entity entity : md.prepare(createTagQuery()).asIterable()) {
+      count++;
+    }
+    assertTrue("Iterable should return all 1001 entities", count == 1001);
+  }
+
+  @Test
+  public void forEachParallelShouldVisitEachEntityOnce() {
+    MindashDatastoreService md = createService();
+    putMultiShardEntities(md, null, 3);
+    Set<Key> keys = putTaggedEntities(md, 5);
+    final Set<Key> visited = Collections.synchronizedSet(new HashSet<Key>());
+    final int[] ranges = new int[2];
+    long count =
+        md.forEachParallel(new Query("testKind"), 2, new EntityVisitor() {
+          public void visit(Entity entity) {
+            assertTrue("Entity should be visited once", visited.add(entity
+                .getKey()));
+          }
+
+          public void rangeScanned(int rangesScanned, int rangeCount,
+              long entitiesVisited) {
+            ranges[0] = rangesScanned;
+            ranges[1] = rangeCount;
+          }
+        });
+    assertTrue("Scan should visit 8 entities", count == 8
+        && visited.size() == 8);
+    assertTrue("Scan should visit the tagged entities", visited
+        .containsAll(keys));
+    assertTrue("Every range should be reported", ranges[0] == ranges[1]);
+  }
+
+  @Test
+  public void queryResultIteratorShouldResumeFromItsCursor() {
+    MindashDatastoreService md = createService();
+    Set<Key> keys = putTaggedEntities(md, 5);
+    Set<Key> seen = new HashSet<Key>();
+    QueryResultIterator<Entity> iterator =
+        md.prepare(createTagQuery()).asQueryResultIterator(
+            FetchOptions.Builder.withChunkSize(2));
+    for (int i = 0; i < 3; i++) {
+      seen.add(iterator.next().getKey());
+    }
+    Cursor cursor = iterator.getCursor();
+    iterator =
+        md.prepare(createTagQuery()).asQueryResultIterator(
+            FetchOptions.Builder.withChunkSize(2).startCursor(cursor));
+    while (iterator.hasNext()) {
+      seen.add(iterator.next().getKey());
+    }
+    assertTrue("Resumed walk should see every entity exactly once", seen
+        .equals(keys));
+  }
+
+  @Test
+  public void queryResultListShouldHaveACursorAfterItsLastEntity() {
+    MindashDatastoreService md = createService();
+    Set<Key> keys = putTaggedEntities(md, 5);
+    QueryResultList<Entity> first =
+        md.prepare(createTagQuery()).asQueryResultList(
+            FetchOptions.Builder.withLimit(3));
+    QueryResultList<Entity> rest =
+        md.prepare(createTagQuery()).asQueryResultList(
+            FetchOptions.Builder.withStartCursor(first.getCursor()));
+    Set<Key> seen = new HashSet<Key>();
+    for (Entity entity : first) {
+      seen.add(entity.getKey());
+    }
+    for (Entity entity : rest) {
+      seen.add(entity.getKey());
+    }
+    assertTrue("Lists should have 3 and 2 entities", first.size() == 3
+        && rest.size() == 2);
+    assertTrue("Lists should hold every entity", seen.equals(keys));
+  }
+
+}
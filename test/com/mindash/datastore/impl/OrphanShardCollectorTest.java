@@ -0,0 +1,107 @@
+/**
+ * Copyright 2010 Tristan Slominski
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied.
+ */
+package com.mindash.datastore.impl;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.mindash.datastore.EntityCorruptException;
+import com.mindash.datastore.LocalDatastoreTestCase;
+import com.mindash.datastore.MindashDatastoreConfig;
+import com.mindash.datastore.MindashDatastoreService;
+
+/**
+ * Sweeps orphan shards out of the local datastore.
+ * 
+ * @author Tristan Slominski
+ *
+ */
+public class OrphanShardCollectorTest extends LocalDatastoreTestCase {
+
+  private DatastoreService datastore =
+      DatastoreServiceFactory.getDatastoreService();
+
+  private Entity createOrphan(Key parent, int shard) {
+    Entity orphan =
+        new Entity("testKind", MindashDatastoreService.MindashNamePrefixLabel
+            + shard, parent);
+    orphan.setUnindexedProperty("MyBlob", new Blob(new byte[1000]));
+    return orphan;
+  }
+
+  @Test
+  public void collectShouldDeleteOnlyOrphanShards()
+      throws EntityNotFoundException, EntityCorruptException {
+    MindashDatastoreService md =
+        new MindashDatastoreServiceImpl(datastore, new DatastoreHelperImpl());
+    Entity entity = new Entity("testKind", "testName");
+    // a blob of more than a shard
+    entity.setProperty("MyBlob", new Blob(new byte[1500000]));
+    md.put(entity);
+    // past the shard count, and of an entity that does not exist
+    datastore.put(createOrphan(entity.getKey(), 5));
+    datastore.put(createOrphan(KeyFactory.createKey("testKind", "gone"), 1));
+    OrphanShardCollector collector =
+        new OrphanShardCollector(datastore, new DatastoreHelperImpl());
+    collector.setConfirmDelayMillis(0);
+    collector.setPageSize(2);
+    OrphanShardCollector.Sweep sweep =
+        collector.collect("testKind", null, 0);
+    assertTrue("Sweep should reach the end of the kind", sweep.isDone()
+        && sweep.getCursor() == null);
+    assertTrue("Both orphans should be deleted", sweep.getOrphansFound() == 2
+        && sweep.getOrphansDeleted() == 2
+        && collector.getOrphansDeleted() == 2);
+    assertTrue("Entity should still be readable", ((Blob) md.get(
+        entity.getKey()).getProperty("MyBlob")).getBytes().length == 1500000);
+  }
+
+  @Test
+  public void collectShouldLeaveTheShardsOfAnOpenBlobWriter()
+      throws EntityNotFoundException, EntityCorruptException, IOException {
+    MindashDatastoreConfig config = new MindashDatastoreConfig();
+    config.setBlobWriterBatchShards(1);
+    MindashDatastoreService md =
+        new MindashDatastoreServiceImpl(datastore, new DatastoreHelperImpl(),
+            config);
+    Entity entity = new Entity("testKind", "testName");
+    entity.setProperty("MyBlob", new Blob(new byte[1000]));
+    md.put(entity);
+    byte[] bytes =
+        new byte[ShardedBlobOutputStream.getShardCapacity("MyBlob") * 3];
+    Arrays.fill(bytes, (byte) 1);
+    OutputStream out = md.createBlobWriter(entity.getKey(), "MyBlob");
+    // stores at least one batch of shards the 0th shard does not list yet
+    out.write(bytes);
+    OrphanShardCollector collector =
+        new OrphanShardCollector(datastore, new DatastoreHelperImpl());
+    collector.setConfirmDelayMillis(0);
+    OrphanShardCollector.Sweep sweep =
+        collector.collect("testKind", null, 0);
+    assertTrue("Writer shards should be found but kept", sweep
+        .getOrphansFound() > 0
+        && sweep.getOrphansDeleted() == 0);
+    out.close();
+    assertTrue("Closed writer should replace the entity", Arrays.equals(
+        bytes, ((Blob) md.get(entity.getKey()).getProperty("MyBlob"))
+            .getBytes()));
+  }
+
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright 2010 Tristan Slominski
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied.
+ */
+package com.mindash.datastore.impl;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.mindash.datastore.EntityCorruptException;
+import com.mindash.datastore.LocalDatastoreTestCase;
+import com.mindash.datastore.MindashDatastoreConfig;
+import com.mindash.datastore.MindashDatastoreService;
+
+/**
+ * Exports kinds of the local datastore to temporary files.
+ * 
+ * @author Tristan Slominski
+ *
+ */
+public class ShardExporterTest extends LocalDatastoreTestCase {
+
+  private DatastoreService datastore =
+      DatastoreServiceFactory.getDatastoreService();
+
+  private Set<Key> putMultiShardEntities(int count) {
+    MindashDatastoreService md =
+        new MindashDatastoreServiceImpl(datastore, new DatastoreHelperImpl());
+    for (int i = 0; i < count; i++) {
+      Entity entity = new Entity("testKind", "b" + i);
+      entity.setProperty("property1", "test string");
+      // a blob of more than a shard
+      entity.setProperty("MyBlob", new Blob(new byte[1500000]));
+      md.put(entity);
+    }
+    Set<Key> shardKeys = new HashSet<Key>();
+    for (Entity shard : datastore.prepare(new Query("testKind").setKeysOnly())
+        .asList(FetchOptions.Builder.withLimit(1000))) {
+      shardKeys.add(shard.getKey());
+    }
+    return shardKeys;
+  }
+
+  private Set<Key> readRecordKeys(File file) throws IOException {
+    Set<Key> keys = new HashSet<Key>();
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      ByteBuffer buffer = ByteBuffer.allocate((int) in.length());
+      in.getChannel().read(buffer);
+      buffer.flip();
+      assertTrue("File should start with the magic",
+          buffer.getInt() == ShardRecordCodec.FileMagic);
+      assertTrue("File should have the format version",
+          buffer.getInt() == ShardRecordCodec.FileVersion);
+      while (buffer.hasRemaining()) {
+        int length = buffer.getInt();
+        ByteBuffer record = buffer.slice();
+        record.limit(length);
+        keys.add(ShardRecordCodec.read(record).getKey());
+        buffer.position(buffer.position() + length);
+      }
+    } finally {
+      in.close();
+    }
+    return keys;
+  }
+
+  @Test
+  public void exportShouldWriteEveryShardOfTheKind() throws IOException {
+    Set<Key> shardKeys = putMultiShardEntities(2);
+    File file = File.createTempFile("export", ".mdd");
+    file.deleteOnExit();
+    ShardExporter.getManifestFile(file).deleteOnExit();
+    long records = new ShardExporter(datastore).export("testKind", file);
+    assertTrue("Every shard should be exported", records == shardKeys.size()
+        && readRecordKeys(file).equals(shardKeys));
+  }
+
+  @Test
+  public void importShouldRestoreTheExportedEntities() throws IOException,
+      EntityNotFoundException, EntityCorruptException {
+    Set<Key> shardKeys = putMultiShardEntities(2);
+    File file = File.createTempFile("export", ".mdd");
+    file.deleteOnExit();
+    ShardExporter.getManifestFile(file).deleteOnExit();
+    ShardImporter.getCheckpointFile(file).deleteOnExit();
+    new ShardExporter(datastore).export("testKind", file);
+    datastore.delete(shardKeys);
+    MindashDatastoreConfig config = new MindashDatastoreConfig();
+    ShardImporter importer =
+        new ShardImporter(datastore, new DatastoreHelperImpl(config), config);
+    // several batches
+    importer.setBatchBytes(1);
+    long records = importer.importFile(file);
+    MindashDatastoreService md =
+        new MindashDatastoreServiceImpl(datastore, new DatastoreHelperImpl());
+    Entity entity = md.get(KeyFactory.createKey("testKind", "b1"));
+    assertTrue("Every shard should be imported", records == shardKeys.size());
+    assertTrue("Entity should be restored", ((Blob) entity
+        .getProperty("MyBlob")).getBytes().length == 1500000
+        && entity.getProperty("property1").equals("test string"));
+  }
+
+  @Test
+  public void completedExportShouldNotBeExportedAgain() throws IOException {
+    Set<Key> shardKeys = putMultiShardEntities(1);
+    File file = File.createTempFile("export", ".mdd");
+    file.deleteOnExit();
+    ShardExporter.getManifestFile(file).deleteOnExit();
+    ShardExporter exporter = new ShardExporter(datastore);
+    exporter.export("testKind", file);
+    long length = file.length();
+    assertTrue("Export should be complete", exporter.export("testKind",
+        file) == shardKeys.size()
+        && file.length() == length);
+  }
+
+}
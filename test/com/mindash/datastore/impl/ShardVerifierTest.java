@@ -0,0 +1,102 @@
+/**
+ * Copyright 2010 Tristan Slominski
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied.
+ */
+package com.mindash.datastore.impl;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.mindash.datastore.LocalDatastoreTestCase;
+import com.mindash.datastore.MindashDatastoreService;
+
+/**
+ * Verifies kinds of the local datastore.
+ * 
+ * @author Tristan Slominski
+ *
+ */
+public class ShardVerifierTest extends LocalDatastoreTestCase {
+
+  private DatastoreService datastore =
+      DatastoreServiceFactory.getDatastoreService();
+
+  private Key putMultiShardEntity(MindashDatastoreService md, String name) {
+    Entity entity = new Entity("testKind", name);
+    // a blob of more than a shard
+    entity.setProperty("MyBlob", new Blob(new byte[1500000]));
+    return md.put(entity);
+  }
+
+  @Test
+  public void verifyShouldReportCorruptEntitiesAndOrphanShards() {
+    MindashDatastoreService md =
+        new MindashDatastoreServiceImpl(datastore, new DatastoreHelperImpl());
+    Key intact = putMultiShardEntity(md, "intact");
+    Key broken = putMultiShardEntity(md, "broken");
+    Key withOrphan = putMultiShardEntity(md, "withOrphan");
+    datastore.delete(MindashDatastoreServiceImpl.createMindashDatastoreKey(
+        broken, 1));
+    Entity orphan =
+        new Entity("testKind", MindashDatastoreService.MindashNamePrefixLabel
+            + 5, withOrphan);
+    orphan.setUnindexedProperty("MyBlob", new Blob(new byte[1000]));
+    datastore.put(orphan);
+    ShardVerifier verifier =
+        new ShardVerifier(datastore, new DatastoreHelperImpl(), "testKind",
+            2, null, Executors.defaultThreadFactory());
+    verifier.setVerifyChecksums(true);
+    Queue<Key> repairQueue = new ConcurrentLinkedQueue<Key>();
+    verifier.setRepairQueue(repairQueue);
+    ShardVerifier.Report report = verifier.verify();
+    assertTrue("Every entity should be checked",
+        report.getEntitiesChecked() == 3);
+    assertTrue("Only the broken entity should be corrupt", report
+        .getCorruptEntities().keySet().contains(broken)
+        && report.getCorruptEntities().size() == 1);
+    assertTrue("Broken entity should be queued for repair", repairQueue
+        .size() == 1
+        && repairQueue.peek().equals(broken));
+    assertTrue("Orphan shard should be reported", report.getOrphanShards()
+        .size() == 1
+        && report.getOrphanShards().get(0).equals(orphan.getKey()));
+    assertTrue("Intact entity should not be reported", !report
+        .getCorruptEntities().containsKey(intact));
+  }
+
+  @Test
+  public void verifyShouldAcceptTheUnusedShardsOfABlobWriter()
+      throws IOException {
+    MindashDatastoreService md =
+        new MindashDatastoreServiceImpl(datastore, new DatastoreHelperImpl());
+    Key key = putMultiShardEntity(md, "rewritten");
+    OutputStream out = md.createBlobWriter(key, "MyBlob");
+    out.write(new byte[1500000]);
+    out.close();
+    ShardVerifier verifier =
+        new ShardVerifier(datastore, new DatastoreHelperImpl(), "testKind",
+            1, null, null);
+    verifier.setVerifyChecksums(true);
+    ShardVerifier.Report report = verifier.verify();
+    assertTrue("Rewritten entity should not be corrupt", report
+        .getEntitiesChecked() == 1
+        && report.getCorruptEntities().isEmpty()
+        && report.getOrphanShards().isEmpty());
+  }
+
+}